@@ -23,6 +23,7 @@ CREATE TABLE assertions_tbl
     subject_name_id VARCHAR(255) NOT NULL,
     access_time TIMESTAMP NOT NULL,
     xml_object CLOB,
+    assertion_state BLOB,
     CONSTRAINT assertions_session_id_pk PRIMARY KEY (session_id)
 );
 
@@ -0,0 +1,7 @@
+-- Migration of an existing OIOSAML database created with an earlier version of database_session_handler.sql.
+-- Statements can be run on a live database, rows are migrated by the session handler the first time they are read.
+
+use oiosaml;
+
+-- 3.2.2: Pre-extracted assertion values, so the assertion XML is not parsed on every request
+ALTER TABLE assertions_tbl ADD assertion_state BLOB;
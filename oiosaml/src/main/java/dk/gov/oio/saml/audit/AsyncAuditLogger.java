@@ -0,0 +1,347 @@
+package dk.gov.oio.saml.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit logging adapter that hands messages to a dedicated thread, which delivers them in batches to another
+ * {@link AuditLogger}, so a slow audit log does not add latency to the request thread.
+ * <p>
+ * Messages are queued in a bounded lock-free ring buffer, and the {@link OverflowPolicy} decides what happens
+ * when the buffer is full. Remaining messages are delivered when the logger is closed.
+ * </p>
+ */
+public class AsyncAuditLogger implements AuditLogger, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AsyncAuditLogger.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * Action taken when a message is logged while the buffer is full
+     */
+    public enum OverflowPolicy {
+        BLOCK, // Wait for the dispatcher thread to make room
+        DROP, // Discard the message
+        CALLER_RUNS // Deliver the message on the calling thread
+    }
+
+    private final AuditLogger delegate;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxBatchSize;
+
+    // Ring buffer with a sequence per slot, a slot is free for position p when its sequence is p,
+    // and holds the message for position p when its sequence is p + 1
+    private final int mask;
+    private final AtomicReferenceArray<Entry> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+    private volatile boolean idle;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong callerRunsCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param delegate audit logger receiving the messages
+     * @param capacity maximum number of queued messages, rounded up to a power of two
+     * @param maxBatchSize maximum number of messages delivered in one batch
+     * @param overflowPolicy action taken when the buffer is full
+     */
+    public AsyncAuditLogger(AuditLogger delegate, int capacity, int maxBatchSize, OverflowPolicy overflowPolicy) {
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) * 2 - 1);
+        this.delegate = delegate;
+        this.overflowPolicy = null != overflowPolicy ? overflowPolicy : OverflowPolicy.BLOCK;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+
+        dispatcher = new Thread(this::dispatch, "oiosaml-audit-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @Override
+    public void auditLog(String message) {
+        Entry entry = new Entry(message, System.nanoTime());
+        if (!running) {
+            deliver(entry);
+            return;
+        }
+        while (!offer(entry)) {
+            if (!running) {
+                deliver(entry);
+                return;
+            }
+            switch (overflowPolicy) {
+                case DROP:
+                    droppedCount.incrementAndGet();
+                    return;
+                case CALLER_RUNS:
+                    callerRunsCount.incrementAndGet();
+                    deliver(entry);
+                    return;
+                default:
+                    LockSupport.unpark(dispatcher);
+                    LockSupport.parkNanos(FULL_PARK_NANOS);
+            }
+        }
+        enqueuedCount.incrementAndGet();
+        if (!running && !dispatcher.isAlive()) {
+            // Closed while queueing, the dispatcher thread may have stopped before the message was queued
+            drain();
+        }
+        else if (idle) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    /**
+     * Wait until all queued messages have been delivered.
+     *
+     * @param timeout maximum time to wait
+     * @param unit unit of timeout
+     * @return false if messages are still queued after the timeout
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (head < target) {
+            if (!dispatcher.isAlive()) {
+                drain();
+                return head >= target;
+            }
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.unpark(dispatcher);
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Stop the dispatcher thread after delivering queued messages, messages logged after close are delivered on the
+     * calling thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(dispatcher);
+        try {
+            dispatcher.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (dispatcher.isAlive()) {
+            log.warn("Audit dispatcher did not stop, {} messages are not delivered", getQueuedCount());
+        }
+        else {
+            drain();
+        }
+    }
+
+    private void dispatch() {
+        List<Entry> batch = new ArrayList<>(maxBatchSize);
+        while (running) {
+            if (!pollBatch(batch)) {
+                idle = true;
+                // Recheck after announcing idle, a message may have been queued without unparking
+                if (head == tail.get() && running) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            deliver(batch);
+        }
+        drain();
+    }
+
+    private synchronized void drain() {
+        List<Entry> batch = new ArrayList<>(maxBatchSize);
+        while (pollBatch(batch)) {
+            deliver(batch);
+        }
+    }
+
+    private boolean offer(Entry entry) {
+        long position = tail.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer.lazySet(index, entry);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            }
+            else if (difference < 0) {
+                return false;
+            }
+            else {
+                position = tail.get();
+            }
+        }
+    }
+
+    // Only called by the dispatcher thread, or by drain after the dispatcher thread has stopped
+    private boolean pollBatch(List<Entry> batch) {
+        long position = head;
+        while (batch.size() < maxBatchSize) {
+            int index = (int) position & mask;
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            batch.add(buffer.get(index));
+            buffer.lazySet(index, null);
+            sequences.set(index, position + mask + 1);
+            position++;
+        }
+        // The head is moved when the batch is delivered, so flush waits until the batch is logged
+        return !batch.isEmpty();
+    }
+
+    private void deliver(List<Entry> batch) {
+        List<String> messages = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            messages.add(entry.message);
+        }
+        try {
+            delegate.auditLog(messages);
+            deliveredCount.addAndGet(batch.size());
+        }
+        catch (RuntimeException e) {
+            failedCount.addAndGet(batch.size());
+            log.error("Failed delivering {} audit messages", batch.size(), e);
+        }
+        finally {
+            long now = System.nanoTime();
+            for (Entry entry : batch) {
+                recordLatency(now - entry.enqueued);
+            }
+            batchCount.incrementAndGet();
+            head += batch.size();
+            batch.clear();
+        }
+    }
+
+    private void deliver(Entry entry) {
+        try {
+            delegate.auditLog(entry.message);
+            deliveredCount.incrementAndGet();
+        }
+        catch (RuntimeException e) {
+            failedCount.incrementAndGet();
+            throw e;
+        }
+        finally {
+            recordLatency(System.nanoTime() - entry.enqueued);
+        }
+    }
+
+    private void recordLatency(long latency) {
+        totalLatencyNanos.addAndGet(latency);
+        long max;
+        while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+            // Retry until the maximum is updated or exceeded by another thread
+        }
+    }
+
+    /**
+     * @return number of messages queued for the dispatcher thread
+     */
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    /**
+     * @return number of messages discarded because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of messages delivered on the calling thread because the buffer was full
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.get();
+    }
+
+    /**
+     * @return number of messages delivered to the audit logger
+     */
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * @return number of messages the audit logger failed to log
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return number of batches delivered by the dispatcher thread
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return number of messages currently queued
+     */
+    public long getQueuedCount() {
+        return tail.get() - head;
+    }
+
+    /**
+     * @return average time in nanoseconds from a message is logged until it is delivered
+     */
+    public long getAverageLatencyNanos() {
+        long delivered = deliveredCount.get() + failedCount.get();
+        return delivered > 0 ? totalLatencyNanos.get() / delivered : 0;
+    }
+
+    /**
+     * @return maximum time in nanoseconds from a message is logged until it is delivered
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    private static final class Entry {
+        private final String message;
+        private final long enqueued;
+
+        private Entry(String message, long enqueued) {
+            this.message = message;
+            this.enqueued = enqueued;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package dk.gov.oio.saml.audit;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.StringUtil;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Encodes audit log statements as JSON, using buffers that are reused by each thread.
+ * <p>
+ * The fields added to every statement from the configuration are escaped once, values without special
+ * characters are copied without escaping, and the statement can be encoded directly as UTF-8.
+ * </p>
+ */
+public class AuditEncoder {
+    private static final DateTimeFormatter JSON_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    private static final String TIME = "Time";
+    private static final String SP_ENTITY_ID = "SpEntityID";
+    private static final String IDP_ENTITY_ID = "IdpEntityID";
+
+    // Buffers larger than this are not kept by the thread, to avoid holding on to the largest statement ever logged
+    private static final int MAX_RETAINED_CHARS = 16 * 1024;
+
+    private static final ThreadLocal<Buffers> threadBuffers = ThreadLocal.withInitial(Buffers::new);
+
+    private final String spEntityIdField;
+    private final String idpEntityIdField;
+
+    public AuditEncoder(Configuration configuration) {
+        this.spEntityIdField = field(SP_ENTITY_ID, configuration.getSpEntityID());
+        this.idpEntityIdField = field(IDP_ENTITY_ID, configuration.getIdpEntityID());
+    }
+
+    /**
+     * Encode the audit log statement with time and entity IDs as JSON, the builder is not changed.
+     * @param auditBuilder audit log statement
+     * @return JSON encoded statement
+     */
+    public String encode(AuditService.Builder auditBuilder) {
+        Buffers buffers = acquire();
+        try {
+            append(buffers.chars, auditBuilder);
+            return buffers.chars.toString();
+        }
+        finally {
+            release(buffers);
+        }
+    }
+
+    /**
+     * Encode the audit log statement with time and entity IDs as UTF-8 encoded JSON, and write it to the audit logger.
+     * @param auditBuilder audit log statement
+     * @param auditLogger byte oriented audit logger
+     */
+    public void encode(AuditService.Builder auditBuilder, ByteAuditLogger auditLogger) {
+        Buffers buffers = acquire();
+        try {
+            append(buffers.chars, auditBuilder);
+
+            // A char is at most 3 bytes in UTF-8, surrogate pairs are 4 bytes for 2 chars
+            if (buffers.bytes.length < buffers.chars.length() * 3) {
+                buffers.bytes = new byte[buffers.chars.length() * 3];
+            }
+            int length = encodeUtf8(buffers.chars, buffers.bytes);
+            auditLogger.auditLog(buffers.bytes, 0, length);
+        }
+        finally {
+            release(buffers);
+        }
+    }
+
+    private void append(StringBuilder sb, AuditService.Builder auditBuilder) {
+        sb.append('{');
+        auditBuilder.appendFields(sb);
+        if (!auditBuilder.containsKey(TIME)) {
+            separate(sb).append('"').append(TIME).append("\":\"");
+            JSON_DATE_FORMATTER.formatTo(LocalDateTime.now(), sb);
+            sb.append('"');
+        }
+        if (!auditBuilder.containsKey(SP_ENTITY_ID)) {
+            separate(sb).append(spEntityIdField);
+        }
+        if (!auditBuilder.containsKey(IDP_ENTITY_ID)) {
+            separate(sb).append(idpEntityIdField);
+        }
+        sb.append('}');
+    }
+
+    private static StringBuilder separate(StringBuilder sb) {
+        if (sb.length() > 1) {
+            sb.append(',');
+        }
+        return sb;
+    }
+
+    private static Buffers acquire() {
+        Buffers buffers = threadBuffers.get();
+        if (buffers.inUse) {
+            // Audit logged while encoding on the same thread, e.g. by the audit logger
+            return new Buffers();
+        }
+        buffers.inUse = true;
+        return buffers;
+    }
+
+    private static void release(Buffers buffers) {
+        if (threadBuffers.get() != buffers) {
+            return;
+        }
+        if (buffers.chars.capacity() > MAX_RETAINED_CHARS || buffers.bytes.length > 3 * MAX_RETAINED_CHARS) {
+            threadBuffers.remove();
+        }
+        else {
+            buffers.chars.setLength(0);
+            buffers.inUse = false;
+        }
+    }
+
+    private static String field(String key, String value) {
+        StringBuilder sb = new StringBuilder().append('"').append(key).append("\":\"");
+        StringUtil.appendJsonEscaped(sb, value);
+        return sb.append('"').toString();
+    }
+
+    private static int encodeUtf8(CharSequence chars, byte[] bytes) {
+        int length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char ch = chars.charAt(i);
+            if (ch < 0x80) {
+                bytes[length++] = (byte) ch;
+            }
+            else if (ch < 0x800) {
+                bytes[length++] = (byte) (0xC0 | (ch >> 6));
+                bytes[length++] = (byte) (0x80 | (ch & 0x3F));
+            }
+            else if (Character.isHighSurrogate(ch) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, chars.charAt(++i));
+                bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else if (Character.isSurrogate(ch)) {
+                // Unpaired surrogate, replaced like String.getBytes does
+                bytes[length++] = '?';
+            }
+            else {
+                bytes[length++] = (byte) (0xE0 | (ch >> 12));
+                bytes[length++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        return length;
+    }
+
+    private static final class Buffers {
+        private final StringBuilder chars = new StringBuilder(1024);
+        private byte[] bytes = new byte[1024];
+        private boolean inUse;
+    }
+}
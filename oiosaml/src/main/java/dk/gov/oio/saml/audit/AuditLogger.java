@@ -1,5 +1,7 @@
 package dk.gov.oio.saml.audit;
 
+import java.util.List;
+
 /**
  * Audit logging adapter interface used in OIOSAML configuration.
  * See Slf4JAuditLogger.
@@ -10,4 +12,15 @@ public interface AuditLogger {
      * @param message log message in JSON format, created with AuditService.Builder
      */
     void auditLog(String message);
+
+    /**
+     * Audit log a batch of messages in JSON format, used when audit logging is asynchronous.
+     * Implementations can override this to write the batch at once, e.g. in a single database transaction.
+     * @param messages log messages in JSON format, created with AuditService.Builder
+     */
+    default void auditLog(List<String> messages) {
+        for (String message : messages) {
+            auditLog(message);
+        }
+    }
 }
@@ -8,22 +8,34 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 public class AuditService {
     private static final Logger log = LoggerFactory.getLogger(AuditService.class);
-    private static SimpleDateFormat JSON_DATE_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
 
     private transient AuditLogger auditLogger;
+    private transient AuditEncoder auditEncoder;
     private transient Configuration configuration;
 
     public AuditService(Configuration configuration) throws InitializationException {
         log.debug("Initialize AuditService");
         this.configuration = configuration;
+        this.auditEncoder = new AuditEncoder(configuration);
         this.auditLogger = createAuditLogger(configuration.getAuditLoggerClassName());
+
+        if (configuration.isAuditAsyncEnabled()) {
+            AsyncAuditLogger.OverflowPolicy overflowPolicy = AsyncAuditLogger.OverflowPolicy.BLOCK;
+            try {
+                overflowPolicy = AsyncAuditLogger.OverflowPolicy.valueOf(configuration.getAuditAsyncOverflowPolicy());
+            }
+            catch (Exception e) {
+                log.warn("Unknown audit overflow policy '{}', using '{}'", configuration.getAuditAsyncOverflowPolicy(), overflowPolicy);
+            }
+            log.info("Audit logging is asynchronous, buffer size '{}', overflow policy '{}'", configuration.getAuditAsyncBufferSize(), overflowPolicy);
+            this.auditLogger = new AsyncAuditLogger(auditLogger, configuration.getAuditAsyncBufferSize(), configuration.getAuditAsyncBatchSize(), overflowPolicy);
+        }
     }
 
     /**
@@ -32,24 +44,84 @@ public class AuditService {
      */
     public void auditLog(Builder auditBuilder) {
         if (null != auditBuilder) {
-            auditLogger.auditLog(auditBuilder
-                    .withAuthnAttribute("Time", JSON_DATE_FORMATTER.format(Calendar.getInstance().getTime()))
-                    .withAuthnAttribute("SpEntityID", configuration.getSpEntityID())
-                    .withAuthnAttribute("IdpEntityID", configuration.getIdpEntityID())
-                    .toJSON());
+            if (auditLogger instanceof ByteAuditLogger) {
+                auditEncoder.encode(auditBuilder, (ByteAuditLogger) auditLogger);
+            }
+            else {
+                auditLogger.auditLog(auditEncoder.encode(auditBuilder));
+            }
+        }
+    }
+
+    /**
+     * Deliver queued audit log messages, when audit logging is asynchronous.
+     * @param timeout maximum time to wait in milliseconds
+     * @return false if messages are still queued after the timeout
+     */
+    public boolean flush(long timeout) {
+        if (auditLogger instanceof AsyncAuditLogger) {
+            return ((AsyncAuditLogger) auditLogger).flush(timeout, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Deliver queued audit log messages and stop the dispatcher thread, when audit logging is asynchronous.
+     * Messages logged after close are written on the calling thread.
+     */
+    public void close() {
+        if (auditLogger instanceof AsyncAuditLogger) {
+            ((AsyncAuditLogger) auditLogger).close();
         }
     }
 
+    /**
+     * @return the asynchronous audit logger with counters for queued, dropped and delivered messages, null if audit logging is synchronous
+     */
+    public AsyncAuditLogger getAsyncAuditLogger() {
+        return auditLogger instanceof AsyncAuditLogger ? (AsyncAuditLogger) auditLogger : null;
+    }
+
     public static class Builder {
-        private Map<String,String> auditMap = new LinkedHashMap<>();
+        // Keys and values in insertion order, a statement has few attributes so lookup by scanning is cheap
+        private String[] attributes = new String[16];
+        private int size;
 
         public Builder withAuthnAttribute(String key, String value) {
-            auditMap.putIfAbsent(key, value);
+            if (!containsKey(key)) {
+                if (size == attributes.length) {
+                    attributes = Arrays.copyOf(attributes, size * 2);
+                }
+                attributes[size++] = key;
+                attributes[size++] = value;
+            }
             return this;
         }
 
+        boolean containsKey(String key) {
+            for (int i = 0; i < size; i += 2) {
+                if (Objects.equals(key, attributes[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void appendFields(StringBuilder sb) {
+            for (int i = 0; i < size; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(attributes[i]).append("\":\"");
+                StringUtil.appendJsonEscaped(sb, attributes[i + 1]);
+                sb.append('"');
+            }
+        }
+
         public String toJSON() {
-            return StringUtil.map2json(auditMap);
+            StringBuilder sb = new StringBuilder(32 * size + 2).append('{');
+            appendFields(sb);
+            return sb.append('}').toString();
         }
     }
 
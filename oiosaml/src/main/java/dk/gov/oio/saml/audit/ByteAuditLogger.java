@@ -0,0 +1,17 @@
+package dk.gov.oio.saml.audit;
+
+/**
+ * Audit logging adapter for byte oriented audit logs, e.g. files or sockets.
+ * AuditService writes UTF-8 encoded messages directly to adapters implementing this interface,
+ * without creating a string for each message.
+ */
+public interface ByteAuditLogger extends AuditLogger {
+    /**
+     * Audit log a UTF-8 encoded message in JSON format, e.g. AuthnRequest or Assertion from SAML.
+     * The buffer is reused after the call returns, so the message must be written or copied before returning.
+     * @param buffer buffer containing the UTF-8 encoded message
+     * @param offset offset of the message in the buffer
+     * @param length length of the message in bytes
+     */
+    void auditLog(byte[] buffer, int offset, int length);
+}
@@ -20,13 +20,33 @@ public class Configuration {
     private String auditRequestAttributePort; // Replace IP in audit request with value from attribute [protocol:name]
     private String auditRequestAttributeSessionId; // Replace SessionId in audit request with value from attribute [protocol:name]
     private String auditRequestAttributeServiceProviderUserId; // Replace ServiceProviderUserId in audit request with value from attribute [protocol:name]
+    private boolean auditAsyncEnabled = false; // Write audit log on a dedicated thread, instead of the request thread
+    private int auditAsyncBufferSize = 8192; // Maximum number of queued audit log messages, when audit logging is asynchronous
+    private int auditAsyncBatchSize = 100; // Maximum number of audit log messages handed to the AuditLogger at once
+    private String auditAsyncOverflowPolicy = "BLOCK"; // Action when the audit log buffer is full [BLOCK, DROP, CALLER_RUNS]
+    private String servletRoutingPathSuffixTrace; // The endpoint suffix for dumping traced SAML messages, the endpoint is only registered if set
+    private int messageTraceBufferSize = 0; // Number of recently traced SAML messages kept in memory, 0 to disable
+    private String messageTraceSampleRates; // Fraction of SAML messages traced per endpoint [endpoint:rate,...], '*' for other endpoints, default 1.0
     private String sessionHandlerFactoryClassName; // Class name of the session handler factory implementation
     private String sessionHandlerJndiName; // JNDI name for the JNDI session handler factory
     private String sessionHandlerJdbcUrl; // JDBC URL for the JDBC session handler factory
     private String sessionHandlerJdbcUsername; // JDBC username for the JDBC session handler factory
     private String sessionHandlerJdbcPassword; // JDBC password for the JDBC session handler factory
     private String sessionHandlerJdbcDriverClassName; // JDBC driver class name for the JDBC session handler factory
-    private int sessionHandlerInMemoryMaxNumberOfTrackedAssertionIds; // InMemory limit to list of stored assertions
+    private int sessionHandlerInMemoryMaxNumberOfTrackedAssertionIds = 10000; // InMemory limit to list of stored assertions, 0 for no limit
+    private long sessionHandlerInMemoryMaxTrackedAssertionIdsBytes = 8L * 1024 * 1024; // InMemory limit in estimated bytes to list of stored assertions, 0 for no limit
+    private int sessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds = 24 * 60 * 60; // InMemory time in seconds to keep assertion IDs for replay validation
+    private long sessionHandlerInMemoryMaxBytes = 0; // InMemory limit in estimated bytes of stored sessions, least recently used are evicted, 0 for no limit
+    private int sessionHandlerJdbcPoolMinSize = 1; // Minimum number of pooled connections for the JDBC session handler factory
+    private int sessionHandlerJdbcPoolMaxSize = 10; // Maximum number of pooled connections for the JDBC session handler factory
+    private int sessionHandlerJdbcPoolMaxWaitMillis = 5000; // Maximum time in milliseconds to wait for a pooled connection
+    private int sessionHandlerJdbcPoolIdleTimeoutSeconds = 600; // Idle time in seconds before a pooled connection is closed
+    private int sessionHandlerJdbcPoolValidationTimeoutSeconds = 5; // Timeout in seconds for validating a pooled connection on borrow
+    private int sessionHandlerDatabaseTouchGranularitySeconds = 60; // Session access time is not updated on read if it is younger than this
+    private int sessionHandlerDatabaseTouchFlushIntervalSeconds = 10; // Interval between writing session access times, 0 updates on every read
+    private boolean postBindingStreamingEnabled = false; // Write the HTTP-POST binding form directly to the response, instead of using the Velocity template
+    private int parserPoolMaxSize = 50; // Maximum number of idle XML parsers kept for reuse when decoding SAML messages
+    private int authnRequestTemplateCacheSize = 64; // Maximum number of marshalled AuthnRequest templates, 0 builds every AuthnRequest from scratch
     private boolean validationEnabled = true;
     private boolean isAssuranceLevelAllowed = false;
     private int minimumAssuranceLevel = 3;
@@ -35,6 +55,8 @@ public class Configuration {
     private boolean isEndpointURIValidationEnabled = true;
     private boolean isMessageLifetimeValidationEnabled = true;
     private boolean sessionFixationProtectEnabled = true;
+    private boolean assertionCompactEnabled = false; // Keep only the UTF-8 encoded assertion XML, other representations are derived on request
+    private boolean assertionCompressionEnabled = false; // Deflate the assertion XML kept in compact mode
 
     // Metadata configuration
     private String idpEntityID; // This IdP's EntityID
@@ -42,6 +64,9 @@ public class Configuration {
     private String idpMetadataFile; // The file path for a metadata file
     private int idpMetadataMinRefreshDelay = 1; // The minimum refresh delay in hours
     private int idpMetadataMaxRefreshDelay = 12; // The maximum refresh delay in hours
+    private int idpMetadataMaxBackoffMinutes = 10; // The maximum delay in minutes between retries of a failed refresh
+    private int idpMetadataMaxStalenessMinutes = 1440; // Minutes after the last successful refresh at which requests fail while refreshes fail, the last good metadata is used until then
+    private String idpMetadataCacheDirectory; // Directory where metadata fetched from the URL is kept, so startup does not wait for the IdP, metadata is only kept in memory if not set
 
     // Keystore configuration
     private String keystoreLocation; // Location of the keystore
@@ -65,6 +90,14 @@ public class Configuration {
     // Revocation check settings
     private boolean crlCheckEnabled = true;
     private boolean ocspCheckEnabled = true;
+    private int ocspCheckThreads = 4; // Number of threads checking certificates in parallel
+    private int revocationCheckIntervalMinutes = 60; // Interval between background revocation checks of IdP certificates
+    private int revocationCheckMaxStalenessMinutes = 1440; // Age in minutes after which a revocation check result is not used, and certificates are checked on the request thread
+    private String crlCacheDirectory; // Directory where downloaded CRLs are kept between restarts, CRLs are only cached in memory if not set
+    private int crlRefreshMarginMinutes = 5; // Minutes before nextUpdate at which a cached CRL is downloaded again
+    private String issuerCertificateCacheDirectory; // Directory where downloaded CA certificates are kept between restarts, CA certificates are only cached in memory if not set
+    private int issuerCertificateCacheTtlMinutes = 1440; // Minutes after which a cached CA certificate is downloaded again
+    private int issuerCertificateCacheSize = 100; // Maximum number of cached CA certificates
 
     // AppSwitch return URL settings
     private String appSwitchReturnURLForAndroid;
@@ -178,6 +211,30 @@ public class Configuration {
         this.idpMetadataMaxRefreshDelay = idpMetadataMaxRefreshDelay;
     }
 
+    public int getIdpMetadataMaxBackoffMinutes() {
+        return idpMetadataMaxBackoffMinutes;
+    }
+
+    public void setIdpMetadataMaxBackoffMinutes(int idpMetadataMaxBackoffMinutes) {
+        this.idpMetadataMaxBackoffMinutes = idpMetadataMaxBackoffMinutes;
+    }
+
+    public int getIdpMetadataMaxStalenessMinutes() {
+        return idpMetadataMaxStalenessMinutes;
+    }
+
+    public void setIdpMetadataMaxStalenessMinutes(int idpMetadataMaxStalenessMinutes) {
+        this.idpMetadataMaxStalenessMinutes = idpMetadataMaxStalenessMinutes;
+    }
+
+    public String getIdpMetadataCacheDirectory() {
+        return idpMetadataCacheDirectory;
+    }
+
+    public void setIdpMetadataCacheDirectory(String idpMetadataCacheDirectory) {
+        this.idpMetadataCacheDirectory = idpMetadataCacheDirectory;
+    }
+
     public String getKeystoreLocation() {
         return keystoreLocation;
     }
@@ -354,6 +411,70 @@ public class Configuration {
         this.ocspCheckEnabled = ocspCheckEnabled;
     }
 
+    public int getOcspCheckThreads() {
+        return ocspCheckThreads;
+    }
+
+    public void setOcspCheckThreads(int ocspCheckThreads) {
+        this.ocspCheckThreads = ocspCheckThreads;
+    }
+
+    public int getRevocationCheckIntervalMinutes() {
+        return revocationCheckIntervalMinutes;
+    }
+
+    public void setRevocationCheckIntervalMinutes(int revocationCheckIntervalMinutes) {
+        this.revocationCheckIntervalMinutes = revocationCheckIntervalMinutes;
+    }
+
+    public int getRevocationCheckMaxStalenessMinutes() {
+        return revocationCheckMaxStalenessMinutes;
+    }
+
+    public void setRevocationCheckMaxStalenessMinutes(int revocationCheckMaxStalenessMinutes) {
+        this.revocationCheckMaxStalenessMinutes = revocationCheckMaxStalenessMinutes;
+    }
+
+    public String getCrlCacheDirectory() {
+        return crlCacheDirectory;
+    }
+
+    public void setCrlCacheDirectory(String crlCacheDirectory) {
+        this.crlCacheDirectory = crlCacheDirectory;
+    }
+
+    public int getCrlRefreshMarginMinutes() {
+        return crlRefreshMarginMinutes;
+    }
+
+    public void setCrlRefreshMarginMinutes(int crlRefreshMarginMinutes) {
+        this.crlRefreshMarginMinutes = crlRefreshMarginMinutes;
+    }
+
+    public String getIssuerCertificateCacheDirectory() {
+        return issuerCertificateCacheDirectory;
+    }
+
+    public void setIssuerCertificateCacheDirectory(String issuerCertificateCacheDirectory) {
+        this.issuerCertificateCacheDirectory = issuerCertificateCacheDirectory;
+    }
+
+    public int getIssuerCertificateCacheTtlMinutes() {
+        return issuerCertificateCacheTtlMinutes;
+    }
+
+    public void setIssuerCertificateCacheTtlMinutes(int issuerCertificateCacheTtlMinutes) {
+        this.issuerCertificateCacheTtlMinutes = issuerCertificateCacheTtlMinutes;
+    }
+
+    public int getIssuerCertificateCacheSize() {
+        return issuerCertificateCacheSize;
+    }
+
+    public void setIssuerCertificateCacheSize(int issuerCertificateCacheSize) {
+        this.issuerCertificateCacheSize = issuerCertificateCacheSize;
+    }
+
     public String getAuditLoggerClassName() {
         return this.auditLoggerClassName;
     }
@@ -394,6 +515,38 @@ public class Configuration {
         this.auditRequestAttributeServiceProviderUserId = auditRequestAttributeServiceProviderUserId;
     }
 
+    public boolean isAuditAsyncEnabled() {
+        return auditAsyncEnabled;
+    }
+
+    public void setAuditAsyncEnabled(boolean auditAsyncEnabled) {
+        this.auditAsyncEnabled = auditAsyncEnabled;
+    }
+
+    public int getAuditAsyncBufferSize() {
+        return auditAsyncBufferSize;
+    }
+
+    public void setAuditAsyncBufferSize(int auditAsyncBufferSize) {
+        this.auditAsyncBufferSize = auditAsyncBufferSize;
+    }
+
+    public int getAuditAsyncBatchSize() {
+        return auditAsyncBatchSize;
+    }
+
+    public void setAuditAsyncBatchSize(int auditAsyncBatchSize) {
+        this.auditAsyncBatchSize = auditAsyncBatchSize;
+    }
+
+    public String getAuditAsyncOverflowPolicy() {
+        return auditAsyncOverflowPolicy;
+    }
+
+    public void setAuditAsyncOverflowPolicy(String auditAsyncOverflowPolicy) {
+        this.auditAsyncOverflowPolicy = auditAsyncOverflowPolicy;
+    }
+
     public String getSessionHandlerFactoryClassName() {
         return sessionHandlerFactoryClassName;
     }
@@ -418,6 +571,70 @@ public class Configuration {
         this.sessionFixationProtectEnabled = sessionFixationProtectEnabled;
     }
 
+    public boolean isAssertionCompactEnabled() {
+        return assertionCompactEnabled;
+    }
+
+    public void setAssertionCompactEnabled(boolean assertionCompactEnabled) {
+        this.assertionCompactEnabled = assertionCompactEnabled;
+    }
+
+    public boolean isAssertionCompressionEnabled() {
+        return assertionCompressionEnabled;
+    }
+
+    public void setAssertionCompressionEnabled(boolean assertionCompressionEnabled) {
+        this.assertionCompressionEnabled = assertionCompressionEnabled;
+    }
+
+    public String getServletRoutingPathSuffixTrace() {
+        return servletRoutingPathSuffixTrace;
+    }
+
+    public void setServletRoutingPathSuffixTrace(String servletRoutingPathSuffixTrace) {
+        this.servletRoutingPathSuffixTrace = servletRoutingPathSuffixTrace;
+    }
+
+    public int getMessageTraceBufferSize() {
+        return messageTraceBufferSize;
+    }
+
+    public void setMessageTraceBufferSize(int messageTraceBufferSize) {
+        this.messageTraceBufferSize = messageTraceBufferSize;
+    }
+
+    public String getMessageTraceSampleRates() {
+        return messageTraceSampleRates;
+    }
+
+    public void setMessageTraceSampleRates(String messageTraceSampleRates) {
+        this.messageTraceSampleRates = messageTraceSampleRates;
+    }
+
+    public boolean isPostBindingStreamingEnabled() {
+        return postBindingStreamingEnabled;
+    }
+
+    public void setPostBindingStreamingEnabled(boolean postBindingStreamingEnabled) {
+        this.postBindingStreamingEnabled = postBindingStreamingEnabled;
+    }
+
+    public int getParserPoolMaxSize() {
+        return parserPoolMaxSize;
+    }
+
+    public void setParserPoolMaxSize(int parserPoolMaxSize) {
+        this.parserPoolMaxSize = parserPoolMaxSize;
+    }
+
+    public int getAuthnRequestTemplateCacheSize() {
+        return authnRequestTemplateCacheSize;
+    }
+
+    public void setAuthnRequestTemplateCacheSize(int authnRequestTemplateCacheSize) {
+        this.authnRequestTemplateCacheSize = authnRequestTemplateCacheSize;
+    }
+
     public String getSessionHandlerJdbcUrl() {
         return sessionHandlerJdbcUrl;
     }
@@ -458,6 +675,86 @@ public class Configuration {
         return sessionHandlerInMemoryMaxNumberOfTrackedAssertionIds;
     }
 
+    public long getSessionHandlerInMemoryMaxTrackedAssertionIdsBytes() {
+        return sessionHandlerInMemoryMaxTrackedAssertionIdsBytes;
+    }
+
+    public void setSessionHandlerInMemoryMaxTrackedAssertionIdsBytes(long sessionHandlerInMemoryMaxTrackedAssertionIdsBytes) {
+        this.sessionHandlerInMemoryMaxTrackedAssertionIdsBytes = sessionHandlerInMemoryMaxTrackedAssertionIdsBytes;
+    }
+
+    public int getSessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds() {
+        return sessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds;
+    }
+
+    public void setSessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds(int sessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds) {
+        this.sessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds = sessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds;
+    }
+
+    public long getSessionHandlerInMemoryMaxBytes() {
+        return sessionHandlerInMemoryMaxBytes;
+    }
+
+    public void setSessionHandlerInMemoryMaxBytes(long sessionHandlerInMemoryMaxBytes) {
+        this.sessionHandlerInMemoryMaxBytes = sessionHandlerInMemoryMaxBytes;
+    }
+
+    public int getSessionHandlerJdbcPoolMinSize() {
+        return sessionHandlerJdbcPoolMinSize;
+    }
+
+    public void setSessionHandlerJdbcPoolMinSize(int sessionHandlerJdbcPoolMinSize) {
+        this.sessionHandlerJdbcPoolMinSize = sessionHandlerJdbcPoolMinSize;
+    }
+
+    public int getSessionHandlerJdbcPoolMaxSize() {
+        return sessionHandlerJdbcPoolMaxSize;
+    }
+
+    public void setSessionHandlerJdbcPoolMaxSize(int sessionHandlerJdbcPoolMaxSize) {
+        this.sessionHandlerJdbcPoolMaxSize = sessionHandlerJdbcPoolMaxSize;
+    }
+
+    public int getSessionHandlerJdbcPoolMaxWaitMillis() {
+        return sessionHandlerJdbcPoolMaxWaitMillis;
+    }
+
+    public void setSessionHandlerJdbcPoolMaxWaitMillis(int sessionHandlerJdbcPoolMaxWaitMillis) {
+        this.sessionHandlerJdbcPoolMaxWaitMillis = sessionHandlerJdbcPoolMaxWaitMillis;
+    }
+
+    public int getSessionHandlerJdbcPoolIdleTimeoutSeconds() {
+        return sessionHandlerJdbcPoolIdleTimeoutSeconds;
+    }
+
+    public void setSessionHandlerJdbcPoolIdleTimeoutSeconds(int sessionHandlerJdbcPoolIdleTimeoutSeconds) {
+        this.sessionHandlerJdbcPoolIdleTimeoutSeconds = sessionHandlerJdbcPoolIdleTimeoutSeconds;
+    }
+
+    public int getSessionHandlerJdbcPoolValidationTimeoutSeconds() {
+        return sessionHandlerJdbcPoolValidationTimeoutSeconds;
+    }
+
+    public void setSessionHandlerJdbcPoolValidationTimeoutSeconds(int sessionHandlerJdbcPoolValidationTimeoutSeconds) {
+        this.sessionHandlerJdbcPoolValidationTimeoutSeconds = sessionHandlerJdbcPoolValidationTimeoutSeconds;
+    }
+
+    public int getSessionHandlerDatabaseTouchGranularitySeconds() {
+        return sessionHandlerDatabaseTouchGranularitySeconds;
+    }
+
+    public void setSessionHandlerDatabaseTouchGranularitySeconds(int sessionHandlerDatabaseTouchGranularitySeconds) {
+        this.sessionHandlerDatabaseTouchGranularitySeconds = sessionHandlerDatabaseTouchGranularitySeconds;
+    }
+
+    public int getSessionHandlerDatabaseTouchFlushIntervalSeconds() {
+        return sessionHandlerDatabaseTouchFlushIntervalSeconds;
+    }
+
+    public void setSessionHandlerDatabaseTouchFlushIntervalSeconds(int sessionHandlerDatabaseTouchFlushIntervalSeconds) {
+        this.sessionHandlerDatabaseTouchFlushIntervalSeconds = sessionHandlerDatabaseTouchFlushIntervalSeconds;
+    }
+
     public void setAppSwitchReturnURLForAndroid(String returnURL) {
         this.appSwitchReturnURLForAndroid = returnURL;
     }
@@ -18,10 +18,10 @@ import jakarta.servlet.http.HttpSession;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.extensions.appswitch.AppSwitchPlatform;
+import dk.gov.oio.saml.service.MessageTraceService;
 import dk.gov.oio.saml.service.OIOSAML3Service;
 import dk.gov.oio.saml.session.*;
 import dk.gov.oio.saml.util.*;
-import org.opensaml.core.xml.io.MarshallingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opensaml.messaging.context.MessageContext;
@@ -32,6 +32,7 @@ import org.opensaml.saml.saml2.core.AuthnRequest;
 
 import dk.gov.oio.saml.model.NSISLevel;
 import dk.gov.oio.saml.service.AuthnRequestService;
+import dk.gov.oio.saml.service.IdPMetadataService;
 
 public class AuthenticatedFilter implements Filter {
     private static final Logger log = LoggerFactory.getLogger(AuthenticatedFilter.class);
@@ -76,6 +77,9 @@ public class AuthenticatedFilter implements Filter {
         
         log.debug("AuthenticatedFilter invoked by endpoint: '{}{}'", req.getContextPath(), req.getServletPath());
 
+        // Session state is loaded once while the filter decides, and never held while the application runs
+        boolean sessionStateScope = true;
+        RequestSessionState.begin();
         try {
             OIOSAML3Service.getSessionCleanerService().startCleanerIfMissing(req.getSession());
             SessionHandler sessionHandler = OIOSAML3Service.getSessionHandlerFactory().getHandler();
@@ -112,6 +116,8 @@ public class AuthenticatedFilter implements Filter {
             else {
                 try {
                     putAssertionOnThreadLocal(req.getSession());
+                    RequestSessionState.end();
+                    sessionStateScope = false;
 
                     // User already authenticated to the correct level
                     chain.doFilter(req, res);
@@ -126,12 +132,22 @@ public class AuthenticatedFilter implements Filter {
 
             throw new ServletException(e);
         }
+        finally {
+            if (sessionStateScope) {
+                RequestSessionState.end();
+            }
+        }
     }
 
     @Override
     public void destroy() {
         OIOSAML3Service.getSessionCleanerService().stopCleaner();
         OIOSAML3Service.getSessionHandlerFactory().close();
+        OIOSAML3Service.getAuditService().close();
+        OIOSAML3Service.getRevocationCheckService().close();
+        OIOSAML3Service.getOCSPService().close();
+        OIOSAML3Service.getMetadataRefreshService().close();
+        IdPMetadataService.getInstance().close();
     }
 
     private boolean userNeedsAuthentication(HttpServletRequest req, SessionHandler sessionHandler, AssertionWrapper assertionWrapper) {
@@ -183,11 +199,9 @@ public class AuthenticatedFilter implements Filter {
     }
 
     private void sendAuthnRequest(HttpServletRequest req, HttpServletResponse res, MessageContext authnRequest, NSISLevel requestedNsisLevel, String requestPath) throws InternalException {
-        try {
-            log.debug("AuthnRequest: {}", StringUtil.elementToString(SamlHelper.marshallObject((SAMLObject)authnRequest.getMessage())));
-        }
-        catch (MarshallingException e) {
-            log.warn("Could not marshall AuthnRequest for logging purposes");
+        MessageTraceService messageTraceService = OIOSAML3Service.getMessageTraceService();
+        if (messageTraceService.isTraced("OutgoingAuthnRequest")) {
+            messageTraceService.trace("OutgoingAuthnRequest", (SAMLObject) authnRequest.getMessage());
         }
 
         // Save authnRequest on session
@@ -1,8 +1,9 @@
 package dk.gov.oio.saml.model;
 
 import java.io.ByteArrayInputStream;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
@@ -10,21 +11,16 @@ import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.net.ssl.SSLContext;
-
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
-import org.apache.hc.client5.http.io.HttpClientConnectionManager;
-import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
-import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
-import org.apache.hc.client5.http.ssl.TrustSelfSignedStrategy;
-import org.bouncycastle.util.encoders.Base64;
 import org.opensaml.core.config.InitializationException;
 import org.opensaml.core.criterion.EntityIdCriterion;
 import org.opensaml.saml.common.xml.SAMLConstants;
@@ -33,18 +29,20 @@ import org.opensaml.saml.metadata.resolver.impl.FilesystemMetadataResolver;
 import org.opensaml.saml.metadata.resolver.impl.HTTPMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
-import org.opensaml.saml.saml2.metadata.KeyDescriptor;
 import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
 import org.opensaml.security.credential.UsageType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.service.CRLChecker;
+import dk.gov.oio.saml.service.IdPMetadataService;
 import dk.gov.oio.saml.service.OIOSAML3Service;
 import dk.gov.oio.saml.util.ExternalException;
 import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.ResourceUtil;
+import dk.gov.oio.saml.util.StringUtil;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.resolver.CriteriaSet;
 import net.shibboleth.shared.resolver.ResolverException;
@@ -52,12 +50,28 @@ import net.shibboleth.shared.xml.impl.BasicParserPool;
 
 public class IdPMetadata {
     private static final Logger log = LoggerFactory.getLogger(IdPMetadata.class);
-    private List<X509Certificate> validEncryptionCertificates = new ArrayList<>();
-    private List<X509Certificate> validSigningCertificates = new ArrayList<>();
-    private List<X509Certificate> validUnspecifiedCertificates = new ArrayList<>();
+    private static final Duration REVOCATION_CHECK_WAIT = Duration.ofSeconds(10);
+    private static final Duration REVOCATION_CHECK_INITIAL_BACKOFF = Duration.ofSeconds(30);
+    // Result of the last successful revocation check, and the valid certificates of a snapshot derived from it.
+    // Both are replaced, never modified, so they can be read without locking
+    private volatile RevocationStatus revocationStatus;
+    private volatile ValidCertificates validCertificates;
+    private final Object revocationLock = new Object();
+    // Signalled when a revocation check completes, guards the fields below
+    private final Object revocationCheckMonitor = new Object();
+    private long completedRevocationCheckCount;
+    private int consecutiveFailedRevocationChecks;
+    private Instant nextRevocationCheckAfterFailure = Instant.MIN;
+    private final AtomicLong revocationCheckCount = new AtomicLong();
+    private final AtomicLong failedRevocationCheckCount = new AtomicLong();
     private String metadataFilePath;
-    private AbstractReloadingMetadataResolver resolver;
-    private Instant lastCRLCheck;
+    private volatile AbstractReloadingMetadataResolver resolver;
+    private volatile IdPMetadataBackingFile backingFile;
+    private volatile IdPMetadataSnapshot snapshot;
+    private volatile Instant lastCRLCheck;
+    private final AtomicLong metadataCertificateParseCount = new AtomicLong();
+    private final AtomicLong keyInfoCertificateParseCount = new AtomicLong();
+    private final AtomicLong keyInfoCertificateCacheHitCount = new AtomicLong();
     private String entityId;
     private String metadataURL;
 
@@ -69,122 +83,178 @@ public class IdPMetadata {
     }
 
     public EntityDescriptor getEntityDescriptor() throws InternalException, ExternalException {
+        return getSnapshot().getEntityDescriptor();
+    }
+
+    /**
+     * @return snapshot of the current metadata, which is only rebuilt when the resolver has updated the metadata
+     */
+    public IdPMetadataSnapshot getSnapshot() throws InternalException, ExternalException {
         // Create and initialize metadata resolver if no already initialized
         initMetadataResolver();
 
-        // If last scheduled refresh failed, Refresh now to give up to date metadata
+        // If the last scheduled refresh failed, refresh in the background and use the last good metadata until it is too old
         if (!resolver.wasLastRefreshSuccess()) {
-            log.debug("Last Metadata was not successful, Refreshing metadata.");
+            log.debug("Last Metadata refresh was not successful, Refreshing metadata in the background.");
+            OIOSAML3Service.getMetadataRefreshService().requestRefresh(this);
 
-            try {
-                resolver.refresh();
-            } catch (ResolverException e) {
-                throw new ExternalException("Could not get Metadata from url", e);
+            Duration age = getMetadataAge();
+            Duration maxStaleness = Duration.ofMinutes(OIOSAML3Service.getConfig().getIdpMetadataMaxStalenessMinutes());
+            if (age == null || age.compareTo(maxStaleness) > 0) {
+                throw new ExternalException("Could not get Metadata from url, metadata age " + age);
             }
         }
 
-        // Extract EntityDescriptor by configured EntityID
-        CriteriaSet criteriaSet = new CriteriaSet();
-        criteriaSet.add(new EntityIdCriterion(entityId));
+        IdPMetadataSnapshot current = snapshot;
+        if (isCurrent(current)) {
+            return current;
+        }
 
-        try {
-            EntityDescriptor entityDescriptor = resolver.resolveSingle(criteriaSet);
+        synchronized (this) {
+            current = snapshot;
+            if (isCurrent(current)) {
+                return current;
+            }
+
+            // Read before resolving, a concurrent update then at worst causes the snapshot to be built again
+            Instant lastUpdate = resolver.getLastUpdate();
+
+            // Extract EntityDescriptor by configured EntityID
+            CriteriaSet criteriaSet = new CriteriaSet();
+            criteriaSet.add(new EntityIdCriterion(entityId));
+
+            EntityDescriptor entityDescriptor;
+            try {
+                entityDescriptor = resolver.resolveSingle(criteriaSet);
+            } catch (ResolverException e) {
+                throw new InternalException("Configured entityID not found in metadata", e);
+            }
             if (entityDescriptor == null) {
                 throw new ExternalException("IdP entityID not found in metadata");
             }
-            return entityDescriptor;
-        } catch (ResolverException e) {
-            throw new InternalException("Configured entityID not found in metadata", e);
+
+            current = IdPMetadataSnapshot.create(entityDescriptor, lastUpdate);
+            metadataCertificateParseCount.addAndGet(current.getParsedCertificateCount());
+            snapshot = current;
+            log.debug("Created metadata snapshot for '{}', last updated {}", entityId, lastUpdate);
+
+            // Check the certificates of new or updated metadata in the background
+            if (isRevocationCheckEnabled()) {
+                OIOSAML3Service.getRevocationCheckService().requestCheck(this);
+            }
+            return current;
         }
     }
 
+    private boolean isCurrent(IdPMetadataSnapshot current) {
+        // The resolver no longer returns an entity descriptor which has expired, neither does the snapshot
+        return current != null
+                && Objects.equals(current.getLastUpdate(), resolver.getLastUpdate())
+                && current.getEntityDescriptor().isValid();
+    }
+
     public IDPSSODescriptor getSSODescriptor() throws ExternalException, InternalException {
-        return getEntityDescriptor().getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+        return getSnapshot().getSSODescriptor();
+    }
+
+    /**
+     * @param binding binding URI
+     * @return SSO endpoint of the binding, or null if the IdP has none
+     */
+    public SingleSignOnService getSingleSignOnEndpoint(String binding) throws ExternalException, InternalException {
+        return getSnapshot().getSingleSignOnService(binding);
     }
 
     public List<X509Certificate> getValidX509Certificates(UsageType usageType) throws InternalException, ExternalException {
-        doRevocationCheck();
+        ValidCertificates valid = getValidCertificates();
 
         List<X509Certificate> result = null;
         if (UsageType.ENCRYPTION.equals(usageType)) {
-            if (validEncryptionCertificates != null && !validEncryptionCertificates.isEmpty()) {
-                return validEncryptionCertificates;
+            if (!valid.encryption.isEmpty()) {
+                return valid.encryption;
             }
         }
         else if (UsageType.SIGNING.equals(usageType)) {
-            if (validSigningCertificates != null && !validSigningCertificates.isEmpty()) {
-                return validSigningCertificates;
+            if (!valid.signing.isEmpty()) {
+                return valid.signing;
             }
         }
 
         // If certificate is not found yet, try the unspecified
         if (result == null) {
-            if (validUnspecifiedCertificates != null && !validUnspecifiedCertificates.isEmpty()) {
-                return validUnspecifiedCertificates;
+            if (!valid.unspecified.isEmpty()) {
+                return valid.unspecified;
             }
         }
 
         return Collections.emptyList();
     }
 
-    private List<X509Certificate> getAllX509CertificatesWithUsageType(UsageType usageType) throws InternalException, ExternalException {
-        ArrayList<X509Certificate> certificates = new ArrayList<>();
-
-        // Find X509Cert in Metadata filtered by type
-        org.opensaml.xmlsec.signature.X509Certificate x509Certificate = null;
+    /**
+     * Parse a base64 encoded certificate from the KeyInfo of a received message. Certificates found in the metadata
+     * are cached by the digest of their encoding until the metadata is updated.
+     *
+     * @param base64Certificate value of the X509Certificate element
+     * @return parsed certificate
+     * @throws CertificateException if the certificate cannot be parsed
+     */
+    public X509Certificate getKeyInfoCertificate(String base64Certificate) throws CertificateException, InternalException, ExternalException {
+        IdPMetadataSnapshot snapshot = getSnapshot();
+
+        byte[] decoded = Base64.getDecoder().decode(base64Certificate);
+        String digest;
+        try {
+            digest = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(decoded));
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalException("Could not create digest of certificate", e);
+        }
 
-        IDPSSODescriptor ssoDescriptor = getSSODescriptor();
-        for (KeyDescriptor keyDescriptor : ssoDescriptor.getKeyDescriptors()) {
-            if (Objects.equals(usageType, keyDescriptor.getUse())) {
-                x509Certificate = keyDescriptor.getKeyInfo().getX509Datas().get(0).getX509Certificates().get(0);
+        X509Certificate certificate = snapshot.getKeyInfoCertificate(digest);
+        if (certificate != null) {
+            keyInfoCertificateCacheHitCount.incrementAndGet();
+            return certificate;
+        }
 
-                if (x509Certificate != null) {
-                    // Transform opensaml x509 cert --> java x509 cert
-                    byte[] bytes = Base64.decode(x509Certificate.getValue());
-                    ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-                    CertificateFactory instance = null;
+        certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(decoded));
+        keyInfoCertificateParseCount.incrementAndGet();
+        snapshot.putKeyInfoCertificate(digest, certificate);
+        return certificate;
+    }
 
-                    try {
-                        instance = CertificateFactory.getInstance("X.509");
-                    } catch (CertificateException e) {
-                        throw new InternalException("Could not create factory to parse X509 Certificate", e);
-                    }
+    /**
+     * @return number of certificates parsed from the metadata, counted again when the metadata is updated
+     */
+    public long getMetadataCertificateParseCount() {
+        return metadataCertificateParseCount.get();
+    }
 
-                    try {
-                        certificates.add((X509Certificate) instance.generateCertificate(inputStream));
-                    } catch (CertificateException e) {
-                        throw new ExternalException("Could not parse X509 Certificate from Metadata", e);
-                    }
-                }
-            }
-        }
+    /**
+     * @return number of KeyInfo certificates parsed
+     */
+    public long getKeyInfoCertificateParseCount() {
+        return keyInfoCertificateParseCount.get();
+    }
 
-        return certificates;
+    /**
+     * @return number of KeyInfo certificates found in the cache
+     */
+    public long getKeyInfoCertificateCacheHitCount() {
+        return keyInfoCertificateCacheHitCount.get();
     }
 
     public SingleLogoutService getLogoutEndpoint() throws ExternalException, InternalException {
-        IDPSSODescriptor ssoDescriptor = getSSODescriptor();
-        for (SingleLogoutService singleLogoutService : ssoDescriptor.getSingleLogoutServices()) {
-            if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(singleLogoutService.getBinding())) {
-                return singleLogoutService;
-            }
-        }
-        // throw new ExternalException("Could not find SLO endpoint for Redirect binding in metadata");
         // In connection with unsolicited saml assertions, there might not be a SLO endpoint
-        return null;
+        return getSnapshot().getSingleLogoutService(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
     }
 
     public String getLogoutResponseEndpoint() throws InternalException, ExternalException {
-        IDPSSODescriptor idpssoDescriptor = getSSODescriptor();
-
-        for (SingleLogoutService singleLogoutService : idpssoDescriptor.getSingleLogoutServices()) {
-            if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(singleLogoutService.getBinding())) {
-                String responseLocation = singleLogoutService.getResponseLocation();
-                if (responseLocation != null && !responseLocation.isEmpty()) {
-                    return responseLocation;
-                }
-                return singleLogoutService.getLocation();
+        SingleLogoutService singleLogoutService = getSnapshot().getSingleLogoutService(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        if (singleLogoutService != null) {
+            String responseLocation = singleLogoutService.getResponseLocation();
+            if (responseLocation != null && !responseLocation.isEmpty()) {
+                return responseLocation;
             }
+            return singleLogoutService.getLocation();
         }
         throw new ExternalException("Unable to find SingleLogoutService with binding HTTPRedirect and an ResponseLocation");
     }
@@ -193,89 +263,267 @@ public class IdPMetadata {
         return lastCRLCheck;
     }
 
-    private void doRevocationCheck() throws ExternalException, InternalException {
-        Configuration config = OIOSAML3Service.getConfig();
-        if (config.isCRLCheckEnabled() || config.isOcspCheckEnabled()) {
-            Instant lastUpdate = resolver.getLastUpdate();
+    /**
+     * Check the revocation status of the certificates in the current metadata, and publish the result if the check
+     * succeeds. The previous result is kept if the check fails.
+     */
+    public void checkRevocation() throws ExternalException, InternalException, InitializationException {
+        if (!isRevocationCheckEnabled()) {
+            return;
+        }
 
-            if (lastCRLCheck == null || (lastUpdate != null && lastUpdate.isAfter(lastCRLCheck))) {
-                try {
-                    // Encryption
-                    Set<X509Certificate> validEncryptionCertificates = CRLChecker.checkCertificates(getAllX509CertificatesWithUsageType(UsageType.ENCRYPTION), getLastCRLCheck());
-                    this.validEncryptionCertificates.clear();
-                    if (validEncryptionCertificates != null) {
-                        this.validEncryptionCertificates.addAll(validEncryptionCertificates);
-                    }
+        synchronized (revocationLock) {
+            boolean success = false;
+            try {
+                IdPMetadataSnapshot snapshot = getSnapshot();
+                revocationCheckCount.incrementAndGet();
 
-                    // Signing
-                    Set<X509Certificate> validSigningCertificates = CRLChecker.checkCertificates(getAllX509CertificatesWithUsageType(UsageType.SIGNING), getLastCRLCheck());
-                    this.validSigningCertificates.clear();
-                    if (validSigningCertificates != null) {
-                        this.validSigningCertificates.addAll(validSigningCertificates);
-                    }
+                List<X509Certificate> certificates = new ArrayList<>(snapshot.getCertificates(UsageType.ENCRYPTION));
+                certificates.addAll(snapshot.getCertificates(UsageType.SIGNING));
+                certificates.addAll(snapshot.getCertificates(UsageType.UNSPECIFIED));
 
-                    // Unspecified
-                    Set<X509Certificate> validUnspecifiedCertificates = CRLChecker.checkCertificates(getAllX509CertificatesWithUsageType(UsageType.UNSPECIFIED), getLastCRLCheck());
-                    Set<X509Certificate> validNullCertificates = CRLChecker.checkCertificates(getAllX509CertificatesWithUsageType(null), getLastCRLCheck());
-                    this.validUnspecifiedCertificates.clear();
+                Set<X509Certificate> valid = CRLChecker.checkCertificates(certificates, getLastCRLCheck());
 
-                    if (validUnspecifiedCertificates != null) {
-                        this.validUnspecifiedCertificates.addAll(validUnspecifiedCertificates);
-                    }
+                Instant now = Instant.now();
+                revocationStatus = new RevocationStatus(snapshot.getLastUpdate(), now, valid);
+                lastCRLCheck = now;
+                success = true;
+            }
+            catch (ExternalException | InternalException | InitializationException | RuntimeException e) {
+                failedRevocationCheckCount.incrementAndGet();
+                throw e;
+            }
+            finally {
+                completeRevocationCheck(success);
+            }
+        }
+    }
 
-                    if (validNullCertificates != null) {
-                        this.validUnspecifiedCertificates.addAll(validNullCertificates);
-                    }
+    private void completeRevocationCheck(boolean success) {
+        synchronized (revocationCheckMonitor) {
+            if (success) {
+                consecutiveFailedRevocationChecks = 0;
+                nextRevocationCheckAfterFailure = Instant.MIN;
+            }
+            else {
+                // Back off exponentially, up to the interval of the scheduled checks
+                Duration maxBackoff = Duration.ofMinutes(Math.max(1, OIOSAML3Service.getConfig().getRevocationCheckIntervalMinutes()));
+                Duration backoff = REVOCATION_CHECK_INITIAL_BACKOFF.multipliedBy(1L << Math.min(consecutiveFailedRevocationChecks, 16));
+                nextRevocationCheckAfterFailure = Instant.now().plus(backoff.compareTo(maxBackoff) < 0 ? backoff : maxBackoff);
+                consecutiveFailedRevocationChecks++;
+            }
+            completedRevocationCheckCount++;
+            revocationCheckMonitor.notifyAll();
+        }
+    }
 
-                    lastCRLCheck = Instant.now();
-                }
-                catch (ExternalException | InternalException | InitializationException e) {
-                    log.warn("CRL check failed", e);
-                    return;
+    /**
+     * @return time since the metadata was last fetched from the IdP, or confirmed not modified, null if unknown
+     */
+    public Duration getMetadataAge() {
+        // Metadata read from the backing file at startup is as old as the file, not the resolver
+        IdPMetadataBackingFile currentBackingFile = backingFile;
+        if (currentBackingFile != null) {
+            return currentBackingFile.getMetadataAge();
+        }
+
+        AbstractReloadingMetadataResolver currentResolver = resolver;
+        Instant lastSuccessfulRefresh = (currentResolver != null) ? currentResolver.getLastSuccessfulRefresh() : null;
+        return (lastSuccessfulRefresh != null) ? Duration.between(lastSuccessfulRefresh, Instant.now()) : null;
+    }
+
+    /**
+     * Refresh the metadata now, called by the MetadataRefreshService after a scheduled refresh has failed.
+     *
+     * @return true if the metadata was refreshed
+     */
+    public boolean refreshMetadata() throws InternalException, ExternalException {
+        initMetadataResolver();
+
+        try {
+            resolver.refresh();
+        } catch (ResolverException e) {
+            log.warn("Failed to refresh metadata for '{}'", entityId, e);
+            return false;
+        }
+        return resolver.wasLastRefreshSuccess();
+    }
+
+    /**
+     * @return local copy of the metadata fetched from the URL, or null if no metadata cache directory is configured
+     */
+    public IdPMetadataBackingFile getBackingFile() {
+        return backingFile;
+    }
+
+    /**
+     * @return number of revocation checks
+     */
+    public long getRevocationCheckCount() {
+        return revocationCheckCount.get();
+    }
+
+    /**
+     * @return number of revocation checks that failed
+     */
+    public long getFailedRevocationCheckCount() {
+        return failedRevocationCheckCount.get();
+    }
+
+    private ValidCertificates getValidCertificates() throws InternalException, ExternalException {
+        IdPMetadataSnapshot snapshot = getSnapshot();
+
+        // If revocation is disabled, all certificates from the metadata is treated as valid
+        RevocationStatus status = isRevocationCheckEnabled() ? getRevocationStatus(snapshot) : null;
+
+        ValidCertificates current = validCertificates;
+        if (current == null || current.snapshot != snapshot || current.status != status) {
+            current = new ValidCertificates(snapshot, status);
+            validCertificates = current;
+        }
+        return current;
+    }
+
+    private RevocationStatus getRevocationStatus(IdPMetadataSnapshot snapshot) {
+        long maxStalenessMinutes = OIOSAML3Service.getConfig().getRevocationCheckMaxStalenessMinutes();
+
+        RevocationStatus status = revocationStatus;
+        if (status == null || status.isOlderThan(maxStalenessMinutes)) {
+            // There is no result to serve, wait a while for a check in the background, request threads never check
+            awaitRevocationCheck();
+            status = revocationStatus;
+
+            if (status == null || status.isOlderThan(maxStalenessMinutes)) {
+                log.warn("No revocation check of the certificates of '{}' within {} minutes, no certificates are valid", entityId, maxStalenessMinutes);
+                return RevocationStatus.NONE;
+            }
+        }
+        else if (!Objects.equals(status.lastUpdate, snapshot.getLastUpdate())) {
+            // The last result is served until the certificates of the updated metadata are checked
+            OIOSAML3Service.getRevocationCheckService().requestCheck(this);
+        }
+        return status;
+    }
+
+    private void awaitRevocationCheck() {
+        synchronized (revocationCheckMonitor) {
+            // After a failed check, requests do not wait until the backoff has passed
+            if (Instant.now().isBefore(nextRevocationCheckAfterFailure)) {
+                return;
+            }
+
+            OIOSAML3Service.getRevocationCheckService().requestCheck(this);
+
+            long completed = completedRevocationCheckCount;
+            long deadline = System.nanoTime() + REVOCATION_CHECK_WAIT.toNanos();
+            try {
+                long remaining;
+                while (completedRevocationCheckCount == completed && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(revocationCheckMonitor, remaining);
                 }
             }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        else {
-            // If revocation is disabled, all certificates from the metadata is treated as valid
-            validEncryptionCertificates = getAllX509CertificatesWithUsageType(UsageType.ENCRYPTION);
-            validSigningCertificates = getAllX509CertificatesWithUsageType(UsageType.SIGNING);
-
-            List<X509Certificate> validUnspecified = getAllX509CertificatesWithUsageType(UsageType.UNSPECIFIED);
-            validUnspecified.addAll(getAllX509CertificatesWithUsageType(null));
-            validUnspecifiedCertificates = validUnspecified;
+    }
+
+    private static boolean isRevocationCheckEnabled() {
+        Configuration config = OIOSAML3Service.getConfig();
+        return config.isCRLCheckEnabled() || config.isOcspCheckEnabled();
+    }
+
+    // Valid certificates of a revocation check, for the metadata version that was checked
+    private static final class RevocationStatus {
+        private static final RevocationStatus NONE = new RevocationStatus(null, Instant.MAX, Collections.emptySet());
+
+        private final Instant lastUpdate;
+        private final Instant checked;
+        private final Set<X509Certificate> valid;
+
+        private RevocationStatus(Instant lastUpdate, Instant checked, Set<X509Certificate> valid) {
+            this.lastUpdate = lastUpdate;
+            this.checked = checked;
+            this.valid = valid != null ? Collections.unmodifiableSet(new HashSet<>(valid)) : Collections.emptySet();
+        }
+
+        private boolean isOlderThan(long minutes) {
+            return checked.plus(Duration.ofMinutes(minutes)).isBefore(Instant.now());
+        }
+    }
+
+    // Certificates of a snapshot by usage, limited to those found valid by a revocation check if checks are enabled.
+    // Certificates added to the metadata after the check are not valid until they are checked
+    private static final class ValidCertificates {
+        private final IdPMetadataSnapshot snapshot;
+        private final RevocationStatus status;
+        private final List<X509Certificate> encryption;
+        private final List<X509Certificate> signing;
+        private final List<X509Certificate> unspecified;
+
+        private ValidCertificates(IdPMetadataSnapshot snapshot, RevocationStatus status) {
+            this.snapshot = snapshot;
+            this.status = status;
+            encryption = filter(snapshot.getCertificates(UsageType.ENCRYPTION), status);
+            signing = filter(snapshot.getCertificates(UsageType.SIGNING), status);
+            unspecified = filter(snapshot.getCertificates(UsageType.UNSPECIFIED), status);
+        }
+
+        private static List<X509Certificate> filter(List<X509Certificate> certificates, RevocationStatus status) {
+            if (status == null) {
+                return certificates;
+            }
+            List<X509Certificate> result = new ArrayList<>(certificates);
+            result.retainAll(status.valid);
+            return Collections.unmodifiableList(result);
         }
     }
 
     private void initMetadataResolver() throws InternalException, ExternalException {
+        AbstractReloadingMetadataResolver current = resolver;
+        if (current != null && current.isInitialized()) {
+            return;
+        }
+
+        synchronized (this) {
+            createMetadataResolver();
+        }
+    }
+
+    private void createMetadataResolver() throws InternalException, ExternalException {
         // If no Resolver exists for this ServiceProvider, create it.
         if (resolver == null || !resolver.isInitialized()) {
-            // Create Resolver
+            // Create Resolver, it is only published when initialized
+            AbstractReloadingMetadataResolver resolver;
+            boolean refreshInBackground = false;
             try {
                 Configuration config = OIOSAML3Service.getConfig();
 
-                CloseableHttpClient httpClient;
-                if (config.isSupportSelfSigned()) {
-                    TrustSelfSignedStrategy acceptingTrustStrategy = new TrustSelfSignedStrategy();
-                    SSLContext sslContext = org.apache.hc.core5.ssl.SSLContexts.custom().loadTrustMaterial(null, acceptingTrustStrategy).build();
-                    SSLConnectionSocketFactory csf = new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
-                    HttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create().setSSLSocketFactory(csf).build();
-                    httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
-                } else {
-                    httpClient = HttpClients.createDefault();
-                }
-
                 if (metadataFilePath != null) {
                     log.debug("MetadataFilePath supplied. Using file based metadata resolver");
                     resolver = new FilesystemMetadataResolver(ResourceUtil.getResourceAsFile(metadataFilePath));
+                } else if (StringUtil.isNotEmpty(config.getIdpMetadataCacheDirectory())) {
+                    log.debug("Metadata cache directory supplied. Using URL based metadata resolver with a backing file");
+                    String name = UUID.nameUUIDFromBytes((entityId + " " + metadataURL).getBytes(StandardCharsets.UTF_8)) + ".xml";
+                    IdPMetadataBackingFile backingFile = new IdPMetadataBackingFile(IdPMetadataService.getInstance().getHttpClient(), metadataURL, Paths.get(config.getIdpMetadataCacheDirectory()).resolve(name));
+
+                    // Without a backing file, startup waits for the IdP as it does without a cache directory
+                    refreshInBackground = backingFile.exists();
+                    if (!refreshInBackground && backingFile.refresh() != IdPMetadataBackingFile.RefreshOutcome.UPDATED) {
+                        throw new ExternalException("Could not get Metadata from url");
+                    }
+
+                    resolver = new BackingFileMetadataResolver(backingFile);
+                    this.backingFile = backingFile;
                 } else {
                     log.debug("MetadataFilePath not supplied. Using URL based metadata resolver");
-                    resolver = new HTTPMetadataResolver(httpClient, metadataURL);
+                    resolver = new HTTPMetadataResolver(IdPMetadataService.getInstance().getHttpClient(), metadataURL);
                 }
 
                 resolver.setId(entityId);
                 resolver.setMinRefreshDelay(Duration.ofHours(config.getIdpMetadataMinRefreshDelay()));
                 resolver.setMaxRefreshDelay(Duration.ofHours(config.getIdpMetadataMaxRefreshDelay()));
-            } catch (ResolverException | KeyManagementException | NoSuchAlgorithmException | KeyStoreException e) {
+            } catch (ResolverException e) {
                 throw new InternalException("Could not create MetadataResolver", e);
             }
 
@@ -294,6 +542,33 @@ public class IdPMetadata {
             } catch (ComponentInitializationException e) {
                 throw new ExternalException("Could not initialize MetadataResolver", e);
             }
+            this.resolver = resolver;
+
+            // Metadata was read from the backing file, fetch it from the IdP without delaying startup
+            if (refreshInBackground) {
+                OIOSAML3Service.getMetadataRefreshService().requestRefresh(this);
+            }
+        }
+    }
+
+    // Fetches the metadata into the backing file before it is read, except when the resolver is initialized from it
+    private static class BackingFileMetadataResolver extends FilesystemMetadataResolver {
+        private final IdPMetadataBackingFile backingFile;
+        private volatile boolean fetchOnRefresh;
+
+        private BackingFileMetadataResolver(IdPMetadataBackingFile backingFile) throws ResolverException {
+            super(backingFile.getFile().toFile());
+            this.backingFile = backingFile;
+        }
+
+        @Override
+        protected byte[] fetchMetadata() throws ResolverException {
+            // A failed fetch fails the refresh, so it is retried and the metadata expires, the file is left unchanged
+            if (fetchOnRefresh && backingFile.refresh() == IdPMetadataBackingFile.RefreshOutcome.FAILED) {
+                throw new ResolverException("Could not get Metadata from url, using backing file " + backingFile.getFile());
+            }
+            fetchOnRefresh = true;
+            return super.fetchMetadata();
         }
     }
 }
@@ -0,0 +1,251 @@
+package dk.gov.oio.saml.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.gov.oio.saml.service.OIOSAML3Service;
+import dk.gov.oio.saml.util.ResourceUtil;
+import dk.gov.oio.saml.util.SamlHelper;
+
+/**
+ * Local copy of the metadata of an IdP, fetched from its metadata URL. The copy is used by the metadata resolver, so
+ * metadata is read from disk at startup and the IdP is only contacted in the background.
+ * <p>
+ * Metadata is fetched with a conditional GET using the ETag and Last-Modified of the response which wrote the file.
+ * Only values sent by the IdP are used, and they are kept in a properties file next to the metadata, so they survive a
+ * restart. A changed document must be metadata before it replaces the file, and it is written atomically, so the file
+ * always holds the last good metadata.
+ * </p>
+ */
+public class IdPMetadataBackingFile {
+    private static final Logger log = LoggerFactory.getLogger(IdPMetadataBackingFile.class);
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last-modified";
+
+    public enum RefreshOutcome {
+        UPDATED, NOT_MODIFIED, FAILED
+    }
+
+    private final CloseableHttpClient httpClient;
+    private final String metadataURL;
+    private final Path file;
+    private final Path validatorsFile; // ETag and Last-Modified of the response which wrote the file
+    private String eTag;
+    private String lastModified;
+    private volatile RefreshOutcome lastRefreshOutcome;
+    private volatile Instant lastConfirmed; // When the IdP last returned the metadata, or confirmed it was not modified
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong failedRefreshCount = new AtomicLong();
+
+    public IdPMetadataBackingFile(CloseableHttpClient httpClient, String metadataURL, Path file) {
+        this.httpClient = httpClient;
+        this.metadataURL = metadataURL;
+        this.file = file;
+        this.validatorsFile = file.resolveSibling(file.getFileName() + ".properties");
+
+        if (Files.isRegularFile(file)) {
+            try {
+                lastConfirmed = Files.getLastModifiedTime(file).toInstant();
+            }
+            catch (IOException e) {
+                log.warn("Failed to read modification time of IdP metadata file {}", file, e);
+            }
+            readValidators();
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if metadata has been written to the file, now or before a restart
+     */
+    public boolean exists() {
+        return Files.isRegularFile(file);
+    }
+
+    /**
+     * Fetch the metadata, and replace the file if it has changed. Failures are logged and counted, the file is then
+     * left unchanged.
+     *
+     * @return outcome of the refresh
+     */
+    public synchronized RefreshOutcome refresh() {
+        RefreshOutcome outcome;
+        try {
+            outcome = fetch();
+            lastConfirmed = Instant.now();
+        }
+        catch (Exception e) {
+            log.warn("Failed to refresh IdP metadata from {}, using {}", metadataURL, file, e);
+            outcome = RefreshOutcome.FAILED;
+        }
+
+        switch (outcome) {
+            case UPDATED:
+                updateCount.incrementAndGet();
+                break;
+            case NOT_MODIFIED:
+                notModifiedCount.incrementAndGet();
+                break;
+            default:
+                failedRefreshCount.incrementAndGet();
+        }
+        lastRefreshOutcome = outcome;
+        return outcome;
+    }
+
+    /**
+     * @return outcome of the last refresh, or null if the metadata has not been refreshed
+     */
+    public RefreshOutcome getLastRefreshOutcome() {
+        return lastRefreshOutcome;
+    }
+
+    /**
+     * @return time since the IdP last returned the metadata or confirmed it was not modified, or null if it never has
+     */
+    public Duration getMetadataAge() {
+        Instant confirmed = lastConfirmed;
+        return (confirmed != null) ? Duration.between(confirmed, Instant.now()) : null;
+    }
+
+    /**
+     * @return number of refreshes which replaced the file
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * @return number of refreshes where the IdP answered that the metadata was not modified
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * @return number of refreshes that failed
+     */
+    public long getFailedRefreshCount() {
+        return failedRefreshCount.get();
+    }
+
+    private RefreshOutcome fetch() throws Exception {
+        HttpGet get = new HttpGet(metadataURL);
+        if (exists()) {
+            if (eTag != null) {
+                get.setHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+            }
+            if (lastModified != null) {
+                get.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+
+        Response response = httpClient.execute(get, r -> new Response(
+                r.getCode(),
+                getHeader(r.getFirstHeader(HttpHeaders.ETAG)),
+                getHeader(r.getFirstHeader(HttpHeaders.LAST_MODIFIED)),
+                (r.getEntity() != null) ? EntityUtils.toByteArray(r.getEntity()) : null));
+
+        if (response.code == HttpStatus.SC_NOT_MODIFIED && exists()) {
+            log.debug("IdP metadata from {} not modified", metadataURL);
+            return RefreshOutcome.NOT_MODIFIED;
+        }
+        if (response.code != HttpStatus.SC_OK || response.body == null) {
+            throw new IOException("Unexpected response " + response.code + " from " + metadataURL);
+        }
+
+        validate(response.body);
+        ResourceUtil.writeAtomically(file, response.body);
+        eTag = response.eTag;
+        lastModified = response.lastModified;
+        writeValidators();
+        log.info("Updated IdP metadata from {} in {}", metadataURL, file);
+        return RefreshOutcome.UPDATED;
+    }
+
+    private void validate(byte[] metadata) throws Exception {
+        XMLObject xmlObject = SamlHelper.unmarshallObject(OIOSAML3Service.getParserPool().parse(new ByteArrayInputStream(metadata)).getDocumentElement());
+        if (!(xmlObject instanceof EntityDescriptor) && !(xmlObject instanceof EntitiesDescriptor)) {
+            throw new IOException("Document from " + metadataURL + " is not metadata: " + xmlObject.getElementQName());
+        }
+    }
+
+    // Without the validators of the response which wrote the file, the next refresh is unconditional
+    private void readValidators() {
+        if (!Files.isRegularFile(validatorsFile)) {
+            return;
+        }
+
+        Properties validators = new Properties();
+        try (InputStream is = Files.newInputStream(validatorsFile)) {
+            validators.load(is);
+            eTag = validators.getProperty(ETAG);
+            lastModified = validators.getProperty(LAST_MODIFIED);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            log.warn("Failed to read validators of IdP metadata file {} from {}", file, validatorsFile, e);
+        }
+    }
+
+    // Written after the metadata, so after a failed write the validators belong to an older document and the IdP answers with the metadata
+    private void writeValidators() {
+        Properties validators = new Properties();
+        if (eTag != null) {
+            validators.setProperty(ETAG, eTag);
+        }
+        if (lastModified != null) {
+            validators.setProperty(LAST_MODIFIED, lastModified);
+        }
+
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            validators.store(buffer, metadataURL);
+            ResourceUtil.writeAtomically(validatorsFile, buffer.toByteArray());
+        }
+        catch (IOException e) {
+            log.warn("Failed to write validators of IdP metadata file {} to {}", file, validatorsFile, e);
+        }
+    }
+
+    private static String getHeader(Header header) {
+        return (header != null) ? header.getValue() : null;
+    }
+
+    private static final class Response {
+        private final int code;
+        private final String eTag;
+        private final String lastModified;
+        private final byte[] body;
+
+        private Response(int code, String eTag, String lastModified, byte[] body) {
+            this.code = code;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package dk.gov.oio.saml.model;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+import org.opensaml.security.credential.UsageType;
+
+import dk.gov.oio.saml.util.ExternalException;
+import dk.gov.oio.saml.util.InternalException;
+
+/**
+ * Immutable view of the metadata of an IdP, built once per metadata update. Endpoints are indexed by binding and
+ * certificates are parsed and grouped by usage, so lookups on the request path do not iterate the descriptors.
+ * <p>
+ * KeyInfo certificates of received messages, which match a certificate in the metadata, are cached by the digest of
+ * their encoding for the lifetime of the snapshot.
+ * </p>
+ */
+public final class IdPMetadataSnapshot {
+    private final EntityDescriptor entityDescriptor;
+    private final IDPSSODescriptor ssoDescriptor;
+    private final Instant lastUpdate;
+    private final Map<String, SingleSignOnService> singleSignOnServices;
+    private final Map<String, SingleLogoutService> singleLogoutServices;
+    private final Map<UsageType, List<X509Certificate>> certificates;
+    private final Set<X509Certificate> knownCertificates = new HashSet<>();
+    private final Map<String, X509Certificate> keyInfoCertificates = new ConcurrentHashMap<>();
+
+    private IdPMetadataSnapshot(EntityDescriptor entityDescriptor, IDPSSODescriptor ssoDescriptor, Instant lastUpdate, Map<String, SingleSignOnService> singleSignOnServices, Map<String, SingleLogoutService> singleLogoutServices, Map<UsageType, List<X509Certificate>> certificates) {
+        this.entityDescriptor = entityDescriptor;
+        this.ssoDescriptor = ssoDescriptor;
+        this.lastUpdate = lastUpdate;
+        this.singleSignOnServices = singleSignOnServices;
+        this.singleLogoutServices = singleLogoutServices;
+        this.certificates = certificates;
+        for (List<X509Certificate> list : certificates.values()) {
+            knownCertificates.addAll(list);
+        }
+    }
+
+    /**
+     * @param entityDescriptor entity descriptor of the IdP
+     * @param lastUpdate time the metadata was last updated by the resolver, may be null
+     * @return snapshot of the entity descriptor
+     * @throws InternalException if no certificate factory is available
+     * @throws ExternalException if a certificate in the metadata cannot be parsed
+     */
+    public static IdPMetadataSnapshot create(EntityDescriptor entityDescriptor, Instant lastUpdate) throws InternalException, ExternalException {
+        IDPSSODescriptor ssoDescriptor = entityDescriptor.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+
+        Map<String, SingleSignOnService> singleSignOnServices = new HashMap<>();
+        Map<String, SingleLogoutService> singleLogoutServices = new HashMap<>();
+        Map<UsageType, List<X509Certificate>> certificates = new EnumMap<>(UsageType.class);
+        if (ssoDescriptor != null) {
+            // The first endpoint of a binding is used, as when the descriptor lists were searched
+            for (SingleSignOnService singleSignOnService : ssoDescriptor.getSingleSignOnServices()) {
+                singleSignOnServices.putIfAbsent(singleSignOnService.getBinding(), singleSignOnService);
+            }
+            for (SingleLogoutService singleLogoutService : ssoDescriptor.getSingleLogoutServices()) {
+                singleLogoutServices.putIfAbsent(singleLogoutService.getBinding(), singleLogoutService);
+            }
+
+            certificates.put(UsageType.ENCRYPTION, parseCertificates(ssoDescriptor, UsageType.ENCRYPTION));
+            certificates.put(UsageType.SIGNING, parseCertificates(ssoDescriptor, UsageType.SIGNING));
+
+            // Key descriptors without a use are treated as unspecified
+            List<X509Certificate> unspecified = new ArrayList<>(parseCertificates(ssoDescriptor, UsageType.UNSPECIFIED));
+            unspecified.addAll(parseCertificates(ssoDescriptor, null));
+            certificates.put(UsageType.UNSPECIFIED, Collections.unmodifiableList(unspecified));
+        }
+
+        return new IdPMetadataSnapshot(entityDescriptor, ssoDescriptor, lastUpdate, Collections.unmodifiableMap(singleSignOnServices), Collections.unmodifiableMap(singleLogoutServices), Collections.unmodifiableMap(certificates));
+    }
+
+    public EntityDescriptor getEntityDescriptor() {
+        return entityDescriptor;
+    }
+
+    public IDPSSODescriptor getSSODescriptor() {
+        return ssoDescriptor;
+    }
+
+    /**
+     * @return time the metadata was last updated by the resolver, may be null
+     */
+    public Instant getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     * @param binding binding URI
+     * @return SSO endpoint of the binding, or null if the IdP has none
+     */
+    public SingleSignOnService getSingleSignOnService(String binding) {
+        return singleSignOnServices.get(binding);
+    }
+
+    /**
+     * @param binding binding URI
+     * @return SLO endpoint of the binding, or null if the IdP has none
+     */
+    public SingleLogoutService getSingleLogoutService(String binding) {
+        return singleLogoutServices.get(binding);
+    }
+
+    /**
+     * @param usageType ENCRYPTION, SIGNING or UNSPECIFIED, which includes key descriptors without a use
+     * @return certificates with the usage, not checked for revocation
+     */
+    public List<X509Certificate> getCertificates(UsageType usageType) {
+        return certificates.getOrDefault(usageType, Collections.emptyList());
+    }
+
+    /**
+     * @return number of certificates parsed from the metadata
+     */
+    public int getParsedCertificateCount() {
+        int count = 0;
+        for (List<X509Certificate> list : certificates.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * @param digest digest of the encoded certificate
+     * @return cached KeyInfo certificate, or null
+     */
+    X509Certificate getKeyInfoCertificate(String digest) {
+        return keyInfoCertificates.get(digest);
+    }
+
+    /**
+     * Cache a KeyInfo certificate, if it is one of the certificates in the metadata. Other certificates are not
+     * cached, as they are rejected, and a sender could otherwise fill the cache.
+     *
+     * @param digest digest of the encoded certificate
+     * @param certificate parsed certificate
+     */
+    void putKeyInfoCertificate(String digest, X509Certificate certificate) {
+        if (knownCertificates.contains(certificate)) {
+            keyInfoCertificates.putIfAbsent(digest, certificate);
+        }
+    }
+
+    private static List<X509Certificate> parseCertificates(IDPSSODescriptor ssoDescriptor, UsageType usageType) throws InternalException, ExternalException {
+        List<X509Certificate> certificates = new ArrayList<>();
+
+        CertificateFactory instance = null;
+        for (KeyDescriptor keyDescriptor : ssoDescriptor.getKeyDescriptors()) {
+            if (usageType == keyDescriptor.getUse()) {
+                org.opensaml.xmlsec.signature.X509Certificate x509Certificate = keyDescriptor.getKeyInfo().getX509Datas().get(0).getX509Certificates().get(0);
+
+                if (x509Certificate != null) {
+                    if (instance == null) {
+                        try {
+                            instance = CertificateFactory.getInstance("X.509");
+                        } catch (CertificateException e) {
+                            throw new InternalException("Could not create factory to parse X509 Certificate", e);
+                        }
+                    }
+
+                    // Transform opensaml x509 cert --> java x509 cert
+                    try {
+                        certificates.add((X509Certificate) instance.generateCertificate(new ByteArrayInputStream(Base64.decode(x509Certificate.getValue()))));
+                    } catch (CertificateException e) {
+                        throw new ExternalException("Could not parse X509 Certificate from Metadata", e);
+                    }
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(certificates);
+    }
+}
@@ -3,10 +3,14 @@ package dk.gov.oio.saml.service;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.messaging.decoder.MessageDecodingException;
 import org.opensaml.saml.common.binding.SAMLBindingSupport;
@@ -23,13 +27,13 @@ import org.opensaml.saml.saml2.core.IDPList;
 import org.opensaml.saml.saml2.core.Issuer;
 import org.opensaml.saml.saml2.core.RequestedAuthnContext;
 import org.opensaml.saml.saml2.core.Scoping;
-import org.opensaml.saml.saml2.metadata.EntityDescriptor;
-import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml.saml2.metadata.SingleSignOnService;
 import org.opensaml.xmlsec.SignatureSigningParameters;
 import org.opensaml.xmlsec.context.SecurityParametersContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.extensions.appswitch.AppSwitch;
@@ -43,8 +47,8 @@ import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.SamlHelper;
 import jakarta.servlet.http.HttpServletRequest;
 import net.shibboleth.shared.component.ComponentInitializationException;
-import net.shibboleth.shared.security.impl.RandomIdentifierGenerationStrategy;
-import net.shibboleth.shared.xml.impl.BasicParserPool;
+import net.shibboleth.shared.xml.DOMTypeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
 
 public class AuthnRequestService {
     private static final Logger log = LoggerFactory.getLogger(AuthnRequestService.class);
@@ -56,17 +60,16 @@ public class AuthnRequestService {
         return singleInstance;
     }
 
+    // Marshalled AuthnRequests keyed on every value except the ID and IssueInstant
+    private final Map<String, Element> templates = new ConcurrentHashMap<>();
+
     // Credential service
     public MessageContext getMessageContext(HttpServletRequest request) throws ComponentInitializationException, MessageDecodingException {
         log.debug("Decoding Http Redirect deflate");
 
         HTTPRedirectDeflateDecoder decoder = new HTTPRedirectDeflateDecoder();
             decoder.setHttpServletRequestSupplier(() -> request);
-
-            BasicParserPool parserPool = new BasicParserPool();
-            parserPool.initialize();
-
-            decoder.setParserPool(parserPool);
+            decoder.setParserPool(OIOSAML3Service.getParserPool());
             decoder.initialize();
             decoder.decode();
 
@@ -97,7 +100,7 @@ public class AuthnRequestService {
         String scope = idpList.length > 1 ? idpList[1] : null;
 
         // Create AuthnRequest
-        AuthnRequest newAuthnRequest = createAuthnRequest(destination, isPassive, forceAuthn, requiredNsisLevel, attributeProfile, platform, scope);
+        AuthnRequest newAuthnRequest = createAuthnRequestFromTemplate(destination, isPassive, forceAuthn, requiredNsisLevel, attributeProfile, platform, scope);
         messageContext.setMessage(newAuthnRequest);
 
         // Destination
@@ -142,8 +145,7 @@ public class AuthnRequestService {
         }
 
         // Set ID
-        RandomIdentifierGenerationStrategy secureRandomIdGenerator = new RandomIdentifierGenerationStrategy();
-        String id = secureRandomIdGenerator.generateIdentifier();
+        String id = SamlHelper.generateIdentifier();
         authnRequest.setID(id);
 
         Configuration config = OIOSAML3Service.getConfig();
@@ -200,6 +202,59 @@ public class AuthnRequestService {
         return authnRequest;
     }
 
+    /**
+     * Create an AuthnRequest from a marshalled template with the same values, only the ID and IssueInstant attributes
+     * are set on a copy of the template. The AuthnRequest keeps the DOM of the copy, so it is not marshalled again
+     * when it is stored on the session and encoded.
+     */
+    private AuthnRequest createAuthnRequestFromTemplate(String destination, boolean isPassive, boolean forceAuthn, NSISLevel requiredNsisLevel, String attributeProfile, AppSwitchPlatform platform, String scope) throws InitializationException, InternalException {
+        Configuration config = OIOSAML3Service.getConfig();
+        int cacheSize = config.getAuthnRequestTemplateCacheSize();
+        if (cacheSize <= 0) {
+            return createAuthnRequest(destination, isPassive, forceAuthn, requiredNsisLevel, attributeProfile, platform, scope);
+        }
+
+        // The key holds every value copied into the AuthnRequest, so changed configuration or metadata gives a new template
+        String returnUrl = platform != null ? GetReturnURLForPlatform(platform, config) : null;
+        String key = String.join("|", config.getSpEntityID(), config.getServletAssertionConsumerURL(), destination,
+                String.valueOf(isPassive), String.valueOf(forceAuthn), String.valueOf(requiredNsisLevel),
+                String.valueOf(attributeProfile), String.valueOf(platform), String.valueOf(returnUrl), String.valueOf(scope));
+
+        Element template = templates.get(key);
+        if (null == template) {
+            try {
+                template = SamlHelper.marshallObject(createAuthnRequest(destination, isPassive, forceAuthn, requiredNsisLevel, attributeProfile, platform, scope));
+            }
+            catch (MarshallingException e) {
+                throw new InternalException("Could not marshall AuthnRequest template", e);
+            }
+
+            if (templates.size() >= cacheSize) {
+                log.debug("AuthnRequest template cache is full, removing {} templates", templates.size());
+                templates.clear();
+            }
+            templates.put(key, template);
+        }
+
+        try {
+            Document document = OIOSAML3Service.getParserPool().newDocument();
+            Element element;
+            // Reading a DOM is not guaranteed to be thread-safe, so a template is copied by one thread at a time
+            synchronized (template) {
+                element = (Element) document.importNode(template, true);
+            }
+            document.appendChild(element);
+
+            element.setAttributeNS(null, AuthnRequest.ID_ATTRIB_NAME, SamlHelper.generateIdentifier());
+            element.setAttributeNS(null, AuthnRequest.ISSUE_INSTANT_ATTRIB_NAME, DOMTypeSupport.instantToString(Instant.now()));
+
+            return (AuthnRequest) SamlHelper.unmarshallObject(element);
+        }
+        catch (XMLParserException | UnmarshallingException e) {
+            throw new InternalException("Could not create AuthnRequest from template", e);
+        }
+    }
+
     private static void addAppSwitchToExtensions(AuthnRequest authnRequest, AppSwitchPlatform platform) {
         Configuration config = OIOSAML3Service.getConfig();
         ReturnURL returnURLNode = SamlHelper.build(ReturnURL.class);
@@ -236,13 +291,9 @@ public class AuthnRequestService {
     }
 
     private String getDestination(String entityID) throws ExternalException, InternalException {
-        EntityDescriptor metadata = IdPMetadataService.getInstance().getIdPMetadata(entityID).getEntityDescriptor();
-        IDPSSODescriptor idpssoDescriptor = metadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
-
-        for (SingleSignOnService singleSignOnService : idpssoDescriptor.getSingleSignOnServices()) {
-            if (SAMLConstants.SAML2_REDIRECT_BINDING_URI.equals(singleSignOnService.getBinding())) {
-                return singleSignOnService.getLocation();
-            }
+        SingleSignOnService singleSignOnService = IdPMetadataService.getInstance().getIdPMetadata(entityID).getSingleSignOnEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI);
+        if (singleSignOnService != null) {
+            return singleSignOnService.getLocation();
         }
 
         throw new ExternalException("Could not find SSO endpoint for Redirect binding in metadata");
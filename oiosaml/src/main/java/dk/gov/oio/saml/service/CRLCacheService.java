@@ -0,0 +1,403 @@
+package dk.gov.oio.saml.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRLException;
+import java.security.cert.CRLReason;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.ResourceUtil;
+import dk.gov.oio.saml.util.StringUtil;
+
+/**
+ * Cache of CRLs keyed by distribution point URL. A CRL is downloaded again when the refresh margin before its
+ * nextUpdate is reached, and only the revoked serial numbers are kept, sorted, so a lookup is a binary search.
+ * CRLs are verified against the issuer of the certificate before they are used, also when read from the cache
+ * directory. Concurrent loads of the same CRL wait for a single download, loads of other CRLs are not blocked.
+ * <p>
+ * If a CRL names a delta CRL in its freshest CRL extension, the delta CRL is cached the same way and applied on top
+ * of the CRL. When a cache directory is configured, downloaded CRLs are written to it and read again after a restart,
+ * so CRLs that are still current are not downloaded.
+ * </p>
+ * CRLCacheService is initialized in the OIOSAML3Service.
+ */
+public class CRLCacheService {
+    private static final Logger log = LoggerFactory.getLogger(CRLCacheService.class);
+    private static final String FRESHEST_CRL = Extension.freshestCRL.getId();
+    private static final String DELTA_CRL_INDICATOR = Extension.deltaCRLIndicator.getId();
+    private static final String CRL_NUMBER = Extension.cRLNumber.getId();
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final Path directory;
+    private final Duration refreshMargin;
+    private final Map<String, CachedCRL> crls = new ConcurrentHashMap<>();
+    private final Map<String, FutureTask<CachedCRL>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong downloadCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    public CRLCacheService(Configuration configuration) {
+        String crlCacheDirectory = configuration.getCrlCacheDirectory();
+        directory = StringUtil.isNotEmpty(crlCacheDirectory) ? Paths.get(crlCacheDirectory) : null;
+        refreshMargin = Duration.ofMinutes(Math.max(0, configuration.getCrlRefreshMarginMinutes()));
+    }
+
+    /**
+     * Check a serial number against the CRL of a distribution point, and its delta CRL if it has one. A delta CRL
+     * which cannot be downloaded is skipped, as the CRL is current until its nextUpdate.
+     *
+     * @param url distribution point of the certificate
+     * @param serialNumber serial number of the certificate
+     * @param issuer issuer of the certificate, which must have signed the CRL
+     * @return true if the serial number is revoked
+     * @throws IOException if the CRL must be refreshed and cannot be downloaded
+     * @throws CRLException if the CRL cannot be parsed, or is not signed by the issuer
+     */
+    public boolean isRevoked(String url, BigInteger serialNumber, X509Certificate issuer) throws IOException, CRLException {
+        CachedCRL crl = getCRL(url, issuer);
+
+        if (crl.deltaUrl != null) {
+            try {
+                CachedCRL delta = getCRL(crl.deltaUrl, issuer);
+
+                // A delta CRL applies to CRLs with a CRL number at least that of its base CRL
+                if (delta.baseCrlNumber != null && crl.crlNumber != null && crl.crlNumber.compareTo(delta.baseCrlNumber) >= 0) {
+                    if (delta.removed.contains(serialNumber)) {
+                        return false;
+                    }
+                    if (delta.revoked.contains(serialNumber)) {
+                        return true;
+                    }
+                }
+                else {
+                    log.warn("Delta CRL {} does not apply to CRL {}", crl.deltaUrl, url);
+                }
+            }
+            catch (IOException | CRLException e) {
+                log.warn("Delta CRL {} is not available, using CRL {}", crl.deltaUrl, url, e);
+            }
+        }
+
+        return crl.revoked.contains(serialNumber);
+    }
+
+    /**
+     * @return number of lookups served by a cached CRL, including CRLs read from the cache directory
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of CRLs downloaded
+     */
+    public long getDownloadCount() {
+        return downloadCount.get();
+    }
+
+    /**
+     * @return number of times a cached CRL was past its nextUpdate before it was refreshed
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    private CachedCRL getCRL(String url, X509Certificate issuer) throws IOException, CRLException {
+        CachedCRL cached = crls.get(url);
+        if (cached != null && cached.isIssuedBy(issuer) && !cached.isRefreshDue(Instant.now(), refreshMargin)) {
+            hitCount.incrementAndGet();
+            return cached;
+        }
+
+        // One load per distribution point at a time, concurrent lookups of the same CRL wait for it
+        FutureTask<CachedCRL> task = new FutureTask<>(() -> load(url, issuer));
+        FutureTask<CachedCRL> existing = loading.putIfAbsent(url, task);
+        if (existing == null) {
+            try {
+                task.run();
+            }
+            finally {
+                loading.remove(url, task);
+            }
+            existing = task;
+        }
+
+        CachedCRL crl;
+        try {
+            crl = existing.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof CRLException) {
+                throw (CRLException) e.getCause();
+            }
+            throw new CRLException("Failed to load CRL " + url, e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading CRL " + url, e);
+        }
+
+        // Loaded by a concurrent lookup for a certificate of another issuer
+        if (!crl.isIssuedBy(issuer)) {
+            throw new CRLException("CRL " + url + " is not signed by " + issuer.getSubjectX500Principal());
+        }
+        return crl;
+    }
+
+    private CachedCRL load(String url, X509Certificate issuer) throws IOException, CRLException {
+        Instant now = Instant.now();
+
+        // Loaded by a concurrent lookup, which completed before this one started
+        CachedCRL cached = crls.get(url);
+        if (cached != null && !cached.isIssuedBy(issuer)) {
+            cached = null;
+        }
+        if (cached == null) {
+            cached = read(url, issuer);
+        }
+
+        if (cached != null && !cached.isRefreshDue(now, refreshMargin)) {
+            crls.put(url, cached);
+            hitCount.incrementAndGet();
+            return cached;
+        }
+
+        if (cached != null && cached.isExpired(now)) {
+            staleCount.incrementAndGet();
+        }
+
+        try {
+            CachedCRL downloaded = download(url, issuer);
+            crls.put(url, downloaded);
+            return downloaded;
+        }
+        catch (IOException | CRLException e) {
+            if (cached == null || cached.isExpired(now)) {
+                throw e;
+            }
+
+            log.warn("Failed to refresh CRL {}, using cached CRL until {}", url, cached.nextUpdate, e);
+            crls.put(url, cached);
+            hitCount.incrementAndGet();
+            return cached;
+        }
+    }
+
+    private CachedCRL download(String url, X509Certificate issuer) throws IOException, CRLException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+
+        byte[] encoded;
+        try (InputStream is = connection.getInputStream()) {
+            encoded = ResourceUtil.readFully(is);
+        }
+        downloadCount.incrementAndGet();
+
+        CachedCRL crl = CachedCRL.parse(encoded, issuer);
+        log.debug("Downloaded CRL {} with {} revoked certificates, next update {}", url, crl.revoked.size(), crl.nextUpdate);
+
+        write(url, encoded);
+        return crl;
+    }
+
+    private CachedCRL read(String url, X509Certificate issuer) {
+        if (directory == null) {
+            return null;
+        }
+
+        Path file = getFile(url);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try {
+            CachedCRL crl = CachedCRL.parse(Files.readAllBytes(file), issuer);
+            log.debug("Read CRL {} from {}, next update {}", url, file, crl.nextUpdate);
+            return crl;
+        }
+        catch (IOException | CRLException e) {
+            log.warn("Failed to read CRL {} from {}", url, file, e);
+            return null;
+        }
+    }
+
+    private void write(String url, byte[] encoded) {
+        if (directory == null) {
+            return;
+        }
+
+        // Written to a temporary file and moved, so a restart never reads a partial CRL
+        Path file = getFile(url);
+        try {
+            ResourceUtil.writeAtomically(file, encoded);
+        }
+        catch (IOException e) {
+            log.warn("Failed to write CRL {} to {}", url, file, e);
+        }
+    }
+
+    private Path getFile(String url) {
+        return directory.resolve(UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8)) + ".crl");
+    }
+
+    private static final class CachedCRL {
+        private final X509Certificate issuer;
+        private final Instant nextUpdate;
+        private final BigInteger crlNumber;
+        private final BigInteger baseCrlNumber; // Only set on delta CRLs
+        private final String deltaUrl;
+        private final SerialIndex revoked;
+        private final SerialIndex removed; // Entries of a delta CRL with reason removeFromCRL
+
+        private CachedCRL(X509Certificate issuer, Instant nextUpdate, BigInteger crlNumber, BigInteger baseCrlNumber, String deltaUrl, SerialIndex revoked, SerialIndex removed) {
+            this.issuer = issuer;
+            this.nextUpdate = nextUpdate;
+            this.crlNumber = crlNumber;
+            this.baseCrlNumber = baseCrlNumber;
+            this.deltaUrl = deltaUrl;
+            this.revoked = revoked;
+            this.removed = removed;
+        }
+
+        private static CachedCRL parse(byte[] encoded, X509Certificate issuer) throws IOException, CRLException {
+            X509CRL crl;
+            try {
+                crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(encoded));
+            }
+            catch (CertificateException e) {
+                throw new CRLException("Could not create factory to parse CRL", e);
+            }
+
+            if (!crl.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+                throw new CRLException("CRL issued by " + crl.getIssuerX500Principal() + ", expected " + issuer.getSubjectX500Principal());
+            }
+            try {
+                crl.verify(issuer.getPublicKey());
+            }
+            catch (GeneralSecurityException e) {
+                throw new CRLException("CRL is not signed by " + issuer.getSubjectX500Principal(), e);
+            }
+
+            List<BigInteger> revoked = new ArrayList<>();
+            List<BigInteger> removed = new ArrayList<>();
+            Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+            if (entries != null) {
+                for (X509CRLEntry entry : entries) {
+                    if (entry.getRevocationReason() == CRLReason.REMOVE_FROM_CRL) {
+                        removed.add(entry.getSerialNumber());
+                    }
+                    else {
+                        revoked.add(entry.getSerialNumber());
+                    }
+                }
+            }
+
+            byte[] freshestCrl = crl.getExtensionValue(FRESHEST_CRL);
+            String deltaUrl = (freshestCrl != null) ? CRLChecker.getDistributionPointUrl(freshestCrl) : null;
+
+            return new CachedCRL(
+                    issuer,
+                    (crl.getNextUpdate() != null) ? crl.getNextUpdate().toInstant() : null,
+                    getInteger(crl, CRL_NUMBER),
+                    getInteger(crl, DELTA_CRL_INDICATOR),
+                    deltaUrl,
+                    new SerialIndex(revoked),
+                    new SerialIndex(removed));
+        }
+
+        private static BigInteger getInteger(X509CRL crl, String oid) throws IOException {
+            byte[] value = crl.getExtensionValue(oid);
+            return (value != null) ? ASN1Integer.getInstance(X509ExtensionUtil.fromExtensionValue(value)).getValue() : null;
+        }
+
+        private boolean isIssuedBy(X509Certificate certificate) {
+            return issuer.equals(certificate);
+        }
+
+        // A CRL without nextUpdate is downloaded on every check, as before it was cached
+        private boolean isRefreshDue(Instant now, Duration refreshMargin) {
+            return nextUpdate == null || !now.isBefore(nextUpdate.minus(refreshMargin));
+        }
+
+        private boolean isExpired(Instant now) {
+            return nextUpdate == null || !now.isBefore(nextUpdate);
+        }
+    }
+
+    // Serial numbers that fit in a long are kept in a long[], the rest in a BigInteger[], both sorted
+    private static final class SerialIndex {
+        private final long[] serials;
+        private final BigInteger[] largeSerials;
+
+        private SerialIndex(List<BigInteger> serialNumbers) {
+            long[] small = new long[serialNumbers.size()];
+            List<BigInteger> large = new ArrayList<>();
+            int count = 0;
+            for (BigInteger serialNumber : serialNumbers) {
+                if (isLong(serialNumber)) {
+                    small[count++] = serialNumber.longValue();
+                }
+                else {
+                    large.add(serialNumber);
+                }
+            }
+
+            serials = Arrays.copyOf(small, count);
+            Arrays.sort(serials);
+            largeSerials = large.toArray(new BigInteger[0]);
+            Arrays.sort(largeSerials);
+        }
+
+        private boolean contains(BigInteger serialNumber) {
+            if (isLong(serialNumber)) {
+                return Arrays.binarySearch(serials, serialNumber.longValue()) >= 0;
+            }
+            return Arrays.binarySearch(largeSerials, serialNumber) >= 0;
+        }
+
+        private int size() {
+            return serials.length + largeSerials.length;
+        }
+
+        private static boolean isLong(BigInteger serialNumber) {
+            return serialNumber.bitLength() < 64;
+        }
+    }
+}
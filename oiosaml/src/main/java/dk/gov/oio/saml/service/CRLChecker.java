@@ -1,31 +1,18 @@
 package dk.gov.oio.saml.service;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
-import java.security.Security;
 import java.security.cert.CRLException;
-import java.security.cert.CertPath;
-import java.security.cert.CertPathValidator;
-import java.security.cert.CertPathValidatorException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.PKIXParameters;
-import java.security.cert.TrustAnchor;
-import java.security.cert.X509CRL;
-import java.security.cert.X509CRLEntry;
 import java.security.cert.X509Certificate;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.bouncycastle.asn1.ASN1InputStream;
 import org.bouncycastle.asn1.ASN1OctetString;
@@ -51,7 +38,6 @@ import dk.gov.oio.saml.util.InternalException;
 public class CRLChecker {
     private static final Logger log = LoggerFactory.getLogger(CRLChecker.class);
     private static final String AUTH_INFO_ACCESS = Extension.authorityInfoAccess.getId();
-    private static Map<String, X509Certificate> certificateMap = new HashMap<String, X509Certificate>();
     
     public static Set<X509Certificate> checkCertificates(List<X509Certificate> x509Certificates, Instant lastCRLCheck) throws ExternalException, InternalException, InitializationException {
         Set<X509Certificate> result = new HashSet<>();
@@ -59,9 +45,15 @@ public class CRLChecker {
             return result;
         }
 
-        // Check all certificates, and return those that are valid
+        // Check all certificates in parallel, and return those that are valid
+        Map<X509Certificate, Future<Boolean>> checks = new LinkedHashMap<>();
         for (final X509Certificate certificate : x509Certificates) {
-            if (checkCertificate(certificate)) {
+            checks.put(certificate, OIOSAML3Service.getOCSPService().submit(() -> checkCertificate(certificate)));
+        }
+
+        for (Map.Entry<X509Certificate, Future<Boolean>> check : checks.entrySet()) {
+            X509Certificate certificate = check.getKey();
+            if (isValid(check.getValue())) {
                 result.add(certificate);
                 log.debug("Certificate validated successfully: {}", certificate.getSubjectDN());
             }
@@ -73,6 +65,19 @@ public class CRLChecker {
         return result;
     }
 
+    private static boolean isValid(Future<Boolean> check) {
+        try {
+            return check.get();
+        }
+        catch (ExecutionException e) {
+            log.warn("Unexpected error while validating certificate.", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
     // OCSP first if configured, with fallback to CRL if configured
     private static boolean checkCertificate(X509Certificate certificate) {
         boolean validated = false;
@@ -111,7 +116,7 @@ public class CRLChecker {
         return validated;
     }
 
-    private static boolean doOCSPCheck(X509Certificate certificate) throws CertificateException, CertPathValidatorException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+    private static boolean doOCSPCheck(X509Certificate certificate) throws IOException, ExternalException, InternalException {
         log.debug("Starting OCSP validation of certificate {}", certificate.getSubjectDN());
 
         String ocspServer = getOCSPUrl(certificate);
@@ -125,37 +130,9 @@ public class CRLChecker {
             throw new RuntimeException("CA Certificate for OCSP check could not be retrieved!");
         }
 
-        List<X509Certificate> certList = new ArrayList<X509Certificate>();
-        certList.add(certificate);
-
-        CertificateFactory cf = CertificateFactory.getInstance("X.509");
-        CertPath cp = cf.generateCertPath(certList);
-
-        Security.setProperty("ocsp.enable", "true");
-        Security.setProperty("ocsp.responderURL", ocspServer);
-
-        boolean revoked;
-        try {
-            TrustAnchor anchor = new TrustAnchor(issuer, null);
-            PKIXParameters params = new PKIXParameters(Collections.singleton(anchor));
-            params.setRevocationEnabled(true);
-
-            // Validate and obtain results
-            CertPathValidator cpv = CertPathValidator.getInstance("PKIX");
-            cpv.validate(cp, params);
-
+        boolean revoked = OIOSAML3Service.getOCSPService().isRevoked(certificate, issuer, ocspServer);
+        if (!revoked) {
             log.debug("Certificate successfully validated during OCSP check.");
-            revoked = false;
-        }
-        catch (CertPathValidatorException cpve) {
-            if (cpve.getMessage() != null && cpve.getMessage().contains("Certificate has been revoked")) {
-                revoked = true;
-                log.info("Certificate revoked, cert[{}] : {}", cpve.getIndex(), cpve.getMessage());
-            }
-            else {
-                log.warn("Validation failure, cert[{}] : {}", cpve.getIndex(), cpve.getMessage());
-                throw cpve;
-            }
         }
 
         return (!revoked);
@@ -191,40 +168,12 @@ public class CRLChecker {
         while (urlIt.hasNext()) {
             Object caUrl = new UntrustedUrlInput(urlIt.next());
 
-            return downloadCertificate(caUrl.toString());            
+            return OIOSAML3Service.getIssuerCertificateService().getCertificate(caUrl.toString());
         }
 
         return null;
     }
     
-    private static X509Certificate downloadCertificate(String url) {
-        if (certificateMap.containsKey(url)) {
-            return certificateMap.get(url);
-        }
-        
-        try {
-            CertificateFactory factory = CertificateFactory.getInstance("X.509");
-            try (InputStream is = new URL(url).openStream()) {
-                X509Certificate certificate = (X509Certificate) factory.generateCertificate(is);
-                if (certificate != null) {
-                    certificateMap.put(url, certificate);
-                    
-                    return certificate;
-                }
-                
-                log.warn("Failed to parse certificate from {}", url);
-            }
-            catch (IOException ex) {
-                log.warn("Failed to download intermediate CA certificate from {}", url);
-            }
-        }
-        catch (CertificateException ex) {
-            log.warn("Failed to generate certificate factory", ex);
-        }
-
-        return null;
-    }
-
     private static String getOCSPUrl(X509Certificate certificate) {
         log.debug("Attempting to extract OCSP location from certificate {}", certificate.getSubjectDN());
 
@@ -299,32 +248,23 @@ public class CRLChecker {
         return urls;
     }
 
-    private static boolean doCRLCheck(X509Certificate certificate) throws IOException, CertificateException, CRLException, InitializationException {
-        boolean revoked = true;
-
+    private static boolean doCRLCheck(X509Certificate certificate) throws IOException, CRLException {
         String url = getCRLUrl(certificate);
         if (url == null) {
             throw new RuntimeException("No CRL url could be found");
         }
 
-        URL u = new URL(url);
-        try (InputStream is = u.openStream()) {
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            X509CRL crl = (X509CRL) cf.generateCRL(is);
-
-            log.debug("CRL for {}: {}", url, crl);
+        X509Certificate issuer = getIssuingCertificate(certificate);
+        if (issuer == null) {
+            throw new RuntimeException("CA Certificate for CRL check could not be retrieved!");
+        }
 
-            X509CRLEntry revokedCertificate = crl.getRevokedCertificate(certificate.getSerialNumber());
-            if (revokedCertificate != null) {
-                log.warn("Certificate found in revocation list " + certificate.getSubjectDN());
-                revoked = true;
-            }
-            else {
-                revoked = false;
-            }
+        if (OIOSAML3Service.getCRLCacheService().isRevoked(url, certificate.getSerialNumber(), issuer)) {
+            log.warn("Certificate found in revocation list " + certificate.getSubjectDN());
+            return false;
         }
 
-        return !revoked;
+        return true;
     }
 
     private static String getCRLUrl(X509Certificate certificate) throws IOException {
@@ -332,18 +272,29 @@ public class CRLChecker {
 
         byte[] val = certificate.getExtensionValue("2.5.29.31");
         if (val != null) {
-            CRLDistPoint point = CRLDistPoint.getInstance(X509ExtensionUtil.fromExtensionValue(val));
-            for (DistributionPoint dp : point.getDistributionPoints()) {
-                if (dp.getDistributionPoint() == null) {
-                    continue;
-                }
+            return getDistributionPointUrl(val);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param extensionValue value of a CRL distribution points or freshest CRL extension
+     * @return first URL of the distribution points, or null
+     * @throws IOException if the extension value cannot be parsed
+     */
+    static String getDistributionPointUrl(byte[] extensionValue) throws IOException {
+        CRLDistPoint point = CRLDistPoint.getInstance(X509ExtensionUtil.fromExtensionValue(extensionValue));
+        for (DistributionPoint dp : point.getDistributionPoints()) {
+            if (dp.getDistributionPoint() == null) {
+                continue;
+            }
 
-                if (dp.getDistributionPoint().getName() instanceof GeneralNames) {
-                    GeneralNames gn = (GeneralNames) dp.getDistributionPoint().getName();
-                    for (GeneralName g : gn.getNames()) {
-                        if (g.getName() instanceof DERIA5String) {
-                            return ((DERIA5String) g.getName()).getString();
-                        }
+            if (dp.getDistributionPoint().getName() instanceof GeneralNames) {
+                GeneralNames gn = (GeneralNames) dp.getDistributionPoint().getName();
+                for (GeneralName g : gn.getNames()) {
+                    if (g.getName() instanceof DERIA5String) {
+                        return ((DERIA5String) g.getName()).getString();
                     }
                 }
             }
@@ -1,9 +1,28 @@
 package dk.gov.oio.saml.service;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.net.ssl.SSLContext;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
+import org.apache.hc.client5.http.ssl.TrustSelfSignedStrategy;
+import org.apache.hc.core5.util.Timeout;
 import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.model.IdPMetadata;
@@ -11,6 +30,9 @@ import dk.gov.oio.saml.util.ExternalException;
 import dk.gov.oio.saml.util.InternalException;
 
 public class IdPMetadataService {
+    private static final Logger log = LoggerFactory.getLogger(IdPMetadataService.class);
+    private static final Timeout CONNECT_TIMEOUT = Timeout.ofSeconds(10);
+    private static final Timeout RESPONSE_TIMEOUT = Timeout.ofSeconds(30);
 
     // Single instance
     private static IdPMetadataService singleInstance = new IdPMetadataService();
@@ -19,8 +41,9 @@ public class IdPMetadataService {
         return singleInstance;
     }
 
-    // Metadata Service
-    private Map<String, IdPMetadata> identityProviders = new HashMap<>();
+    // Metadata Service, read without locking on the request path
+    private final Map<String, IdPMetadata> identityProviders = new ConcurrentHashMap<>();
+    private CloseableHttpClient httpClient;
 
     public void clear(String entityId) {
         identityProviders.remove(entityId);
@@ -30,6 +53,53 @@ public class IdPMetadataService {
         identityProviders.clear();
     }
 
+    /**
+     * @return pooled HTTP client shared by the metadata resolvers of all IdPs, rebuilt after OIOSAML3Service.init
+     */
+    public synchronized CloseableHttpClient getHttpClient() throws InternalException {
+        if (httpClient == null) {
+            PoolingHttpClientConnectionManagerBuilder connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                    .setDefaultConnectionConfig(ConnectionConfig.custom().setConnectTimeout(CONNECT_TIMEOUT).build());
+
+            if (OIOSAML3Service.getConfig().isSupportSelfSigned()) {
+                try {
+                    SSLContext sslContext = org.apache.hc.core5.ssl.SSLContexts.custom().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
+                    connectionManager.setSSLSocketFactory(new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE));
+                } catch (KeyManagementException | NoSuchAlgorithmException | KeyStoreException e) {
+                    throw new InternalException("Could not create HTTP client for metadata", e);
+                }
+            }
+
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager.build())
+                    .setDefaultRequestConfig(RequestConfig.custom().setResponseTimeout(RESPONSE_TIMEOUT).build())
+                    .build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * Close the shared HTTP client, and forget the IdPs whose metadata resolvers use it
+     */
+    public synchronized void close() {
+        identityProviders.clear();
+        if (httpClient != null) {
+            try {
+                httpClient.close();
+            } catch (IOException e) {
+                log.warn("Failed to close HTTP client for metadata", e);
+            }
+            httpClient = null;
+        }
+    }
+
+    /**
+     * @return metadata of the IdPs requested so far
+     */
+    public Collection<IdPMetadata> getIdPMetadatas() {
+        return Collections.unmodifiableCollection(identityProviders.values());
+    }
+
     public IdPMetadata getIdPMetadata(String entityID) throws ExternalException, InternalException {
         // This method is needed since we only have one IdP functionality for now.
         Configuration config = OIOSAML3Service.getConfig();
@@ -47,11 +117,17 @@ public class IdPMetadataService {
 
     private IdPMetadata getIdPMetadata(String idpEntityID, String idpMetadataURL, String idpMetadataFilePath) throws InternalException, ExternalException {
         IdPMetadata idPMetadata = identityProviders.get(idpEntityID);
+        if (idPMetadata != null) {
+            return idPMetadata;
+        }
 
-        // If IdP Metadata has not been fetched before, create object
-        if (idPMetadata == null) {
-            idPMetadata = new IdPMetadata(idpEntityID, idpMetadataURL, idpMetadataFilePath);
-            identityProviders.put(idpEntityID, idPMetadata);
+        // If IdP Metadata has not been fetched before, create object, only once if requested concurrently
+        synchronized (identityProviders) {
+            idPMetadata = identityProviders.get(idpEntityID);
+            if (idPMetadata == null) {
+                idPMetadata = new IdPMetadata(idpEntityID, idpMetadataURL, idpMetadataFilePath);
+                identityProviders.put(idpEntityID, idPMetadata);
+            }
         }
 
         return idPMetadata;
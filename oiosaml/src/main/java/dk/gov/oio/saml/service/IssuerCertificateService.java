@@ -0,0 +1,291 @@
+package dk.gov.oio.saml.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.ResourceUtil;
+import dk.gov.oio.saml.util.StringUtil;
+
+/**
+ * Cache of the CA certificates referenced by the authority information access extension of certificates, used by the
+ * OCSP check to identify the issuer. Certificates are downloaded again when they are older than the configured time to
+ * live, so a certificate replaced at the CA is picked up, and the least recently downloaded certificate is evicted when
+ * the cache is full.
+ * <p>
+ * Concurrent misses for the same URL wait for a single download. When a cache directory is configured, downloaded
+ * certificates are written to it and used after a restart until they are older than the time to live. A failed
+ * download is remembered, and the certificate is downloaded again after a backoff which doubles on each failure, so
+ * an unavailable CA is not contacted on every check.
+ * </p>
+ * IssuerCertificateService is initialized in the OIOSAML3Service.
+ */
+public class IssuerCertificateService {
+    private static final Logger log = LoggerFactory.getLogger(IssuerCertificateService.class);
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final Duration INITIAL_RETRY_BACKOFF = Duration.ofSeconds(30);
+
+    private final Path directory;
+    private final Duration timeToLive;
+    private final int maxSize;
+    private final Map<String, CachedCertificate> certificates = new ConcurrentHashMap<>();
+    private final Map<String, FutureTask<X509Certificate>> loading = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong downloadCount = new AtomicLong();
+    private final AtomicLong failedDownloadCount = new AtomicLong();
+
+    public IssuerCertificateService(Configuration configuration) {
+        String issuerCertificateCacheDirectory = configuration.getIssuerCertificateCacheDirectory();
+        directory = StringUtil.isNotEmpty(issuerCertificateCacheDirectory) ? Paths.get(issuerCertificateCacheDirectory) : null;
+        timeToLive = Duration.ofMinutes(Math.max(1, configuration.getIssuerCertificateCacheTtlMinutes()));
+        maxSize = Math.max(1, configuration.getIssuerCertificateCacheSize());
+    }
+
+    /**
+     * Get a CA certificate from the cache, or download it. If the download fails, a cached certificate older than the
+     * time to live is used while it is within its validity period. Until the download is retried, the cached
+     * certificate, or null if there is none, is returned without contacting the CA.
+     *
+     * @param url URL of the CA certificate
+     * @return CA certificate, or null if it cannot be downloaded
+     */
+    public X509Certificate getCertificate(String url) {
+        CachedCertificate cached = certificates.get(url);
+        if (cached != null && Instant.now().isBefore(cached.expires)) {
+            return hit(cached);
+        }
+
+        FutureTask<X509Certificate> task = new FutureTask<>(() -> load(url));
+        FutureTask<X509Certificate> existing = loading.putIfAbsent(url, task);
+        if (existing == null) {
+            try {
+                task.run();
+            }
+            finally {
+                loading.remove(url, task);
+            }
+            existing = task;
+        }
+
+        try {
+            return existing.get();
+        }
+        catch (ExecutionException e) {
+            log.warn("Failed to load CA certificate from {}", url, e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * @return number of certificates served from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of certificates downloaded
+     */
+    public long getDownloadCount() {
+        return downloadCount.get();
+    }
+
+    /**
+     * @return number of failed downloads
+     */
+    public long getFailedDownloadCount() {
+        return failedDownloadCount.get();
+    }
+
+    /**
+     * @return number of cached certificates, including failed downloads waiting to be retried
+     */
+    public int getSize() {
+        return certificates.size();
+    }
+
+    private X509Certificate load(String url) {
+        Instant now = Instant.now();
+
+        // Loaded by a concurrent miss, which completed before this one started
+        CachedCertificate cached = certificates.get(url);
+        if (cached != null && now.isBefore(cached.expires)) {
+            return hit(cached);
+        }
+
+        if (cached == null) {
+            cached = read(url);
+            if (cached != null && now.isBefore(cached.expires)) {
+                put(url, cached);
+                return hit(cached);
+            }
+        }
+
+        try {
+            byte[] encoded = download(url);
+            CachedCertificate downloaded = new CachedCertificate(parse(encoded), now, now.plus(timeToLive), 0);
+            put(url, downloaded);
+            write(url, encoded);
+            return downloaded.certificate;
+        }
+        catch (IOException | CertificateException e) {
+            failedDownloadCount.incrementAndGet();
+            log.warn("Failed to download CA certificate from {}", url, e);
+        }
+
+        // Remember the failure, with the last good certificate if it can still be used, until the download is retried
+        int failures = (cached != null) ? cached.failures + 1 : 1;
+        Instant retry = now.plus(getRetryBackoff(failures));
+        if (cached != null && cached.certificate != null && isWithinValidity(cached.certificate, now)) {
+            log.warn("Using CA certificate from {} downloaded at {} until {}", url, cached.downloaded, retry);
+            put(url, new CachedCertificate(cached.certificate, cached.downloaded, retry, failures));
+            return cached.certificate;
+        }
+
+        put(url, new CachedCertificate(null, null, retry, failures));
+        return null;
+    }
+
+    private X509Certificate hit(CachedCertificate cached) {
+        if (cached.certificate != null) {
+            hitCount.incrementAndGet();
+        }
+        return cached.certificate;
+    }
+
+    // Doubles on each consecutive failure, up to the time to live
+    private Duration getRetryBackoff(int failures) {
+        Duration backoff = INITIAL_RETRY_BACKOFF.multipliedBy(1L << Math.min(failures - 1, 20));
+        return (backoff.compareTo(timeToLive) < 0) ? backoff : timeToLive;
+    }
+
+    private void put(String url, CachedCertificate cachedCertificate) {
+        certificates.put(url, cachedCertificate);
+
+        // Evict the certificates that expire first, the first downloaded or failed downloads waiting to be retried
+        while (certificates.size() > maxSize) {
+            String oldest = null;
+            Instant oldestExpires = Instant.MAX;
+            for (Map.Entry<String, CachedCertificate> entry : certificates.entrySet()) {
+                if (entry.getValue().expires.isBefore(oldestExpires)) {
+                    oldest = entry.getKey();
+                    oldestExpires = entry.getValue().expires;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            certificates.remove(oldest);
+        }
+    }
+
+    private byte[] download(String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+
+        try (InputStream is = connection.getInputStream()) {
+            byte[] encoded = ResourceUtil.readFully(is);
+            downloadCount.incrementAndGet();
+            log.debug("Downloaded CA certificate from {}", url);
+            return encoded;
+        }
+    }
+
+    private CachedCertificate read(String url) {
+        if (directory == null) {
+            return null;
+        }
+
+        Path file = getFile(url);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+
+        try {
+            X509Certificate certificate = parse(Files.readAllBytes(file));
+            Instant downloaded = Files.getLastModifiedTime(file).toInstant();
+            return new CachedCertificate(certificate, downloaded, downloaded.plus(timeToLive), 0);
+        }
+        catch (IOException | CertificateException e) {
+            log.warn("Failed to read CA certificate {} from {}", url, file, e);
+            return null;
+        }
+    }
+
+    private void write(String url, byte[] encoded) {
+        if (directory == null) {
+            return;
+        }
+
+        Path file = getFile(url);
+        try {
+            ResourceUtil.writeAtomically(file, encoded);
+        }
+        catch (IOException e) {
+            log.warn("Failed to write CA certificate {} to {}", url, file, e);
+        }
+    }
+
+    private Path getFile(String url) {
+        return directory.resolve(UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8)) + ".cer");
+    }
+
+    private static X509Certificate parse(byte[] encoded) throws CertificateException {
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded));
+        if (certificate == null) {
+            throw new CertificateException("No certificate found");
+        }
+        return certificate;
+    }
+
+    private static boolean isWithinValidity(X509Certificate certificate, Instant now) {
+        try {
+            certificate.checkValidity(Date.from(now));
+            return true;
+        }
+        catch (CertificateException e) {
+            return false;
+        }
+    }
+
+    private static final class CachedCertificate {
+        private final X509Certificate certificate; // Null if the certificate has never been downloaded
+        private final Instant downloaded;
+        private final Instant expires;
+        private final int failures; // Consecutive failed downloads
+
+        private CachedCertificate(X509Certificate certificate, Instant downloaded, Instant expires, int failures) {
+            this.certificate = certificate;
+            this.downloaded = downloaded;
+            this.expires = expires;
+            this.failures = failures;
+        }
+    }
+}
@@ -17,7 +17,6 @@ import org.opensaml.xmlsec.context.SecurityParametersContext;
 
 import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.SamlHelper;
-import net.shibboleth.shared.security.impl.RandomIdentifierGenerationStrategy;
 
 public class LogoutRequestService {
     public void validateLogoutRequest() {
@@ -55,8 +54,7 @@ public class LogoutRequestService {
         LogoutRequest outgoingLR = SamlHelper.build(LogoutRequest.class);
 
         // Set ID
-        RandomIdentifierGenerationStrategy secureRandomIdGenerator = new RandomIdentifierGenerationStrategy();
-        String id = secureRandomIdGenerator.generateIdentifier();
+        String id = SamlHelper.generateIdentifier();
         outgoingLR.setID(id);
 
         outgoingLR.setDestination(destination);
@@ -28,7 +28,6 @@ import org.slf4j.LoggerFactory;
 import dk.gov.oio.saml.session.LogoutRequestWrapper;
 import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.SamlHelper;
-import net.shibboleth.shared.security.impl.RandomIdentifierGenerationStrategy;
 
 public class LogoutResponseService {
     private static final Logger log = LoggerFactory.getLogger(LogoutResponseService.class);
@@ -71,8 +70,7 @@ public class LogoutResponseService {
 
         LogoutResponse logoutResponse = SamlHelper.build(LogoutResponse.class);
 
-        RandomIdentifierGenerationStrategy randomIdentifierGenerator = new RandomIdentifierGenerationStrategy();
-        String id = randomIdentifierGenerator.generateIdentifier();
+        String id = SamlHelper.generateIdentifier();
 
          log.debug("Created logout response id '{}' for  request id '{}'", id, logoutRequest.getID());
 
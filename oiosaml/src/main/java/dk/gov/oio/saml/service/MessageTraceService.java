@@ -0,0 +1,229 @@
+package dk.gov.oio.saml.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.SamlHelper;
+import dk.gov.oio.saml.util.StringUtil;
+import dk.gov.oio.saml.util.XmlSerializer;
+
+/**
+ * Traces incoming and outgoing SAML messages to the debug log and to a bounded buffer of recent messages.
+ * <p>
+ * Callers check {@link #isTraced(String)} before tracing, which is a constant time check when the debug log and the
+ * buffer are disabled. Traced messages keep the raw encoded message or the DOM element, and are only serialized when
+ * written to the debug log or dumped from the buffer.
+ * </p>
+ * <p>
+ * Endpoints are named as the audit log, e.g. "IncomingResponse" or "OutgoingLogoutRequest", and are sampled at the
+ * configured rate, to limit the overhead of tracing at high load.
+ * </p>
+ */
+public class MessageTraceService {
+    private static final Logger log = LoggerFactory.getLogger(MessageTraceService.class);
+    private static final String DEFAULT_ENDPOINT = "*";
+
+    private final AtomicReferenceArray<TracedMessage> buffer;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Double> sampleRates;
+    private final double defaultSampleRate;
+
+    public MessageTraceService(Configuration configuration) {
+        buffer = new AtomicReferenceArray<>(Math.max(0, configuration.getMessageTraceBufferSize()));
+        sampleRates = parseSampleRates(configuration.getMessageTraceSampleRates());
+        defaultSampleRate = sampleRates.getOrDefault(DEFAULT_ENDPOINT, 1.0);
+    }
+
+    /**
+     * @param endpoint message endpoint, e.g. "IncomingResponse"
+     * @return true if a message on the endpoint should be traced
+     */
+    public boolean isTraced(String endpoint) {
+        if (0 == buffer.length() && !log.isDebugEnabled()) {
+            return false;
+        }
+        double sampleRate = sampleRates.getOrDefault(endpoint, defaultSampleRate);
+        return sampleRate >= 1.0 || (sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    /**
+     * Trace a message received as a base64 encoded request parameter.
+     *
+     * @param endpoint message endpoint
+     * @param encodedMessage value of the SAMLRequest or SAMLResponse parameter
+     * @param deflated true if the message is deflated, as in the HTTP-Redirect binding
+     */
+    public void trace(String endpoint, String encodedMessage, boolean deflated) {
+        if (null != encodedMessage) {
+            record(new TracedMessage(endpoint, encodedMessage, deflated, null));
+        }
+    }
+
+    /**
+     * Trace a message object, the object is marshalled if it has no DOM, as it would be when the message is sent.
+     *
+     * @param endpoint message endpoint
+     * @param message SAML message
+     */
+    public void trace(String endpoint, XMLObject message) {
+        try {
+            record(new TracedMessage(endpoint, null, false, SamlHelper.marshallObject(message)));
+        }
+        catch (MarshallingException e) {
+            log.warn("Could not marshall {} for tracing purposes", endpoint);
+        }
+    }
+
+    /**
+     * @return messages in the buffer, oldest first
+     */
+    public List<TracedMessage> getMessages() {
+        List<TracedMessage> messages = new ArrayList<>(buffer.length());
+        for (int i = 0; i < buffer.length(); i++) {
+            TracedMessage message = buffer.get(i);
+            if (null != message) {
+                messages.add(message);
+            }
+        }
+        messages.sort(Comparator.comparingLong(TracedMessage::getSequence));
+        return messages;
+    }
+
+    /**
+     * Write the messages in the buffer, oldest first.
+     *
+     * @param writer receives the messages
+     */
+    public void dump(PrintWriter writer) {
+        for (TracedMessage message : getMessages()) {
+            writer.printf("#%d %s %s%n", message.getSequence(), message.getTimestamp(), message.getEndpoint());
+            writer.println(message.getMessageAsString());
+            writer.println();
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return number of messages traced since startup
+     */
+    public long getTracedCount() {
+        return sequence.get();
+    }
+
+    private void record(TracedMessage message) {
+        message.sequence = sequence.incrementAndGet();
+        if (buffer.length() > 0) {
+            buffer.set((int) (message.sequence % buffer.length()), message);
+        }
+        // The message is only rendered by toString if debug is enabled
+        log.debug("{}: {}", message.getEndpoint(), message);
+    }
+
+    private static Map<String, Double> parseSampleRates(String value) {
+        if (StringUtil.isEmpty(value)) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Double> sampleRates = new HashMap<>();
+        for (String entry : value.split(",")) {
+            int separator = entry.lastIndexOf(':');
+            try {
+                sampleRates.put(entry.substring(0, separator).trim(), Double.parseDouble(entry.substring(separator + 1).trim()));
+            }
+            catch (RuntimeException e) {
+                log.warn("Invalid message trace sample rate '{}'", entry, e);
+            }
+        }
+        return sampleRates;
+    }
+
+    /**
+     * SAML message kept by the trace buffer, serialized on request.
+     */
+    public static class TracedMessage {
+        private final Instant timestamp = Instant.now();
+        private final String endpoint;
+        private final String encodedMessage;
+        private final boolean deflated;
+        private final Element element;
+        private long sequence;
+
+        private TracedMessage(String endpoint, String encodedMessage, boolean deflated, Element element) {
+            this.endpoint = endpoint;
+            this.encodedMessage = encodedMessage;
+            this.deflated = deflated;
+            this.element = element;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Instant getTimestamp() {
+            return timestamp;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        /**
+         * @return XML of the message, or a description of why it could not be serialized
+         */
+        public String getMessageAsString() {
+            try {
+                if (null != element) {
+                    return XmlSerializer.toString(element, XmlSerializer.Profile.PRETTY);
+                }
+
+                byte[] bytes = Base64.getMimeDecoder().decode(encodedMessage);
+                if (!deflated) {
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+                Inflater inflater = new Inflater(true);
+                try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes), inflater)) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+                    byte[] chunk = new byte[4096];
+                    for (int read; (read = in.read(chunk)) != -1; ) {
+                        out.write(chunk, 0, read);
+                    }
+                    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+                }
+                finally {
+                    inflater.end();
+                }
+            }
+            catch (Exception e) {
+                return String.format("<!-- Unable to serialize message: %s -->", e.getMessage());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return getMessageAsString();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package dk.gov.oio.saml.service;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.model.IdPMetadata;
+
+/**
+ * Refreshes IdP metadata on a background thread when a refresh by the metadata resolver has failed, so requests use
+ * the last good metadata instead of waiting for the IdP.
+ * <p>
+ * Only one refresh of an IdP is pending at a time. A failed refresh is retried with an exponential backoff, with
+ * jitter so the IdPs are not retried in step, until a refresh succeeds. The thread is started by the first refresh.
+ * </p>
+ * MetadataRefreshService is initialized in the OIOSAML3Service.
+ */
+public class MetadataRefreshService {
+    private static final Logger log = LoggerFactory.getLogger(MetadataRefreshService.class);
+    private static final long INITIAL_BACKOFF_MILLIS = 10000;
+
+    private final long maxBackoffMillis;
+    private final Set<IdPMetadata> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failedRefreshCount = new AtomicLong();
+    private ScheduledExecutorService scheduledThreadPool;
+    private boolean closed = false;
+
+    public MetadataRefreshService(Configuration configuration) {
+        maxBackoffMillis = TimeUnit.MINUTES.toMillis(Math.max(1, configuration.getIdpMetadataMaxBackoffMinutes()));
+    }
+
+    /**
+     * Refresh the metadata of an IdP on the background thread, unless a refresh of the IdP is already pending.
+     *
+     * @param idPMetadata IdP to refresh
+     */
+    public void requestRefresh(IdPMetadata idPMetadata) {
+        if (!pending.add(idPMetadata)) {
+            return;
+        }
+        if (!schedule(idPMetadata, 0, 0)) {
+            pending.remove(idPMetadata);
+        }
+    }
+
+    /**
+     * @return number of background refreshes
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * @return number of background refreshes that failed, and were retried
+     */
+    public long getFailedRefreshCount() {
+        return failedRefreshCount.get();
+    }
+
+    /**
+     * Stop the background thread
+     */
+    public synchronized void close() {
+        closed = true;
+        if (scheduledThreadPool != null) {
+            scheduledThreadPool.shutdownNow();
+        }
+        scheduledThreadPool = null;
+        pending.clear();
+    }
+
+    /**
+     * @param attempt number of failed refreshes before this one
+     * @return delay before the next refresh, between half and all of the exponential backoff
+     */
+    long getBackoffMillis(int attempt) {
+        long backoff = Math.min(maxBackoffMillis, INITIAL_BACKOFF_MILLIS << Math.min(attempt, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private boolean schedule(IdPMetadata idPMetadata, int attempt, long delayMillis) {
+        ScheduledExecutorService executor = getScheduledThreadPool();
+        if (executor == null) {
+            return false;
+        }
+
+        try {
+            executor.schedule(() -> refresh(idPMetadata, attempt), delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void refresh(IdPMetadata idPMetadata, int attempt) {
+        refreshCount.incrementAndGet();
+
+        boolean success;
+        try {
+            success = idPMetadata.refreshMetadata();
+        }
+        catch (Exception e) {
+            log.warn("Metadata refresh failed", e);
+            success = false;
+        }
+
+        if (success) {
+            pending.remove(idPMetadata);
+            return;
+        }
+
+        // Still pending, so requests do not schedule another refresh while waiting for the retry
+        failedRefreshCount.incrementAndGet();
+        long delayMillis = getBackoffMillis(attempt);
+        log.debug("Retrying metadata refresh in {} ms", delayMillis);
+        if (!schedule(idPMetadata, attempt + 1, delayMillis)) {
+            pending.remove(idPMetadata);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduledThreadPool() {
+        if (scheduledThreadPool == null && !closed) {
+            log.info("Starting metadata refresher");
+
+            scheduledThreadPool = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "oiosaml-metadata-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduledThreadPool;
+    }
+}
@@ -0,0 +1,394 @@
+package dk.gov.oio.saml.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.ocsp.BasicOCSPResponse;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.OCSPRequest;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.asn1.ocsp.Request;
+import org.bouncycastle.asn1.ocsp.ResponderID;
+import org.bouncycastle.asn1.ocsp.ResponseBytes;
+import org.bouncycastle.asn1.ocsp.SingleResponse;
+import org.bouncycastle.asn1.ocsp.TBSRequest;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.X509ObjectIdentifiers;
+import org.bouncycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.ExternalException;
+import dk.gov.oio.saml.util.InternalException;
+
+/**
+ * OCSP client for the revocation check of IdP certificates, built on the BouncyCastle ASN.1 classes. Requests are
+ * posted directly to the responder, so no JVM-global security properties are set, and responses are cached per issuer
+ * and serial number until their nextUpdate. Responses without a nextUpdate are not cached, and are only accepted when
+ * their thisUpdate is within the clock skew, so an old response cannot be replayed.
+ * <p>
+ * A response must be signed by the issuer of the certificate, or by a responder certificate which the issuer has
+ * issued for OCSP signing. Revocation checks of multiple certificates are run in parallel on the OCSP threads.
+ * </p>
+ * OCSPService is initialized in the OIOSAML3Service.
+ */
+public class OCSPService {
+    private static final Logger log = LoggerFactory.getLogger(OCSPService.class);
+    private static final AlgorithmIdentifier SHA1 = new AlgorithmIdentifier(X509ObjectIdentifiers.id_SHA1, DERNull.INSTANCE);
+    private static final String OCSP_SIGNING = KeyPurposeId.id_kp_OCSPSigning.getId();
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_CACHED_RESPONSES = 1000;
+
+    private final Duration clockSkew;
+    private final int threads;
+    private final Map<String, CachedResponse> responses = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private ExecutorService executor;
+    private boolean closed = false;
+
+    public OCSPService(Configuration configuration) {
+        clockSkew = Duration.ofMinutes(Math.max(0, configuration.getClockSkew()));
+        threads = Math.max(1, configuration.getOcspCheckThreads());
+    }
+
+    /**
+     * Check a certificate with the OCSP responder of its issuer, or with the cached response.
+     *
+     * @param certificate certificate to check
+     * @param issuer issuer of the certificate
+     * @param url URL of the OCSP responder
+     * @return true if the responder reports the certificate as revoked
+     * @throws IOException if the responder cannot be reached
+     * @throws ExternalException if the response is not successful, not valid, or the status of the certificate is unknown
+     * @throws InternalException if the request cannot be created
+     */
+    public boolean isRevoked(X509Certificate certificate, X509Certificate issuer, String url) throws IOException, ExternalException, InternalException {
+        CertID certID = createCertID(certificate, issuer);
+        String key = Hex.toHexString(certID.getIssuerNameHash().getOctets()) + ":" + Hex.toHexString(certID.getIssuerKeyHash().getOctets()) + ":" + certificate.getSerialNumber().toString(16);
+
+        Instant now = Instant.now();
+        CachedResponse cached = responses.get(key);
+        if (cached != null) {
+            if (now.isBefore(cached.nextUpdate)) {
+                cacheHitCount.incrementAndGet();
+                return cached.revoked;
+            }
+            responses.remove(key, cached);
+        }
+
+        requestCount.incrementAndGet();
+        SingleResponse response = getSingleResponse(request(url, certID), certID, issuer, now);
+
+        boolean revoked;
+        switch (response.getCertStatus().getTagNo()) {
+            case 0:
+                revoked = false;
+                break;
+            case 1:
+                revoked = true;
+                log.info("Certificate revoked according to OCSP responder {}: {}", url, certificate.getSubjectDN());
+                break;
+            default:
+                throw new ExternalException("OCSP responder " + url + " does not know certificate " + certificate.getSubjectDN());
+        }
+
+        if (response.getNextUpdate() != null) {
+            if (responses.size() >= MAX_CACHED_RESPONSES) {
+                responses.values().removeIf(r -> !now.isBefore(r.nextUpdate));
+            }
+            responses.put(key, new CachedResponse(revoked, getInstant(response.getNextUpdate())));
+        }
+
+        return revoked;
+    }
+
+    /**
+     * Run a revocation check on the OCSP threads, or on the calling thread once the service is closed.
+     *
+     * @param check revocation check
+     * @return result of the check
+     */
+    public <T> Future<T> submit(Callable<T> check) {
+        ExecutorService executorService = getExecutor();
+        if (executorService != null) {
+            try {
+                return executorService.submit(check);
+            }
+            catch (RejectedExecutionException e) {
+                log.debug("OCSP threads are closed, checking on the calling thread");
+            }
+        }
+
+        FutureTask<T> future = new FutureTask<>(check);
+        future.run();
+        return future;
+    }
+
+    /**
+     * @return number of checks answered by a cached response
+     */
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+
+    /**
+     * @return number of requests sent to OCSP responders
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Stop the OCSP threads
+     */
+    public synchronized void close() {
+        closed = true;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        executor = null;
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null && !closed) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "oiosaml-ocsp-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            threadPoolExecutor.allowCoreThreadTimeOut(true);
+            executor = threadPoolExecutor;
+        }
+        return executor;
+    }
+
+    private static CertID createCertID(X509Certificate certificate, X509Certificate issuer) throws InternalException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] issuerNameHash = digest.digest(issuer.getSubjectX500Principal().getEncoded());
+            byte[] issuerKeyHash = digest.digest(getPublicKeyBytes(issuer));
+
+            return new CertID(SHA1, new DEROctetString(issuerNameHash), new DEROctetString(issuerKeyHash), new ASN1Integer(certificate.getSerialNumber()));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new InternalException("Could not create digest for OCSP request", e);
+        }
+    }
+
+    private static BasicOCSPResponse request(String url, CertID certID) throws IOException, ExternalException {
+        // No nonce, so responders may answer with pre-produced responses
+        TBSRequest tbsRequest = new TBSRequest(null, new DERSequence(new Request(certID, null)), (Extensions) null);
+        byte[] request = new OCSPRequest(tbsRequest, null).getEncoded(ASN1Encoding.DER);
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/ocsp-request");
+        connection.setRequestProperty("Accept", "application/ocsp-response");
+        connection.setDoOutput(true);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(request);
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("OCSP responder " + url + " returned HTTP status " + status);
+        }
+
+        OCSPResponse response;
+        try (ASN1InputStream is = new ASN1InputStream(connection.getInputStream())) {
+            response = OCSPResponse.getInstance(is.readObject());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ExternalException("Could not parse OCSP response from " + url, e);
+        }
+
+        if (response == null) {
+            throw new ExternalException("OCSP responder " + url + " returned an empty response");
+        }
+
+        int responseStatus = response.getResponseStatus().getValue().intValue();
+        if (responseStatus != OCSPResponseStatus.SUCCESSFUL) {
+            throw new ExternalException("OCSP responder " + url + " returned response status " + responseStatus);
+        }
+
+        ResponseBytes responseBytes = response.getResponseBytes();
+        if (responseBytes == null || !OCSPObjectIdentifiers.id_pkix_ocsp_basic.equals(responseBytes.getResponseType())) {
+            throw new ExternalException("OCSP responder " + url + " did not return a basic OCSP response");
+        }
+
+        try {
+            return BasicOCSPResponse.getInstance(ASN1Primitive.fromByteArray(responseBytes.getResponse().getOctets()));
+        }
+        catch (IllegalArgumentException e) {
+            throw new ExternalException("Could not parse basic OCSP response from " + url, e);
+        }
+    }
+
+    private SingleResponse getSingleResponse(BasicOCSPResponse response, CertID certID, X509Certificate issuer, Instant now) throws IOException, ExternalException {
+        X509Certificate signer = getSigner(response, issuer, now);
+        try {
+            Signature signature = Signature.getInstance(response.getSignatureAlgorithm().getAlgorithm().getId());
+            signature.initVerify(signer.getPublicKey());
+            signature.update(response.getTbsResponseData().getEncoded(ASN1Encoding.DER));
+            if (!signature.verify(response.getSignature().getOctets())) {
+                throw new ExternalException("OCSP response signature is not valid");
+            }
+        }
+        catch (GeneralSecurityException e) {
+            throw new ExternalException("Could not verify OCSP response signature", e);
+        }
+
+        ASN1Sequence singleResponses = response.getTbsResponseData().getResponses();
+        for (int i = 0; i < singleResponses.size(); i++) {
+            SingleResponse singleResponse = SingleResponse.getInstance(singleResponses.getObjectAt(i));
+            if (!matches(singleResponse.getCertID(), certID)) {
+                continue;
+            }
+
+            Instant thisUpdate = getInstant(singleResponse.getThisUpdate());
+            if (thisUpdate.isAfter(now.plus(clockSkew))) {
+                throw new ExternalException("OCSP response thisUpdate " + thisUpdate + " is in the future");
+            }
+            if (singleResponse.getNextUpdate() != null) {
+                Instant nextUpdate = getInstant(singleResponse.getNextUpdate());
+                if (nextUpdate.isBefore(now.minus(clockSkew))) {
+                    throw new ExternalException("OCSP response nextUpdate " + nextUpdate + " has passed");
+                }
+            }
+            else if (thisUpdate.isBefore(now.minus(clockSkew))) {
+                // No nonce is sent, so without nextUpdate only a fresh response shows the current status
+                throw new ExternalException("OCSP response without nextUpdate has thisUpdate " + thisUpdate + ", which is older than the clock skew");
+            }
+
+            return singleResponse;
+        }
+
+        throw new ExternalException("OCSP response does not contain the status of the certificate");
+    }
+
+    // The issuer signs the response, or a responder certificate included in the response which it issued for OCSP signing
+    private static X509Certificate getSigner(BasicOCSPResponse response, X509Certificate issuer, Instant now) throws IOException, ExternalException {
+        ResponderID responderID = response.getTbsResponseData().getResponderID();
+        if (matches(responderID, issuer)) {
+            return issuer;
+        }
+
+        ASN1Sequence certs = response.getCerts();
+        if (certs != null) {
+            try {
+                CertificateFactory factory = CertificateFactory.getInstance("X.509");
+                for (int i = 0; i < certs.size(); i++) {
+                    X509Certificate responder = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(certs.getObjectAt(i).toASN1Primitive().getEncoded(ASN1Encoding.DER)));
+                    if (!matches(responderID, responder)) {
+                        continue;
+                    }
+
+                    List<String> extendedKeyUsage = responder.getExtendedKeyUsage();
+                    if (!responder.getIssuerX500Principal().equals(issuer.getSubjectX500Principal()) || extendedKeyUsage == null || !extendedKeyUsage.contains(OCSP_SIGNING)) {
+                        throw new ExternalException("OCSP responder certificate is not authorized by the issuer: " + responder.getSubjectDN());
+                    }
+                    responder.verify(issuer.getPublicKey());
+                    responder.checkValidity(Date.from(now));
+
+                    return responder;
+                }
+            }
+            catch (GeneralSecurityException e) {
+                throw new ExternalException("OCSP responder certificate is not valid", e);
+            }
+        }
+
+        throw new ExternalException("OCSP response is not signed by the issuer or an authorized responder");
+    }
+
+    private static boolean matches(ResponderID responderID, X509Certificate certificate) throws ExternalException {
+        if (responderID.getName() != null) {
+            return responderID.getName().equals(X500Name.getInstance(certificate.getSubjectX500Principal().getEncoded()));
+        }
+
+        try {
+            return Arrays.equals(responderID.getKeyHash(), MessageDigest.getInstance("SHA-1").digest(getPublicKeyBytes(certificate)));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new ExternalException("Could not create digest for OCSP responder", e);
+        }
+    }
+
+    private static boolean matches(CertID responseCertID, CertID certID) {
+        return responseCertID.getHashAlgorithm().getAlgorithm().equals(certID.getHashAlgorithm().getAlgorithm())
+                && Arrays.equals(responseCertID.getIssuerNameHash().getOctets(), certID.getIssuerNameHash().getOctets())
+                && Arrays.equals(responseCertID.getIssuerKeyHash().getOctets(), certID.getIssuerKeyHash().getOctets())
+                && responseCertID.getSerialNumber().getValue().equals(certID.getSerialNumber().getValue());
+    }
+
+    private static byte[] getPublicKeyBytes(X509Certificate certificate) {
+        return SubjectPublicKeyInfo.getInstance(certificate.getPublicKey().getEncoded()).getPublicKeyData().getBytes();
+    }
+
+    private static Instant getInstant(ASN1GeneralizedTime time) throws ExternalException {
+        try {
+            return time.getDate().toInstant();
+        }
+        catch (ParseException e) {
+            throw new ExternalException("Could not parse time in OCSP response", e);
+        }
+    }
+
+    private static final class CachedResponse {
+        private final boolean revoked;
+        private final Instant nextUpdate;
+
+        private CachedResponse(boolean revoked, Instant nextUpdate) {
+            this.revoked = revoked;
+            this.nextUpdate = nextUpdate;
+        }
+    }
+}
@@ -1,13 +1,28 @@
 package dk.gov.oio.saml.service;
 
 import dk.gov.oio.saml.audit.AuditService;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitch;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitchBuilder;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitchMarshaller;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitchUnmarshaller;
+import dk.gov.oio.saml.extensions.appswitch.Platform;
+import dk.gov.oio.saml.extensions.appswitch.PlatformBuilder;
+import dk.gov.oio.saml.extensions.appswitch.PlatformMarshaller;
+import dk.gov.oio.saml.extensions.appswitch.PlatformUnmarshaller;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURL;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURLBuilder;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURLMarshaller;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURLUnmarshaller;
 import dk.gov.oio.saml.session.InternalSessionHandlerFactory;
 import dk.gov.oio.saml.session.SessionCleanerService;
 import dk.gov.oio.saml.session.SessionHandlerFactory;
+import dk.gov.oio.saml.util.MeteredParserPool;
+import dk.gov.oio.saml.util.SamlHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opensaml.core.config.InitializationException;
 import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.opensaml.xmlsec.config.impl.JavaCryptoValidationInitializer;
 
 import dk.gov.oio.saml.config.Configuration;
@@ -18,7 +33,14 @@ public class OIOSAML3Service {
     public static boolean initialized = false;
     private static Configuration configuration;
     private static AuditService auditService;
+    private static MessageTraceService messageTraceService;
+    private static MeteredParserPool parserPool;
     private static CredentialService credentialService;
+    private static CRLCacheService crlCacheService;
+    private static IssuerCertificateService issuerCertificateService;
+    private static OCSPService ocspService;
+    private static RevocationCheckService revocationCheckService;
+    private static MetadataRefreshService metadataRefreshService;
     private static SessionHandlerFactory sessionHandlerFactory;
     private static SessionCleanerService sessionCleanerService;
 
@@ -36,11 +58,47 @@ public class OIOSAML3Service {
             log.debug("Initializing OpenSAML");
             InitializationService.initialize();
 
+            // Share one parser pool between the SAML message decoders and OpenSAML
+            log.debug("Initializing parser pool");
+            OIOSAML3Service.parserPool = new MeteredParserPool(configuration.getParserPoolMaxSize());
+            XMLObjectProviderRegistrySupport.setParserPool(OIOSAML3Service.parserPool);
+
+            // Register the AppSwitch extension and resolve the providers of all types used by OIOSAML
+            log.debug("Initializing XML object providers");
+            SamlHelper.registerObjectProvider(Platform.DEFAULT_ELEMENT_NAME, new PlatformBuilder(), new PlatformMarshaller(), new PlatformUnmarshaller());
+            SamlHelper.registerObjectProvider(ReturnURL.DEFAULT_ELEMENT_NAME, new ReturnURLBuilder(), new ReturnURLMarshaller(), new ReturnURLUnmarshaller());
+            SamlHelper.registerObjectProvider(AppSwitch.DEFAULT_ELEMENT_NAME, new AppSwitchBuilder(), new AppSwitchMarshaller(), new AppSwitchUnmarshaller());
+            SamlHelper.initializeProviderCache();
+
             // Set configuration
             log.debug("Setting OIOSAML Configuration");
             OIOSAML3Service.configuration = configuration;
+            if (null != OIOSAML3Service.auditService) {
+                // Stop the dispatcher thread of a previous asynchronous audit log
+                OIOSAML3Service.auditService.close();
+            }
             OIOSAML3Service.auditService = new AuditService(configuration);
+            OIOSAML3Service.messageTraceService = new MessageTraceService(configuration);
             OIOSAML3Service.credentialService = new CredentialService(configuration);
+            OIOSAML3Service.crlCacheService = new CRLCacheService(configuration);
+            OIOSAML3Service.issuerCertificateService = new IssuerCertificateService(configuration);
+            if (null != OIOSAML3Service.ocspService) {
+                // Stop the threads of a previous OCSP client
+                OIOSAML3Service.ocspService.close();
+            }
+            OIOSAML3Service.ocspService = new OCSPService(configuration);
+            if (null != OIOSAML3Service.revocationCheckService) {
+                // Stop the background thread of a previous revocation checker
+                OIOSAML3Service.revocationCheckService.close();
+            }
+            OIOSAML3Service.revocationCheckService = new RevocationCheckService(configuration);
+            if (null != OIOSAML3Service.metadataRefreshService) {
+                // Stop the background thread of a previous metadata refresher
+                OIOSAML3Service.metadataRefreshService.close();
+            }
+            // Close the shared metadata HTTP client, so it is rebuilt with the new configuration
+            IdPMetadataService.getInstance().close();
+            OIOSAML3Service.metadataRefreshService = new MetadataRefreshService(configuration);
             OIOSAML3Service.sessionCleanerService = new SessionCleanerService(configuration);
             OIOSAML3Service.sessionHandlerFactory = new InternalSessionHandlerFactory();
             OIOSAML3Service.sessionHandlerFactory.configure(configuration);
@@ -63,6 +121,16 @@ public class OIOSAML3Service {
         return auditService;
     }
 
+    public static MessageTraceService getMessageTraceService() throws RuntimeException {
+        ifNotInitializedThrowRuntimeException("MessageTraceService");
+        return messageTraceService;
+    }
+
+    public static MeteredParserPool getParserPool() throws RuntimeException {
+        ifNotInitializedThrowRuntimeException("ParserPool");
+        return parserPool;
+    }
+
     public static SessionHandlerFactory getSessionHandlerFactory() throws RuntimeException {
         ifNotInitializedThrowRuntimeException("SessionHandlerFactory");
         return sessionHandlerFactory;
@@ -78,6 +146,31 @@ public class OIOSAML3Service {
         return credentialService;
     }
 
+    public static CRLCacheService getCRLCacheService() {
+        ifNotInitializedThrowRuntimeException("CRLCacheService");
+        return crlCacheService;
+    }
+
+    public static IssuerCertificateService getIssuerCertificateService() {
+        ifNotInitializedThrowRuntimeException("IssuerCertificateService");
+        return issuerCertificateService;
+    }
+
+    public static OCSPService getOCSPService() {
+        ifNotInitializedThrowRuntimeException("OCSPService");
+        return ocspService;
+    }
+
+    public static RevocationCheckService getRevocationCheckService() {
+        ifNotInitializedThrowRuntimeException("RevocationCheckService");
+        return revocationCheckService;
+    }
+
+    public static MetadataRefreshService getMetadataRefreshService() {
+        ifNotInitializedThrowRuntimeException("MetadataRefreshService");
+        return metadataRefreshService;
+    }
+
     private static void ifNotInitializedThrowRuntimeException(String entity) {
         if (!initialized) {
             throw new RuntimeException(String.format("OIOSAML3 is uninitialized, '%s' is unavailable", entity));
@@ -0,0 +1,141 @@
+package dk.gov.oio.saml.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.model.IdPMetadata;
+
+/**
+ * Checks the revocation status of IdP certificates on a background thread, on a fixed interval and when the metadata
+ * of an IdP is updated, so OCSP and CRL requests are not made on the request path.
+ * <p>
+ * Each IdPMetadata publishes the result of its last successful check, which is used until it is older than the
+ * configured maximum staleness. The thread is started by the first check.
+ * </p>
+ * RevocationCheckService is initialized in the OIOSAML3Service.
+ */
+public class RevocationCheckService {
+    private static final Logger log = LoggerFactory.getLogger(RevocationCheckService.class);
+
+    private final long intervalMinutes;
+    private final Set<IdPMetadata> pending = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService scheduledThreadPool;
+    private boolean closed = false;
+
+    public RevocationCheckService(Configuration configuration) {
+        intervalMinutes = Math.max(1, configuration.getRevocationCheckIntervalMinutes());
+    }
+
+    /**
+     * Check the certificates of an IdP on the background thread, unless a check of the IdP is already pending.
+     *
+     * @param idPMetadata IdP to check
+     */
+    public void requestCheck(IdPMetadata idPMetadata) {
+        ScheduledExecutorService executor = getScheduledThreadPool();
+        if (executor == null || !pending.add(idPMetadata)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                // Removed before the check, so an update during the check is checked again
+                pending.remove(idPMetadata);
+                check(idPMetadata);
+            });
+        }
+        catch (RejectedExecutionException e) {
+            pending.remove(idPMetadata);
+        }
+    }
+
+    /**
+     * @return age of the oldest successful check of the IdPs requested so far, or null if an IdP has not been checked
+     */
+    public Duration getLastCheckAge() {
+        Instant oldest = Instant.MAX;
+        for (IdPMetadata idPMetadata : IdPMetadataService.getInstance().getIdPMetadatas()) {
+            Instant lastCheck = idPMetadata.getLastCRLCheck();
+            if (lastCheck == null) {
+                return null;
+            }
+            if (lastCheck.isBefore(oldest)) {
+                oldest = lastCheck;
+            }
+        }
+        return Instant.MAX.equals(oldest) ? Duration.ZERO : Duration.between(oldest, Instant.now());
+    }
+
+    /**
+     * @return number of revocation checks of the IdPs requested so far
+     */
+    public long getCheckCount() {
+        long count = 0;
+        for (IdPMetadata idPMetadata : IdPMetadataService.getInstance().getIdPMetadatas()) {
+            count += idPMetadata.getRevocationCheckCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of revocation checks that failed, the previous result is kept when a check fails
+     */
+    public long getFailedCheckCount() {
+        long count = 0;
+        for (IdPMetadata idPMetadata : IdPMetadataService.getInstance().getIdPMetadatas()) {
+            count += idPMetadata.getFailedRevocationCheckCount();
+        }
+        return count;
+    }
+
+    /**
+     * Stop the background thread
+     */
+    public synchronized void close() {
+        closed = true;
+        if (scheduledThreadPool != null) {
+            scheduledThreadPool.shutdownNow();
+        }
+        scheduledThreadPool = null;
+    }
+
+    private synchronized ScheduledExecutorService getScheduledThreadPool() {
+        if (scheduledThreadPool == null && !closed) {
+            log.info("Starting revocation checker with interval '{}' minutes", intervalMinutes);
+
+            scheduledThreadPool = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "oiosaml-revocation-check");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduledThreadPool.scheduleWithFixedDelay(this::checkAll, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+        return scheduledThreadPool;
+    }
+
+    private void checkAll() {
+        for (IdPMetadata idPMetadata : IdPMetadataService.getInstance().getIdPMetadatas()) {
+            check(idPMetadata);
+        }
+    }
+
+    private static void check(IdPMetadata idPMetadata) {
+        try {
+            idPMetadata.checkRevocation();
+        }
+        catch (Exception e) {
+            // Counted by the IdPMetadata, the scheduled checks must continue
+            log.warn("Revocation check failed", e);
+        }
+    }
+}
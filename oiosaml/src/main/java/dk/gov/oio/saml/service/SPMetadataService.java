@@ -1,17 +1,10 @@
 package dk.gov.oio.saml.service;
 
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.opensaml.core.config.InitializationException;
 import org.opensaml.core.xml.io.MarshallingException;
@@ -37,6 +30,7 @@ import org.w3c.dom.Element;
 import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.SamlHelper;
+import dk.gov.oio.saml.util.XmlSerializer;
 
 public class SPMetadataService {
     // Single instance
@@ -174,21 +168,8 @@ public class SPMetadataService {
         try {
             EntityDescriptorMarshaller entityDescriptorMarshaller = new EntityDescriptorMarshaller();
             Element element = entityDescriptorMarshaller.marshall(entityDescriptor);
-            Source source = new DOMSource(element);
 
-            TransformerFactory transFactory = TransformerFactory.newInstance();
-            Transformer transformer = transFactory.newTransformer();
-
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-
-            StringWriter buffer = new StringWriter();
-            transformer.transform(source, new StreamResult(buffer));
-
-            return buffer.toString();
+            return XmlSerializer.toString(element, XmlSerializer.Profile.PRETTY_WITH_DECLARATION);
         }
         catch (TransformerException | MarshallingException e) {
             throw new InternalException("Could not marshall metadata", e);
@@ -1,12 +1,9 @@
 package dk.gov.oio.saml.service.validation;
 
-import java.io.ByteArrayInputStream;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -291,7 +288,7 @@ public class AssertionValidationService {
         IdPMetadata idPMetadata = IdPMetadataService.getInstance().getIdPMetadata(entityID);
         List<X509Certificate> knownAndValidCertificates = idPMetadata.getValidX509Certificates(UsageType.SIGNING);
 
-        X509Certificate signingCertificate = getSigningCertificate(assertion);
+        X509Certificate signingCertificate = getSigningCertificate(assertion, idPMetadata);
         X509Certificate matchingCertificate = knownAndValidCertificates.stream()
                 .filter(cert -> cert.equals(signingCertificate)).findAny()
                 .orElseThrow(() -> new AssertionValidationException("No maching IdP certificate found for entityId=" + entityID));
@@ -306,7 +303,7 @@ public class AssertionValidationService {
         }
     }
 
-    private X509Certificate getSigningCertificate(Assertion assertion) throws AssertionValidationException {
+    private X509Certificate getSigningCertificate(Assertion assertion, IdPMetadata idPMetadata) throws AssertionValidationException, InternalException, ExternalException {
 
         Signature signature = assertion.getSignature();
         if (signature != null) {
@@ -315,12 +312,9 @@ public class AssertionValidationService {
                 for (X509Data x509Data : keyInfo.getX509Datas()) {
                     for (org.opensaml.xmlsec.signature.X509Certificate certElement : x509Data.getX509Certificates()) {
 
-                        byte[] decoded = Base64.getDecoder().decode(certElement.getValue());
-                        CertificateFactory cf;
                         try {
-                            cf = CertificateFactory.getInstance("X.509");
-                            X509Certificate signingCert = (X509Certificate) cf.generateCertificate(
-                                    new ByteArrayInputStream(decoded));
+                            // Certificates known from the metadata are only parsed once per metadata update
+                            X509Certificate signingCert = idPMetadata.getKeyInfoCertificate(certElement.getValue());
 
                             // <-- this is the certificate used to sign the assertion
                             return signingCert;
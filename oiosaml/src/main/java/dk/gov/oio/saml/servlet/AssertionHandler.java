@@ -3,7 +3,6 @@ package dk.gov.oio.saml.servlet;
 import java.io.IOException;
 import java.time.Instant;
 
-import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.core.xml.schema.XSAny;
 import org.opensaml.core.xml.schema.impl.XSAnyBuilder;
 import org.opensaml.messaging.context.MessageContext;
@@ -20,7 +19,6 @@ import org.opensaml.saml.saml2.core.StatusCode;
 import org.opensaml.saml.saml2.core.StatusMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
 
 import dk.gov.oio.saml.audit.AuditService;
 import dk.gov.oio.saml.service.AssertionService;
@@ -61,13 +59,8 @@ public class AssertionHandler extends SAMLHandler {
         }
         Response response = (Response) samlObject;
 
-        // Log response
-        try {
-            Element element = SamlHelper.marshallObject(response);
-            log.debug("Response: {}", StringUtil.elementToString(element));
-        } catch (MarshallingException e) {
-            log.warn("Could not marshall Response for logging purposes");
-        }
+        // Trace response
+        traceIncoming(httpServletRequest, "IncomingResponse", "SAMLResponse", response);
 
         // Get response status
         Status status = response.getStatus();
@@ -185,7 +178,8 @@ public class AssertionHandler extends SAMLHandler {
             }
         }
 
-        AssertionWrapper assertionWrapper = new AssertionWrapper(assertion);
+        AssertionWrapper assertionWrapper = new AssertionWrapper(assertion,
+                OIOSAML3Service.getConfig().isAssertionCompactEnabled(), OIOSAML3Service.getConfig().isAssertionCompressionEnabled());
         boolean sessionFixationProtectEnabled = OIOSAML3Service.getConfig().isSessionFixationProtectEnabled();
         if(sessionFixationProtectEnabled) {
             httpServletRequest.getSession(true);
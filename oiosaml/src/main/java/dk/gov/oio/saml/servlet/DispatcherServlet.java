@@ -11,9 +11,7 @@ import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
-import dk.gov.oio.saml.extensions.appswitch.*;
 import dk.gov.oio.saml.util.*;
-import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.opensaml.core.config.InitializationException;
@@ -75,6 +73,76 @@ public class DispatcherServlet extends HttpServlet {
             configuration.setOcspCheckEnabled("true".equals(value));
         }
 
+        value = config.get(Constants.OCSP_CHECK_THREADS);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setOcspCheckThreads(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.OCSP_CHECK_THREADS, value, ex);
+            }
+        }
+
+        value = config.get(Constants.REVOCATION_CHECK_INTERVAL);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setRevocationCheckIntervalMinutes(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.REVOCATION_CHECK_INTERVAL, value, ex);
+            }
+        }
+
+        value = config.get(Constants.REVOCATION_CHECK_MAX_STALENESS);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setRevocationCheckMaxStalenessMinutes(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.REVOCATION_CHECK_MAX_STALENESS, value, ex);
+            }
+        }
+
+        value = config.get(Constants.CRL_CACHE_DIRECTORY);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setCrlCacheDirectory(value);
+        }
+
+        value = config.get(Constants.CRL_REFRESH_MARGIN);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setCrlRefreshMarginMinutes(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.CRL_REFRESH_MARGIN, value, ex);
+            }
+        }
+
+        value = config.get(Constants.ISSUER_CERTIFICATE_CACHE_DIRECTORY);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setIssuerCertificateCacheDirectory(value);
+        }
+
+        value = config.get(Constants.ISSUER_CERTIFICATE_CACHE_TTL);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setIssuerCertificateCacheTtlMinutes(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.ISSUER_CERTIFICATE_CACHE_TTL, value, ex);
+            }
+        }
+
+        value = config.get(Constants.ISSUER_CERTIFICATE_CACHE_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setIssuerCertificateCacheSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.ISSUER_CERTIFICATE_CACHE_SIZE, value, ex);
+            }
+        }
+
         value = config.get(Constants.METADATA_NAMEID_FORMAT);
         if (StringUtil.isNotEmpty(value)) {
             configuration.setNameIDFormat(value);
@@ -119,7 +187,92 @@ public class DispatcherServlet extends HttpServlet {
         if (StringUtil.isNotEmpty(value)) {
             configuration.setSessionFixationProtectEnabled("true".equals(value));
         }
+
+        value = config.get(Constants.SP_ASSERTION_COMPACT_ENABLED);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setAssertionCompactEnabled("true".equals(value));
+        }
+
+        value = config.get(Constants.SP_ASSERTION_COMPRESSION_ENABLED);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setAssertionCompressionEnabled("true".equals(value));
+        }
+
+        value = config.get(Constants.SP_AUDIT_ASYNC_ENABLED);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setAuditAsyncEnabled("true".equals(value));
+        }
+
+        value = config.get(Constants.SP_AUDIT_ASYNC_BUFFER_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setAuditAsyncBufferSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_AUDIT_ASYNC_BUFFER_SIZE, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_AUDIT_ASYNC_BATCH_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setAuditAsyncBatchSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_AUDIT_ASYNC_BATCH_SIZE, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_AUDIT_ASYNC_OVERFLOW_POLICY);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setAuditAsyncOverflowPolicy(value);
+        }
         
+        value = config.get(Constants.SP_ROUTING_TRACE);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setServletRoutingPathSuffixTrace(value);
+        }
+
+        value = config.get(Constants.SP_MESSAGE_TRACE_BUFFER_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setMessageTraceBufferSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_MESSAGE_TRACE_BUFFER_SIZE, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_MESSAGE_TRACE_SAMPLE_RATES);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setMessageTraceSampleRates(value);
+        }
+
+        value = config.get(Constants.SP_PARSER_POOL_MAX_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setParserPoolMaxSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_PARSER_POOL_MAX_SIZE, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_AUTHN_REQUEST_TEMPLATE_CACHE_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setAuthnRequestTemplateCacheSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_AUTHN_REQUEST_TEMPLATE_CACHE_SIZE, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_POST_BINDING_STREAMING_ENABLED);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setPostBindingStreamingEnabled("true".equals(value));
+        }
+
         value = config.get(Constants.IDP_METADATA_MIN_REFRESH);
         if (StringUtil.isNotEmpty(value)) {
             try {
@@ -142,6 +295,31 @@ public class DispatcherServlet extends HttpServlet {
             }
         }
 
+        value = config.get(Constants.IDP_METADATA_MAX_BACKOFF);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setIdpMetadataMaxBackoffMinutes(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.IDP_METADATA_MAX_BACKOFF, value, ex);
+            }
+        }
+
+        value = config.get(Constants.IDP_METADATA_MAX_STALENESS);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setIdpMetadataMaxStalenessMinutes(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.IDP_METADATA_MAX_STALENESS, value, ex);
+            }
+        }
+
+        value = config.get(Constants.IDP_METADATA_CACHE_DIRECTORY);
+        if (StringUtil.isNotEmpty(value)) {
+            configuration.setIdpMetadataCacheDirectory(value);
+        }
+
         value = config.get(Constants.SECONDARY_KEY_ALIAS);
         if (StringUtil.isNotEmpty(value)) {
             configuration.setSecondaryKeyAlias(value);
@@ -171,6 +349,106 @@ public class DispatcherServlet extends HttpServlet {
             log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_MAX_NUM_TRACKED_ASSERTIONIDS, value, ex);
         }
 
+        value = config.get(Constants.SP_SESSION_HANDLER_MAX_TRACKED_ASSERTIONIDS_BYTES);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerInMemoryMaxTrackedAssertionIdsBytes(Long.parseLong(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_MAX_TRACKED_ASSERTIONIDS_BYTES, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_TRACKED_ASSERTIONIDS_RETENTION);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_TRACKED_ASSERTIONIDS_RETENTION, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_INMEMORY_MAX_BYTES);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerInMemoryMaxBytes(Long.parseLong(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_INMEMORY_MAX_BYTES, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_JDBC_POOL_MIN_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerJdbcPoolMinSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_JDBC_POOL_MIN_SIZE, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_JDBC_POOL_MAX_SIZE);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerJdbcPoolMaxSize(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_JDBC_POOL_MAX_SIZE, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_JDBC_POOL_MAX_WAIT);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerJdbcPoolMaxWaitMillis(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_JDBC_POOL_MAX_WAIT, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_JDBC_POOL_IDLE_TIMEOUT);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerJdbcPoolIdleTimeoutSeconds(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_JDBC_POOL_IDLE_TIMEOUT, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_JDBC_POOL_VALIDATION_TIMEOUT);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerJdbcPoolValidationTimeoutSeconds(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_JDBC_POOL_VALIDATION_TIMEOUT, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_DATABASE_TOUCH_GRANULARITY);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerDatabaseTouchGranularitySeconds(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_DATABASE_TOUCH_GRANULARITY, value, ex);
+            }
+        }
+
+        value = config.get(Constants.SP_SESSION_HANDLER_DATABASE_TOUCH_FLUSH_INTERVAL);
+        if (StringUtil.isNotEmpty(value)) {
+            try {
+                configuration.setSessionHandlerDatabaseTouchFlushIntervalSeconds(Integer.parseInt(value));
+            }
+            catch (Exception ex) {
+                log.warn("Invalid value {} = {}", Constants.SP_SESSION_HANDLER_DATABASE_TOUCH_FLUSH_INTERVAL, value, ex);
+            }
+        }
+
         value = config.get(Constants.SP_APPSWITCH_RETURNURL_ANDROID);
         if (StringUtil.isNotEmpty(value)) {
             configuration.setAppSwitchReturnURLForAndroid(value);
@@ -329,10 +607,10 @@ public class DispatcherServlet extends HttpServlet {
                 handlers.put(configuration.getServletRoutingPathSuffixLogout(), new LogoutRequestHandler());
                 handlers.put(configuration.getServletRoutingPathSuffixLogoutResponse(), new LogoutResponseHandler());
                 handlers.put(configuration.getServletRoutingPathSuffixAssertion(), new AssertionHandler());
-
-                XMLObjectProviderRegistrySupport.registerObjectProvider(Platform.DEFAULT_ELEMENT_NAME, new PlatformBuilder(), new PlatformMarshaller(), new PlatformUnmarshaller());
-                XMLObjectProviderRegistrySupport.registerObjectProvider(ReturnURL.DEFAULT_ELEMENT_NAME, new ReturnURLBuilder(), new ReturnURLMarshaller(), new ReturnURLUnmarshaller());
-                XMLObjectProviderRegistrySupport.registerObjectProvider(AppSwitch.DEFAULT_ELEMENT_NAME, new AppSwitchBuilder(), new AppSwitchMarshaller(), new AppSwitchUnmarshaller());
+                if (StringUtil.isNotEmpty(configuration.getServletRoutingPathSuffixTrace())) {
+                    // Traced messages contain personal data, the endpoint must be protected by the container
+                    handlers.put(configuration.getServletRoutingPathSuffixTrace(), new MessageTraceHandler());
+                }
 
                 initialized = true;
             }
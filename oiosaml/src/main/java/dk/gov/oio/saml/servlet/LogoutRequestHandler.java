@@ -3,7 +3,7 @@ package dk.gov.oio.saml.servlet;
 import java.io.IOException;
 
 import org.opensaml.core.config.InitializationException;
-import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.XMLObject;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.messaging.encoder.MessageEncodingException;
 import org.opensaml.saml.saml2.core.LogoutRequest;
@@ -11,7 +11,6 @@ import org.opensaml.saml.saml2.core.SessionIndex;
 import org.opensaml.saml.saml2.metadata.SingleLogoutService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
 
 import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.service.IdPMetadataService;
@@ -24,7 +23,6 @@ import dk.gov.oio.saml.session.SessionHandler;
 import dk.gov.oio.saml.util.AuditRequestUtil;
 import dk.gov.oio.saml.util.ExternalException;
 import dk.gov.oio.saml.util.InternalException;
-import dk.gov.oio.saml.util.SamlHelper;
 import dk.gov.oio.saml.util.StringUtil;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -143,12 +141,7 @@ public class LogoutRequestHandler extends SAMLHandler {
                     .withAuthnAttribute("LOGOUT_REQUEST_DESTINATION", logoutRequest.getDestination()));
 
             // Log LogoutRequest
-            try {
-                Element element = SamlHelper.marshallObject(logoutRequest.getLogoutRequest());
-                log.debug("LogoutRequest: {}", StringUtil.elementToString(element));
-            } catch (MarshallingException e) {
-                log.warn("Could not marshall LogoutRequest for logging purposes");
-            }
+            traceOutgoing("OutgoingLogoutRequest", logoutRequest.getLogoutRequest());
             log.info("Outgoing LogoutRequest - ID:'{}' Issuer:'{}' IssueInstant:'{}' SessionIndexes:'{}' Destination:'{}'",
                     logoutRequest.getID(),
                     logoutRequest.getIssuerAsString(),
@@ -168,12 +161,7 @@ public class LogoutRequestHandler extends SAMLHandler {
         SessionHandler sessionHandler = OIOSAML3Service.getSessionHandlerFactory().getHandler();
 
         // Log LogoutRequest
-        try {
-            Element element = SamlHelper.marshallObject(logoutRequest.getLogoutRequest());
-            log.debug("LogoutRequest: {}", StringUtil.elementToString(element));
-        } catch (MarshallingException e) {
-            log.warn("Could not marshall LogoutRequest for logging purposes");
-        }
+        traceIncoming(httpServletRequest, "IncomingLogoutRequest", "SAMLRequest", logoutRequest.getLogoutRequest());
         log.info("Incoming LogoutRequest - ID:'{}' Issuer:'{}' IssueInstant:'{}' SessionIndexes:'{}' Destination:'{}'",
                 logoutRequest.getID(),
                 logoutRequest.getIssuerAsString(),
@@ -228,13 +216,8 @@ public class LogoutRequestHandler extends SAMLHandler {
             String logoutResponseEndpoint = metadataService.getLogoutResponseEndpoint(logoutRequest.getIssuerAsString()); // Has to be from the specific IdP that verified the user
             MessageContext messageContext = LogoutResponseService.createMessageWithLogoutResponse(logoutRequest, logoutResponseEndpoint);
 
-            // Log LogoutRequest
-            try {
-                Element element = SamlHelper.marshallObject(logoutRequest.getLogoutRequest());
-                log.debug("LogoutRequest: {}", StringUtil.elementToString(element));
-            } catch (MarshallingException e) {
-                log.warn("Could not marshall LogoutRequest for logging purposes");
-            }
+            // Log LogoutResponse
+            traceOutgoing("OutgoingLogoutResponse", (XMLObject) messageContext.getMessage());
             log.info("Outgoing LogoutRequest - ID:'{}' Issuer:'{}' IssueInstant:'{}' SessionIndexes:'{}' Destination:'{}'",
                     logoutRequest.getID(),
                     logoutRequest.getIssuerAsString(),
@@ -2,20 +2,17 @@ package dk.gov.oio.saml.servlet;
 
 import java.io.IOException;
 
-import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.saml.saml2.core.LogoutResponse;
 import org.opensaml.saml.saml2.core.StatusCode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Element;
 
 import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.service.OIOSAML3Service;
 import dk.gov.oio.saml.servlet.ErrorHandler.ERROR_TYPE;
 import dk.gov.oio.saml.util.ExternalException;
 import dk.gov.oio.saml.util.InternalException;
-import dk.gov.oio.saml.util.SamlHelper;
 import dk.gov.oio.saml.util.StringUtil;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -53,12 +50,7 @@ public class LogoutResponseHandler extends SAMLHandler {
         }
 
         // Log response
-        try {
-            Element element = SamlHelper.marshallObject(logoutResponse);
-            log.debug("LogoutResponse: {}", StringUtil.elementToString(element));
-        } catch (MarshallingException e) {
-            log.warn("Could not marshall LogoutResponse for logging purposes");
-        }
+        traceIncoming(httpServletRequest, "IncomingLogoutResponse", "SAMLResponse", logoutResponse);
         log.info("Incoming LogoutResponse - ID:'{}' InResponseTo:'{}' Issuer:'{}' Status:'{} {}' IssueInstant:'{}' Destination:'{}'",
                 logoutResponse.getID(),
                 logoutResponse.getInResponseTo(),
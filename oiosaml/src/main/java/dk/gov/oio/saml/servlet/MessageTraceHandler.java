@@ -0,0 +1,26 @@
+package dk.gov.oio.saml.servlet;
+
+import java.io.IOException;
+
+import dk.gov.oio.saml.service.OIOSAML3Service;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Dumps the recently traced SAML messages as plain text, only registered if a routing suffix is configured.
+ */
+public class MessageTraceHandler extends SAMLHandler {
+
+    @Override
+    public void handleGet(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws IOException {
+        httpServletResponse.setContentType("text/plain");
+        httpServletResponse.setCharacterEncoding("UTF-8");
+        httpServletResponse.setHeader("Cache-Control", "no-store");
+        OIOSAML3Service.getMessageTraceService().dump(httpServletResponse.getWriter());
+    }
+
+    @Override
+    public void handlePost(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        throw new UnsupportedOperationException("POST not allowed");
+    }
+}
@@ -0,0 +1,147 @@
+package dk.gov.oio.saml.servlet;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.xml.transform.TransformerException;
+
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.messaging.encoder.MessageEncodingException;
+import org.opensaml.saml.common.SAMLObject;
+import org.opensaml.saml.common.binding.BindingException;
+import org.opensaml.saml.common.binding.SAMLBindingSupport;
+import org.opensaml.saml.saml2.core.RequestAbstractType;
+import org.w3c.dom.Element;
+
+import dk.gov.oio.saml.util.SamlHelper;
+import dk.gov.oio.saml.util.XmlSerializer;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Writes the auto-submitting form of the HTTP-POST binding without a template engine. The message is base64 encoded
+ * while it is serialized to the response, the form is otherwise the same as the OpenSAML POST binding template.
+ */
+final class PostBindingWriter {
+    private static final byte[] HEAD = ascii("<!DOCTYPE html>\n"
+            + "<html>\n"
+            + "    <head>\n"
+            + "        <meta charset=\"utf-8\" />\n"
+            + "    </head>\n"
+            + "    <body onload=\"document.forms[0].submit()\">\n"
+            + "        <noscript>\n"
+            + "            <p>\n"
+            + "                <strong>Note:</strong> Since your browser does not support JavaScript,\n"
+            + "                you must press the Continue button once to proceed.\n"
+            + "            </p>\n"
+            + "        </noscript>\n"
+            + "        <form action=\"");
+    private static final byte[] FORM = ascii("\" method=\"post\">\n"
+            + "            <div>\n");
+    private static final byte[] TAIL = ascii("\"/>\n"
+            + "            </div>\n"
+            + "            <noscript>\n"
+            + "                <div>\n"
+            + "                    <input type=\"submit\" value=\"Continue\"/>\n"
+            + "                </div>\n"
+            + "            </noscript>\n"
+            + "        </form>\n"
+            + "    </body>\n"
+            + "</html>\n");
+
+    private PostBindingWriter() {
+    }
+
+    static void write(HttpServletResponse httpServletResponse, MessageContext messageContext) throws MessageEncodingException {
+        Object message = messageContext.getMessage();
+        if (!(message instanceof SAMLObject)) {
+            throw new MessageEncodingException("No outbound SAML message contained in message context");
+        }
+
+        try {
+            String endpointURL = SAMLBindingSupport.getEndpointURL(messageContext).toString();
+            String relayState = SAMLBindingSupport.getRelayState(messageContext);
+            Element element = SamlHelper.marshallObject((SAMLObject) message);
+
+            httpServletResponse.setHeader("Cache-control", "no-cache, no-store");
+            httpServletResponse.setHeader("Pragma", "no-cache");
+            httpServletResponse.setContentType("text/html");
+            httpServletResponse.setCharacterEncoding("UTF-8");
+
+            OutputStream out = httpServletResponse.getOutputStream();
+            out.write(HEAD);
+            writeEscaped(out, endpointURL);
+            out.write(FORM);
+            if (null != relayState) {
+                out.write(ascii("                <input type=\"hidden\" name=\"RelayState\" value=\""));
+                writeEscaped(out, relayState);
+                out.write(ascii("\"/>\n"));
+            }
+            out.write(ascii(message instanceof RequestAbstractType
+                    ? "                <input type=\"hidden\" name=\"SAMLRequest\" value=\""
+                    : "                <input type=\"hidden\" name=\"SAMLResponse\" value=\""));
+
+            // The base64 alphabet needs no escaping in an attribute value, closing the encoder writes the padding
+            try (OutputStream base64 = Base64.getEncoder().wrap(new NonClosingOutputStream(out))) {
+                XmlSerializer.write(element, XmlSerializer.Profile.COMPACT, base64);
+            }
+
+            out.write(TAIL);
+            out.flush();
+        }
+        catch (BindingException | MarshallingException | TransformerException | IOException e) {
+            throw new MessageEncodingException("Unable to write HTTP-POST binding form", e);
+        }
+    }
+
+    private static void writeEscaped(OutputStream out, String value) throws IOException {
+        StringBuilder sb = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&#34;");
+                    break;
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+                default:
+                    sb.append(ch);
+            }
+        }
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Closing the base64 encoder must not close the response
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -10,7 +10,9 @@ import net.shibboleth.shared.component.ComponentInitializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader;
 import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.xml.XMLObject;
 import org.opensaml.messaging.context.MessageContext;
 import org.opensaml.messaging.decoder.MessageDecodingException;
 import org.opensaml.messaging.encoder.MessageEncodingException;
@@ -21,6 +23,8 @@ import org.opensaml.saml.saml2.binding.decoding.impl.HTTPSOAP11Decoder;
 import org.opensaml.saml.saml2.binding.encoding.impl.HTTPPostEncoder;
 import org.opensaml.saml.saml2.binding.encoding.impl.HTTPRedirectDeflateEncoder;
 
+import dk.gov.oio.saml.service.MessageTraceService;
+import dk.gov.oio.saml.service.OIOSAML3Service;
 import dk.gov.oio.saml.util.ExternalException;
 import dk.gov.oio.saml.util.InternalException;
 import org.opensaml.saml.saml2.binding.encoding.impl.HTTPSOAP11Encoder;
@@ -28,6 +32,9 @@ import org.opensaml.saml.saml2.binding.encoding.impl.HTTPSOAP11Encoder;
 public abstract class SAMLHandler {
     private static final Logger log = LoggerFactory.getLogger(SAMLHandler.class);
 
+    // Shared by all handlers, the engine is thread-safe and caches the parsed template
+    private static volatile VelocityEngine velocityEngine;
+
     public abstract void handleGet(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws IOException, ExternalException, InternalException, InitializationException;
     public abstract void handlePost(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws ExternalException, InternalException, IOException;
     public void handleSOAP(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws ExternalException, InternalException, IOException {
@@ -40,6 +47,7 @@ public abstract class SAMLHandler {
 
             HTTPRedirectDeflateDecoder decoder = new HTTPRedirectDeflateDecoder();
             decoder.setHttpServletRequestSupplier(() -> httpServletRequest);
+            decoder.setParserPool(OIOSAML3Service.getParserPool());
 
             decoder.initialize();
             decoder.decode();
@@ -59,6 +67,7 @@ public abstract class SAMLHandler {
 
             HTTPPostDecoder decoder = new HTTPPostDecoder();
             decoder.setHttpServletRequestSupplier(() -> httpServletRequest);
+            decoder.setParserPool(OIOSAML3Service.getParserPool());
 
             decoder.initialize();
             decoder.decode();
@@ -78,6 +87,7 @@ public abstract class SAMLHandler {
 
             HTTPSOAP11Decoder decoder = new HTTPSOAP11Decoder();
             decoder.setHttpServletRequestSupplier(() -> httpServletRequest);
+            decoder.setParserPool(OIOSAML3Service.getParserPool());
 
             decoder.initialize();
             decoder.decode();
@@ -106,28 +116,48 @@ public abstract class SAMLHandler {
     void sendPost(HttpServletResponse httpServletResponse, MessageContext message) throws ComponentInitializationException, MessageEncodingException {
         log.debug("Encoding and sending message (HTTPPost)");
 
+        if (OIOSAML3Service.getConfig().isPostBindingStreamingEnabled()) {
+            PostBindingWriter.write(httpServletResponse, message);
+            return;
+        }
+
         HTTPPostEncoder encoder = new HTTPPostEncoder();
 
         encoder.setHttpServletResponseSupplier(() -> httpServletResponse);
         encoder.setMessageContext(message);
-
-        VelocityEngine velocityEngine = new VelocityEngine();
-
-        // Set properties for ClasspathResourceLoader
-        Properties properties = new Properties();
-        properties.setProperty("resource.loader", "classpath");
-        properties.setProperty("classpath.resource.loader.class", 
-                               "org.apache.velocity.runtime.resource.loader.ClasspathResourceLoader");
-
-        // Initialize Velocity with the properties
-        velocityEngine.init(properties);
-        
-        encoder.setVelocityEngine(velocityEngine);
+        encoder.setVelocityEngine(getVelocityEngine());
 
         encoder.initialize();
         encoder.encode();
     }
 
+    static VelocityEngine getVelocityEngine() {
+        VelocityEngine engine = velocityEngine;
+        if (null == engine) {
+            synchronized (SAMLHandler.class) {
+                engine = velocityEngine;
+                if (null == engine) {
+                    log.debug("Initializing Velocity engine");
+                    engine = new VelocityEngine();
+
+                    // Set properties for ClasspathResourceLoader, templates on the classpath do not change
+                    Properties properties = new Properties();
+                    properties.setProperty("resource.loaders", "classpath");
+                    properties.setProperty("resource.loader.classpath.class", ClasspathResourceLoader.class.getName());
+                    properties.setProperty("resource.loader.classpath.cache", "true");
+                    properties.setProperty("resource.loader.classpath.modification_check_interval", "0");
+
+                    // Initialize Velocity with the properties, and parse the POST binding template once
+                    engine.init(properties);
+                    engine.getTemplate(HTTPPostEncoder.DEFAULT_TEMPLATE_ID, "UTF-8");
+
+                    velocityEngine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
     void sendSOAP(HttpServletResponse httpServletResponse, MessageContext message) throws ComponentInitializationException, MessageEncodingException {
         log.debug("Encoding and sending message (SOAP)");
 
@@ -141,6 +171,27 @@ public abstract class SAMLHandler {
         encoder.encode();
     }
 
+    void traceIncoming(HttpServletRequest httpServletRequest, String endpoint, String parameter, XMLObject message) {
+        MessageTraceService messageTraceService = OIOSAML3Service.getMessageTraceService();
+        if (messageTraceService.isTraced(endpoint)) {
+            // Keep the message as received when possible, the SOAP binding has no request parameter
+            String encodedMessage = httpServletRequest.getParameter(parameter);
+            if (null != encodedMessage) {
+                messageTraceService.trace(endpoint, encodedMessage, "GET".equals(httpServletRequest.getMethod()));
+            }
+            else {
+                messageTraceService.trace(endpoint, message);
+            }
+        }
+    }
+
+    void traceOutgoing(String endpoint, XMLObject message) {
+        MessageTraceService messageTraceService = OIOSAML3Service.getMessageTraceService();
+        if (messageTraceService.isTraced(endpoint)) {
+            messageTraceService.trace(endpoint, message);
+        }
+    }
+
     <T> T getSamlObject(MessageContext context, Class<T> clazz) throws ExternalException {
         SAMLObject samlObject = (SAMLObject) context.getMessage();
         if (samlObject == null) {
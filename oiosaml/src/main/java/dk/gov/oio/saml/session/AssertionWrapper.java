@@ -1,11 +1,30 @@
 package dk.gov.oio.saml.session;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import javax.xml.transform.TransformerException;
+
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.saml.saml2.core.Assertion;
 import org.opensaml.saml.saml2.core.AttributeStatement;
@@ -19,9 +38,11 @@ import org.opensaml.saml.saml2.core.Issuer;
 import org.opensaml.saml.saml2.core.Subject;
 import org.opensaml.saml.saml2.core.SubjectConfirmation;
 import org.opensaml.saml.saml2.core.SubjectConfirmationData;
-import org.opensaml.saml.saml2.core.impl.AssertionMarshaller;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import net.shibboleth.shared.xml.XMLParserException;
+
 import dk.gov.oio.saml.model.NSISLevel;
 import dk.gov.oio.saml.oiobpp.OIOBPPUtil;
 import dk.gov.oio.saml.oiobpp.PrivilegeList;
@@ -29,9 +50,19 @@ import dk.gov.oio.saml.util.Constants;
 import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.SamlHelper;
 import dk.gov.oio.saml.util.StringUtil;
-
+import dk.gov.oio.saml.util.XmlSerializer;
+
+/**
+ * Values extracted from a validated assertion, along with the assertion XML.
+ * <p>
+ * By default the assertion is kept both pretty printed and base64 encoded. In compact mode only the UTF-8 encoded XML
+ * is kept, optionally deflated, and the pretty printed and base64 encoded XML is derived when requested. The pretty
+ * printed XML is cached using a soft reference, so it can be reclaimed when memory is low.
+ * </p>
+ */
 public class AssertionWrapper implements Serializable {
     private static final long serialVersionUID = -4561395634523843337L;
+    private static final byte COMPACT_STATE_VERSION = 1;
 
     private String id;
     private String assertionString;
@@ -49,17 +80,42 @@ public class AssertionWrapper implements Serializable {
     private Instant confirmationTime;
     private Instant conditionTimeNotBefore;
     private Instant conditionTimeNotOnOrAfter;
+    private Instant sessionNotOnOrAfter;
+    private boolean privilegeListParsed;
+
+    // Compact mode, serialized as assertionBase64 to stay compatible with the default serialized form
+    private transient byte[] assertionXml; // UTF-8 encoded assertion XML, deflated if assertionXmlDeflated
+    private transient boolean assertionXmlDeflated;
+    private transient SoftReference<String> assertionStringCache;
+
+    private AssertionWrapper() {
+    }
 
     public AssertionWrapper(Assertion assertion) throws InternalException {
-        this.assertionBase64 = StringUtil.xmlObjectToBase64(assertion);
+        this(assertion, false, false);
+    }
 
-        // getAssertionAsString()
-        AssertionMarshaller marshaller = new AssertionMarshaller();
+    /**
+     * @param assertion validated assertion
+     * @param compact keep only the UTF-8 encoded assertion XML, and derive the pretty printed and base64 encoded XML when requested
+     * @param compressed deflate the UTF-8 encoded assertion XML in compact mode
+     * @throws InternalException on failure to marshall the assertion
+     */
+    public AssertionWrapper(Assertion assertion, boolean compact, boolean compressed) throws InternalException {
         try {
-            Element element = marshaller.marshall(assertion);
-            this.assertionString = StringUtil.elementToString(element);
+            // The assertion is marshalled once, and serialized from the same element
+            Element element = SamlHelper.marshallObject(assertion);
+            if (compact) {
+                setAssertionXml(XmlSerializer.toBytes(element, XmlSerializer.Profile.COMPACT), compressed);
+            }
+            else {
+                this.assertionBase64 = XmlSerializer.toBase64(element, XmlSerializer.Profile.COMPACT);
+
+                // getAssertionAsString()
+                this.assertionString = XmlSerializer.toString(element, XmlSerializer.Profile.PRETTY);
+            }
         }
-        catch (MarshallingException e) {
+        catch (MarshallingException | TransformerException e) {
             throw new InternalException(e);
         }
 
@@ -124,11 +180,8 @@ public class AssertionWrapper implements Serializable {
                 AuthnStatement authnStatement = assertion.getAuthnStatements().get(0);
 
                 // isSessionExpired()
-                boolean sessionExpired = false;
-                if (authnStatement.getSessionNotOnOrAfter() != null) {
-                    sessionExpired = authnStatement.getSessionNotOnOrAfter().isBefore(Instant.now());
-                }
-                this.sessionExpired = sessionExpired;
+                this.sessionNotOnOrAfter = authnStatement.getSessionNotOnOrAfter();
+                this.sessionExpired = isBeforeNow(sessionNotOnOrAfter);
 
                 // getAuthnContextClassRef()
                 AuthnContext authnContext = authnStatement.getAuthnContext();
@@ -148,6 +201,7 @@ public class AssertionWrapper implements Serializable {
                 this.privilegeList = OIOBPPUtil.parse(attributeValue);
             }
         }
+        this.privilegeListParsed = true;
 
         // getSigningCredentialEntityId()
         if (null != assertion.getSignature() && null != assertion.getSignature().getSigningCredential()) {
@@ -158,16 +212,183 @@ public class AssertionWrapper implements Serializable {
         this.id = assertion.getID();
     }
 
+    /**
+     * Restore a wrapper from the state created by {@link #toCompactState()}, without parsing the assertion XML.
+     * The pretty printed XML is materialized from the base64 encoded assertion, when it is requested.
+     *
+     * @param compactState state created by {@link #toCompactState()}
+     * @param assertionBase64 base64 encoded assertion XML, as returned by {@link #getAssertionAsBase64()}
+     * @return assertion wrapper
+     * @throws InternalException if the state is malformed or written in an unknown version
+     */
+    public static AssertionWrapper fromCompactState(byte[] compactState, String assertionBase64) throws InternalException {
+        AssertionWrapper wrapper = new AssertionWrapper();
+        wrapper.assertionBase64 = assertionBase64;
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(compactState))) {
+            byte version = in.readByte();
+            if (version != COMPACT_STATE_VERSION) {
+                throw new InternalException(String.format("Unsupported assertion state version '%d'", version));
+            }
+
+            wrapper.id = readString(in);
+            wrapper.sessionIndex = readString(in);
+            wrapper.issuer = readString(in);
+            wrapper.subjectNameId = readString(in);
+            wrapper.subjectNameIdFormat = readString(in);
+            wrapper.signingCredentialEntityId = readString(in);
+            wrapper.authnContextClassRef = readString(in);
+
+            int audienceCount = in.readInt();
+            if (audienceCount >= 0) {
+                wrapper.audiences = new ArrayList<>(audienceCount);
+                for (int i = 0; i < audienceCount; i++) {
+                    wrapper.audiences.add(readString(in));
+                }
+            }
+
+            int attributeCount = in.readInt();
+            if (attributeCount >= 0) {
+                wrapper.attributeValues = new HashMap<>();
+                for (int i = 0; i < attributeCount; i++) {
+                    wrapper.attributeValues.put(readString(in), readString(in));
+                }
+            }
+
+            wrapper.confirmationTime = readInstant(in);
+            wrapper.conditionTimeNotBefore = readInstant(in);
+            wrapper.conditionTimeNotOnOrAfter = readInstant(in);
+            wrapper.sessionNotOnOrAfter = readInstant(in);
+        } catch (IOException e) {
+            throw new InternalException("Unable to read assertion state", e);
+        }
+
+        wrapper.sessionExpired = isBeforeNow(wrapper.sessionNotOnOrAfter);
+        return wrapper;
+    }
+
+    /**
+     * Create a compact binary representation of the values extracted from the assertion,
+     * which can be restored using {@link #fromCompactState(byte[], String)}.
+     *
+     * @return compact binary state
+     * @throws InternalException on failure to write state
+     */
+    public byte[] toCompactState() throws InternalException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(512);
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeByte(COMPACT_STATE_VERSION);
+
+            writeString(out, id);
+            writeString(out, sessionIndex);
+            writeString(out, issuer);
+            writeString(out, subjectNameId);
+            writeString(out, subjectNameIdFormat);
+            writeString(out, signingCredentialEntityId);
+            writeString(out, authnContextClassRef);
+
+            out.writeInt(null != audiences ? audiences.size() : -1);
+            if (null != audiences) {
+                for (String audience : audiences) {
+                    writeString(out, audience);
+                }
+            }
+
+            out.writeInt(null != attributeValues ? attributeValues.size() : -1);
+            if (null != attributeValues) {
+                for (Map.Entry<String, String> entry : attributeValues.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+            }
+
+            writeInstant(out, confirmationTime);
+            writeInstant(out, conditionTimeNotBefore);
+            writeInstant(out, conditionTimeNotOnOrAfter);
+            writeInstant(out, sessionNotOnOrAfter);
+        } catch (IOException e) {
+            throw new InternalException("Unable to write assertion state", e);
+        }
+        return buffer.toByteArray();
+    }
+
     public String getAssertionAsString() {
+        if (null != assertionString) {
+            return assertionString;
+        }
+
+        if (null != assertionXml) {
+            SoftReference<String> cache = assertionStringCache;
+            String cached = null != cache ? cache.get() : null;
+            if (null == cached) {
+                cached = materializeAssertionString(getAssertionXml());
+                assertionStringCache = new SoftReference<>(cached);
+            }
+            return cached;
+        }
+
+        if (null != assertionBase64) {
+            assertionString = materializeAssertionString(Base64.getDecoder().decode(assertionBase64));
+        }
         return assertionString;
     }
 
     public String getAssertionAsBase64() {
+        if (null == assertionBase64 && null != assertionXml) {
+            return Base64.getEncoder().encodeToString(getAssertionXml());
+        }
         return assertionBase64;
     }
+
+    /**
+     * @return true if only the UTF-8 encoded assertion XML is kept
+     */
+    public boolean isCompact() {
+        return null != assertionXml;
+    }
+
+    private String materializeAssertionString(byte[] xml) {
+        try (InputStream in = new ByteArrayInputStream(xml)) {
+            Document document = XMLObjectProviderRegistrySupport.getParserPool().parse(in);
+            return XmlSerializer.toString(document.getDocumentElement(), XmlSerializer.Profile.PRETTY);
+        } catch (XMLParserException | IOException | TransformerException e) {
+            throw new IllegalStateException(String.format("Unable to materialize assertion '%s'", id), e);
+        }
+    }
+
+    private void setAssertionXml(byte[] xml, boolean compressed) throws InternalException {
+        if (compressed) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(xml.length / 2);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(buffer)) {
+                out.write(xml);
+            } catch (IOException e) {
+                throw new InternalException("Unable to compress assertion", e);
+            }
+            xml = buffer.toByteArray();
+        }
+        this.assertionXml = xml;
+        this.assertionXmlDeflated = compressed;
+    }
+
+    private byte[] getAssertionXml() {
+        if (!assertionXmlDeflated) {
+            return assertionXml;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(assertionXml.length * 4);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(assertionXml))) {
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to decompress assertion '%s'", id), e);
+        }
+        return buffer.toByteArray();
+    }
     
     public String getAssertionAsHtml() {
-        return htmlEscape(assertionString);
+        return htmlEscape(getAssertionAsString());
     }
 
     private static String htmlEscape(String input) {
@@ -244,6 +465,15 @@ public class AssertionWrapper implements Serializable {
     }
 
     public PrivilegeList getPrivilegeList() {
+        if (!privilegeListParsed) {
+            if (null == privilegeList && null != attributeValues) {
+                String attributeValue = attributeValues.get(Constants.PRIVILEGE_ATTRIBUTE);
+                if (attributeValue != null) {
+                    privilegeList = OIOBPPUtil.parse(attributeValue);
+                }
+            }
+            privilegeListParsed = true;
+        }
         return privilegeList;
     }
 
@@ -271,6 +501,37 @@ public class AssertionWrapper implements Serializable {
         return signingCredentialEntityId;
     }
 
+    /**
+     * Estimate the heap used by this wrapper, e.g. to bound the memory used by in memory session storage.
+     *
+     * @return estimated size in bytes
+     */
+    public long getEstimatedSize() {
+        long size = 256; // Object header, references, flags and instants
+        if (null != assertionXml) {
+            size += 16 + assertionXml.length;
+        }
+        size += estimatedSize(id) + estimatedSize(assertionString) + estimatedSize(assertionBase64)
+                + estimatedSize(sessionIndex) + estimatedSize(issuer) + estimatedSize(subjectNameId)
+                + estimatedSize(subjectNameIdFormat) + estimatedSize(signingCredentialEntityId)
+                + estimatedSize(authnContextClassRef);
+        if (null != audiences) {
+            for (String audience : audiences) {
+                size += 16 + estimatedSize(audience);
+            }
+        }
+        if (null != attributeValues) {
+            for (Map.Entry<String, String> entry : attributeValues.entrySet()) {
+                size += 48 + estimatedSize(entry.getKey()) + estimatedSize(entry.getValue());
+            }
+        }
+        return size;
+    }
+
+    private static long estimatedSize(String value) {
+        return null == value ? 0 : 40 + 2L * value.length();
+    }
+
     public boolean isReplayOf(AssertionWrapper assertionWrapper) {
         if (null == assertionWrapper) {
             return false;
@@ -285,6 +546,96 @@ public class AssertionWrapper implements Serializable {
 
     @Override
     public String toString() {
-        return String.format("AssertionWrapper{assertion='%s'}", assertionString);
+        return String.format("AssertionWrapper{assertion='%s'}", getAssertionAsString());
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // The default serialized form is written, with the base64 encoded XML derived in compact mode
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id);
+        fields.put("assertionString", assertionString);
+        fields.put("assertionBase64", getAssertionAsBase64());
+        fields.put("sessionIndex", sessionIndex);
+        fields.put("issuer", issuer);
+        fields.put("subjectNameId", subjectNameId);
+        fields.put("subjectNameIdFormat", subjectNameIdFormat);
+        fields.put("signingCredentialEntityId", signingCredentialEntityId);
+        fields.put("audiences", audiences);
+        fields.put("authnContextClassRef", authnContextClassRef);
+        fields.put("privilegeList", privilegeList);
+        fields.put("attributeValues", attributeValues);
+        fields.put("sessionExpired", sessionExpired);
+        fields.put("confirmationTime", confirmationTime);
+        fields.put("conditionTimeNotBefore", conditionTimeNotBefore);
+        fields.put("conditionTimeNotOnOrAfter", conditionTimeNotOnOrAfter);
+        fields.put("sessionNotOnOrAfter", sessionNotOnOrAfter);
+        fields.put("privilegeListParsed", privilegeListParsed);
+        out.writeFields();
+
+        // Ignored by versions without compact mode
+        out.writeBoolean(null != assertionXml);
+        out.writeBoolean(assertionXmlDeflated);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        boolean compact;
+        boolean compressed;
+        try {
+            compact = in.readBoolean();
+            compressed = in.readBoolean();
+        } catch (OptionalDataException | EOFException e) {
+            // Written by a version without compact mode
+            return;
+        }
+
+        if (compact && null != assertionBase64) {
+            try {
+                setAssertionXml(Base64.getDecoder().decode(assertionBase64), compressed);
+            } catch (InternalException e) {
+                throw new IOException(e);
+            }
+            assertionBase64 = null;
+        }
+    }
+
+    private static boolean isBeforeNow(Instant instant) {
+        return null != instant && instant.isBefore(Instant.now());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (null == value) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInstant(DataOutputStream out, Instant instant) throws IOException {
+        out.writeBoolean(null != instant);
+        if (null != instant) {
+            out.writeLong(instant.getEpochSecond());
+            out.writeInt(instant.getNano());
+        }
+    }
+
+    private static Instant readInstant(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
     }
 }
@@ -105,6 +105,24 @@ public class AuthnRequestWrapper implements Serializable {
         return authnRequestAsBase64;
     }
 
+    /**
+     * Estimate the heap used by this wrapper, e.g. to bound the memory used by in memory session storage.
+     *
+     * @return estimated size in bytes, excluding extensions
+     */
+    public long getEstimatedSize() {
+        long size = 128; // Object header, references and flags
+        for (String value : new String[]{id, issuer, issueInstant, destination, authnRequestAsBase64, requestPath}) {
+            size += null == value ? 0 : 40 + 2L * value.length();
+        }
+        if (null != authnContextClassRefValues) {
+            for (String value : authnContextClassRefValues) {
+                size += 56 + 2L * value.length();
+            }
+        }
+        return size;
+    }
+
     public AppSwitch getAppSwitch() {
         return (AppSwitch) this.getExtensionOfType(AppSwitch.class);
     }
@@ -0,0 +1,97 @@
+package dk.gov.oio.saml.session;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Request scoped view of session state, used by {@link SessionHandler} implementations to load the assertion and
+ * requests from the session store once per HTTP request, even when they are requested several times, e.g. by the
+ * AuthenticatedFilter and the {@link SessionHandler#isAuthenticated(jakarta.servlet.http.HttpSession)} default method.
+ * <p>
+ * A scope is opened with {@link #begin()} and must be closed with {@link #end()} on the same thread. Outside a scope
+ * all values are loaded directly from the session store.
+ * </p>
+ */
+public final class RequestSessionState {
+    private static final ThreadLocal<RequestSessionState> current = new ThreadLocal<>();
+    private static final AtomicLong loadCount = new AtomicLong();
+    private static final AtomicLong savedRoundTripCount = new AtomicLong();
+
+    private final Map<String, Object> values = new HashMap<>();
+    private int depth;
+
+    private RequestSessionState() {
+    }
+
+    /**
+     * Open a request scope on the current thread, nested calls share the outermost scope.
+     */
+    public static void begin() {
+        RequestSessionState state = current.get();
+        if (null == state) {
+            state = new RequestSessionState();
+            current.set(state);
+        }
+        state.depth++;
+    }
+
+    /**
+     * Close the request scope on the current thread, values are discarded when the outermost scope is closed.
+     */
+    public static void end() {
+        RequestSessionState state = current.get();
+        if (null != state && --state.depth <= 0) {
+            current.remove();
+        }
+    }
+
+    /**
+     * Get value from the current request scope, or load it from the session store if it has not been loaded yet.
+     *
+     * @param key key identifying the value, e.g. type and session ID
+     * @param loader loads the value from the session store, may return null
+     * @param <T> type of value
+     * @return loaded or memoized value
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T load(String key, Supplier<T> loader) {
+        RequestSessionState state = current.get();
+        if (null == state) {
+            return loader.get();
+        }
+        if (state.values.containsKey(key)) {
+            savedRoundTripCount.incrementAndGet();
+            return (T) state.values.get(key);
+        }
+        T value = loader.get();
+        loadCount.incrementAndGet();
+        state.values.put(key, value);
+        return value;
+    }
+
+    /**
+     * Discard all values in the current request scope, must be called when session state is changed.
+     */
+    public static void invalidate() {
+        RequestSessionState state = current.get();
+        if (null != state) {
+            state.values.clear();
+        }
+    }
+
+    /**
+     * @return number of values loaded from the session store inside a request scope
+     */
+    public static long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return number of session store round trips saved by serving values from a request scope
+     */
+    public static long getSavedRoundTripCount() {
+        return savedRoundTripCount.get();
+    }
+}
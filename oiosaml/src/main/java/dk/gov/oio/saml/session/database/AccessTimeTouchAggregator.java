@@ -0,0 +1,274 @@
+package dk.gov.oio.saml.session.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates access time updates ("touches") of session rows, so reads do not have to update the row they read.
+ * <p>
+ * A touch is skipped if the stored access time is fresher than the granularity. Remaining touches are kept in memory
+ * and written periodically as one {@code UPDATE ... WHERE session_id IN (...)} per table. With a flush interval of
+ * zero or less, touches are written immediately using the connection of the read.
+ * </p>
+ * <p>
+ * Pending touches must be flushed before expired rows are deleted, and the stored access time may still lag the actual
+ * access by {@link #getMaxLagMillis()}, see {@link DatabaseSessionHandler#cleanup(long)}.
+ * </p>
+ */
+public class AccessTimeTouchAggregator implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(AccessTimeTouchAggregator.class);
+
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final DataSource ds;
+    private final long granularityMillis;
+    private final long flushIntervalMillis;
+    private final Map<String, ConcurrentHashMap<String, Timestamp>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    private final AtomicLong touchCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong updatedRowCount = new AtomicLong();
+    private final AtomicLong updateStatementCount = new AtomicLong();
+    private final AtomicLong failedFlushCount = new AtomicLong();
+
+    /**
+     * @param ds data source used for flushing pending touches
+     * @param granularityMillis touches are skipped if the stored access time is younger than this
+     * @param flushIntervalMillis interval between flushes, zero or less writes touches immediately
+     */
+    public AccessTimeTouchAggregator(DataSource ds, long granularityMillis, long flushIntervalMillis) {
+        this.ds = ds;
+        this.granularityMillis = Math.max(0, granularityMillis);
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        if (flushIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "oiosaml-session-touch-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Record that a session row has been read.
+     *
+     * @param connection connection of the read, used when touches are written immediately
+     * @param table table containing the row
+     * @param sessionId session ID of the row
+     * @param storedAccessTime access time read from the row, may be null
+     * @throws SQLException on failure to write the touch immediately
+     */
+    public void touch(Connection connection, String table, String sessionId, Timestamp storedAccessTime) throws SQLException {
+        touchCount.incrementAndGet();
+
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now(Clock.systemDefaultZone()));
+        if (null != storedAccessTime && now.getTime() - storedAccessTime.getTime() < granularityMillis) {
+            skippedCount.incrementAndGet();
+            return;
+        }
+
+        if (null == flusher) {
+            try (PreparedStatement ps = connection.prepareStatement(String.format("UPDATE %s SET access_time = ? WHERE session_id = ?", table))) {
+                ps.setTimestamp(1, now);
+                ps.setString(2, sessionId);
+                updatedRowCount.addAndGet(ps.executeUpdate());
+                updateStatementCount.incrementAndGet();
+            }
+            return;
+        }
+
+        if (null != pending.computeIfAbsent(table, t -> new ConcurrentHashMap<>()).put(sessionId, now)) {
+            coalescedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget pending touches of a session, e.g. when the rows are deleted.
+     *
+     * @param sessionId session ID
+     */
+    public void discard(String sessionId) {
+        for (ConcurrentHashMap<String, Timestamp> touches : pending.values()) {
+            touches.remove(sessionId);
+        }
+    }
+
+    /**
+     * Write all pending touches. Touches that fail to be written are kept and retried on the next flush.
+     */
+    public void flush() {
+        if (pending.values().stream().allMatch(Map::isEmpty)) {
+            return;
+        }
+
+        try (Connection connection = ds.getConnection()) {
+            connection.setAutoCommit(true);
+            flush(connection);
+        } catch (SQLException e) {
+            failedFlushCount.incrementAndGet();
+            log.warn("Failed writing pending session access times", e);
+        } catch (RuntimeException e) {
+            failedFlushCount.incrementAndGet();
+            log.warn("Unexpected error writing pending session access times", e);
+        }
+    }
+
+    /**
+     * Write all pending touches using the given connection.
+     *
+     * @param connection connection in auto commit mode
+     * @throws SQLException on failure, remaining touches are kept
+     */
+    public void flush(Connection connection) throws SQLException {
+        for (Map.Entry<String, ConcurrentHashMap<String, Timestamp>> entry : pending.entrySet()) {
+            ConcurrentHashMap<String, Timestamp> touches = entry.getValue();
+            List<Map.Entry<String, Timestamp>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+
+            for (Map.Entry<String, Timestamp> touch : touches.entrySet()) {
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(touch.getKey(), touch.getValue()));
+                if (batch.size() == MAX_BATCH_SIZE) {
+                    flushBatch(connection, entry.getKey(), touches, batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                flushBatch(connection, entry.getKey(), touches, batch);
+            }
+        }
+    }
+
+    private void flushBatch(Connection connection, String table, ConcurrentHashMap<String, Timestamp> touches, List<Map.Entry<String, Timestamp>> batch) throws SQLException {
+        // All rows in the batch get the latest access time, which is at most one flush interval later than the actual
+        Timestamp accessTime = batch.get(0).getValue();
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET access_time = ? WHERE session_id IN (");
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+            if (batch.get(i).getValue().after(accessTime)) {
+                accessTime = batch.get(i).getValue();
+            }
+        }
+        sql.append(')');
+
+        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+            ps.setTimestamp(1, accessTime);
+            for (int i = 0; i < batch.size(); i++) {
+                ps.setString(i + 2, batch.get(i).getKey());
+            }
+            updatedRowCount.addAndGet(ps.executeUpdate());
+            updateStatementCount.incrementAndGet();
+        }
+
+        // Keep touches recorded while flushing, they are written on the next flush
+        for (Map.Entry<String, Timestamp> touch : batch) {
+            touches.remove(touch.getKey(), touch.getValue());
+        }
+    }
+
+    /**
+     * Stop the flusher and write pending touches.
+     */
+    @Override
+    public void close() {
+        if (null != flusher) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(flushIntervalMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Maximum time the stored access time of a row may lag its last read, as touches are skipped within the
+     * granularity and written once per flush interval, also by other instances sharing the database.
+     *
+     * @return granularity plus flush interval in milliseconds
+     */
+    public long getMaxLagMillis() {
+        return granularityMillis + Math.max(0, flushIntervalMillis);
+    }
+
+    /**
+     * @return number of touches waiting to be written
+     */
+    public int getPendingCount() {
+        return pending.values().stream().mapToInt(Map::size).sum();
+    }
+
+    /**
+     * @return number of reads that touched a session row
+     */
+    public long getTouchCount() {
+        return touchCount.get();
+    }
+
+    /**
+     * @return number of touches skipped, because the stored access time was fresher than the granularity
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * @return number of touches merged with a touch of the same row waiting to be written
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return number of rows updated by touches
+     */
+    public long getUpdatedRowCount() {
+        return updatedRowCount.get();
+    }
+
+    /**
+     * @return number of UPDATE statements executed for touches
+     */
+    public long getUpdateStatementCount() {
+        return updateStatementCount.get();
+    }
+
+    /**
+     * @return number of flushes that failed and will be retried
+     */
+    public long getFailedFlushCount() {
+        return failedFlushCount.get();
+    }
+
+    /**
+     * Write amplification of reads, i.e. UPDATE statements per touch. Without aggregation this is 1.0.
+     *
+     * @return UPDATE statements per touch, 0.0 if nothing has been touched
+     */
+    public double getWriteAmplification() {
+        long touches = touchCount.get();
+        return touches == 0 ? 0.0 : (double) updateStatementCount.get() / touches;
+    }
+}
@@ -0,0 +1,104 @@
+package dk.gov.oio.saml.session.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * SQL dialects used by the database session handler to replace a row in a single statement.
+ * <p>
+ * Databases without a supported upsert statement (or where binding LOBs in the upsert is unreliable, e.g. Oracle)
+ * use {@link #GENERIC}, which deletes and inserts the row in the same transaction.
+ * </p>
+ */
+public enum DatabaseDialect {
+    /** Standard MERGE with a typed VALUES table, e.g. HSQLDB, H2 and DB2 */
+    MERGE,
+    /** MERGE terminated by semicolon, Microsoft SQL Server */
+    SQL_SERVER,
+    /** INSERT ... ON CONFLICT DO UPDATE, PostgreSQL */
+    POSTGRESQL,
+    /** INSERT ... ON DUPLICATE KEY UPDATE, MySQL and MariaDB */
+    MYSQL,
+    /** DELETE followed by INSERT */
+    GENERIC;
+
+    private static final String[] COLUMNS = {"session_id", "session_index", "assertion_id", "subject_name_id", "access_time", "xml_object", "assertion_state"};
+    private static final String[] TYPES = {"VARCHAR(255)", "VARCHAR(255)", "VARCHAR(255)", "VARCHAR(255)", "TIMESTAMP", "CLOB", "BLOB"};
+
+    /**
+     * Detect dialect from the database product name.
+     *
+     * @param connection database connection
+     * @return dialect, {@link #GENERIC} if the database is unknown
+     * @throws SQLException on failure to read database metadata
+     */
+    public static DatabaseDialect detect(Connection connection) throws SQLException {
+        String product = String.valueOf(connection.getMetaData().getDatabaseProductName()).toLowerCase(Locale.ROOT);
+
+        if (product.contains("hsql") || product.equals("h2") || product.startsWith("db2")) {
+            return MERGE;
+        }
+        if (product.contains("microsoft sql server")) {
+            return SQL_SERVER;
+        }
+        if (product.contains("postgresql")) {
+            return POSTGRESQL;
+        }
+        if (product.contains("mysql") || product.contains("mariadb")) {
+            return MYSQL;
+        }
+        return GENERIC;
+    }
+
+    /**
+     * Statement inserting or replacing a row in assertions_tbl keyed on session_id. Parameters are the columns in
+     * the order session_id, session_index, assertion_id, subject_name_id, access_time, xml_object (, assertion_state).
+     *
+     * @param withState include the assertion_state column
+     * @return upsert statement, null for {@link #GENERIC}
+     */
+    public String getAssertionUpsert(boolean withState) {
+        int count = withState ? COLUMNS.length : COLUMNS.length - 1;
+        StringBuilder columns = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        StringBuilder sourceColumns = new StringBuilder();
+        StringBuilder updates = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            String separator = i == 0 ? "" : ", ";
+            columns.append(separator).append(COLUMNS[i]);
+            parameters.append(separator).append(this == MERGE ? "CAST(? AS " + TYPES[i] + ")" : "?");
+            sourceColumns.append(separator).append("s.").append(COLUMNS[i]);
+            if (i > 0) {
+                updates.append(i == 1 ? "" : ", ").append(COLUMNS[i]).append(" = ");
+                switch (this) {
+                    case POSTGRESQL:
+                        updates.append("EXCLUDED.").append(COLUMNS[i]);
+                        break;
+                    case MYSQL:
+                        updates.append("VALUES(").append(COLUMNS[i]).append(')');
+                        break;
+                    default:
+                        updates.append("s.").append(COLUMNS[i]);
+                }
+            }
+        }
+
+        switch (this) {
+            case MERGE:
+            case SQL_SERVER:
+                return String.format("MERGE INTO assertions_tbl t USING (VALUES (%s)) AS s (%s) ON t.session_id = s.session_id" +
+                                " WHEN MATCHED THEN UPDATE SET %s WHEN NOT MATCHED THEN INSERT (%s) VALUES (%s)%s",
+                        parameters, columns, updates, columns, sourceColumns, this == SQL_SERVER ? ";" : "");
+            case POSTGRESQL:
+                return String.format("INSERT INTO assertions_tbl (%s) VALUES (%s) ON CONFLICT (session_id) DO UPDATE SET %s",
+                        columns, parameters, updates);
+            case MYSQL:
+                return String.format("INSERT INTO assertions_tbl (%s) VALUES (%s) ON DUPLICATE KEY UPDATE %s",
+                        columns, parameters, updates);
+            default:
+                return null;
+        }
+    }
+}
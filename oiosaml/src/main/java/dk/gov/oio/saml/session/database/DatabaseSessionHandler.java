@@ -29,6 +29,7 @@ import dk.gov.oio.saml.service.OIOSAML3Service;
 import dk.gov.oio.saml.session.AssertionWrapper;
 import dk.gov.oio.saml.session.AuthnRequestWrapper;
 import dk.gov.oio.saml.session.LogoutRequestWrapper;
+import dk.gov.oio.saml.session.RequestSessionState;
 import dk.gov.oio.saml.session.SessionHandler;
 import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.StringUtil;
@@ -50,12 +51,44 @@ import java.time.Clock;
  */
 public class DatabaseSessionHandler implements SessionHandler {
     private static final Logger log = LoggerFactory.getLogger(DatabaseSessionHandler.class);
+    private static final long ASSERTION_STATE_RECHECK_INTERVAL_MILLIS = 5 * 60 * 1000;
 
     private final DataSource ds;
+    private final AccessTimeTouchAggregator touchAggregator;
+    private volatile boolean assertionStateSupported;
+    private volatile boolean assertionStateMissingLogged;
+    private volatile long assertionStateRecheckMillis; // When a missing assertion_state column is checked again
+    private volatile DatabaseDialect dialect;
 
     public DatabaseSessionHandler(DataSource ds) {
+        this(ds, 0, 0);
+    }
+
+    /**
+     * @param ds data source
+     * @param touchGranularityMillis access time is not updated on read if it is younger than this
+     * @param touchFlushIntervalMillis interval between writing access times, zero or less updates on every read
+     */
+    public DatabaseSessionHandler(DataSource ds, long touchGranularityMillis, long touchFlushIntervalMillis) {
         log.debug("Created database session handler");
         this.ds = ds;
+        this.touchAggregator = new AccessTimeTouchAggregator(ds, touchGranularityMillis, touchFlushIntervalMillis);
+    }
+
+    /**
+     * Get the aggregator of access time updates, e.g. to report write amplification of reads.
+     *
+     * @return access time aggregator
+     */
+    public AccessTimeTouchAggregator getTouchAggregator() {
+        return touchAggregator;
+    }
+
+    /**
+     * Write pending access times and stop background writing.
+     */
+    public void close() {
+        touchAggregator.close();
     }
     /**
      * Set AuthnRequest on the current session
@@ -95,6 +128,9 @@ public class DatabaseSessionHandler implements SessionHandler {
             log.error("Failure to persist authn request", e);
             throw new InternalException("Failure to persist authn request", e);
         }
+        finally {
+            RequestSessionState.invalidate();
+        }
     }
 
     /**
@@ -117,51 +153,39 @@ public class DatabaseSessionHandler implements SessionHandler {
         try (Connection connection=ds.getConnection()){
             connection.setAutoCommit(true);
 
-            try(PreparedStatement ps = connection.prepareStatement("SELECT '1' FROM replay_tbl WHERE assertion_id = ?")) {
-                ps.setString(1, assertion.getID());
-                try(ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) {
-                        throw new IllegalArgumentException(String.format("Assertion with id '%s' and session index '%s' is already registered", assertion.getID(), assertion.getSessionIndex()));
-                    }
-                }
-            }
+            // Checked before the transaction, a failing statement aborts the transaction on some databases
+            boolean storeState = isAssertionStateSupported(connection);
+            DatabaseDialect sqlDialect = getDialect(connection);
 
-            AssertionWrapper existingAssertion = getAssertion(session);
-            if (null != existingAssertion) {
-                if (assertion.isReplayOf(existingAssertion)) {
-                    log.debug("Assertion '{}' is being replayed", assertion.getID(), existingAssertion.getID());
+            log.debug("Store Assertion '{}'", assertion.getID());
+            connection.setAutoCommit(false);
+            try {
+                boolean stored = storeAssertion(connection, sqlDialect, getSessionId(session),
+                        StringUtil.defaultIfEmpty(assertion.getSessionIndex(), assertion.getID()),
+                        assertion.getID(),
+                        assertion.getSubjectNameId(),
+                        assertion.getAssertionAsBase64(),
+                        storeState ? assertion.toCompactState() : null,
+                        storeState);
+                if (!stored) {
+                    log.debug("Assertion '{}' is being replayed", assertion.getID());
                     throw new IllegalArgumentException(String.format("Assertion with id '%s' and session index '%s' is already registered", assertion.getID(), assertion.getSessionIndex()));
                 }
-
-                log.debug("Assertion '{}' will replace '{}'", assertion.getID(), existingAssertion.getID());
-                try (PreparedStatement ps = connection.prepareStatement("DELETE FROM assertions_tbl WHERE session_id = ?")) {
-                    ps.setString(1, getSessionId(session));
-                    ps.executeUpdate();
-                }
-            }
-
-            log.debug("Store Assertion '{}'", assertion.getID());
-            try(PreparedStatement ps = connection.prepareStatement("INSERT INTO assertions_tbl (session_id, session_index, assertion_id, subject_name_id, access_time, xml_object) VALUES (?,?,?,?,?,?)")) {
-                ps.setString(1, getSessionId(session));
-                ps.setString(2, StringUtil.defaultIfEmpty(assertion.getSessionIndex(),assertion.getID()));
-                ps.setString(3, assertion.getID());
-                ps.setString(4, assertion.getSubjectNameId());
-                ps.setTimestamp(5, Timestamp.valueOf(java.time.LocalDateTime.now(Clock.systemDefaultZone())));
-                ps.setClob(6, new StringReader(assertion.getAssertionAsBase64()));
-                ps.executeUpdate();
-            }
-
-            log.debug("Add replay entry for assertion '{}'", assertion.getID());
-            try(PreparedStatement ps = connection.prepareStatement("INSERT INTO replay_tbl (assertion_id, access_time) VALUES (?,?)")) {
-                ps.setString(1, assertion.getID());
-                ps.setTimestamp(2, Timestamp.valueOf(java.time.LocalDateTime.now(Clock.systemDefaultZone())));
-                ps.executeUpdate();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
 
         } catch (SQLException e) {
             log.error("Failure to persist assertion", e);
             throw new InternalException("Failure to persist assertion", e);
         }
+        finally {
+            RequestSessionState.invalidate();
+        }
 
         return session;
     }
@@ -202,6 +226,9 @@ public class DatabaseSessionHandler implements SessionHandler {
             log.error("Failure to persist logout request", e);
             throw new InternalException("Failure to persist logout request", e);
         }
+        finally {
+            RequestSessionState.invalidate();
+        }
     }
 
     /**
@@ -212,7 +239,8 @@ public class DatabaseSessionHandler implements SessionHandler {
      */
     @Override
     public AssertionWrapper getAssertion(HttpSession session) {
-        return getAssertionFromSessionId(getSessionId(session));
+        String sessionId = getSessionId(session);
+        return RequestSessionState.load("assertion:" + sessionId, () -> getAssertionFromSessionId(sessionId));
     }
 
     /**
@@ -234,29 +262,32 @@ public class DatabaseSessionHandler implements SessionHandler {
      */
     @Override
     public AuthnRequestWrapper getAuthnRequest(HttpSession session) {
+        String sessionId = getSessionId(session);
+        return RequestSessionState.load("authnRequest:" + sessionId, () -> getAuthnRequestFromSessionId(sessionId));
+    }
+
+    private AuthnRequestWrapper getAuthnRequestFromSessionId(String sessionId) {
         try (Connection connection=ds.getConnection()){
             connection.setAutoCommit(true);
 
             AuthnRequestWrapper authnRequestWrapper = null;
+            Timestamp accessTime = null;
 
-            try(PreparedStatement ps = connection.prepareStatement("SELECT xml_object, nsis_level, request_path FROM authn_requests_tbl WHERE session_id = ?")) {
-                ps.setString(1, getSessionId(session));
+            try(PreparedStatement ps = connection.prepareStatement("SELECT xml_object, nsis_level, request_path, access_time FROM authn_requests_tbl WHERE session_id = ?")) {
+                ps.setString(1, sessionId);
                 try(ResultSet rs = ps.executeQuery()) {
                     if (rs.next()) {
                         authnRequestWrapper = new AuthnRequestWrapper(
                                 (AuthnRequest) StringUtil.base64ToXMLObject(rs.getString(1)),
                                 NSISLevel.valueOf(rs.getString(2)),
                                 rs.getString(3));
+                        accessTime = rs.getTimestamp(4);
                     }
                 }
             }
 
             if (null != authnRequestWrapper) {
-                try(PreparedStatement ps = connection.prepareStatement("UPDATE authn_requests_tbl SET access_time = ? WHERE session_id = ?")) {
-                    ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime.now(Clock.systemDefaultZone())));
-                    ps.setString(2, getSessionId(session));
-                    ps.executeUpdate();
-                }
+                touchAggregator.touch(connection, "authn_requests_tbl", sessionId, accessTime);
             }
 
             return authnRequestWrapper;
@@ -275,26 +306,29 @@ public class DatabaseSessionHandler implements SessionHandler {
      */
     @Override
     public LogoutRequestWrapper getLogoutRequest(HttpSession session) {
+        String sessionId = getSessionId(session);
+        return RequestSessionState.load("logoutRequest:" + sessionId, () -> getLogoutRequestFromSessionId(sessionId));
+    }
+
+    private LogoutRequestWrapper getLogoutRequestFromSessionId(String sessionId) {
         try (Connection connection=ds.getConnection()){
             connection.setAutoCommit(true);
 
             LogoutRequestWrapper logoutRequestWrapper = null;
+            Timestamp accessTime = null;
 
-            try(PreparedStatement ps = connection.prepareStatement("SELECT xml_object FROM logout_requests_tbl WHERE session_id = ?")) {
-                ps.setString(1, getSessionId(session));
+            try(PreparedStatement ps = connection.prepareStatement("SELECT xml_object, access_time FROM logout_requests_tbl WHERE session_id = ?")) {
+                ps.setString(1, sessionId);
                 try(ResultSet rs = ps.executeQuery()) {
                     if (rs.next()) {
                         logoutRequestWrapper = new LogoutRequestWrapper((LogoutRequest) StringUtil.base64ToXMLObject(rs.getString(1)));
+                        accessTime = rs.getTimestamp(2);
                     }
                 }
             }
 
             if (null != logoutRequestWrapper) {
-                try (PreparedStatement ps = connection.prepareStatement("UPDATE logout_requests_tbl SET access_time = ? WHERE session_id = ?")) {
-                    ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime.now(Clock.systemDefaultZone())));
-                    ps.setString(2, getSessionId(session));
-                    ps.executeUpdate();
-                }
+                touchAggregator.touch(connection, "logout_requests_tbl", sessionId, accessTime);
             }
 
             return logoutRequestWrapper;
@@ -358,15 +392,30 @@ public class DatabaseSessionHandler implements SessionHandler {
      */
     @Override
     public void cleanup(final long maxInactiveIntervalSeconds) {
+        RequestSessionState.invalidate();
+
         try (Connection connection=ds.getConnection()){
             connection.setAutoCommit(true);
 
+            // Write pending access times, so sessions read since the last flush are not deleted
+            touchAggregator.flush(connection);
+
+            // Pick up a schema migrated while running without waiting for the recheck interval
+            if (!assertionStateSupported) {
+                assertionStateRecheckMillis = 0;
+                isAssertionStateSupported(connection);
+            }
+
             final long replayCleanupDelay = (long) 24 * 60 * 60; /* Save replay for a day */
 
+            // Stored access times may lag the actual access, so sessions are only deleted when inactive beyond the lag
+            final Timestamp sessionExpiry = Timestamp.valueOf(java.time.LocalDateTime
+                    .now(Clock.systemDefaultZone())
+                    .minusSeconds(maxInactiveIntervalSeconds)
+                    .minusNanos(touchAggregator.getMaxLagMillis() * 1_000_000L));
+
             try(PreparedStatement ps = connection.prepareStatement("SELECT session_id, assertion_id, subject_name_id FROM assertions_tbl WHERE access_time < ?")) {
-                ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime
-                        .now(Clock.systemDefaultZone())
-                        .minusSeconds(maxInactiveIntervalSeconds)));
+                ps.setTimestamp(1, sessionExpiry);
                 try(ResultSet rs = ps.executeQuery()) {
                     while(rs.next()) {
                         OIOSAML3Service.getAuditService().auditLog(new AuditService
@@ -381,23 +430,17 @@ public class DatabaseSessionHandler implements SessionHandler {
             }
 
             try(PreparedStatement ps = connection.prepareStatement("DELETE FROM assertions_tbl WHERE access_time < ?")) {
-                ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime
-                        .now(Clock.systemDefaultZone())
-                        .minusSeconds(maxInactiveIntervalSeconds)));
+                ps.setTimestamp(1, sessionExpiry);
                 ps.executeUpdate();
             }
 
             try(PreparedStatement ps = connection.prepareStatement("DELETE FROM authn_requests_tbl WHERE access_time < ?")) {
-                ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime
-                        .now(Clock.systemDefaultZone())
-                        .minusSeconds(maxInactiveIntervalSeconds)));
+                ps.setTimestamp(1, sessionExpiry);
                 ps.executeUpdate();
             }
 
             try(PreparedStatement ps = connection.prepareStatement("DELETE FROM logout_requests_tbl WHERE access_time < ?")) {
-                ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime
-                        .now(Clock.systemDefaultZone())
-                        .minusSeconds(maxInactiveIntervalSeconds)));
+                ps.setTimestamp(1, sessionExpiry);
                 ps.executeUpdate();
             }
 
@@ -414,6 +457,7 @@ public class DatabaseSessionHandler implements SessionHandler {
     }
 
     private void logout(String sessionId) {
+        RequestSessionState.invalidate();
         log.debug("Invalidate OIOSAML session '{}'", sessionId);
         try (Connection connection=ds.getConnection()) {
             connection.setAutoCommit(true);
@@ -426,6 +470,7 @@ public class DatabaseSessionHandler implements SessionHandler {
                 ps.setString(1, sessionId);
                 ps.executeUpdate();
             }
+            touchAggregator.discard(sessionId);
 
         } catch (SQLException e) {
             log.warn("Unable to remove OIOSAML session '{}'", sessionId, e);
@@ -436,23 +481,42 @@ public class DatabaseSessionHandler implements SessionHandler {
         try (Connection connection=ds.getConnection()){
             connection.setAutoCommit(true);
 
+            boolean stateSupported = isAssertionStateSupported(connection);
             AssertionWrapper assertionWrapper = null;
+            boolean missingState = false;
+            Timestamp accessTime = null;
 
-            try(PreparedStatement ps = connection.prepareStatement("SELECT xml_object FROM assertions_tbl WHERE session_id = ?")) {
+            try(PreparedStatement ps = connection.prepareStatement(stateSupported ?
+                    "SELECT xml_object, access_time, assertion_state FROM assertions_tbl WHERE session_id = ?" :
+                    "SELECT xml_object, access_time FROM assertions_tbl WHERE session_id = ?")) {
                 ps.setString(1, sessionId);
                 try(ResultSet rs = ps.executeQuery()) {
                     if (rs.next()) {
-                        assertionWrapper = new AssertionWrapper(
-                                (Assertion) StringUtil.base64ToXMLObject(rs.getString(1)));
+                        byte[] state = stateSupported ? readBytes(rs, 3) : null;
+                        if (null != state) {
+                            // Restore extracted values, the XML is only parsed if it is requested
+                            assertionWrapper = AssertionWrapper.fromCompactState(state, rs.getString(1));
+                        } else {
+                            assertionWrapper = new AssertionWrapper(
+                                    (Assertion) StringUtil.base64ToXMLObject(rs.getString(1)));
+                            missingState = stateSupported;
+                        }
+                        accessTime = rs.getTimestamp(2);
                     }
                 }
             }
 
             if (null != assertionWrapper) {
-                try(PreparedStatement ps = connection.prepareStatement("UPDATE assertions_tbl SET access_time = ? WHERE session_id = ?")) {
-                    ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime.now(Clock.systemDefaultZone())));
-                    ps.setString(2, sessionId);
-                    ps.executeUpdate();
+                if (missingState) {
+                    // Row stored before the assertion_state column was added, store the extracted state now
+                    try(PreparedStatement ps = connection.prepareStatement("UPDATE assertions_tbl SET access_time = ?, assertion_state = ? WHERE session_id = ?")) {
+                        ps.setTimestamp(1, Timestamp.valueOf(java.time.LocalDateTime.now(Clock.systemDefaultZone())));
+                        ps.setBytes(2, assertionWrapper.toCompactState());
+                        ps.setString(3, sessionId);
+                        ps.executeUpdate();
+                    }
+                } else {
+                    touchAggregator.touch(connection, "assertions_tbl", sessionId, accessTime);
                 }
             }
 
@@ -463,4 +527,111 @@ public class DatabaseSessionHandler implements SessionHandler {
             throw new RuntimeException("Failed retrieving assertion matching sessionId", e);
         }
     }
+
+    /**
+     * Register the assertion ID in replay_tbl and insert or replace the assertion of the session, using the
+     * connection's current transaction. The replay entry is inserted first, so a replayed assertion fails on the
+     * replay_assertion_id_pk constraint before anything else is written, also when two instances race.
+     *
+     * @return false if the assertion ID is already registered, the transaction must then be rolled back
+     * @throws SQLException on failure to store the assertion
+     */
+    static boolean storeAssertion(Connection connection, DatabaseDialect dialect, String sessionId, String sessionIndex,
+                               String assertionId, String subjectNameId, String xmlObject, byte[] state, boolean storeState) throws SQLException {
+        Timestamp now = Timestamp.valueOf(java.time.LocalDateTime.now(Clock.systemDefaultZone()));
+
+        try(PreparedStatement ps = connection.prepareStatement("INSERT INTO replay_tbl (assertion_id, access_time) VALUES (?,?)")) {
+            ps.setString(1, assertionId);
+            ps.setTimestamp(2, now);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            if (isConstraintViolation(e)) {
+                return false;
+            }
+            throw e;
+        }
+
+        String upsert = dialect.getAssertionUpsert(storeState);
+        if (null == upsert) {
+            try (PreparedStatement ps = connection.prepareStatement("DELETE FROM assertions_tbl WHERE session_id = ?")) {
+                ps.setString(1, sessionId);
+                ps.executeUpdate();
+            }
+        }
+
+        try(PreparedStatement ps = connection.prepareStatement(null != upsert ? upsert : storeState ?
+                "INSERT INTO assertions_tbl (session_id, session_index, assertion_id, subject_name_id, access_time, xml_object, assertion_state) VALUES (?,?,?,?,?,?,?)" :
+                "INSERT INTO assertions_tbl (session_id, session_index, assertion_id, subject_name_id, access_time, xml_object) VALUES (?,?,?,?,?,?)")) {
+            ps.setString(1, sessionId);
+            ps.setString(2, sessionIndex);
+            ps.setString(3, assertionId);
+            ps.setString(4, subjectNameId);
+            ps.setTimestamp(5, now);
+            ps.setClob(6, new StringReader(xmlObject));
+            if (storeState) {
+                ps.setBytes(7, state);
+            }
+            ps.executeUpdate();
+        }
+        return true;
+    }
+
+    private static boolean isConstraintViolation(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException
+                || (null != e.getSQLState() && e.getSQLState().startsWith("23"));
+    }
+
+    private DatabaseDialect getDialect(Connection connection) throws SQLException {
+        DatabaseDialect current = dialect;
+        if (null == current) {
+            current = DatabaseDialect.detect(connection);
+            log.debug("Using SQL dialect '{}' for session storage", current);
+            dialect = current;
+        }
+        return current;
+    }
+
+    /**
+     * Check if assertions_tbl has the assertion_state column (see database_session_handler_migration.sql),
+     * tables created before the column was introduced are still supported, but parse the XML on every request.
+     * A missing column is checked again on each cleanup and after a fixed interval, so a schema migrated while
+     * running, or a check that failed for another reason, is picked up without probing on every request.
+     */
+    private boolean isAssertionStateSupported(Connection connection) {
+        if (assertionStateSupported) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now < assertionStateRecheckMillis) {
+            return false;
+        }
+
+        try (PreparedStatement ps = connection.prepareStatement("SELECT assertion_state FROM assertions_tbl WHERE 1 = 0");
+             ResultSet rs = ps.executeQuery()) {
+            if (assertionStateMissingLogged) {
+                log.info("Column 'assertion_state' found in assertions_tbl, assertion state is stored");
+            }
+            assertionStateSupported = true;
+            return true;
+        } catch (SQLException e) {
+            assertionStateRecheckMillis = now + ASSERTION_STATE_RECHECK_INTERVAL_MILLIS;
+            if (!assertionStateMissingLogged) {
+                log.warn("Column 'assertion_state' is missing from assertions_tbl, assertions are parsed on every request until the schema is migrated", e);
+                assertionStateMissingLogged = true;
+            }
+            return false;
+        }
+    }
+
+    private static byte[] readBytes(ResultSet rs, int columnIndex) throws SQLException {
+        Blob blob = rs.getBlob(columnIndex);
+        if (null == blob) {
+            return null;
+        }
+        try {
+            return blob.getBytes(1, (int) blob.length());
+        } finally {
+            blob.free();
+        }
+    }
 }
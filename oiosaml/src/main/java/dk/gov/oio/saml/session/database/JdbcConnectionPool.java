@@ -0,0 +1,517 @@
+package dk.gov.oio.saml.session.database;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded JDBC connection pool used by the {@link JdbcSessionHandlerFactory}.
+ * <p>
+ * Physical connections are created through a {@link ConnectionFactory}, validated when borrowed and
+ * evicted when they have been idle longer than the configured idle timeout (never going below the
+ * minimum size). Callers waiting longer than max wait for a connection get a {@link SQLTransientConnectionException}.
+ * </p>
+ */
+public class JdbcConnectionPool implements DataSource, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(JdbcConnectionPool.class);
+
+    /**
+     * Creates physical connections for the pool
+     */
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    private final ConnectionFactory connectionFactory;
+    private final int minSize;
+    private final int maxSize;
+    private final long maxWaitMillis;
+    private final long idleTimeoutMillis;
+    private final int validationTimeoutSeconds;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private int total;
+    private int active;
+    private int waiting;
+    private boolean closed;
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong destroyedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    private final ScheduledExecutorService evictor;
+
+    public JdbcConnectionPool(ConnectionFactory connectionFactory, int minSize, int maxSize, long maxWaitMillis, long idleTimeoutMillis, int validationTimeoutSeconds) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(String.format("Pool max size must be positive, was '%d'", maxSize));
+        }
+        if (minSize < 0 || minSize > maxSize) {
+            throw new IllegalArgumentException(String.format("Pool min size must be between 0 and '%d', was '%d'", maxSize, minSize));
+        }
+        this.connectionFactory = connectionFactory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = Math.max(0, maxWaitMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validationTimeoutSeconds = Math.max(0, validationTimeoutSeconds);
+
+        fillToMinimum();
+
+        if (idleTimeoutMillis > 0) {
+            long evictionIntervalMillis = Math.max(1000L, idleTimeoutMillis / 2);
+            evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "oiosaml-jdbc-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            evictor.scheduleWithFixedDelay(this::evict, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+        log.debug("Created JDBC connection pool (min={}, max={}, maxWait={}ms, idleTimeout={}ms)", minSize, maxSize, maxWaitMillis, idleTimeoutMillis);
+    }
+
+    /**
+     * Borrow a connection from the pool, closing the returned connection hands it back to the pool.
+     *
+     * @return pooled connection
+     * @throws SQLTransientConnectionException if no connection became available within max wait
+     * @throws SQLException on failure to create a physical connection
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        while (true) {
+            PooledConnection candidate = null;
+
+            lock.lock();
+            try {
+                ensureOpen();
+                while (idle.isEmpty() && total >= maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeoutCount.incrementAndGet();
+                        throw new SQLTransientConnectionException(String.format(
+                                "Timed out after %d ms waiting for a pooled connection (active=%d, idle=%d, waiting=%d, max=%d)",
+                                maxWaitMillis, active, idle.size(), waiting, maxSize));
+                    }
+                    waiting++;
+                    try {
+                        available.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a pooled connection", e);
+                    } finally {
+                        waiting--;
+                    }
+                    ensureOpen();
+                }
+
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollFirst();
+                } else {
+                    total++;
+                }
+                active++;
+            } finally {
+                lock.unlock();
+            }
+
+            if (null == candidate) {
+                try {
+                    return proxy(new PooledConnection(createPhysical()));
+                } catch (SQLException | RuntimeException e) {
+                    releaseSlot(true);
+                    throw e;
+                }
+            }
+
+            if (isValid(candidate)) {
+                return proxy(candidate);
+            }
+
+            log.debug("Discarding invalid pooled connection");
+            destroy(candidate);
+            releaseSlot(true);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections are created with the configured credentials");
+    }
+
+    /**
+     * Close the pool and all idle connections, borrowed connections are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        List<PooledConnection> toClose;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (null != evictor) {
+            evictor.shutdownNow();
+        }
+        toClose.forEach(this::destroy);
+        log.debug("Closed JDBC connection pool");
+    }
+
+    /**
+     * @return number of connections currently borrowed from the pool
+     */
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of open connections currently idle in the pool
+     */
+    public int getIdleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of threads currently waiting for a connection
+     */
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of physical connections currently open, or being opened, by the pool
+     */
+    public int getTotalCount() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of physical connections created since the pool was started
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return number of physical connections closed since the pool was started
+     */
+    public long getDestroyedCount() {
+        return destroyedCount.get();
+    }
+
+    /**
+     * @return number of borrow attempts that timed out waiting for a connection
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Unsupported method");
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Unsupported method");
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(String.format("Pool does not wrap '%s'", iface.getName()));
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("Unsupported method");
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("JdbcConnectionPool{active=%d, idle=%d, waiting=%d, total=%d, max=%d}", active, idle.size(), waiting, total, maxSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void ensureOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("JDBC connection pool is closed");
+        }
+    }
+
+    private Connection createPhysical() throws SQLException {
+        Connection connection = connectionFactory.create();
+        createdCount.incrementAndGet();
+        return connection;
+    }
+
+    private boolean isValid(PooledConnection pooledConnection) {
+        try {
+            return !pooledConnection.physical.isClosed() && pooledConnection.physical.isValid(validationTimeoutSeconds);
+        } catch (SQLException | AbstractMethodError e) {
+            log.debug("Pooled connection failed validation", e);
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooledConnection) {
+        boolean reusable = true;
+        try {
+            if (pooledConnection.physical.isClosed()) {
+                reusable = false;
+            } else if (!pooledConnection.physical.getAutoCommit()) {
+                pooledConnection.physical.rollback();
+                pooledConnection.physical.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.debug("Unable to reset pooled connection, discarding it", e);
+            reusable = false;
+        }
+
+        lock.lock();
+        try {
+            active--;
+            if (reusable && !closed) {
+                pooledConnection.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pooledConnection);
+                available.signal();
+                return;
+            }
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        destroy(pooledConnection);
+    }
+
+    private void releaseSlot(boolean wasActive) {
+        lock.lock();
+        try {
+            total--;
+            if (wasActive) {
+                active--;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void destroy(PooledConnection pooledConnection) {
+        try {
+            pooledConnection.physical.close();
+        } catch (SQLException e) {
+            log.debug("Failed closing pooled connection", e);
+        } finally {
+            destroyedCount.incrementAndGet();
+        }
+    }
+
+    private void evict() {
+        try {
+            List<PooledConnection> expired = new ArrayList<>();
+            long oldestAllowed = System.currentTimeMillis() - idleTimeoutMillis;
+
+            lock.lock();
+            try {
+                // Idle connections are kept most recently used first, so walk from the oldest end
+                Iterator<PooledConnection> iterator = idle.descendingIterator();
+                while (iterator.hasNext() && total > minSize) {
+                    PooledConnection pooledConnection = iterator.next();
+                    if (pooledConnection.lastUsed >= oldestAllowed) {
+                        break;
+                    }
+                    iterator.remove();
+                    total--;
+                    expired.add(pooledConnection);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            if (!expired.isEmpty()) {
+                log.debug("Evicting {} idle connections", expired.size());
+                expired.forEach(this::destroy);
+            }
+
+            fillToMinimum();
+            log.debug("Pool statistics: {}", this);
+        } catch (RuntimeException e) {
+            log.warn("Failed evicting idle connections", e);
+        }
+    }
+
+    private void fillToMinimum() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || total >= minSize) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+
+            PooledConnection pooledConnection;
+            try {
+                pooledConnection = new PooledConnection(createPhysical());
+            } catch (SQLException | RuntimeException e) {
+                log.warn("Unable to open connection for the minimum pool size: {}", e.getMessage());
+                releaseSlot(false);
+                return;
+            }
+
+            lock.lock();
+            try {
+                if (!closed) {
+                    idle.addLast(pooledConnection);
+                    available.signal();
+                    continue;
+                }
+                total--;
+            } finally {
+                lock.unlock();
+            }
+            destroy(pooledConnection);
+            return;
+        }
+    }
+
+    private Connection proxy(PooledConnection pooledConnection) {
+        return (Connection) Proxy.newProxyInstance(
+                JdbcConnectionPool.class.getClassLoader(),
+                new Class<?>[]{Connection.class},
+                new PooledConnectionHandler(pooledConnection));
+    }
+
+    private static class PooledConnection {
+        private final Connection physical;
+        private volatile long lastUsed;
+
+        private PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Hands the physical connection back to the pool on close, instead of closing it.
+     */
+    private class PooledConnectionHandler implements InvocationHandler {
+        private final PooledConnection pooledConnection;
+        // Closed from any thread, only the first close hands the connection back
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        private PooledConnectionHandler(PooledConnection pooledConnection) {
+            this.pooledConnection = pooledConnection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (returned.compareAndSet(false, true)) {
+                        release(pooledConnection);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned.get() || pooledConnection.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "PooledConnection{" + pooledConnection.physical + "}";
+                default:
+                    if (returned.get()) {
+                        throw new SQLException("Connection has been returned to the pool");
+                    }
+            }
+
+            try {
+                return method.invoke(pooledConnection.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
@@ -9,12 +9,7 @@ import org.opensaml.core.config.InitializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.sql.DataSource;
-import java.io.PrintWriter;
-import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.sql.SQLFeatureNotSupportedException;
 
 /**
  * Factory for creating database session handler, created by the JDBC configuration defined in oiosaml.proeprties
@@ -23,7 +18,8 @@ public class JdbcSessionHandlerFactory implements SessionHandlerFactory {
 
     private static final Logger log = LoggerFactory.getLogger(JdbcSessionHandlerFactory.class);
 
-    private SessionHandler handler;
+    private DatabaseSessionHandler handler;
+    private JdbcConnectionPool pool;
 
     public JdbcSessionHandlerFactory() {
     }
@@ -49,7 +45,23 @@ public class JdbcSessionHandlerFactory implements SessionHandlerFactory {
     @Override
     public void close() {
         log.debug("Closing factory with handler '{}'",handler);
+        if (null != handler) {
+            handler.close();
+        }
         handler = null;
+        if (null != pool) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * Get the connection pool used by the session handler, e.g. to report active, idle and waiting connections.
+     *
+     * @return connection pool, null if the factory is not configured
+     */
+    public JdbcConnectionPool getConnectionPool() {
+        return pool;
     }
 
     /**
@@ -70,53 +82,28 @@ public class JdbcSessionHandlerFactory implements SessionHandlerFactory {
             throw new InitializationException(String.format("Unable to load driver '%s'", driver), e);
         }
 
-        this.handler = new DatabaseSessionHandler(new DataSource() {
-            @Override
-            public Connection getConnection() throws SQLException {
-                return StringUtil.isNotEmpty(username)?
-                        DriverManager.getConnection(url, username, password) :
-                        DriverManager.getConnection(url);
-            }
+        JdbcConnectionPool.ConnectionFactory connectionFactory = () -> StringUtil.isNotEmpty(username) ?
+                DriverManager.getConnection(url, username, password) :
+                DriverManager.getConnection(url);
 
-            @Override
-            public Connection getConnection(String usernameInput, String passwordInput) throws SQLException {
-                throw new UnsupportedOperationException("Unsupported method");
-            }
-
-            @Override
-            public PrintWriter getLogWriter() throws SQLException {
-                throw new UnsupportedOperationException("Unsupported method");
-            }
-
-            @Override
-            public void setLogWriter(PrintWriter out) throws SQLException {
-                throw new UnsupportedOperationException("Unsupported method");
-            }
-
-            @Override
-            public void setLoginTimeout(int seconds) throws SQLException {
-                throw new UnsupportedOperationException("Unsupported method");
-            }
-
-            @Override
-            public int getLoginTimeout() throws SQLException {
-                throw new UnsupportedOperationException("Unsupported method");
-            }
-
-            @Override
-            public <T> T unwrap(Class<T> iface) throws SQLException {
-                throw new UnsupportedOperationException("Unsupported method");
-            }
+        JdbcConnectionPool connectionPool;
+        try {
+            connectionPool = new JdbcConnectionPool(connectionFactory,
+                    config.getSessionHandlerJdbcPoolMinSize(),
+                    config.getSessionHandlerJdbcPoolMaxSize(),
+                    config.getSessionHandlerJdbcPoolMaxWaitMillis(),
+                    config.getSessionHandlerJdbcPoolIdleTimeoutSeconds() * 1000L,
+                    config.getSessionHandlerJdbcPoolValidationTimeoutSeconds());
+        } catch (IllegalArgumentException e) {
+            throw new InitializationException(String.format("Invalid JDBC connection pool configuration: %s", e.getMessage()), e);
+        }
 
-            @Override
-            public boolean isWrapperFor(Class<?> iface) throws SQLException {
-                throw new UnsupportedOperationException("Unsupported method");
-            }
+        // Reconfigured, release the connections and flush the access times of the previous handler
+        close();
 
-            @Override
-            public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
-                return null;
-            }
-        });
+        this.pool = connectionPool;
+        this.handler = new DatabaseSessionHandler(pool,
+                config.getSessionHandlerDatabaseTouchGranularitySeconds() * 1000L,
+                config.getSessionHandlerDatabaseTouchFlushIntervalSeconds() * 1000L);
     }
 }
@@ -18,7 +18,7 @@ import javax.sql.DataSource;
 public class JdniSessionHandlerFactory implements SessionHandlerFactory {
     private static final Logger log = LoggerFactory.getLogger(JdniSessionHandlerFactory.class);
 
-    private SessionHandler handler;
+    private DatabaseSessionHandler handler;
 
     public JdniSessionHandlerFactory() {
     }
@@ -44,6 +44,9 @@ public class JdniSessionHandlerFactory implements SessionHandlerFactory {
     @Override
     public void close() {
         log.debug("Closing factory with handler '{}'",handler);
+        if (null != handler) {
+            handler.close();
+        }
         handler = null;
     }
 
@@ -58,7 +61,9 @@ public class JdniSessionHandlerFactory implements SessionHandlerFactory {
             InitialContext ctx = new InitialContext();
             DataSource ds = (DataSource) ctx.lookup(config.getSessionHandlerJndiName());
 
-            this.handler = new DatabaseSessionHandler(ds);
+            this.handler = new DatabaseSessionHandler(ds,
+                    config.getSessionHandlerDatabaseTouchGranularitySeconds() * 1000L,
+                    config.getSessionHandlerDatabaseTouchFlushIntervalSeconds() * 1000L);
         } catch (NamingException e) {
             throw new InitializationException("Unable to create JNDI database session handler", e);
         }
@@ -0,0 +1,130 @@
+package dk.gov.oio.saml.session.inmemory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Index of {@link TimeOutWrapper} by access time, grouped in buckets of fixed width.
+ * <p>
+ * {@link TimeOutWrapper#setAccesstime()} moves the wrapper to a new bucket only when the access time crosses a
+ * bucket boundary, and finding expired wrappers only visits buckets that are old enough to contain them.
+ * </p>
+ */
+class ExpiryIndex {
+    private final long bucketMillis;
+    private final TreeMap<Long, Set<TimeOutWrapper<?>>> buckets = new TreeMap<>();
+    private int size;
+
+    ExpiryIndex(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    synchronized void schedule(String key, TimeOutWrapper<?> wrapper) {
+        wrapper.key = key;
+        wrapper.index = this;
+        wrapper.bucket = wrapper.getAccesstime() / bucketMillis;
+        buckets.computeIfAbsent(wrapper.bucket, b -> new LinkedHashSet<>()).add(wrapper);
+        size++;
+    }
+
+    void reschedule(TimeOutWrapper<?> wrapper) {
+        if (wrapper.getAccesstime() / bucketMillis == wrapper.bucket) {
+            return;
+        }
+        synchronized (this) {
+            if (wrapper.index != this) {
+                return;
+            }
+            removeFromBucket(wrapper);
+            wrapper.bucket = wrapper.getAccesstime() / bucketMillis;
+            buckets.computeIfAbsent(wrapper.bucket, b -> new LinkedHashSet<>()).add(wrapper);
+        }
+    }
+
+    synchronized void unschedule(TimeOutWrapper<?> wrapper) {
+        if (wrapper.index != this) {
+            return;
+        }
+        removeFromBucket(wrapper);
+        wrapper.index = null;
+        size--;
+    }
+
+    /**
+     * Remove and return wrappers that have not been accessed within the delay.
+     *
+     * @param delay milliseconds since last access
+     * @return expired wrappers
+     */
+    synchronized List<TimeOutWrapper<?>> pollExpired(long delay) {
+        List<TimeOutWrapper<?>> expired = new ArrayList<>();
+        long lastBucket = Math.floorDiv(System.currentTimeMillis() - delay, bucketMillis);
+
+        Iterator<Map.Entry<Long, Set<TimeOutWrapper<?>>>> bucketIterator = buckets.headMap(lastBucket, true).entrySet().iterator();
+        while (bucketIterator.hasNext()) {
+            Set<TimeOutWrapper<?>> bucket = bucketIterator.next().getValue();
+            Iterator<TimeOutWrapper<?>> iterator = bucket.iterator();
+            while (iterator.hasNext()) {
+                TimeOutWrapper<?> wrapper = iterator.next();
+                // Only the last bucket can contain wrappers that are not yet expired
+                if (wrapper.isExpired(delay)) {
+                    iterator.remove();
+                    wrapper.index = null;
+                    size--;
+                    expired.add(wrapper);
+                }
+            }
+            if (bucket.isEmpty()) {
+                bucketIterator.remove();
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Remove and return a least recently accessed wrapper.
+     *
+     * @return wrapper from the oldest bucket, null if the index is empty
+     */
+    synchronized TimeOutWrapper<?> pollOldest() {
+        Map.Entry<Long, Set<TimeOutWrapper<?>>> oldest = buckets.firstEntry();
+        if (null == oldest) {
+            return null;
+        }
+        Iterator<TimeOutWrapper<?>> iterator = oldest.getValue().iterator();
+        TimeOutWrapper<?> wrapper = iterator.next();
+        iterator.remove();
+        if (oldest.getValue().isEmpty()) {
+            buckets.remove(oldest.getKey());
+        }
+        wrapper.index = null;
+        size--;
+        return wrapper;
+    }
+
+    /**
+     * @return oldest access time bucket, {@link Long#MAX_VALUE} if the index is empty
+     */
+    synchronized long getOldestBucket() {
+        return buckets.isEmpty() ? Long.MAX_VALUE : buckets.firstKey();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void removeFromBucket(TimeOutWrapper<?> wrapper) {
+        Set<TimeOutWrapper<?>> bucket = buckets.get(wrapper.bucket);
+        if (null != bucket) {
+            bucket.remove(wrapper);
+            if (bucket.isEmpty()) {
+                buckets.remove(wrapper.bucket);
+            }
+        }
+    }
+}
@@ -36,9 +36,10 @@ import jakarta.servlet.http.HttpSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
 
 /**
  * Handle session state across requests and instances, using an in memory session storage.
@@ -46,17 +47,77 @@ import java.util.concurrent.ConcurrentSkipListSet;
 public class InMemorySessionHandler implements SessionHandler {
     private static final Logger log = LoggerFactory.getLogger(InMemorySessionHandler.class);
 
-    private int sessionHandlerNumTrackedSessionIds;
+    // Estimated size of a LogoutRequestWrapper, which holds the parsed request
+    private static final long LOGOUT_REQUEST_ESTIMATED_SIZE = 8 * 1024;
+
+    private final TimeOutMap<AuthnRequestWrapper> authnRequests = new TimeOutMap<>(AuthnRequestWrapper::getEstimatedSize);
+    private final TimeOutMap<AssertionWrapper> assertions = new TimeOutMap<>(AssertionWrapper::getEstimatedSize);
+    private final TimeOutMap<LogoutRequestWrapper> logoutRequests = new TimeOutMap<>(request -> LOGOUT_REQUEST_ESTIMATED_SIZE);
 
-    private final Map<String, TimeOutWrapper<AuthnRequestWrapper>> authnRequests = new ConcurrentHashMap<String, TimeOutWrapper<AuthnRequestWrapper>>();
-    private final Map<String, TimeOutWrapper<AssertionWrapper>> assertions = new ConcurrentHashMap<String, TimeOutWrapper<AssertionWrapper>>();
-    private final Map<String, TimeOutWrapper<LogoutRequestWrapper>> logoutRequests = new ConcurrentHashMap<String, TimeOutWrapper<LogoutRequestWrapper>>();
+    private final TimeOutMap<String> sessionIndexMap = new TimeOutMap<>(sessionId -> 96 + 2L * sessionId.length());
+    private final ReplayCache usedAssertionIds;
 
-    private final Map<String, TimeOutWrapper<String>> sessionIndexMap = new ConcurrentHashMap<String, TimeOutWrapper<String>>();
-    private final ConcurrentSkipListSet<String> usedAssertionIds = new ConcurrentSkipListSet<>();
+    private final long maxEstimatedBytes;
+    private final AtomicLong evictionCount = new AtomicLong();
 
     public InMemorySessionHandler(int sessionHandlerNumTrackedSessionIds) {
-        this.sessionHandlerNumTrackedSessionIds = sessionHandlerNumTrackedSessionIds;
+        this(sessionHandlerNumTrackedSessionIds, 0, 24L * 60 * 60 * 1000 /* Save replay for a day */);
+    }
+
+    public InMemorySessionHandler(int sessionHandlerNumTrackedSessionIds, long maxTrackedAssertionIdBytes, long assertionIdRetentionMillis) {
+        this(sessionHandlerNumTrackedSessionIds, maxTrackedAssertionIdBytes, assertionIdRetentionMillis, 0);
+    }
+
+    /**
+     * @param sessionHandlerNumTrackedSessionIds maximum number of assertion IDs tracked for replay validation
+     * @param maxTrackedAssertionIdBytes maximum estimated bytes of tracked assertion IDs, zero or less for no limit
+     * @param assertionIdRetentionMillis assertion IDs are tracked this long, unless evicted to respect the limits
+     * @param maxEstimatedBytes maximum estimated bytes of stored sessions, least recently used sessions are evicted
+     *                          when exceeded, zero or less for no limit
+     */
+    public InMemorySessionHandler(int sessionHandlerNumTrackedSessionIds, long maxTrackedAssertionIdBytes, long assertionIdRetentionMillis, long maxEstimatedBytes) {
+        this.usedAssertionIds = new ReplayCache(sessionHandlerNumTrackedSessionIds, maxTrackedAssertionIdBytes, assertionIdRetentionMillis);
+        this.maxEstimatedBytes = maxEstimatedBytes;
+    }
+
+    /**
+     * Get the cache of used assertion IDs, e.g. to report replays detected and evicted IDs.
+     *
+     * @return replay cache
+     */
+    public ReplayCache getReplayCache() {
+        return usedAssertionIds;
+    }
+
+    /**
+     * @return number of stored entries per map
+     */
+    public Map<String, Integer> getEntryCounts() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        counts.put("SessionIndexMap", sessionIndexMap.size());
+        counts.put("Assertions", assertions.size());
+        counts.put("AuthnRequests", authnRequests.size());
+        counts.put("LogoutRequests", logoutRequests.size());
+        return counts;
+    }
+
+    /**
+     * @return estimated bytes of stored entries per map
+     */
+    public Map<String, Long> getEstimatedBytes() {
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        bytes.put("SessionIndexMap", sessionIndexMap.getEstimatedBytes());
+        bytes.put("Assertions", assertions.getEstimatedBytes());
+        bytes.put("AuthnRequests", authnRequests.getEstimatedBytes());
+        bytes.put("LogoutRequests", logoutRequests.getEstimatedBytes());
+        return bytes;
+    }
+
+    /**
+     * @return number of entries evicted to stay within the maximum estimated bytes
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
     }
 
     /**
@@ -76,7 +137,8 @@ public class InMemorySessionHandler implements SessionHandler {
             log.debug("AuthRequest '{}' will replace '{}'", request.getId(), authnRequest.getId());
         }
         log.debug("Store AuthRequest '{}'", request.getId());
-        authnRequests.put(getSessionId(session), new TimeOutWrapper<>(request));
+        authnRequests.put(getSessionId(session), request);
+        evictIfOverBudget();
     }
 
     /**
@@ -96,11 +158,10 @@ public class InMemorySessionHandler implements SessionHandler {
         }
 
         // Replay validation
-        if (usedAssertionIds.contains(assertion.getID())) {
+        if (!usedAssertionIds.register(assertion.getID())) {
             log.warn("Assertion '{}' is being replayed", assertion.getID());
             throw new IllegalArgumentException(String.format("Assertion ID being replayed: '%s'", assertion.getID()));
         }
-        usedAssertionIds.add(assertion.getID());
 
         // Save assertion
         AssertionWrapper existingAssertion = getAssertion(session);
@@ -125,8 +186,9 @@ public class InMemorySessionHandler implements SessionHandler {
         }
 
         HttpSession currentSession = newSession != null ? newSession : session;
-        assertions.put(getSessionId(currentSession), new TimeOutWrapper<>(assertion));
-        sessionIndexMap.put(StringUtil.defaultIfEmpty(assertion.getSessionIndex(), assertion.getID()), new TimeOutWrapper<>(getSessionId(currentSession)));
+        assertions.put(getSessionId(currentSession), assertion);
+        sessionIndexMap.put(StringUtil.defaultIfEmpty(assertion.getSessionIndex(), assertion.getID()), getSessionId(currentSession));
+        evictIfOverBudget();
 
         return currentSession;
     }
@@ -148,7 +210,8 @@ public class InMemorySessionHandler implements SessionHandler {
             log.debug("LogoutRequest '{}' will replace '{}'", request.getID(), logoutRequest.getID());
         }
         log.debug("Store LogoutRequest '{}'", request.getID());
-        logoutRequests.put(getSessionId(session), new TimeOutWrapper<>(request));
+        logoutRequests.put(getSessionId(session), request);
+        evictIfOverBudget();
     }
 
     /**
@@ -269,37 +332,76 @@ public class InMemorySessionHandler implements SessionHandler {
      */
     @Override
     public void cleanup(long maxInactiveIntervalSeconds) {
-        // Trim usedAssertionIds to size with sessionHandlerNumTrackedSessionIds
+        // usedAssertionIds is kept within its size limits on insert, only IDs outside the retention window are removed here
         long maxInactiveIntervalMillis = maxInactiveIntervalSeconds * 1000;
-        while (!usedAssertionIds.isEmpty() && usedAssertionIds.size() > sessionHandlerNumTrackedSessionIds) {
-            usedAssertionIds.remove(usedAssertionIds.pollFirst());
-        }
+        usedAssertionIds.removeExpired();
         cleanup(sessionIndexMap, maxInactiveIntervalMillis, "SessionIndexMap");
         cleanup(assertions, maxInactiveIntervalMillis, "Assertions");
         cleanup(authnRequests, maxInactiveIntervalMillis, "AuthnRequests");
         cleanup(logoutRequests, maxInactiveIntervalMillis, "LogoutRequests");
     }
 
-    private <E, T> void cleanup(Map<E, TimeOutWrapper<T>> map, long cleanupDelay, String msg) {
-        log.debug("Running cleanup timer on {}", map);
-        for (Object key : map.keySet()) {
-            TimeOutWrapper<T> tow = map.get(key);
-            if (tow.isExpired(cleanupDelay)) {
-                log.debug("Expiring {}", tow);
-                if (tow.getObject() instanceof AssertionWrapper) {
-                    OIOSAML3Service.getAuditService().auditLog(new AuditService
-                            .Builder()
-                            .withAuthnAttribute("ACTION", "TIMEOUT")
-                            .withAuthnAttribute("DESCRIPTION", "SessionDestroyed")
-                            .withAuthnAttribute("SP_SESSION_ID", String.valueOf(key))
-                            .withAuthnAttribute("ASSERTION_ID", ((AssertionWrapper) tow.getObject()).getID())
-                            .withAuthnAttribute("SUBJECT_NAME_ID", ((AssertionWrapper) tow.getObject()).getSubjectNameId()));
+    private <T> void cleanup(TimeOutMap<T> map, long cleanupDelay, String msg) {
+        log.debug("Running cleanup timer on {} {}", msg, map);
+        map.expire(cleanupDelay, (key, tow) -> {
+            log.debug("Expiring {}", tow);
+            if (tow.getObject() instanceof AssertionWrapper) {
+                auditSessionDestroyed("TIMEOUT", key, (AssertionWrapper) tow.getObject());
+            }
+        });
+    }
+
+    /**
+     * Evict least recently accessed entries until the estimated size of the stored sessions is within the limit.
+     * Session index entries are not accessed when used, and are evicted along with their assertion.
+     */
+    private void evictIfOverBudget() {
+        if (maxEstimatedBytes <= 0 || getTotalEstimatedBytes() <= maxEstimatedBytes) {
+            return;
+        }
+        synchronized (this) {
+            while (getTotalEstimatedBytes() > maxEstimatedBytes) {
+                long assertionBucket = assertions.getOldestAccessBucket();
+                long authnRequestBucket = authnRequests.getOldestAccessBucket();
+                long logoutRequestBucket = logoutRequests.getOldestAccessBucket();
+
+                boolean evicted;
+                if (assertionBucket <= authnRequestBucket && assertionBucket <= logoutRequestBucket) {
+                    evicted = assertions.evictOldest((key, tow) -> {
+                        log.debug("Evicting {}", tow);
+                        String sessionIndex = tow.getObject().getSessionIndex();
+                        sessionIndexMap.remove(StringUtil.defaultIfEmpty(sessionIndex, tow.getObject().getID()));
+                        auditSessionDestroyed("EVICTION", key, tow.getObject());
+                    });
+                } else if (authnRequestBucket <= logoutRequestBucket) {
+                    evicted = authnRequests.evictOldest((key, tow) -> log.debug("Evicting {}", tow));
+                } else {
+                    evicted = logoutRequests.evictOldest((key, tow) -> log.debug("Evicting {}", tow));
+                }
+
+                if (!evicted) {
+                    break;
                 }
-                map.remove(key);
+                evictionCount.incrementAndGet();
             }
         }
     }
 
+    private long getTotalEstimatedBytes() {
+        return sessionIndexMap.getEstimatedBytes() + assertions.getEstimatedBytes()
+                + authnRequests.getEstimatedBytes() + logoutRequests.getEstimatedBytes();
+    }
+
+    private void auditSessionDestroyed(String action, String sessionId, AssertionWrapper assertion) {
+        OIOSAML3Service.getAuditService().auditLog(new AuditService
+                .Builder()
+                .withAuthnAttribute("ACTION", action)
+                .withAuthnAttribute("DESCRIPTION", "SessionDestroyed")
+                .withAuthnAttribute("SP_SESSION_ID", sessionId)
+                .withAuthnAttribute("ASSERTION_ID", assertion.getID())
+                .withAuthnAttribute("SUBJECT_NAME_ID", assertion.getSubjectNameId()));
+    }
+
     private void logout(String sessionId) {
         log.debug("Invalidate OIOSAML session '{}'", sessionId);
 
@@ -74,7 +74,10 @@ public class InMemorySessionHandlerFactory implements SessionHandlerFactory {
     @Override
     public synchronized void configure(Configuration config) throws InitializationException {
         if (null == handler) {
-            handler = new InMemorySessionHandler(config.getSessionHandlerInMemoryMaxNumberOfTrackedAssertionIds());
+            handler = new InMemorySessionHandler(config.getSessionHandlerInMemoryMaxNumberOfTrackedAssertionIds(),
+                    config.getSessionHandlerInMemoryMaxTrackedAssertionIdsBytes(),
+                    config.getSessionHandlerInMemoryTrackedAssertionIdsRetentionSeconds() * 1000L,
+                    config.getSessionHandlerInMemoryMaxBytes());
         }
     }
 }
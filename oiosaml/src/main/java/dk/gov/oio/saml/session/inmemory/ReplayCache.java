@@ -0,0 +1,135 @@
+package dk.gov.oio.saml.session.inmemory;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tracks used assertion IDs for replay validation, in the order they were registered.
+ * <p>
+ * Lookups are O(1), and IDs are evicted oldest first when they are older than the retention window, or when the
+ * cache exceeds its maximum number of IDs or estimated bytes.
+ * </p>
+ */
+public class ReplayCache {
+    // Estimated overhead of an ID in the set and the queue, besides the characters of the ID itself
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long retentionMillis;
+
+    private final Set<String> ids = new HashSet<>();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private long bytes;
+
+    private long hitCount;
+    private long expiredCount;
+    private long evictedCount;
+
+    /**
+     * @param maxEntries maximum number of tracked IDs, zero or less for no limit
+     * @param maxBytes maximum estimated bytes of tracked IDs, zero or less for no limit
+     * @param retentionMillis IDs are kept at least this long, unless evicted to respect the limits
+     */
+    public ReplayCache(int maxEntries, long maxBytes, long retentionMillis) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Register an assertion ID as used.
+     *
+     * @param id assertion ID
+     * @return false if the ID is already registered, i.e. the assertion is being replayed
+     */
+    public synchronized boolean register(String id) {
+        if (ids.contains(id)) {
+            hitCount++;
+            return false;
+        }
+
+        Entry entry = new Entry(id, System.currentTimeMillis());
+        ids.add(id);
+        queue.addLast(entry);
+        bytes += entry.bytes;
+
+        while (!queue.isEmpty() && ((maxEntries > 0 && queue.size() > maxEntries) || (maxBytes > 0 && bytes > maxBytes))) {
+            remove(queue.pollFirst());
+            evictedCount++;
+        }
+        return true;
+    }
+
+    /**
+     * @param id assertion ID
+     * @return true if the ID is registered
+     */
+    public synchronized boolean contains(String id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * Remove IDs older than the retention window, only the expired IDs are visited.
+     */
+    public synchronized void removeExpired() {
+        long expiry = System.currentTimeMillis() - retentionMillis;
+        while (!queue.isEmpty() && queue.peekFirst().registered < expiry) {
+            remove(queue.pollFirst());
+            expiredCount++;
+        }
+    }
+
+    private void remove(Entry entry) {
+        ids.remove(entry.id);
+        bytes -= entry.bytes;
+    }
+
+    /**
+     * @return number of tracked IDs
+     */
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return estimated bytes used by tracked IDs
+     */
+    public synchronized long getEstimatedBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of replayed IDs detected
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of IDs removed after the retention window
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * @return number of IDs evicted before the retention window to respect the size limits
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    private static final class Entry {
+        private final String id;
+        private final long registered;
+        private final long bytes;
+
+        private Entry(String id, long registered) {
+            this.id = id;
+            this.registered = registered;
+            this.bytes = ENTRY_OVERHEAD_BYTES + 2L * id.length();
+        }
+    }
+}
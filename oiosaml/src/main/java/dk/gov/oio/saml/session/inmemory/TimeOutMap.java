@@ -0,0 +1,122 @@
+package dk.gov.oio.saml.session.inmemory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Map of {@link TimeOutWrapper} with an index by access time, so expiring entries only visits expired entries, and the
+ * least recently accessed entries can be evicted. The estimated size of the entries is tracked using a weigher.
+ *
+ * @param <T> type of stored objects
+ */
+public class TimeOutMap<T> {
+    // Width of the access time buckets in the expiry index
+    private static final long BUCKET_MILLIS = 1000;
+
+    private final Map<String, TimeOutWrapper<T>> map = new ConcurrentHashMap<>();
+    private final ExpiryIndex index = new ExpiryIndex(BUCKET_MILLIS);
+    private final ToLongFunction<T> weigher;
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    public TimeOutMap() {
+        this(object -> 0);
+    }
+
+    /**
+     * @param weigher estimates the size in bytes of an object
+     */
+    public TimeOutMap(ToLongFunction<T> weigher) {
+        this.weigher = weigher;
+    }
+
+    public TimeOutWrapper<T> get(String key) {
+        return map.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public void put(String key, T object) {
+        TimeOutWrapper<T> wrapper = new TimeOutWrapper<>(object);
+        wrapper.weight = weigher.applyAsLong(object);
+        estimatedBytes.addAndGet(wrapper.weight);
+        index.schedule(key, wrapper);
+        TimeOutWrapper<T> previous = map.put(key, wrapper);
+        if (null != previous) {
+            index.unschedule(previous);
+            estimatedBytes.addAndGet(-previous.weight);
+        }
+    }
+
+    public TimeOutWrapper<T> remove(String key) {
+        TimeOutWrapper<T> wrapper = map.remove(key);
+        if (null != wrapper) {
+            index.unschedule(wrapper);
+            estimatedBytes.addAndGet(-wrapper.weight);
+        }
+        return wrapper;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return estimated size in bytes of all entries
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    /**
+     * Remove entries that have not been accessed within the delay.
+     *
+     * @param delay milliseconds since last access
+     * @param expired called with key and wrapper of each removed entry
+     */
+    @SuppressWarnings("unchecked")
+    public void expire(long delay, BiConsumer<String, TimeOutWrapper<T>> expired) {
+        for (TimeOutWrapper<?> wrapper : index.pollExpired(delay)) {
+            // The entry may have been replaced or removed since it was polled
+            if (map.remove(wrapper.key, wrapper)) {
+                estimatedBytes.addAndGet(-wrapper.weight);
+                expired.accept(wrapper.key, (TimeOutWrapper<T>) wrapper);
+            }
+        }
+    }
+
+    /**
+     * Remove one of the least recently accessed entries.
+     *
+     * @param evicted called with key and wrapper of the removed entry
+     * @return false if the map is empty
+     */
+    @SuppressWarnings("unchecked")
+    public boolean evictOldest(BiConsumer<String, TimeOutWrapper<T>> evicted) {
+        TimeOutWrapper<?> wrapper;
+        while (null != (wrapper = index.pollOldest())) {
+            if (map.remove(wrapper.key, wrapper)) {
+                estimatedBytes.addAndGet(-wrapper.weight);
+                evicted.accept(wrapper.key, (TimeOutWrapper<T>) wrapper);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return access time bucket of the least recently accessed entries, {@link Long#MAX_VALUE} if empty
+     */
+    long getOldestAccessBucket() {
+        return index.getOldestBucket();
+    }
+
+    @Override
+    public String toString() {
+        return "TimeOutMap{size=" + map.size() + ", estimatedBytes=" + estimatedBytes.get() + "}";
+    }
+}
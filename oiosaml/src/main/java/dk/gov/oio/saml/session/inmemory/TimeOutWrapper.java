@@ -29,7 +29,13 @@ package dk.gov.oio.saml.session.inmemory;
  */
 public class TimeOutWrapper<T> {
 	private final T object;
-	private long accesstime;
+	private volatile long accesstime;
+
+	// Position in the expiry index of the map holding this wrapper, see ExpiryIndex
+	volatile String key;
+	volatile ExpiryIndex index;
+	volatile long bucket;
+	volatile long weight;
 
 	public TimeOutWrapper(T object) {
 		this.object = object;
@@ -46,6 +52,14 @@ public class TimeOutWrapper<T> {
 
 	public void setAccesstime() {
 		accesstime = System.currentTimeMillis();
+		ExpiryIndex current = index;
+		if (null != current) {
+			current.reschedule(this);
+		}
+	}
+
+	long getAccesstime() {
+		return accesstime;
 	}
 	
 	@Override
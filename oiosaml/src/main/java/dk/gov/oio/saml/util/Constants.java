@@ -28,6 +28,9 @@ public class Constants {
     public static final Object MESSAGE_LIFETIME_VALIDATION_ENABLED = "oiosaml.servlet.message.lifetime.validation.enabled";
     public static final String IDP_METADATA_MIN_REFRESH = "oiosaml.servlet.idp.metadata.refresh.min";
     public static final String IDP_METADATA_MAX_REFRESH = "oiosaml.servlet.idp.metadata.refresh.max";
+    public static final String IDP_METADATA_MAX_BACKOFF = "oiosaml.servlet.idp.metadata.refresh.backoff.max";
+    public static final String IDP_METADATA_MAX_STALENESS = "oiosaml.servlet.idp.metadata.staleness.max";
+    public static final String IDP_METADATA_CACHE_DIRECTORY = "oiosaml.servlet.idp.metadata.cache.directory";
     public static final String SECONDARY_KEYSTORE_LOCATION = "oiosaml.servlet.secondary.keystore.location";
     public static final String SECONDARY_KEYSTORE_PASSWORD = "oiosaml.servlet.secondary.keystore.password";
     public static final String SECONDARY_KEY_ALIAS = "oiosaml.servlet.secondary.keystore.alias";
@@ -42,23 +45,53 @@ public class Constants {
     public static final String SP_ROUTING_LOGOUT = "oiosaml.servlet.routing.path.suffix.logout";
     public static final String SP_ROUTING_LOGOUT_RESPONSE = "oiosaml.servlet.routing.path.suffix.logoutResponse";
     public static final String SP_ROUTING_ASSERTION = "oiosaml.servlet.routing.path.suffix.assertion";
+    public static final String SP_ROUTING_TRACE = "oiosaml.servlet.routing.path.suffix.trace";
+    public static final String SP_MESSAGE_TRACE_BUFFER_SIZE = "oiosaml.servlet.trace.buffer.size";
+    public static final String SP_MESSAGE_TRACE_SAMPLE_RATES = "oiosaml.servlet.trace.sample.rates";
+    public static final String SP_PARSER_POOL_MAX_SIZE = "oiosaml.servlet.parser.pool.size.max";
+    public static final String SP_AUTHN_REQUEST_TEMPLATE_CACHE_SIZE = "oiosaml.servlet.authnrequest.template.cache.size";
+    public static final String SP_POST_BINDING_STREAMING_ENABLED = "oiosaml.servlet.post.binding.streaming.enabled";
     public static final String SP_AUDIT_CLASSNAME = "oiosaml.servlet.audit.logger.classname";
     public static final String SP_AUDIT_ATTRIBUTE_IP = "oiosaml.servlet.audit.logger.attribute.ip";
     public static final String SP_AUDIT_ATTRIBUTE_PORT = "oiosaml.servlet.audit.logger.attribute.port";
     public static final String SP_AUDIT_ATTRIBUTE_USER_ID = "oiosaml.servlet.audit.logger.attribute.userid";
     public static final String SP_AUDIT_ATTRIBUTE_SESSION_ID = "oiosaml.servlet.audit.logger.attribute.sessionId";
+    public static final String SP_AUDIT_ASYNC_ENABLED = "oiosaml.servlet.audit.logger.async.enabled";
+    public static final String SP_AUDIT_ASYNC_BUFFER_SIZE = "oiosaml.servlet.audit.logger.async.buffer.size";
+    public static final String SP_AUDIT_ASYNC_BATCH_SIZE = "oiosaml.servlet.audit.logger.async.batch.size";
+    public static final String SP_AUDIT_ASYNC_OVERFLOW_POLICY = "oiosaml.servlet.audit.logger.async.overflow.policy";
     public static final String SP_SESSION_HANDLER_FACTORY_CLASSNAME ="oiosaml.servlet.session.handler.factory";
     public static final String SP_SESSION_HANDLER_JNDI_NAME ="oiosaml.servlet.session.handler.jdni.name";
     public static final String SP_SESSION_HANDLER_JDBC_URL = "oiosaml.servlet.session.handler.jdbc.url";
     public static final String SP_SESSION_HANDLER_JDBC_USERNAME = "oiosaml.servlet.session.handler.jdbc.username";
     public static final String SP_SESSION_HANDLER_JDBC_PASSWORD = "oiosaml.servlet.session.handler.jdbc.password";
     public static final String SP_SESSION_HANDLER_JDBC_DRIVER_CLASSNAME = "oiosaml.servlet.session.handler.jdbc.driver.classname";
+    public static final String SP_SESSION_HANDLER_JDBC_POOL_MIN_SIZE = "oiosaml.servlet.session.handler.jdbc.pool.size.min";
+    public static final String SP_SESSION_HANDLER_JDBC_POOL_MAX_SIZE = "oiosaml.servlet.session.handler.jdbc.pool.size.max";
+    public static final String SP_SESSION_HANDLER_JDBC_POOL_MAX_WAIT = "oiosaml.servlet.session.handler.jdbc.pool.maxwait.millis";
+    public static final String SP_SESSION_HANDLER_JDBC_POOL_IDLE_TIMEOUT = "oiosaml.servlet.session.handler.jdbc.pool.idle.timeout";
+    public static final String SP_SESSION_HANDLER_JDBC_POOL_VALIDATION_TIMEOUT = "oiosaml.servlet.session.handler.jdbc.pool.validation.timeout";
+    public static final String SP_SESSION_HANDLER_DATABASE_TOUCH_GRANULARITY = "oiosaml.servlet.session.handler.database.touch.granularity";
+    public static final String SP_SESSION_HANDLER_DATABASE_TOUCH_FLUSH_INTERVAL = "oiosaml.servlet.session.handler.database.touch.flush.interval";
     public static final String SP_SESSION_HANDLER_MAX_NUM_TRACKED_ASSERTIONIDS ="oiosaml.servlet.session.handler.inmemory.max.tracked.assertionids";
+    public static final String SP_SESSION_HANDLER_MAX_TRACKED_ASSERTIONIDS_BYTES = "oiosaml.servlet.session.handler.inmemory.max.tracked.assertionids.bytes";
+    public static final String SP_SESSION_HANDLER_TRACKED_ASSERTIONIDS_RETENTION = "oiosaml.servlet.session.handler.inmemory.tracked.assertionids.retention";
+    public static final String SP_SESSION_HANDLER_INMEMORY_MAX_BYTES = "oiosaml.servlet.session.handler.inmemory.max.bytes";
     public static final String SP_SESSION_FIXATION_PROTECT_ENABLED ="oiosaml.servlet.assertion.handler.session.fixation.protect.enabled";
+    public static final String SP_ASSERTION_COMPACT_ENABLED = "oiosaml.servlet.assertion.handler.compact.enabled";
+    public static final String SP_ASSERTION_COMPRESSION_ENABLED = "oiosaml.servlet.assertion.handler.compression.enabled";
 
     // Configuration constants for revocation check settings
     public static final String CRL_CHECK_ENABLED = "oiosaml.servlet.revocation.crl.check.enabled";
     public static final String OCSP_CHECK_ENABLED = "oiosaml.servlet.revocation.ocsp.check.enabled";
+    public static final String OCSP_CHECK_THREADS = "oiosaml.servlet.revocation.ocsp.check.threads";
+    public static final String REVOCATION_CHECK_INTERVAL = "oiosaml.servlet.revocation.check.interval";
+    public static final String REVOCATION_CHECK_MAX_STALENESS = "oiosaml.servlet.revocation.check.staleness.max";
+    public static final String CRL_CACHE_DIRECTORY = "oiosaml.servlet.revocation.crl.cache.directory";
+    public static final String CRL_REFRESH_MARGIN = "oiosaml.servlet.revocation.crl.refresh.margin";
+    public static final String ISSUER_CERTIFICATE_CACHE_DIRECTORY = "oiosaml.servlet.revocation.issuer.cache.directory";
+    public static final String ISSUER_CERTIFICATE_CACHE_TTL = "oiosaml.servlet.revocation.issuer.cache.ttl";
+    public static final String ISSUER_CERTIFICATE_CACHE_SIZE = "oiosaml.servlet.revocation.issuer.cache.size";
 
     // Configuration constants for AuthenticationFilter
     public static final String IS_PASSIVE = "oiosaml.filter.ispassive.enabled";
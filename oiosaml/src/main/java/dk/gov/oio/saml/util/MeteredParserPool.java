@@ -0,0 +1,165 @@
+package dk.gov.oio.saml.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.xml.ParserPool;
+import net.shibboleth.shared.xml.XMLParserException;
+import net.shibboleth.shared.xml.impl.BasicParserPool;
+
+/**
+ * Parser pool shared by all SAML message decoding, backed by a {@link BasicParserPool} with its secure default
+ * settings, which measures the time spent waiting for a pooled parser and the time spent parsing.
+ */
+public class MeteredParserPool implements ParserPool {
+    private final BasicParserPool delegate;
+
+    private final AtomicLong builderCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong parseCount = new AtomicLong();
+    private final AtomicLong failedParseCount = new AtomicLong();
+    private final AtomicLong totalParseNanos = new AtomicLong();
+    private final AtomicLong maxParseNanos = new AtomicLong();
+
+    /**
+     * @param maxPoolSize maximum number of idle parsers kept for reuse
+     * @throws InternalException if the parser pool cannot be initialized
+     */
+    public MeteredParserPool(int maxPoolSize) throws InternalException {
+        delegate = new BasicParserPool();
+        delegate.setMaxPoolSize(Math.max(1, maxPoolSize));
+        try {
+            delegate.initialize();
+        }
+        catch (ComponentInitializationException e) {
+            throw new InternalException("Could not initialize parser pool", e);
+        }
+    }
+
+    @Override
+    public DocumentBuilder getBuilder() throws XMLParserException {
+        long start = System.nanoTime();
+        try {
+            return delegate.getBuilder();
+        }
+        finally {
+            long wait = System.nanoTime() - start;
+            builderCount.incrementAndGet();
+            totalWaitNanos.addAndGet(wait);
+            updateMax(maxWaitNanos, wait);
+        }
+    }
+
+    @Override
+    public void returnBuilder(DocumentBuilder builder) {
+        delegate.returnBuilder(builder);
+    }
+
+    @Override
+    public Document newDocument() throws XMLParserException {
+        DocumentBuilder builder = getBuilder();
+        try {
+            return builder.newDocument();
+        }
+        finally {
+            returnBuilder(builder);
+        }
+    }
+
+    @Override
+    public Document parse(InputStream input) throws XMLParserException {
+        return parse(new InputSource(input));
+    }
+
+    @Override
+    public Document parse(Reader input) throws XMLParserException {
+        return parse(new InputSource(input));
+    }
+
+    private Document parse(InputSource input) throws XMLParserException {
+        DocumentBuilder builder = getBuilder();
+        long start = System.nanoTime();
+        try {
+            return builder.parse(input);
+        }
+        catch (SAXException | IOException e) {
+            failedParseCount.incrementAndGet();
+            throw new XMLParserException("Unable to parse XML", e);
+        }
+        finally {
+            long time = System.nanoTime() - start;
+            parseCount.incrementAndGet();
+            totalParseNanos.addAndGet(time);
+            updateMax(maxParseNanos, time);
+            returnBuilder(builder);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is updated or exceeded by another thread
+        }
+    }
+
+    /**
+     * @return number of parsers handed out by the pool
+     */
+    public long getBuilderCount() {
+        return builderCount.get();
+    }
+
+    /**
+     * @return average time in nanoseconds to get a parser from the pool, including creating a new parser
+     */
+    public long getAverageWaitNanos() {
+        long count = builderCount.get();
+        return count > 0 ? totalWaitNanos.get() / count : 0;
+    }
+
+    /**
+     * @return maximum time in nanoseconds to get a parser from the pool
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * @return number of documents parsed
+     */
+    public long getParseCount() {
+        return parseCount.get();
+    }
+
+    /**
+     * @return number of documents that could not be parsed
+     */
+    public long getFailedParseCount() {
+        return failedParseCount.get();
+    }
+
+    /**
+     * @return average time in nanoseconds to parse a document
+     */
+    public long getAverageParseNanos() {
+        long count = parseCount.get();
+        return count > 0 ? totalParseNanos.get() / count : 0;
+    }
+
+    /**
+     * @return maximum time in nanoseconds to parse a document
+     */
+    public long getMaxParseNanos() {
+        return maxParseNanos.get();
+    }
+}
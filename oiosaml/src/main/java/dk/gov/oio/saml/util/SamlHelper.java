@@ -1,11 +1,15 @@
 package dk.gov.oio.saml.util;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.xml.namespace.QName;
 import org.opensaml.core.config.ConfigurationService;
 import org.opensaml.core.xml.XMLObject;
-import org.opensaml.core.xml.XMLObjectBuilderFactory;
+import org.opensaml.core.xml.XMLObjectBuilder;
 import org.opensaml.core.xml.XMLRuntimeException;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistry;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
@@ -19,27 +23,127 @@ import org.opensaml.saml.common.xml.SAMLConstants;
 import org.opensaml.saml.saml2.core.Attribute;
 import org.opensaml.saml.saml2.core.AttributeStatement;
 import org.opensaml.saml.saml2.core.AttributeValue;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Extensions;
+import org.opensaml.saml.saml2.core.IDPEntry;
+import org.opensaml.saml.saml2.core.IDPList;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.LogoutRequest;
+import org.opensaml.saml.saml2.core.LogoutResponse;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.RequestedAuthnContext;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Scoping;
+import org.opensaml.saml.saml2.core.SessionIndex;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.metadata.AssertionConsumerService;
+import org.opensaml.saml.saml2.metadata.AttributeConsumingService;
+import org.opensaml.saml.saml2.metadata.ContactPerson;
+import org.opensaml.saml.saml2.metadata.EmailAddress;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.KeyDescriptor;
+import org.opensaml.saml.saml2.metadata.NameIDFormat;
+import org.opensaml.saml.saml2.metadata.RequestedAttribute;
+import org.opensaml.saml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.saml.saml2.metadata.ServiceName;
+import org.opensaml.saml.saml2.metadata.SingleLogoutService;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+import org.opensaml.xmlsec.signature.Signature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Element;
 
+import dk.gov.oio.saml.extensions.appswitch.AppSwitch;
+import dk.gov.oio.saml.extensions.appswitch.Platform;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURL;
+import net.shibboleth.shared.security.IdentifierGenerationStrategy;
+import net.shibboleth.shared.security.impl.RandomIdentifierGenerationStrategy;
+import net.shibboleth.shared.xml.DOMTypeSupport;
+import net.shibboleth.shared.xml.ElementSupport;
 import net.shibboleth.shared.xml.SerializeSupport;
 
 public class SamlHelper {
     private static final Logger log = LoggerFactory.getLogger(SamlHelper.class);
 
+    // Types built, marshalled or unmarshalled by the library, resolved when the provider cache is initialized
+    private static final List<Class<? extends XMLObject>> LIBRARY_TYPES = Collections.unmodifiableList(Arrays.asList(
+            AppSwitch.class, Platform.class, ReturnURL.class,
+            Assertion.class, Attribute.class, AttributeStatement.class, AuthnContextClassRef.class, AuthnRequest.class,
+            Extensions.class, IDPEntry.class, IDPList.class, Issuer.class, LogoutRequest.class, LogoutResponse.class,
+            NameID.class, RequestedAuthnContext.class, Response.class, Scoping.class, SessionIndex.class, Status.class,
+            StatusCode.class, AssertionConsumerService.class, AttributeConsumingService.class, ContactPerson.class,
+            EmailAddress.class, EntityDescriptor.class, KeyDescriptor.class, NameIDFormat.class, RequestedAttribute.class,
+            SPSSODescriptor.class, ServiceName.class, SingleLogoutService.class, SingleSignOnService.class, Signature.class));
+
+    // OpenSAML does not signal changes to the provider registry, so the caches are cleared when providers are
+    // registered through this class and when a different registry is configured
+    private static final Map<Class<?>, BuilderEntry> builders = new ConcurrentHashMap<>();
+    private static final Map<QName, Marshaller> marshallers = new ConcurrentHashMap<>();
+    private static final Map<QName, Unmarshaller> unmarshallers = new ConcurrentHashMap<>();
+    private static volatile XMLObjectProviderRegistry cachedRegistry;
+
+    // The generator draws from a thread-safe SecureRandom, so one instance is shared instead of seeding one per message
+    private static final IdentifierGenerationStrategy identifierGenerator = new RandomIdentifierGenerationStrategy();
+
     @SuppressWarnings("unchecked")
     public static <T> T build(final Class<T> clazz) {
-        T object = null;
-        try {
-            XMLObjectBuilderFactory builderFactory = XMLObjectProviderRegistrySupport.getBuilderFactory();
-            QName defaultElementName = (QName) clazz.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
-            object = (T) builderFactory.getBuilder(defaultElementName).buildObject(defaultElementName);
-        } catch (IllegalAccessException | NoSuchFieldException e) {
-            throw new IllegalArgumentException("Could not create SAML object");
-        }
+        BuilderEntry entry = getBuilderEntry(clazz);
+        return (T) entry.builder.buildObject(entry.elementName);
+    }
+
+    /**
+     * @return random identifier for a SAML message
+     */
+    public static String generateIdentifier() {
+        return identifierGenerator.generateIdentifier();
+    }
+
+    /**
+     * Register the builder, marshaller and unmarshaller of an XML element and clear the provider cache.
+     *
+     * @param elementName element name
+     * @param builder builder of the element
+     * @param marshaller marshaller of the element
+     * @param unmarshaller unmarshaller of the element
+     */
+    public static void registerObjectProvider(QName elementName, XMLObjectBuilder<?> builder, Marshaller marshaller, Unmarshaller unmarshaller) {
+        XMLObjectProviderRegistrySupport.registerObjectProvider(elementName, builder, marshaller, unmarshaller);
+        clearProviderCache();
+    }
+
+    /**
+     * Clear the cached builders, marshallers and unmarshallers, e.g. after providers are registered directly with
+     * OpenSAML.
+     */
+    public static void clearProviderCache() {
+        cachedRegistry = null;
+        builders.clear();
+        marshallers.clear();
+        unmarshallers.clear();
+    }
 
-        return object;
+    /**
+     * Clear the provider cache and resolve the builders, marshallers and unmarshallers of all types used by the
+     * library, so the first messages do not pay for the lookups.
+     */
+    public static void initializeProviderCache() {
+        clearProviderCache();
+        XMLObjectProviderRegistry registry = getProviderRegistry();
+        for (Class<? extends XMLObject> type : LIBRARY_TYPES) {
+            QName elementName = getBuilderEntry(type).elementName;
+            Marshaller marshaller = registry.getMarshallerFactory().getMarshaller(elementName);
+            if (null != marshaller) {
+                marshallers.put(elementName, marshaller);
+            }
+            Unmarshaller unmarshaller = registry.getUnmarshallerFactory().getUnmarshaller(elementName);
+            if (null != unmarshaller) {
+                unmarshallers.put(elementName, unmarshaller);
+            }
+        }
+        log.debug("Initialized provider cache with {} builders, {} marshallers and {} unmarshallers", builders.size(), marshallers.size(), unmarshallers.size());
     }
 
     public static Map<String, String> extractAttributeValues(AttributeStatement attributeStatement) {
@@ -125,14 +229,85 @@ public class SamlHelper {
             throw new XMLRuntimeException("XMLObjectProviderRegistry was not available from the ConfigurationService");
         }
 
+        if (registry != cachedRegistry) {
+            // OpenSAML was initialized again, the cached providers belong to the previous registry
+            clearProviderCache();
+            cachedRegistry = registry;
+        }
+
         return registry;
     }
 
+    private static BuilderEntry getBuilderEntry(Class<?> clazz) {
+        getProviderRegistry();
+        BuilderEntry entry = builders.get(clazz);
+        if (null == entry) {
+            QName defaultElementName;
+            try {
+                defaultElementName = (QName) clazz.getDeclaredField("DEFAULT_ELEMENT_NAME").get(null);
+            } catch (IllegalAccessException | NoSuchFieldException e) {
+                throw new IllegalArgumentException("Could not create SAML object");
+            }
+
+            XMLObjectBuilder<?> builder = XMLObjectProviderRegistrySupport.getBuilderFactory().getBuilder(defaultElementName);
+            if (null == builder) {
+                throw new IllegalArgumentException("No builder for " + defaultElementName);
+            }
+
+            entry = new BuilderEntry(defaultElementName, builder);
+            builders.put(clazz, entry);
+        }
+
+        return entry;
+    }
+
     private static Marshaller getMarshaller(XMLObject xmlObject) {
-        return getProviderRegistry().getMarshallerFactory().getMarshaller(xmlObject);
+        XMLObjectProviderRegistry registry = getProviderRegistry();
+
+        // Objects with a schema type are marshalled by the provider of the type, which is not cached
+        if (null != xmlObject.getSchemaType()) {
+            return registry.getMarshallerFactory().getMarshaller(xmlObject);
+        }
+
+        QName elementName = xmlObject.getElementQName();
+        Marshaller marshaller = marshallers.get(elementName);
+        if (null == marshaller) {
+            marshaller = registry.getMarshallerFactory().getMarshaller(xmlObject);
+            if (null != marshaller) {
+                marshallers.put(elementName, marshaller);
+            }
+        }
+
+        return marshaller;
     }
 
     private static Unmarshaller getUnmarshaller(Element marshalledObject) {
-        return getProviderRegistry().getUnmarshallerFactory().getUnmarshaller(marshalledObject);
+        XMLObjectProviderRegistry registry = getProviderRegistry();
+
+        // Elements with an xsi:type are unmarshalled by the provider of the type, which is not cached
+        if (null != DOMTypeSupport.getXSIType(marshalledObject)) {
+            return registry.getUnmarshallerFactory().getUnmarshaller(marshalledObject);
+        }
+
+        QName elementName = ElementSupport.getElementQName(marshalledObject);
+        Unmarshaller unmarshaller = unmarshallers.get(elementName);
+        if (null == unmarshaller) {
+            unmarshaller = registry.getUnmarshallerFactory().getUnmarshaller(marshalledObject);
+            if (null != unmarshaller) {
+                unmarshallers.put(elementName, unmarshaller);
+            }
+        }
+
+        return unmarshaller;
+    }
+
+    private static final class BuilderEntry {
+        private final QName elementName;
+        private final XMLObjectBuilder<?> builder;
+
+        private BuilderEntry(QName elementName, XMLObjectBuilder<?> builder) {
+            this.elementName = elementName;
+            this.builder = builder;
+        }
     }
 }
@@ -10,19 +10,16 @@ import org.w3c.dom.Element;
 import jakarta.servlet.http.HttpServletRequest;
 import net.shibboleth.shared.xml.XMLParserException;
 
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.TransformerException;
 import java.io.ByteArrayInputStream;
-import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Utility class related to string operations in the OIOSAML library.
  */
 public class StringUtil {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     /**
      * Constructs context path + page (URL) string, from the request,
@@ -60,19 +57,7 @@ public class StringUtil {
      */
     public static String elementToString(Element element) {
         try {
-            Source source = new DOMSource(element);
-            TransformerFactory transFactory = TransformerFactory.newInstance();
-            Transformer transformer = transFactory.newTransformer();
-            StringWriter buffer = new StringWriter();
-
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.transform(source, new StreamResult(buffer));
-
-            return buffer.toString();
+            return XmlSerializer.toString(element, XmlSerializer.Profile.PRETTY);
         }
         catch (Exception ex) {
             return null;
@@ -87,22 +72,22 @@ public class StringUtil {
      */
     public static String xmlObjectToBase64(XMLObject xmlObject) throws InternalException {
         try {
-            Element element = SamlHelper.marshallObject(xmlObject);
-
-            Source source = new DOMSource(element);
-            TransformerFactory transFactory = TransformerFactory.newInstance();
-            Transformer transformer = transFactory.newTransformer();
-            StringWriter buffer = new StringWriter();
-
-            // Remove spacing to ensure that f'(f(input)) == input
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}strip-spaces", "*");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "no");
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.transform(source, new StreamResult(buffer));
-
-            return Base64.getEncoder().encodeToString(buffer.toString().getBytes(StandardCharsets.UTF_8));
+            return XmlSerializer.toBase64(SamlHelper.marshallObject(xmlObject), XmlSerializer.Profile.COMPACT);
+        } catch (TransformerException | MarshallingException e) {
+            throw new InternalException("Unable to parse XML object to string",e);
+        }
+    }
+
+    /**
+     * Convert OPENSAML object to UTF-8 encoded XML without spacing, the same XML that is base64 encoded by
+     * {@link #xmlObjectToBase64(XMLObject)}
+     * @param xmlObject OPENSAML object
+     * @return UTF-8 encoded XML
+     * @throws InternalException on serialization failure
+     */
+    public static byte[] xmlObjectToBytes(XMLObject xmlObject) throws InternalException {
+        try {
+            return XmlSerializer.toBytes(SamlHelper.marshallObject(xmlObject), XmlSerializer.Profile.COMPACT);
         } catch (TransformerException | MarshallingException e) {
             throw new InternalException("Unable to parse XML object to string",e);
         }
@@ -129,15 +114,53 @@ public class StringUtil {
      * @return json escaped output value, an empty string if value is null.
      */
     public static String jsonEscape(String value) {
-        StringBuilder sb = new StringBuilder();
         if (null == value) {
             return "";
         }
-        for (char ch : value.toCharArray()) {
+        int first = indexOfJsonEscape(value);
+        if (first < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 16);
+        appendJsonEscaped(sb, value, first);
+        return sb.toString();
+    }
+
+    /**
+     * Append an escaped value for use in a json document, values without special characters are appended as is.
+     * @param sb output
+     * @param value input value with special characters, null is appended as an empty string
+     */
+    public static void appendJsonEscaped(StringBuilder sb, String value) {
+        if (null == value) {
+            return;
+        }
+        int first = indexOfJsonEscape(value);
+        if (first < 0) {
+            sb.append(value);
+            return;
+        }
+        appendJsonEscaped(sb, value, first);
+    }
+
+    private static int indexOfJsonEscape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch <= 0x1F || ch == '"' || ch == '\\' || ch == '\u2028' || ch == '\u2029') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void appendJsonEscaped(StringBuilder sb, String value, int first) {
+        sb.append(value, 0, first);
+        for (int i = first; i < value.length(); i++) {
+            char ch = value.charAt(i);
             switch (ch) {
                 case '"':
                 case '\\':
-                    sb.append("\\").append(ch);
+                    sb.append('\\').append(ch);
                     break;
                 case '\t':
                     sb.append("\\t");
@@ -155,14 +178,17 @@ public class StringUtil {
                     sb.append("\\f");
                     break;
                 default:
-                    if (ch <= 0x1F | ch == '\u2028' | ch == '\u2029') {
-                        sb.append(String.format("\\u%04x", (int) ch));
+                    if (ch <= 0x1F || ch == '\u2028' || ch == '\u2029') {
+                        sb.append("\\u")
+                                .append(HEX_DIGITS[(ch >> 12) & 0xF])
+                                .append(HEX_DIGITS[(ch >> 8) & 0xF])
+                                .append(HEX_DIGITS[(ch >> 4) & 0xF])
+                                .append(HEX_DIGITS[ch & 0xF]);
                     } else {
                         sb.append(ch);
                     }
             }
         }
-        return sb.toString();
     }
 
    /**
@@ -205,10 +231,15 @@ public class StringUtil {
      * @return string representation of the input map
      */
     public static String map2json(Map<String, String> map) {
-        return map.entrySet()
-                .stream()
-                .map(entry -> String.format("\"%s\":\"%s\"", entry.getKey(), StringUtil.jsonEscape(entry.getValue())))
-                .collect(Collectors
-                        .joining(",", "{", "}"));
+        StringBuilder sb = new StringBuilder(32 * map.size() + 2).append('{');
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append('"').append(entry.getKey()).append("\":\"");
+            appendJsonEscaped(sb, entry.getValue());
+            sb.append('"');
+        }
+        return sb.append('}').toString();
     }
 }
@@ -0,0 +1,197 @@
+package dk.gov.oio.saml.util;
+
+import org.w3c.dom.Node;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Serializes DOM nodes to XML using transformers and buffers confined to the calling thread, instead of looking up
+ * a TransformerFactory and creating a Transformer for every node.
+ */
+public class XmlSerializer {
+    // Buffers larger than this are not kept by the thread, to avoid holding on to the largest document ever serialized
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+    private static final ThreadLocal<Buffers> threadBuffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Output profiles
+     */
+    public enum Profile {
+        COMPACT, // Without spacing or declaration, to ensure that f'(f(input)) == input
+        PRETTY, // Indented without declaration, e.g. for logging
+        PRETTY_WITH_DECLARATION; // Indented with declaration, e.g. for metadata documents
+
+        private void configure(Transformer transformer) {
+            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, this == PRETTY_WITH_DECLARATION ? "no" : "yes");
+            if (this == COMPACT) {
+                transformer.setOutputProperty("{http://xml.apache.org/xslt}strip-spaces", "*");
+                transformer.setOutputProperty(OutputKeys.INDENT, "no");
+            }
+            else {
+                transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+                transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            }
+        }
+    }
+
+    private XmlSerializer() {
+    }
+
+    /**
+     * @param node DOM node
+     * @param profile output profile
+     * @return XML string
+     * @throws TransformerException on serialization failure
+     */
+    public static String toString(Node node, Profile profile) throws TransformerException {
+        Buffers buffers = threadBuffers.get();
+        StringWriter writer = buffers.acquireChars();
+        try {
+            buffers.transform(node, profile, new StreamResult(writer));
+            return writer.toString();
+        }
+        finally {
+            buffers.release();
+        }
+    }
+
+    /**
+     * @param node DOM node
+     * @param profile output profile
+     * @return UTF-8 encoded XML
+     * @throws TransformerException on serialization failure
+     */
+    public static byte[] toBytes(Node node, Profile profile) throws TransformerException {
+        Buffers buffers = threadBuffers.get();
+        ReusableByteArrayOutputStream bytes = buffers.acquireBytes();
+        try {
+            buffers.transform(node, profile, new StreamResult(bytes));
+            return bytes.toByteArray();
+        }
+        finally {
+            buffers.release();
+        }
+    }
+
+    /**
+     * @param node DOM node
+     * @param profile output profile
+     * @return base64 encoded UTF-8 XML
+     * @throws TransformerException on serialization failure
+     */
+    public static String toBase64(Node node, Profile profile) throws TransformerException {
+        Buffers buffers = threadBuffers.get();
+        ReusableByteArrayOutputStream bytes = buffers.acquireBytes();
+        try {
+            // The XML is base64 encoded as it is written, and the encoding is completed when the stream is closed
+            try (OutputStream base64 = Base64.getEncoder().wrap(bytes)) {
+                buffers.transform(node, profile, new StreamResult(base64));
+            }
+            catch (IOException e) {
+                throw new TransformerException(e);
+            }
+            return bytes.toAsciiString();
+        }
+        finally {
+            buffers.release();
+        }
+    }
+
+    /**
+     * @param node DOM node
+     * @param profile output profile
+     * @param out receives UTF-8 encoded XML
+     * @throws TransformerException on serialization failure
+     */
+    public static void write(Node node, Profile profile, OutputStream out) throws TransformerException {
+        threadBuffers.get().transform(node, profile, new StreamResult(out));
+    }
+
+    private static Transformer newTransformer(Profile profile) throws TransformerConfigurationException {
+        Transformer transformer;
+        // TransformerFactory is not guaranteed to be thread-safe
+        synchronized (transformerFactory) {
+            transformer = transformerFactory.newTransformer();
+        }
+        profile.configure(transformer);
+        return transformer;
+    }
+
+    private static final class Buffers {
+        private final Map<Profile, Transformer> transformers = new EnumMap<>(Profile.class);
+        private StringWriter chars = new StringWriter(4096);
+        private ReusableByteArrayOutputStream bytes = new ReusableByteArrayOutputStream(4096);
+
+        private void transform(Node node, Profile profile, StreamResult result) throws TransformerException {
+            Transformer transformer = transformers.get(profile);
+            if (null == transformer) {
+                transformer = newTransformer(profile);
+                transformers.put(profile, transformer);
+            }
+            try {
+                transformer.transform(new DOMSource(node), result);
+            }
+            catch (TransformerException | RuntimeException e) {
+                // Do not reuse a transformer that may be left in an inconsistent state
+                transformers.remove(profile);
+                throw e;
+            }
+        }
+
+        // Serialization does not call back into this class, so a thread never uses the buffers twice at the same time
+        private StringWriter acquireChars() {
+            return chars;
+        }
+
+        private ReusableByteArrayOutputStream acquireBytes() {
+            return bytes;
+        }
+
+        private void release() {
+            if (chars.getBuffer().capacity() > MAX_RETAINED_BUFFER) {
+                chars = new StringWriter(4096);
+            }
+            else {
+                chars.getBuffer().setLength(0);
+            }
+            if (bytes.capacity() > MAX_RETAINED_BUFFER) {
+                bytes = new ReusableByteArrayOutputStream(4096);
+            }
+            else {
+                bytes.reset();
+            }
+        }
+    }
+
+    private static final class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        private ReusableByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+
+        private String toAsciiString() {
+            return new String(buf, 0, count, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package dk.gov.oio.saml.audit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class AsyncAuditLoggerTest {
+
+    private static class BlockingAuditLogger implements AuditLogger {
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        private final CountDownLatch latch;
+
+        private BlockingAuditLogger(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void auditLog(String message) {
+            messages.add(message);
+        }
+
+        @Override
+        public void auditLog(List<String> batch) {
+            try {
+                latch.await(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            batchSizes.add(batch.size());
+            messages.addAll(batch);
+        }
+    }
+
+    @DisplayName("Test that messages are delivered in order and in batches")
+    @Test
+    void testDeliverInBatches() {
+        BlockingAuditLogger delegate = new BlockingAuditLogger(new CountDownLatch(0));
+        AsyncAuditLogger auditLogger = new AsyncAuditLogger(delegate, 1024, 10, AsyncAuditLogger.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 100; i++) {
+            auditLogger.auditLog("MESSAGE_" + i);
+        }
+        Assertions.assertTrue(auditLogger.flush(10, TimeUnit.SECONDS));
+        auditLogger.close();
+
+        Assertions.assertEquals(100, delegate.messages.size());
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals("MESSAGE_" + i, delegate.messages.get(i));
+        }
+        Assertions.assertTrue(delegate.batchSizes.stream().allMatch(size -> size <= 10));
+        Assertions.assertEquals(100, auditLogger.getEnqueuedCount());
+        Assertions.assertEquals(100, auditLogger.getDeliveredCount());
+        Assertions.assertEquals(0, auditLogger.getQueuedCount());
+    }
+
+    @DisplayName("Test that messages are dropped when the buffer is full and the policy is DROP")
+    @Test
+    void testDropWhenFull() {
+        CountDownLatch latch = new CountDownLatch(1);
+        BlockingAuditLogger delegate = new BlockingAuditLogger(latch);
+        AsyncAuditLogger auditLogger = new AsyncAuditLogger(delegate, 4, 1, AsyncAuditLogger.OverflowPolicy.DROP);
+
+        for (int i = 0; i < 20; i++) {
+            auditLogger.auditLog("MESSAGE_" + i);
+        }
+        latch.countDown();
+        auditLogger.close();
+
+        Assertions.assertTrue(auditLogger.getDroppedCount() > 0);
+        Assertions.assertEquals(20, auditLogger.getDroppedCount() + auditLogger.getDeliveredCount());
+        Assertions.assertEquals(auditLogger.getDeliveredCount(), delegate.messages.size());
+    }
+
+    @DisplayName("Test that messages are logged on the calling thread when the buffer is full and the policy is CALLER_RUNS")
+    @Test
+    void testCallerRunsWhenFull() {
+        CountDownLatch latch = new CountDownLatch(1);
+        BlockingAuditLogger delegate = new BlockingAuditLogger(latch);
+        AsyncAuditLogger auditLogger = new AsyncAuditLogger(delegate, 4, 1, AsyncAuditLogger.OverflowPolicy.CALLER_RUNS);
+
+        for (int i = 0; i < 20; i++) {
+            auditLogger.auditLog("MESSAGE_" + i);
+        }
+        Assertions.assertTrue(auditLogger.getCallerRunsCount() > 0);
+
+        latch.countDown();
+        auditLogger.close();
+
+        Assertions.assertEquals(0, auditLogger.getDroppedCount());
+        Assertions.assertEquals(20, delegate.messages.size());
+    }
+
+    @DisplayName("Test that messages logged after close are delivered on the calling thread")
+    @Test
+    void testLogAfterClose() {
+        BlockingAuditLogger delegate = new BlockingAuditLogger(new CountDownLatch(0));
+        AsyncAuditLogger auditLogger = new AsyncAuditLogger(delegate, 16, 4, AsyncAuditLogger.OverflowPolicy.BLOCK);
+        auditLogger.close();
+
+        auditLogger.auditLog("MESSAGE");
+
+        Assertions.assertEquals(Collections.singletonList("MESSAGE"), delegate.messages);
+    }
+}
@@ -0,0 +1,95 @@
+package dk.gov.oio.saml.audit;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.InternalException;
+import dk.gov.oio.saml.util.TestConstants;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+class AuditEncoderTest {
+    private AuditEncoder auditEncoder;
+
+    @BeforeEach
+    void setUp() throws InternalException {
+        Configuration configuration = new Configuration.Builder()
+                .setSpEntityID("SP\"ENTITY")
+                .setBaseUrl(TestConstants.SP_BASE_URL)
+                .setIdpEntityID(TestConstants.IDP_ENTITY_ID)
+                .setIdpMetadataUrl(TestConstants.IDP_METADATA_URL)
+                .setKeystoreLocation(TestConstants.SP_KEYSTORE_LOCATION)
+                .setKeystorePassword(TestConstants.SP_KEYSTORE_PASSWORD)
+                .setKeyAlias(TestConstants.SP_KEYSTORE_ALIAS)
+                .build();
+        auditEncoder = new AuditEncoder(configuration);
+    }
+
+    @DisplayName("Test that attributes are encoded in order, followed by time and escaped entity IDs")
+    @Test
+    void testEncode() {
+        AuditService.Builder builder = new AuditService.Builder()
+                .withAuthnAttribute("KEY", "VALUE")
+                .withAuthnAttribute("ESCAPED", "A\"B\n")
+                .withAuthnAttribute("NULL", null)
+                .withAuthnAttribute("KEY", "IGNORED");
+
+        String json = auditEncoder.encode(builder);
+
+        Assertions.assertTrue(json.startsWith("{\"KEY\":\"VALUE\",\"ESCAPED\":\"A\\\"B\\n\",\"NULL\":\"\",\"Time\":\""), json);
+        Assertions.assertTrue(json.endsWith(String.format("\",\"SpEntityID\":\"SP\\\"ENTITY\",\"IdpEntityID\":\"%s\"}", TestConstants.IDP_ENTITY_ID)), json);
+        Assertions.assertEquals("{\"KEY\":\"VALUE\",\"ESCAPED\":\"A\\\"B\\n\",\"NULL\":\"\"}", builder.toJSON());
+    }
+
+    @DisplayName("Test that a statement with more attributes than the initial capacity keeps all of them in order")
+    @Test
+    void testEncodeManyAttributes() {
+        AuditService.Builder builder = new AuditService.Builder();
+        StringBuilder expected = new StringBuilder("{");
+        for (int i = 0; i < 20; i++) {
+            builder.withAuthnAttribute("KEY" + i, "VALUE" + i);
+            expected.append(i > 0 ? "," : "").append("\"KEY").append(i).append("\":\"VALUE").append(i).append('"');
+        }
+        builder.withAuthnAttribute("KEY0", "IGNORED");
+
+        Assertions.assertEquals(expected.append('}').toString(), builder.toJSON());
+    }
+
+    @DisplayName("Test that attributes already on the statement are not replaced")
+    @Test
+    void testEncodeExistingAttributes() {
+        String json = auditEncoder.encode(new AuditService.Builder()
+                .withAuthnAttribute("Time", "TIME")
+                .withAuthnAttribute("IdpEntityID", "IDP"));
+
+        Assertions.assertEquals("{\"Time\":\"TIME\",\"IdpEntityID\":\"IDP\",\"SpEntityID\":\"SP\\\"ENTITY\"}", json);
+    }
+
+    @DisplayName("Test that UTF-8 encoded statements are written to byte oriented audit loggers")
+    @Test
+    void testEncodeUtf8() {
+        AuditService.Builder builder = new AuditService.Builder()
+                .withAuthnAttribute("Time", "TIME")
+                .withAuthnAttribute("NAME", "\u00e6\u00f8\u00e5 \u20ac \ud83d\ude00");
+        List<String> messages = new ArrayList<>();
+
+        auditEncoder.encode(builder, new ByteAuditLogger() {
+            @Override
+            public void auditLog(String message) {
+                Assertions.fail("String message not expected");
+            }
+
+            @Override
+            public void auditLog(byte[] buffer, int offset, int length) {
+                messages.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+            }
+        });
+
+        Assertions.assertEquals(1, messages.size());
+        Assertions.assertEquals(auditEncoder.encode(builder), messages.get(0));
+    }
+}
@@ -1,11 +1,19 @@
 package dk.gov.oio.saml.model;
 
+import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.service.IdpMetadataServiceTest;
+import dk.gov.oio.saml.service.OIOSAML3Service;
 import dk.gov.oio.saml.util.ExternalException;
 import dk.gov.oio.saml.util.InternalException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.security.credential.UsageType;
+
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.List;
 
 public class IdPMetadataTest {
     @DisplayName("Test ResponseLocation is returned when present")
@@ -26,6 +34,103 @@ public class IdPMetadataTest {
         testSingleLogoutResponseLocation("test-metadata3.xml", "http://localhost:8081/saml/logout");
     }
 
+    @DisplayName("Test that the snapshot is reused until the metadata is updated and indexes endpoints and certificates")
+    @Test
+    public void testSnapshot() throws ExternalException, InternalException {
+        ClassLoader classLoader = IdpMetadataServiceTest.class.getClassLoader();
+        String fileLocation = classLoader.getResource("test-metadata.xml").getFile();
+        IdPMetadata idpMetadata = new IdPMetadata("http://mockidp.localhost", null, fileLocation);
+
+        IdPMetadataSnapshot snapshot = idpMetadata.getSnapshot();
+        Assertions.assertSame(snapshot, idpMetadata.getSnapshot());
+        Assertions.assertSame(snapshot.getEntityDescriptor(), idpMetadata.getEntityDescriptor());
+
+        Assertions.assertEquals("http://localhost:8081/saml/login", idpMetadata.getSingleSignOnEndpoint(SAMLConstants.SAML2_REDIRECT_BINDING_URI).getLocation());
+        Assertions.assertNull(idpMetadata.getSingleSignOnEndpoint(SAMLConstants.SAML2_ARTIFACT_BINDING_URI));
+        Assertions.assertEquals(1, snapshot.getCertificates(UsageType.SIGNING).size());
+        Assertions.assertEquals(1, snapshot.getCertificates(UsageType.ENCRYPTION).size());
+        Assertions.assertTrue(snapshot.getCertificates(UsageType.UNSPECIFIED).isEmpty());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getCertificates(UsageType.SIGNING).clear());
+    }
+
+    @DisplayName("Test that metadata certificates are parsed once and KeyInfo certificates known from metadata are cached")
+    @Test
+    public void testCertificateParsing() throws Exception {
+        ClassLoader classLoader = IdpMetadataServiceTest.class.getClassLoader();
+        String fileLocation = classLoader.getResource("test-metadata.xml").getFile();
+        IdPMetadata idpMetadata = new IdPMetadata("http://mockidp.localhost", null, fileLocation);
+
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(1, idpMetadata.getSnapshot().getCertificates(UsageType.SIGNING).size());
+        }
+        Assertions.assertEquals(2, idpMetadata.getMetadataCertificateParseCount());
+
+        X509Certificate signingCertificate = idpMetadata.getSnapshot().getCertificates(UsageType.SIGNING).get(0);
+        String encoded = Base64.getEncoder().encodeToString(signingCertificate.getEncoded());
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(signingCertificate, idpMetadata.getKeyInfoCertificate(encoded));
+        }
+        Assertions.assertEquals(1, idpMetadata.getKeyInfoCertificateParseCount());
+        Assertions.assertEquals(2, idpMetadata.getKeyInfoCertificateCacheHitCount());
+    }
+
+    @DisplayName("Test that revocation check results are reused, and all certificates are valid when checks are disabled")
+    @Test
+    public void testRevocationCheckResultReused() throws Exception {
+        ClassLoader classLoader = IdpMetadataServiceTest.class.getClassLoader();
+        String fileLocation = classLoader.getResource("test-metadata.xml").getFile();
+        IdPMetadata idpMetadata = new IdPMetadata("http://mockidp.localhost", null, fileLocation);
+
+        Configuration config = OIOSAML3Service.getConfig();
+        boolean crlCheckEnabled = config.isCRLCheckEnabled();
+        boolean ocspCheckEnabled = config.isOcspCheckEnabled();
+        try {
+            config.setCRLCheckEnabled(false);
+            config.setOcspCheckEnabled(false);
+            Assertions.assertEquals(idpMetadata.getSnapshot().getCertificates(UsageType.SIGNING), idpMetadata.getValidX509Certificates(UsageType.SIGNING));
+            Assertions.assertEquals(0, idpMetadata.getRevocationCheckCount());
+
+            // The first request waits for a check in the background, later requests are served the result
+            config.setCRLCheckEnabled(true);
+            List<X509Certificate> valid = idpMetadata.getValidX509Certificates(UsageType.SIGNING);
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertEquals(valid, idpMetadata.getValidX509Certificates(UsageType.SIGNING));
+            }
+            Assertions.assertEquals(1, idpMetadata.getRevocationCheckCount());
+            Assertions.assertNotNull(idpMetadata.getLastCRLCheck());
+        }
+        finally {
+            config.setCRLCheckEnabled(crlCheckEnabled);
+            config.setOcspCheckEnabled(ocspCheckEnabled);
+        }
+    }
+
+    @DisplayName("Test that the first revocation check is made in the background when the metadata is loaded")
+    @Test
+    public void testInitialRevocationCheckInBackground() throws Exception {
+        ClassLoader classLoader = IdpMetadataServiceTest.class.getClassLoader();
+        String fileLocation = classLoader.getResource("test-metadata.xml").getFile();
+
+        Configuration config = OIOSAML3Service.getConfig();
+        boolean crlCheckEnabled = config.isCRLCheckEnabled();
+        try {
+            config.setCRLCheckEnabled(true);
+            IdPMetadata idpMetadata = new IdPMetadata("http://mockidp.localhost", null, fileLocation);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (idpMetadata.getLastCRLCheck() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertNotNull(idpMetadata.getLastCRLCheck());
+
+            idpMetadata.getValidX509Certificates(UsageType.SIGNING);
+            Assertions.assertEquals(1, idpMetadata.getRevocationCheckCount());
+        }
+        finally {
+            config.setCRLCheckEnabled(crlCheckEnabled);
+        }
+    }
+
     private void testSingleLogoutResponseLocation(String idpMetadataFileLocation, String expectedUri) throws ExternalException, InternalException {
         ClassLoader classLoader = IdpMetadataServiceTest.class.getClassLoader();
         String fileLocation = classLoader.getResource(idpMetadataFileLocation).getFile();
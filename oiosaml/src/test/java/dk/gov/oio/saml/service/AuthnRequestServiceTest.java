@@ -108,6 +108,67 @@ public class AuthnRequestServiceTest {
         Assertions.assertTrue(actual.getMessage().contains("Missing configuration for '" + Constants.SP_APPSWITCH_RETURNURL_ANDROID));
     }
 
+    @DisplayName("AuthnRequests created from the same template differ only in ID and IssueInstant")
+    @Test
+    public void createMessageFromTemplate() throws Exception {
+        AuthnRequestService service = AuthnRequestService.getInstance();
+
+        AuthnRequest first = (AuthnRequest) service.createMessageWithAuthnRequest(false, true, NSISLevel.SUBSTANTIAL, Constants.ATTRIBUTE_PROFILE_PERSON, null, null).getMessage();
+        AuthnRequest second = (AuthnRequest) service.createMessageWithAuthnRequest(false, true, NSISLevel.SUBSTANTIAL, Constants.ATTRIBUTE_PROFILE_PERSON, null, null).getMessage();
+        AuthnRequest passive = (AuthnRequest) service.createMessageWithAuthnRequest(true, true, NSISLevel.SUBSTANTIAL, Constants.ATTRIBUTE_PROFILE_PERSON, null, null).getMessage();
+
+        Assertions.assertNotEquals(first.getID(), second.getID());
+        Assertions.assertNotNull(second.getIssueInstant());
+        Assertions.assertEquals(first.getDestination(), second.getDestination());
+        Assertions.assertEquals(TestConstants.SP_ENTITY_ID, second.getIssuer().getValue());
+        Assertions.assertEquals(2, second.getRequestedAuthnContext().getAuthnContextClassRefs().size());
+        Assertions.assertTrue(second.isForceAuthn());
+        Assertions.assertFalse(second.isPassive());
+        Assertions.assertTrue(passive.isPassive());
+
+        // The DOM of the template copy is kept, so the request is not marshalled again
+        Assertions.assertNotNull(second.getDOM());
+        Assertions.assertEquals(second.getID(), second.getDOM().getAttributeNS(null, AuthnRequest.ID_ATTRIB_NAME));
+    }
+
+    @DisplayName("AuthnRequests created from templates match AuthnRequests created without templates")
+    @Test
+    public void createMessageWithoutTemplate() throws Exception {
+        AuthnRequestService service = AuthnRequestService.getInstance();
+        Configuration configuration = OIOSAML3Service.getConfig();
+        int cacheSize = configuration.getAuthnRequestTemplateCacheSize();
+        try {
+            AuthnRequest template = (AuthnRequest) service.createMessageWithAuthnRequest(false, true, NSISLevel.SUBSTANTIAL, Constants.ATTRIBUTE_PROFILE_PERSON, null, null).getMessage();
+
+            configuration.setAuthnRequestTemplateCacheSize(0);
+            AuthnRequest scratch = (AuthnRequest) service.createMessageWithAuthnRequest(false, true, NSISLevel.SUBSTANTIAL, Constants.ATTRIBUTE_PROFILE_PERSON, null, null).getMessage();
+
+            Assertions.assertNull(scratch.getDOM());
+            Assertions.assertEquals(scratch.getDestination(), template.getDestination());
+            Assertions.assertEquals(scratch.getAssertionConsumerServiceURL(), template.getAssertionConsumerServiceURL());
+            Assertions.assertEquals(scratch.getProtocolBinding(), template.getProtocolBinding());
+            Assertions.assertEquals(scratch.getIssuer().getValue(), template.getIssuer().getValue());
+            Assertions.assertEquals(scratch.isForceAuthn(), template.isForceAuthn());
+            Assertions.assertEquals(scratch.isPassive(), template.isPassive());
+            Assertions.assertEquals(scratch.getRequestedAuthnContext().getAuthnContextClassRefs().size(), template.getRequestedAuthnContext().getAuthnContextClassRefs().size());
+            for (int i = 0; i < scratch.getRequestedAuthnContext().getAuthnContextClassRefs().size(); i++) {
+                Assertions.assertEquals(scratch.getRequestedAuthnContext().getAuthnContextClassRefs().get(i).getURI(), template.getRequestedAuthnContext().getAuthnContextClassRefs().get(i).getURI());
+            }
+
+            // A full cache is cleared, and the requests still follow their arguments
+            configuration.setAuthnRequestTemplateCacheSize(1);
+            for (int i = 0; i < 4; i++) {
+                boolean isPassive = i % 2 == 0;
+                AuthnRequest authnRequest = (AuthnRequest) service.createMessageWithAuthnRequest(isPassive, false, NSISLevel.SUBSTANTIAL, Constants.ATTRIBUTE_PROFILE_PERSON, null, null).getMessage();
+                Assertions.assertEquals(isPassive, authnRequest.isPassive());
+                Assertions.assertFalse(authnRequest.isForceAuthn());
+            }
+        }
+        finally {
+            configuration.setAuthnRequestTemplateCacheSize(cacheSize);
+        }
+    }
+
     private static AppSwitch getAuthnRequest(AppSwitchPlatform appSwitchPlatformEnum) throws InitializationException, InternalException {
         AuthnRequestService service = new AuthnRequestService();
         AuthnRequest authnRequest = service.createAuthnRequest("https://destination.url", false, false, NSISLevel.SUBSTANTIAL, appSwitchPlatformEnum);
@@ -0,0 +1,279 @@
+package dk.gov.oio.saml.service;
+
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CRLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V2TBSCertListGenerator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockserver.client.MockServerClient;
+
+import dk.gov.oio.saml.config.Configuration;
+
+public class CRLCacheServiceTest extends BaseServiceTest {
+    private static final String CRL_URL = "http://localhost:8081/crl/base.crl";
+    private static final String DELTA_CRL_URL = "http://localhost:8081/crl/delta.crl";
+    private static final BigInteger LARGE_SERIAL = BigInteger.ONE.shiftLeft(100).add(BigInteger.TEN);
+
+    private static TestOCSPResponder ca;
+    private static TestOCSPResponder other;
+
+    private MockServerClient idp;
+
+    public CRLCacheServiceTest(MockServerClient idp) {
+        this.idp = idp;
+    }
+
+    @BeforeAll
+    public static void createIssuers() throws Exception {
+        ca = new TestOCSPResponder("Test CA");
+        other = new TestOCSPResponder("Test CA");
+    }
+
+    @AfterAll
+    public static void closeIssuers() {
+        ca.close();
+        other.close();
+    }
+
+    @AfterEach
+    public void resetConfiguration() {
+        idp.clear(request().withPath("/crl/.*"));
+        OIOSAML3Service.getConfig().setCrlCacheDirectory(null);
+        OIOSAML3Service.getConfig().setCrlRefreshMarginMinutes(5);
+    }
+
+    @DisplayName("Test that revoked serial numbers are found in a cached CRL")
+    @Test
+    public void testRevokedSerialLookup() throws Exception {
+        List<ASN1Integer> revoked = new ArrayList<>();
+        revoked.add(new ASN1Integer(1));
+        revoked.add(new ASN1Integer(LARGE_SERIAL));
+        serve("/crl/base.crl", createCRL(ca, 1, null, null, Instant.now().plus(Duration.ofDays(1)), revoked, new ArrayList<>()));
+
+        CRLCacheService crlCacheService = new CRLCacheService(OIOSAML3Service.getConfig());
+
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, LARGE_SERIAL, ca.getIssuer()));
+        Assertions.assertFalse(crlCacheService.isRevoked(CRL_URL, BigInteger.valueOf(2), ca.getIssuer()));
+        Assertions.assertFalse(crlCacheService.isRevoked(CRL_URL, LARGE_SERIAL.add(BigInteger.ONE), ca.getIssuer()));
+
+        Assertions.assertEquals(1, crlCacheService.getDownloadCount());
+        Assertions.assertEquals(3, crlCacheService.getHitCount());
+    }
+
+    @DisplayName("Test that a delta CRL revokes and removes serial numbers of its base CRL")
+    @Test
+    public void testDeltaCRL() throws Exception {
+        Instant nextUpdate = Instant.now().plus(Duration.ofDays(1));
+
+        List<ASN1Integer> revoked = new ArrayList<>();
+        revoked.add(new ASN1Integer(10));
+        revoked.add(new ASN1Integer(20));
+        serve("/crl/base.crl", createCRL(ca, 5, null, DELTA_CRL_URL, nextUpdate, revoked, new ArrayList<>()));
+
+        List<ASN1Integer> deltaRevoked = new ArrayList<>();
+        deltaRevoked.add(new ASN1Integer(11));
+        List<ASN1Integer> deltaRemoved = new ArrayList<>();
+        deltaRemoved.add(new ASN1Integer(10));
+        serve("/crl/delta.crl", createCRL(ca, 6, 5, null, nextUpdate, deltaRevoked, deltaRemoved));
+
+        CRLCacheService crlCacheService = new CRLCacheService(OIOSAML3Service.getConfig());
+
+        Assertions.assertFalse(crlCacheService.isRevoked(CRL_URL, BigInteger.valueOf(10), ca.getIssuer()));
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, BigInteger.valueOf(11), ca.getIssuer()));
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, BigInteger.valueOf(20), ca.getIssuer()));
+        Assertions.assertFalse(crlCacheService.isRevoked(CRL_URL, BigInteger.valueOf(12), ca.getIssuer()));
+
+        Assertions.assertEquals(2, crlCacheService.getDownloadCount());
+    }
+
+    @DisplayName("Test that a persisted CRL is used after a restart without a download")
+    @Test
+    public void testPersistedCRL(@TempDir Path directory) throws Exception {
+        List<ASN1Integer> revoked = new ArrayList<>();
+        revoked.add(new ASN1Integer(1));
+        serve("/crl/base.crl", createCRL(ca, 1, null, null, Instant.now().plus(Duration.ofDays(1)), revoked, new ArrayList<>()));
+
+        Configuration configuration = OIOSAML3Service.getConfig();
+        configuration.setCrlCacheDirectory(directory.toString());
+
+        CRLCacheService crlCacheService = new CRLCacheService(configuration);
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertEquals(1, crlCacheService.getDownloadCount());
+
+        // The distribution point is unavailable after the restart
+        idp.clear(request().withPath("/crl/.*"));
+
+        CRLCacheService restarted = new CRLCacheService(configuration);
+        Assertions.assertTrue(restarted.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertFalse(restarted.isRevoked(CRL_URL, BigInteger.valueOf(2), ca.getIssuer()));
+        Assertions.assertEquals(0, restarted.getDownloadCount());
+        Assertions.assertEquals(2, restarted.getHitCount());
+    }
+
+    @DisplayName("Test that a CRL is refreshed before nextUpdate, and not used after nextUpdate")
+    @Test
+    public void testRefresh() throws Exception {
+        List<ASN1Integer> revoked = new ArrayList<>();
+        revoked.add(new ASN1Integer(1));
+
+        // Within the refresh margin, every lookup downloads the CRL, and a failed download uses the cached CRL
+        serve("/crl/base.crl", createCRL(ca, 1, null, null, Instant.now().plus(Duration.ofMinutes(2)), revoked, new ArrayList<>()));
+        CRLCacheService crlCacheService = new CRLCacheService(OIOSAML3Service.getConfig());
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertEquals(2, crlCacheService.getDownloadCount());
+
+        idp.clear(request().withPath("/crl/.*"));
+        Assertions.assertTrue(crlCacheService.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertEquals(0, crlCacheService.getStaleCount());
+
+        // Past nextUpdate, a CRL that cannot be downloaded again is not used
+        serve("/crl/base.crl", createCRL(ca, 1, null, null, Instant.now().minus(Duration.ofMinutes(1)), revoked, new ArrayList<>()));
+        CRLCacheService expired = new CRLCacheService(OIOSAML3Service.getConfig());
+        Assertions.assertTrue(expired.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+
+        idp.clear(request().withPath("/crl/.*"));
+        Assertions.assertThrows(IOException.class, () -> expired.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertEquals(1, expired.getStaleCount());
+    }
+
+    @DisplayName("Test that a CRL not signed by the issuer is rejected, also when read from the cache directory")
+    @Test
+    public void testCRLSignature(@TempDir Path directory) throws Exception {
+        List<ASN1Integer> revoked = new ArrayList<>();
+        revoked.add(new ASN1Integer(1));
+        Instant nextUpdate = Instant.now().plus(Duration.ofDays(1));
+
+        // Same issuer name, signed with another key
+        serve("/crl/base.crl", createCRL(other, 1, null, null, nextUpdate, revoked, new ArrayList<>()));
+        CRLCacheService crlCacheService = new CRLCacheService(OIOSAML3Service.getConfig());
+        Assertions.assertThrows(CRLException.class, () -> crlCacheService.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+
+        // A tampered CRL in the cache directory is not used, and the CRL is downloaded again
+        Configuration configuration = OIOSAML3Service.getConfig();
+        configuration.setCrlCacheDirectory(directory.toString());
+        serve("/crl/base.crl", createCRL(ca, 1, null, null, nextUpdate, revoked, new ArrayList<>()));
+        Assertions.assertTrue(new CRLCacheService(configuration).isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.write(file, createCRL(other, 1, null, null, nextUpdate, new ArrayList<>(), new ArrayList<>()));
+            }
+        }
+
+        CRLCacheService restarted = new CRLCacheService(configuration);
+        Assertions.assertTrue(restarted.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer()));
+        Assertions.assertEquals(1, restarted.getDownloadCount());
+    }
+
+    @DisplayName("Test that concurrent lookups of a CRL share a single download")
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        List<ASN1Integer> revoked = new ArrayList<>();
+        revoked.add(new ASN1Integer(1));
+        idp.when(request().withMethod("GET").withPath("/crl/base.crl"))
+                .respond(response().withStatusCode(200).withBody(createCRL(ca, 1, null, null, Instant.now().plus(Duration.ofDays(1)), revoked, new ArrayList<>())).withDelay(TimeUnit.MILLISECONDS, 500));
+
+        CRLCacheService crlCacheService = new CRLCacheService(OIOSAML3Service.getConfig());
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        Callable<Boolean> lookup = () -> {
+            start.await();
+            return crlCacheService.isRevoked(CRL_URL, BigInteger.ONE, ca.getIssuer());
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(lookup));
+            }
+            start.countDown();
+
+            for (Future<Boolean> result : results) {
+                Assertions.assertTrue(result.get(10, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        Assertions.assertEquals(1, crlCacheService.getDownloadCount());
+    }
+
+    private void serve(String path, byte[] crl) {
+        idp.clear(request().withPath(path));
+        idp.when(request().withMethod("GET").withPath(path))
+                .respond(response().withStatusCode(200).withBody(crl));
+    }
+
+    private static byte[] createCRL(TestOCSPResponder issuer, int crlNumber, Integer baseCrlNumber, String deltaUrl, Instant nextUpdate, List<ASN1Integer> revoked, List<ASN1Integer> removed) throws Exception {
+        AlgorithmIdentifier algorithm = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+
+        V2TBSCertListGenerator generator = new V2TBSCertListGenerator();
+        generator.setSignature(algorithm);
+        generator.setIssuer(X500Name.getInstance(issuer.getIssuer().getSubjectX500Principal().getEncoded()));
+        generator.setThisUpdate(new Time(Date.from(nextUpdate.minus(Duration.ofDays(1)))));
+        generator.setNextUpdate(new Time(Date.from(nextUpdate)));
+
+        Time revocationDate = new Time(Date.from(nextUpdate.minus(Duration.ofDays(2))));
+        for (ASN1Integer serial : revoked) {
+            generator.addCRLEntry(serial, revocationDate, 0);
+        }
+        for (ASN1Integer serial : removed) {
+            generator.addCRLEntry(serial, revocationDate, CRLReason.removeFromCRL);
+        }
+
+        List<Extension> extensions = new ArrayList<>();
+        extensions.add(new Extension(Extension.cRLNumber, false, new ASN1Integer(crlNumber).getEncoded()));
+        if (baseCrlNumber != null) {
+            extensions.add(new Extension(Extension.deltaCRLIndicator, true, new ASN1Integer(baseCrlNumber).getEncoded()));
+        }
+        if (deltaUrl != null) {
+            GeneralNames names = new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, deltaUrl));
+            CRLDistPoint freshestCrl = new CRLDistPoint(new DistributionPoint[] { new DistributionPoint(new DistributionPointName(names), null, null) });
+            extensions.add(new Extension(Extension.freshestCRL, false, freshestCrl.getEncoded()));
+        }
+        generator.setExtensions(new Extensions(extensions.toArray(new Extension[0])));
+        return issuer.sign(generator.generateTBSCertList());
+    }
+}
@@ -1,5 +1,9 @@
 package dk.gov.oio.saml.service;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import static org.mockserver.model.HttpRequest.request;
 import static org.mockserver.model.HttpResponse.response;
@@ -8,6 +12,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockserver.client.MockServerClient;
 import org.mockserver.junit.jupiter.MockServerExtension;
 import org.mockserver.junit.jupiter.MockServerSettings;
@@ -15,6 +20,8 @@ import org.mockserver.matchers.Times;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 
 import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.model.IdPMetadata;
+import dk.gov.oio.saml.model.IdPMetadataBackingFile;
 import dk.gov.oio.saml.util.TestConstants;
 
 @ExtendWith(MockServerExtension.class)
@@ -31,6 +38,12 @@ public class IdpMetadataServiceTest extends BaseServiceTest {
         IdPMetadataService.getInstance().clear(TestConstants.IDP_ENTITY_ID);
     }
 
+    @AfterEach
+    public void resetConfiguration() {
+        OIOSAML3Service.getConfig().setIdpMetadataCacheDirectory(null);
+        idp.clear(request().withPath("/saml/cached/metadata"));
+    }
+
     @DisplayName("Test retrieving metadata from file")
     @Test
     public void testGetMetadataFromFile() throws Exception {
@@ -91,4 +104,66 @@ public class IdpMetadataServiceTest extends BaseServiceTest {
         EntityDescriptor entityDescriptor = IdPMetadataService.getInstance().getIdPMetadata(entityID).getEntityDescriptor();
         Assertions.assertNull(entityDescriptor);
     }
+
+    @DisplayName("Test that metadata is kept in a backing file, refreshed conditionally and read from it after a restart")
+    @Test
+    public void testGetMetadataFromBackingFile(@TempDir Path directory) throws Exception {
+        OIOSAML3Service.getConfig().setIdpMetadataCacheDirectory(directory.toString());
+        String url = "http://localhost:8081/saml/cached/metadata";
+
+        idp.when(request().withMethod("GET").withPath("/saml/cached/metadata"), Times.exactly(1))
+            .respond(response().withStatusCode(200).withHeader("ETag", "\"1\"").withBody(TestConstants.IDP_METADATA));
+        idp.when(request().withMethod("GET").withPath("/saml/cached/metadata").withHeader("If-None-Match", "\"1\""), Times.exactly(1))
+            .respond(response().withStatusCode(304));
+
+        IdPMetadata idPMetadata = new IdPMetadata(TestConstants.IDP_ENTITY_ID, url, null);
+        IdPMetadataBackingFile backingFile = idPMetadata.getBackingFile();
+        Assertions.assertEquals(TestConstants.IDP_ENTITY_ID, idPMetadata.getEntityDescriptor().getEntityID());
+        Assertions.assertTrue(backingFile.exists());
+        Assertions.assertEquals(IdPMetadataBackingFile.RefreshOutcome.UPDATED, backingFile.getLastRefreshOutcome());
+
+        Assertions.assertEquals(IdPMetadataBackingFile.RefreshOutcome.NOT_MODIFIED, backingFile.refresh());
+        Assertions.assertEquals(1, backingFile.getUpdateCount());
+        Assertions.assertEquals(1, backingFile.getNotModifiedCount());
+        Assertions.assertNotNull(backingFile.getMetadataAge());
+
+        // After a restart the IdP is unavailable, the metadata is read from the backing file
+        idp.when(request().withMethod("GET").withPath("/saml/cached/metadata"))
+            .respond(response().withStatusCode(500));
+
+        IdPMetadata restarted = new IdPMetadata(TestConstants.IDP_ENTITY_ID, url, null);
+        Assertions.assertEquals(TestConstants.IDP_ENTITY_ID, restarted.getEntityDescriptor().getEntityID());
+        Assertions.assertEquals(backingFile.getFile(), restarted.getBackingFile().getFile());
+    }
+
+    @DisplayName("Test that metadata is only refreshed conditionally with the validators sent by the IdP, also after a restart")
+    @Test
+    public void testBackingFileValidators(@TempDir Path directory) throws Exception {
+        OIOSAML3Service.getConfig().setIdpMetadataCacheDirectory(directory.toString());
+        String url = "http://localhost:8081/saml/validators/metadata";
+
+        // The IdP sends no Last-Modified, so a request with If-Modified-Since would use a local time
+        idp.when(request().withMethod("GET").withPath("/saml/validators/metadata").withHeader("If-Modified-Since", ".*"))
+            .respond(response().withStatusCode(500));
+        idp.when(request().withMethod("GET").withPath("/saml/validators/metadata").withHeader("If-None-Match", "\"2\""))
+            .respond(response().withStatusCode(304));
+        idp.when(request().withMethod("GET").withPath("/saml/validators/metadata"))
+            .respond(response().withStatusCode(200).withHeader("ETag", "\"2\"").withBody(TestConstants.IDP_METADATA));
+
+        IdPMetadata idPMetadata = new IdPMetadata(TestConstants.IDP_ENTITY_ID, url, null);
+        Assertions.assertEquals(TestConstants.IDP_ENTITY_ID, idPMetadata.getEntityDescriptor().getEntityID());
+        Assertions.assertEquals(IdPMetadataBackingFile.RefreshOutcome.UPDATED, idPMetadata.getBackingFile().getLastRefreshOutcome());
+
+        // The ETag is kept next to the backing file
+        IdPMetadata restarted = new IdPMetadata(TestConstants.IDP_ENTITY_ID, url, null);
+        Assertions.assertEquals(TestConstants.IDP_ENTITY_ID, restarted.getEntityDescriptor().getEntityID());
+        Assertions.assertEquals(IdPMetadataBackingFile.RefreshOutcome.NOT_MODIFIED, restarted.getBackingFile().getLastRefreshOutcome());
+
+        // Without the validators, the metadata is fetched unconditionally
+        Path file = restarted.getBackingFile().getFile();
+        Files.delete(file.resolveSibling(file.getFileName() + ".properties"));
+        IdPMetadata unconditional = new IdPMetadata(TestConstants.IDP_ENTITY_ID, url, null);
+        Assertions.assertEquals(TestConstants.IDP_ENTITY_ID, unconditional.getEntityDescriptor().getEntityID());
+        Assertions.assertEquals(IdPMetadataBackingFile.RefreshOutcome.UPDATED, unconditional.getBackingFile().getLastRefreshOutcome());
+    }
 }
@@ -0,0 +1,142 @@
+package dk.gov.oio.saml.service;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dk.gov.oio.saml.config.Configuration;
+
+public class IssuerCertificateServiceTest extends BaseServiceTest {
+
+    @AfterEach
+    public void resetConfiguration() {
+        OIOSAML3Service.getConfig().setIssuerCertificateCacheDirectory(null);
+        OIOSAML3Service.getConfig().setIssuerCertificateCacheSize(100);
+    }
+
+    @DisplayName("Test that concurrent requests for the same CA certificate download it once")
+    @Test
+    public void testSingleDownload() throws Exception {
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            IssuerCertificateService issuerCertificateService = new IssuerCertificateService(OIOSAML3Service.getConfig());
+
+            int threads = 8;
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<X509Certificate>> futures = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        return issuerCertificateService.getCertificate(responder.getIssuerUrl());
+                    }));
+                }
+                start.countDown();
+
+                for (Future<X509Certificate> future : futures) {
+                    Assertions.assertEquals(responder.getIssuer(), future.get());
+                }
+            }
+            finally {
+                executor.shutdown();
+            }
+
+            Assertions.assertEquals(1, issuerCertificateService.getDownloadCount());
+        }
+    }
+
+    @DisplayName("Test that the number of cached CA certificates is bounded")
+    @Test
+    public void testBoundedSize() throws Exception {
+        OIOSAML3Service.getConfig().setIssuerCertificateCacheSize(2);
+
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            IssuerCertificateService issuerCertificateService = new IssuerCertificateService(OIOSAML3Service.getConfig());
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertNotNull(issuerCertificateService.getCertificate(responder.getIssuerUrl() + "?" + i));
+            }
+
+            Assertions.assertEquals(2, issuerCertificateService.getSize());
+            Assertions.assertEquals(3, issuerCertificateService.getDownloadCount());
+        }
+    }
+
+    @DisplayName("Test that a persisted CA certificate is used after a restart without a download")
+    @Test
+    public void testPersistedCertificate(@TempDir Path directory) throws Exception {
+        Configuration configuration = OIOSAML3Service.getConfig();
+        configuration.setIssuerCertificateCacheDirectory(directory.toString());
+
+        String url;
+        X509Certificate issuer;
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            url = responder.getIssuerUrl();
+            issuer = responder.getIssuer();
+            Assertions.assertEquals(issuer, new IssuerCertificateService(configuration).getCertificate(url));
+        }
+
+        IssuerCertificateService restarted = new IssuerCertificateService(configuration);
+        Assertions.assertEquals(issuer, restarted.getCertificate(url));
+        Assertions.assertEquals(0, restarted.getDownloadCount());
+    }
+
+    @DisplayName("Test that a failed download is not retried on every request")
+    @Test
+    public void testFailedDownloadBackoff() throws Exception {
+        String url;
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            url = responder.getIssuerUrl();
+        }
+
+        IssuerCertificateService issuerCertificateService = new IssuerCertificateService(OIOSAML3Service.getConfig());
+        Assertions.assertNull(issuerCertificateService.getCertificate(url));
+        Assertions.assertNull(issuerCertificateService.getCertificate(url));
+        Assertions.assertEquals(1, issuerCertificateService.getFailedDownloadCount());
+        Assertions.assertEquals(0, issuerCertificateService.getHitCount());
+    }
+
+    @DisplayName("Test that a CA certificate older than the time to live is used while the CA is unavailable")
+    @Test
+    public void testStaleCertificate(@TempDir Path directory) throws Exception {
+        Configuration configuration = OIOSAML3Service.getConfig();
+        configuration.setIssuerCertificateCacheDirectory(directory.toString());
+
+        String url;
+        X509Certificate issuer;
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            url = responder.getIssuerUrl();
+            issuer = responder.getIssuer();
+            Assertions.assertEquals(issuer, new IssuerCertificateService(configuration).getCertificate(url));
+        }
+
+        // Downloaded before the time to live
+        FileTime downloaded = FileTime.from(Instant.now().minus(Duration.ofMinutes(configuration.getIssuerCertificateCacheTtlMinutes() + 1)));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.setLastModifiedTime(file, downloaded);
+            }
+        }
+
+        IssuerCertificateService restarted = new IssuerCertificateService(configuration);
+        Assertions.assertEquals(issuer, restarted.getCertificate(url));
+        Assertions.assertEquals(issuer, restarted.getCertificate(url));
+        Assertions.assertEquals(1, restarted.getFailedDownloadCount());
+        Assertions.assertEquals(1, restarted.getHitCount());
+    }
+}
@@ -0,0 +1,96 @@
+package dk.gov.oio.saml.service;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.InternalException;
+import dk.gov.oio.saml.util.TestConstants;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+class MessageTraceServiceTest {
+    private static final String XML = "<samlp:LogoutRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_%d\"/>";
+
+    @DisplayName("Test that the buffer keeps the most recent messages, oldest first")
+    @Test
+    void testBuffer() throws Exception {
+        MessageTraceService messageTraceService = new MessageTraceService(createConfiguration(3, null));
+
+        for (int i = 1; i <= 5; i++) {
+            messageTraceService.trace("IncomingLogoutRequest", encode(String.format(XML, i), false), false);
+        }
+
+        List<MessageTraceService.TracedMessage> messages = messageTraceService.getMessages();
+        Assertions.assertEquals(5, messageTraceService.getTracedCount());
+        Assertions.assertEquals(3, messages.size());
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(i + 3, messages.get(i).getSequence());
+            Assertions.assertEquals(String.format(XML, i + 3), messages.get(i).getMessageAsString());
+        }
+    }
+
+    @DisplayName("Test that deflated messages from the HTTP-Redirect binding are inflated when dumped")
+    @Test
+    void testDumpDeflated() throws Exception {
+        MessageTraceService messageTraceService = new MessageTraceService(createConfiguration(10, null));
+        messageTraceService.trace("IncomingLogoutRequest", encode(String.format(XML, 1), true), true);
+
+        StringWriter writer = new StringWriter();
+        messageTraceService.dump(new PrintWriter(writer));
+
+        Assertions.assertTrue(writer.toString().startsWith("#1 "), writer.toString());
+        Assertions.assertTrue(writer.toString().contains(" IncomingLogoutRequest"), writer.toString());
+        Assertions.assertTrue(writer.toString().contains(String.format(XML, 1)), writer.toString());
+    }
+
+    @DisplayName("Test that endpoints are sampled at the configured rate")
+    @Test
+    void testSampleRates() throws Exception {
+        MessageTraceService messageTraceService = new MessageTraceService(createConfiguration(10, "IncomingResponse:0,OutgoingAuthnRequest:0.5,*:1"));
+
+        int traced = 0;
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertFalse(messageTraceService.isTraced("IncomingResponse"));
+            Assertions.assertTrue(messageTraceService.isTraced("IncomingLogoutResponse"));
+            if (messageTraceService.isTraced("OutgoingAuthnRequest")) {
+                traced++;
+            }
+        }
+        Assertions.assertTrue(traced > 300 && traced < 700, "Traced " + traced);
+    }
+
+    private String encode(String xml, boolean deflate) throws Exception {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        if (deflate) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (DeflaterOutputStream out = new DeflaterOutputStream(buffer, new Deflater(Deflater.DEFLATED, true))) {
+                out.write(bytes);
+            }
+            bytes = buffer.toByteArray();
+        }
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private Configuration createConfiguration(int bufferSize, String sampleRates) throws InternalException {
+        Configuration configuration = new Configuration.Builder()
+                .setSpEntityID(TestConstants.SP_ENTITY_ID)
+                .setBaseUrl(TestConstants.SP_BASE_URL)
+                .setIdpEntityID(TestConstants.IDP_ENTITY_ID)
+                .setIdpMetadataUrl(TestConstants.IDP_METADATA_URL)
+                .setKeystoreLocation(TestConstants.SP_KEYSTORE_LOCATION)
+                .setKeystorePassword(TestConstants.SP_KEYSTORE_PASSWORD)
+                .setKeyAlias(TestConstants.SP_KEYSTORE_ALIAS)
+                .build();
+        configuration.setMessageTraceBufferSize(bufferSize);
+        configuration.setMessageTraceSampleRates(sampleRates);
+        return configuration;
+    }
+}
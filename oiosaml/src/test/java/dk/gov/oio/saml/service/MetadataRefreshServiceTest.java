@@ -0,0 +1,128 @@
+package dk.gov.oio.saml.service;
+
+import static org.mockserver.model.HttpRequest.request;
+import static org.mockserver.model.HttpResponse.response;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockserver.client.MockServerClient;
+import org.mockserver.matchers.Times;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.model.IdPMetadata;
+import dk.gov.oio.saml.model.IdPMetadataBackingFile;
+import dk.gov.oio.saml.model.IdPMetadataSnapshot;
+import dk.gov.oio.saml.util.ExternalException;
+import dk.gov.oio.saml.util.TestConstants;
+
+public class MetadataRefreshServiceTest extends BaseServiceTest {
+    private static final String METADATA_URL = "http://localhost:8081/saml/refresh/metadata";
+
+    private MockServerClient idp;
+
+    public MetadataRefreshServiceTest(MockServerClient idp) {
+        this.idp = idp;
+    }
+
+    @AfterEach
+    public void resetConfiguration() {
+        OIOSAML3Service.getConfig().setIdpMetadataMaxStalenessMinutes(1440);
+        OIOSAML3Service.getConfig().setIdpMetadataCacheDirectory(null);
+        idp.clear(request().withPath("/saml/refresh/metadata"));
+    }
+
+    @DisplayName("Test that the backoff grows exponentially with jitter up to the maximum")
+    @Test
+    public void testBackoff() {
+        Configuration configuration = OIOSAML3Service.getConfig();
+        configuration.setIdpMetadataMaxBackoffMinutes(1);
+        MetadataRefreshService metadataRefreshService = new MetadataRefreshService(configuration);
+        configuration.setIdpMetadataMaxBackoffMinutes(10);
+
+        for (int i = 0; i < 10; i++) {
+            long first = metadataRefreshService.getBackoffMillis(0);
+            Assertions.assertTrue(first >= 5000 && first <= 10000, "Backoff " + first);
+
+            long second = metadataRefreshService.getBackoffMillis(1);
+            Assertions.assertTrue(second >= 10000 && second <= 20000, "Backoff " + second);
+
+            long capped = metadataRefreshService.getBackoffMillis(30);
+            Assertions.assertTrue(capped >= 30000 && capped <= 60000, "Backoff " + capped);
+        }
+    }
+
+    @DisplayName("Test that requests use the last good metadata when a refresh fails, until it is older than the maximum staleness")
+    @Test
+    public void testLastGoodMetadata() throws Exception {
+        idp.when(request().withMethod("GET").withPath("/saml/refresh/metadata"), Times.exactly(1))
+            .respond(response().withStatusCode(200).withBody(TestConstants.IDP_METADATA));
+        idp.when(request().withMethod("GET").withPath("/saml/refresh/metadata"))
+            .respond(response().withStatusCode(500));
+
+        IdPMetadata idPMetadata = new IdPMetadata(TestConstants.IDP_ENTITY_ID, METADATA_URL, null);
+        IdPMetadataSnapshot snapshot = idPMetadata.getSnapshot();
+
+        Assertions.assertFalse(idPMetadata.refreshMetadata());
+        Assertions.assertSame(snapshot, idPMetadata.getSnapshot());
+
+        OIOSAML3Service.getConfig().setIdpMetadataMaxStalenessMinutes(0);
+        Assertions.assertThrows(ExternalException.class, idPMetadata::getSnapshot);
+    }
+
+    @DisplayName("Test that a failed fetch into the backing file fails the refresh, and the metadata expires after the maximum staleness")
+    @Test
+    public void testLastGoodMetadataFromBackingFile(@TempDir Path directory) throws Exception {
+        OIOSAML3Service.getConfig().setIdpMetadataCacheDirectory(directory.toString());
+
+        idp.when(request().withMethod("GET").withPath("/saml/refresh/metadata"), Times.exactly(1))
+            .respond(response().withStatusCode(200).withBody(TestConstants.IDP_METADATA));
+        idp.when(request().withMethod("GET").withPath("/saml/refresh/metadata"))
+            .respond(response().withStatusCode(500));
+
+        IdPMetadata idPMetadata = new IdPMetadata(TestConstants.IDP_ENTITY_ID, METADATA_URL, null);
+        IdPMetadataSnapshot snapshot = idPMetadata.getSnapshot();
+
+        Assertions.assertFalse(idPMetadata.refreshMetadata());
+        Assertions.assertEquals(IdPMetadataBackingFile.RefreshOutcome.FAILED, idPMetadata.getBackingFile().getLastRefreshOutcome());
+        Assertions.assertSame(snapshot, idPMetadata.getSnapshot());
+
+        OIOSAML3Service.getConfig().setIdpMetadataMaxStalenessMinutes(0);
+        Assertions.assertThrows(ExternalException.class, idPMetadata::getSnapshot);
+    }
+
+    @DisplayName("Test that only one refresh of an IdP is pending, and a failed refresh is retried later")
+    @Test
+    public void testSingleFlight() throws Exception {
+        idp.when(request().withMethod("GET").withPath("/saml/refresh/metadata"), Times.exactly(1))
+            .respond(response().withStatusCode(200).withBody(TestConstants.IDP_METADATA));
+        idp.when(request().withMethod("GET").withPath("/saml/refresh/metadata"))
+            .respond(response().withStatusCode(500));
+
+        IdPMetadata idPMetadata = new IdPMetadata(TestConstants.IDP_ENTITY_ID, METADATA_URL, null);
+        MetadataRefreshService metadataRefreshService = new MetadataRefreshService(OIOSAML3Service.getConfig());
+        try {
+            for (int i = 0; i < 5; i++) {
+                metadataRefreshService.requestRefresh(idPMetadata);
+            }
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (metadataRefreshService.getFailedRefreshCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // The retry is at least 5 seconds later, and requests do not cause another refresh meanwhile
+            metadataRefreshService.requestRefresh(idPMetadata);
+            Thread.sleep(100);
+            Assertions.assertEquals(1, metadataRefreshService.getRefreshCount());
+            Assertions.assertEquals(1, metadataRefreshService.getFailedRefreshCount());
+        }
+        finally {
+            metadataRefreshService.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package dk.gov.oio.saml.service;
+
+import java.math.BigInteger;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import dk.gov.oio.saml.util.ExternalException;
+
+public class OCSPServiceTest extends BaseServiceTest {
+
+    @AfterEach
+    public void resetConfiguration() {
+        OIOSAML3Service.getConfig().setCRLCheckEnabled(false);
+        OIOSAML3Service.getConfig().setOcspCheckEnabled(false);
+    }
+
+    @DisplayName("Test that good and revoked certificates are reported by the OCSP responder")
+    @Test
+    public void testGoodAndRevokedCertificate() throws Exception {
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            X509Certificate good = responder.issue(BigInteger.valueOf(100));
+            X509Certificate revoked = responder.issue(BigInteger.valueOf(101));
+            responder.revoke(revoked.getSerialNumber());
+
+            OCSPService ocspService = new OCSPService(OIOSAML3Service.getConfig());
+            try {
+                Assertions.assertFalse(ocspService.isRevoked(good, responder.getIssuer(), responder.getUrl()));
+                Assertions.assertTrue(ocspService.isRevoked(revoked, responder.getIssuer(), responder.getUrl()));
+                Assertions.assertEquals(2, ocspService.getRequestCount());
+            }
+            finally {
+                ocspService.close();
+            }
+        }
+    }
+
+    @DisplayName("Test that responses are cached until nextUpdate, and responses without nextUpdate are not cached")
+    @Test
+    public void testCachedResponse() throws Exception {
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            X509Certificate certificate = responder.issue(BigInteger.valueOf(100));
+
+            OCSPService ocspService = new OCSPService(OIOSAML3Service.getConfig());
+            try {
+                Assertions.assertFalse(ocspService.isRevoked(certificate, responder.getIssuer(), responder.getUrl()));
+                Assertions.assertFalse(ocspService.isRevoked(certificate, responder.getIssuer(), responder.getUrl()));
+                Assertions.assertEquals(1, responder.getRequestCount());
+                Assertions.assertEquals(1, ocspService.getCacheHitCount());
+            }
+            finally {
+                ocspService.close();
+            }
+
+            responder.setNextUpdate(null);
+            OCSPService uncached = new OCSPService(OIOSAML3Service.getConfig());
+            try {
+                Assertions.assertFalse(uncached.isRevoked(certificate, responder.getIssuer(), responder.getUrl()));
+                Assertions.assertFalse(uncached.isRevoked(certificate, responder.getIssuer(), responder.getUrl()));
+                Assertions.assertEquals(3, responder.getRequestCount());
+                Assertions.assertEquals(0, uncached.getCacheHitCount());
+            }
+            finally {
+                uncached.close();
+            }
+        }
+    }
+
+    @DisplayName("Test that a response which is not signed by the issuer is rejected")
+    @Test
+    public void testResponseFromOtherIssuer() throws Exception {
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA"); TestOCSPResponder other = new TestOCSPResponder("Other OCSP CA")) {
+            X509Certificate certificate = responder.issue(BigInteger.valueOf(100));
+
+            OCSPService ocspService = new OCSPService(OIOSAML3Service.getConfig());
+            try {
+                Assertions.assertThrows(ExternalException.class, () -> ocspService.isRevoked(certificate, other.getIssuer(), responder.getUrl()));
+            }
+            finally {
+                ocspService.close();
+            }
+        }
+    }
+
+    @DisplayName("Test that a response without nextUpdate is rejected when its thisUpdate is older than the clock skew")
+    @Test
+    public void testOldResponseWithoutNextUpdate() throws Exception {
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            X509Certificate certificate = responder.issue(BigInteger.valueOf(100));
+            responder.setNextUpdate(null);
+            responder.setThisUpdateAge(Duration.ofMinutes(OIOSAML3Service.getConfig().getClockSkew() + 1));
+
+            OCSPService ocspService = new OCSPService(OIOSAML3Service.getConfig());
+            try {
+                Assertions.assertThrows(ExternalException.class, () -> ocspService.isRevoked(certificate, responder.getIssuer(), responder.getUrl()));
+
+                // An old response with nextUpdate is still current
+                responder.setNextUpdate(Duration.ofHours(1));
+                Assertions.assertFalse(ocspService.isRevoked(certificate, responder.getIssuer(), responder.getUrl()));
+            }
+            finally {
+                ocspService.close();
+            }
+        }
+    }
+
+    @DisplayName("Test that CRLChecker checks certificates in parallel using OCSP without setting security properties")
+    @Test
+    public void testCheckCertificates() throws Exception {
+        OIOSAML3Service.getConfig().setCRLCheckEnabled(false);
+        OIOSAML3Service.getConfig().setOcspCheckEnabled(true);
+        String responderURL = Security.getProperty("ocsp.responderURL");
+
+        try (TestOCSPResponder responder = new TestOCSPResponder("Test OCSP CA")) {
+            List<X509Certificate> certificates = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                certificates.add(responder.issue(BigInteger.valueOf(100 + i)));
+            }
+            responder.revoke(BigInteger.valueOf(102));
+
+            Set<X509Certificate> validCertificates = CRLChecker.checkCertificates(certificates, null);
+
+            Assertions.assertEquals(3, validCertificates.size());
+            Assertions.assertFalse(validCertificates.contains(certificates.get(2)));
+            Assertions.assertEquals(4, responder.getRequestCount());
+            Assertions.assertEquals(responderURL, Security.getProperty("ocsp.responderURL"));
+        }
+    }
+}
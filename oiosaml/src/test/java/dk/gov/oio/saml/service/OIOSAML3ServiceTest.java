@@ -4,10 +4,12 @@ import dk.gov.oio.saml.config.Configuration;
 import dk.gov.oio.saml.session.TestSessionHandlerFactory;
 import dk.gov.oio.saml.util.InternalException;
 import dk.gov.oio.saml.util.TestConstants;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import org.opensaml.core.config.InitializationException;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 
 class OIOSAML3ServiceTest {
 
@@ -68,6 +70,36 @@ class OIOSAML3ServiceTest {
         Assertions.assertNotNull(OIOSAML3Service.getAuditService());
         Assertions.assertNotNull(OIOSAML3Service.getCredentialService());
         Assertions.assertNotNull(OIOSAML3Service.getSessionCleanerService());
+        Assertions.assertNotNull(OIOSAML3Service.getRevocationCheckService());
         Assertions.assertNotNull(OIOSAML3Service.getSessionHandlerFactory().getHandler());
+        Assertions.assertSame(OIOSAML3Service.getParserPool(), XMLObjectProviderRegistrySupport.getParserPool());
     }
-}
\ No newline at end of file
+
+    @DisplayName("Test that the shared metadata HTTP client is rebuilt when OIOSAML is initialized again")
+    @Test
+    void testMetadataHttpClientRebuiltOnInit() throws InternalException, InitializationException {
+        Configuration configuration = new Configuration.Builder()
+                .setSpEntityID(TestConstants.SP_ENTITY_ID)
+                .setBaseUrl(TestConstants.SP_BASE_URL)
+                .setServletRoutingPathPrefix(TestConstants.SP_ROUTING_BASE)
+                .setServletRoutingPathSuffixError(TestConstants.SP_ROUTING_ERROR)
+                .setServletRoutingPathSuffixMetadata(TestConstants.SP_ROUTING_METADATA)
+                .setServletRoutingPathSuffixLogout(TestConstants.SP_ROUTING_LOGOUT)
+                .setServletRoutingPathSuffixLogoutResponse(TestConstants.SP_ROUTING_LOGOUT_RESPONSE)
+                .setServletRoutingPathSuffixAssertion(TestConstants.SP_ROUTING_ASSERTION)
+                .setIdpEntityID(TestConstants.IDP_ENTITY_ID)
+                .setIdpMetadataUrl(TestConstants.IDP_METADATA_URL)
+                .setSessionHandlerFactoryClassName(TestSessionHandlerFactory.class.getName())
+                .setKeystoreLocation(TestConstants.SP_KEYSTORE_LOCATION)
+                .setKeystorePassword(TestConstants.SP_KEYSTORE_PASSWORD)
+                .setKeyAlias(TestConstants.SP_KEYSTORE_ALIAS)
+                .build();
+
+        OIOSAML3Service.init(configuration);
+        CloseableHttpClient httpClient = IdPMetadataService.getInstance().getHttpClient();
+        Assertions.assertSame(httpClient, IdPMetadataService.getInstance().getHttpClient());
+
+        OIOSAML3Service.init(configuration);
+        Assertions.assertNotSame(httpClient, IdPMetadataService.getInstance().getHttpClient());
+    }
+}
@@ -0,0 +1,226 @@
+package dk.gov.oio.saml.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.ocsp.BasicOCSPResponse;
+import org.bouncycastle.asn1.ocsp.CertID;
+import org.bouncycastle.asn1.ocsp.CertStatus;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.ocsp.OCSPRequest;
+import org.bouncycastle.asn1.ocsp.OCSPResponse;
+import org.bouncycastle.asn1.ocsp.OCSPResponseStatus;
+import org.bouncycastle.asn1.ocsp.Request;
+import org.bouncycastle.asn1.ocsp.ResponderID;
+import org.bouncycastle.asn1.ocsp.ResponseBytes;
+import org.bouncycastle.asn1.ocsp.ResponseData;
+import org.bouncycastle.asn1.ocsp.RevokedInfo;
+import org.bouncycastle.asn1.ocsp.SingleResponse;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in OCSP responder for tests. It has its own CA, issues certificates with an authority information access
+ * extension pointing at itself, and answers OCSP requests for them signed by the CA, the issuer of the certificate
+ * is served at /ca.cer.
+ */
+public class TestOCSPResponder implements AutoCloseable {
+    private static final AlgorithmIdentifier SHA256_WITH_RSA = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+
+    private final X500Name name;
+    private final KeyPair keyPair;
+    private final X509Certificate issuer;
+    private final HttpServer server;
+    private final Set<BigInteger> revoked = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile Duration nextUpdate = Duration.ofHours(1);
+    private volatile Duration thisUpdateAge = Duration.ZERO;
+
+    public TestOCSPResponder(String name) throws Exception {
+        this.name = new X500Name("CN=" + name);
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        keyPair = keyPairGenerator.generateKeyPair();
+        issuer = createCertificate(BigInteger.ONE, this.name, null);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ocsp", this::respond);
+        byte[] encodedIssuer = issuer.getEncoded();
+        server.createContext("/ca.cer", exchange -> send(exchange, "application/pkix-cert", encodedIssuer));
+        server.start();
+    }
+
+    public X509Certificate getIssuer() {
+        return issuer;
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/ocsp";
+    }
+
+    public String getIssuerUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/ca.cer";
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public void revoke(BigInteger serialNumber) {
+        revoked.add(serialNumber);
+    }
+
+    /**
+     * @param nextUpdate time until nextUpdate of responses, or null for responses without nextUpdate
+     */
+    public void setNextUpdate(Duration nextUpdate) {
+        this.nextUpdate = nextUpdate;
+    }
+
+    /**
+     * @param thisUpdateAge time from thisUpdate of responses until they are sent
+     */
+    public void setThisUpdateAge(Duration thisUpdateAge) {
+        this.thisUpdateAge = thisUpdateAge;
+    }
+
+    public X509Certificate issue(BigInteger serialNumber) throws Exception {
+        AuthorityInformationAccess authorityInformationAccess = new AuthorityInformationAccess(new AccessDescription[] {
+                new AccessDescription(AccessDescription.id_ad_ocsp, new GeneralName(GeneralName.uniformResourceIdentifier, getUrl())),
+                new AccessDescription(AccessDescription.id_ad_caIssuers, new GeneralName(GeneralName.uniformResourceIdentifier, getIssuerUrl()))
+        });
+        Extensions extensions = new Extensions(new Extension(Extension.authorityInfoAccess, false, authorityInformationAccess.getEncoded()));
+
+        return createCertificate(serialNumber, new X500Name("CN=Test certificate " + serialNumber), extensions);
+    }
+
+    /**
+     * @return CRL signed by the issuer
+     */
+    public byte[] sign(TBSCertList tbsCertList) throws Exception {
+        return signed(tbsCertList);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private X509Certificate createCertificate(BigInteger serialNumber, X500Name subject, Extensions extensions) throws Exception {
+        Instant now = Instant.now();
+
+        V3TBSCertificateGenerator generator = new V3TBSCertificateGenerator();
+        generator.setSerialNumber(new ASN1Integer(serialNumber));
+        generator.setSignature(SHA256_WITH_RSA);
+        generator.setIssuer(name);
+        generator.setSubject(subject);
+        generator.setStartDate(new Time(Date.from(now.minus(Duration.ofDays(1)))));
+        generator.setEndDate(new Time(Date.from(now.plus(Duration.ofDays(365)))));
+        generator.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(keyPair.getPublic().getEncoded()));
+        if (extensions != null) {
+            generator.setExtensions(extensions);
+        }
+
+        byte[] certificate = signed(generator.generateTBSCertificate());
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(certificate));
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+
+        OCSPRequest request;
+        try (InputStream is = exchange.getRequestBody(); ASN1InputStream ais = new ASN1InputStream(is)) {
+            request = OCSPRequest.getInstance(ais.readObject());
+        }
+
+        try {
+            Date now = new Date();
+            Duration validity = nextUpdate;
+
+            ASN1EncodableVector responses = new ASN1EncodableVector();
+            ASN1Sequence requests = request.getTbsRequest().getRequestList();
+            for (int i = 0; i < requests.size(); i++) {
+                CertID certID = Request.getInstance(requests.getObjectAt(i)).getReqCert();
+                CertStatus status = revoked.contains(certID.getSerialNumber().getValue())
+                        ? new CertStatus(new RevokedInfo(new ASN1GeneralizedTime(now), null))
+                        : new CertStatus();
+                ASN1GeneralizedTime thisUpdateTime = new ASN1GeneralizedTime(Date.from(now.toInstant().minus(thisUpdateAge)));
+                ASN1GeneralizedTime nextUpdateTime = (validity != null) ? new ASN1GeneralizedTime(Date.from(now.toInstant().plus(validity))) : null;
+                responses.add(new SingleResponse(certID, status, thisUpdateTime, nextUpdateTime, (Extensions) null));
+            }
+
+            ResponseData responseData = new ResponseData(new ResponderID(name), new ASN1GeneralizedTime(now), new DERSequence(responses), (Extensions) null);
+            BasicOCSPResponse basicResponse = new BasicOCSPResponse(responseData, SHA256_WITH_RSA, new DERBitString(sign(responseData)), null);
+            ResponseBytes responseBytes = new ResponseBytes(OCSPObjectIdentifiers.id_pkix_ocsp_basic, new DEROctetString(basicResponse.getEncoded(ASN1Encoding.DER)));
+            OCSPResponse response = new OCSPResponse(new OCSPResponseStatus(OCSPResponseStatus.SUCCESSFUL), responseBytes);
+
+            send(exchange, "application/ocsp-response", response.getEncoded(ASN1Encoding.DER));
+        }
+        catch (Exception e) {
+            throw new IOException("Could not create OCSP response", e);
+        }
+    }
+
+    private byte[] signed(ASN1Encodable tbs) throws Exception {
+        ASN1EncodableVector signed = new ASN1EncodableVector();
+        signed.add(tbs);
+        signed.add(SHA256_WITH_RSA);
+        signed.add(new DERBitString(sign(tbs)));
+        return new DERSequence(signed).getEncoded(ASN1Encoding.DER);
+    }
+
+    private byte[] sign(ASN1Encodable tbs) throws Exception {
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbs.toASN1Primitive().getEncoded(ASN1Encoding.DER));
+        return signature.sign();
+    }
+
+    private static void send(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
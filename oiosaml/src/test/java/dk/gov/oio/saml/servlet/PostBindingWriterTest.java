@@ -0,0 +1,135 @@
+package dk.gov.oio.saml.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.velocity.app.VelocityEngine;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.messaging.context.MessageContext;
+import org.opensaml.saml.common.binding.SAMLBindingSupport;
+import org.opensaml.saml.common.messaging.context.SAMLEndpointContext;
+import org.opensaml.saml.common.messaging.context.SAMLPeerEntityContext;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.saml2.binding.encoding.impl.HTTPPostEncoder;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.LogoutResponse;
+import org.opensaml.saml.saml2.metadata.SingleSignOnService;
+
+import dk.gov.oio.saml.util.SamlHelper;
+import dk.gov.oio.saml.util.TestConstants;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletResponse;
+
+class PostBindingWriterTest {
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        InitializationService.initialize();
+    }
+
+    @DisplayName("Test that the form posts the base64 encoded message and the escaped relay state to the endpoint")
+    @Test
+    void testWrite() throws Exception {
+        MessageContext messageContext = createMessageContext("_b07b804c7c29ea1673004f244b3b8a0b5a1dc1ac", "https://idp.localhost/slo?a=1&b=2");
+        SAMLBindingSupport.setRelayState(messageContext, "\"><script>");
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        HttpServletResponse response = createResponse(buffer);
+
+        PostBindingWriter.write(response, messageContext);
+
+        String html = new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+        Mockito.verify(response).setContentType("text/html");
+        Assertions.assertTrue(html.contains("<form action=\"https://idp.localhost/slo?a=1&amp;b=2\" method=\"post\">"), html);
+        Assertions.assertTrue(html.contains("name=\"RelayState\" value=\"&#34;&gt;&lt;script&gt;\""), html);
+        Assertions.assertTrue(html.endsWith("</html>\n"), html);
+
+        LogoutResponse logoutResponse = getLogoutResponse(html);
+        Assertions.assertEquals("_b07b804c7c29ea1673004f244b3b8a0b5a1dc1ac", logoutResponse.getID());
+        Assertions.assertEquals(TestConstants.SP_ENTITY_ID, logoutResponse.getIssuer().getValue());
+    }
+
+    @DisplayName("Test that the shared Velocity engine is reused, and posts the same message as the streaming writer")
+    @Test
+    void testSharedVelocityEngine() throws Exception {
+        VelocityEngine velocityEngine = SAMLHandler.getVelocityEngine();
+        Assertions.assertSame(velocityEngine, SAMLHandler.getVelocityEngine());
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            HttpServletResponse response = createResponse(buffer);
+            HTTPPostEncoder encoder = new HTTPPostEncoder();
+            encoder.setHttpServletResponseSupplier(() -> response);
+            encoder.setMessageContext(createMessageContext("_b07b804c7c29ea1673004f244b3b8a0b5a1dc1ac", "https://idp.localhost/slo"));
+            encoder.setVelocityEngine(velocityEngine);
+            encoder.initialize();
+            encoder.encode();
+
+            LogoutResponse logoutResponse = getLogoutResponse(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+            Assertions.assertEquals("_b07b804c7c29ea1673004f244b3b8a0b5a1dc1ac", logoutResponse.getID());
+            Assertions.assertEquals(TestConstants.SP_ENTITY_ID, logoutResponse.getIssuer().getValue());
+        }
+    }
+
+    private static HttpServletResponse createResponse(ByteArrayOutputStream buffer) {
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        try {
+            Mockito.when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener writeListener) {
+                }
+
+                @Override
+                public void write(int b) {
+                    buffer.write(b);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return response;
+    }
+
+    private static LogoutResponse getLogoutResponse(String html) throws Exception {
+        Matcher matcher = Pattern.compile("name=\"SAMLResponse\" value=\"([^\"]*)\"").matcher(html);
+        Assertions.assertTrue(matcher.find(), html);
+        return (LogoutResponse) XMLObjectSupport.unmarshallFromInputStream(
+                XMLObjectProviderRegistrySupport.getParserPool(), new ByteArrayInputStream(Base64.getDecoder().decode(matcher.group(1))));
+    }
+
+    static MessageContext createMessageContext(String id, String destination) {
+        LogoutResponse logoutResponse = SamlHelper.build(LogoutResponse.class);
+        logoutResponse.setID(id);
+        logoutResponse.setDestination(destination);
+        logoutResponse.setIssuer(SamlHelper.build(Issuer.class));
+        logoutResponse.getIssuer().setValue(TestConstants.SP_ENTITY_ID);
+
+        MessageContext messageContext = new MessageContext();
+        messageContext.setMessage(logoutResponse);
+
+        SingleSignOnService endpoint = SamlHelper.build(SingleSignOnService.class);
+        endpoint.setBinding(SAMLConstants.SAML2_POST_BINDING_URI);
+        endpoint.setLocation(destination);
+        messageContext.getSubcontext(SAMLPeerEntityContext.class, true).getSubcontext(SAMLEndpointContext.class, true).setEndpoint(endpoint);
+        return messageContext;
+    }
+}
@@ -0,0 +1,83 @@
+package dk.gov.oio.saml.session;
+
+import dk.gov.oio.saml.service.AssertionService;
+import dk.gov.oio.saml.util.IdpUtil;
+import dk.gov.oio.saml.util.TestConstants;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.Assertion;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.UUID;
+
+class AssertionWrapperTest {
+
+    @DisplayName("Test that compact wrappers return the same representations as the default wrapper")
+    @Test
+    void testCompactRepresentations() throws Exception {
+        Assertion assertion = createAssertion();
+        AssertionWrapper wrapper = new AssertionWrapper(assertion);
+        AssertionWrapper compact = new AssertionWrapper(assertion, true, false);
+        AssertionWrapper compressed = new AssertionWrapper(assertion, true, true);
+
+        Assertions.assertFalse(wrapper.isCompact());
+        Assertions.assertTrue(compact.isCompact());
+        Assertions.assertTrue(compressed.isCompact());
+        for (AssertionWrapper other : new AssertionWrapper[] { compact, compressed }) {
+            Assertions.assertEquals(wrapper.getAssertionAsBase64(), other.getAssertionAsBase64());
+            Assertions.assertEquals(wrapper.getAssertionAsString(), other.getAssertionAsString());
+            Assertions.assertEquals(wrapper.getAssertionAsHtml(), other.getAssertionAsHtml());
+            Assertions.assertEquals(wrapper.getSessionIndex(), other.getSessionIndex());
+        }
+    }
+
+    @DisplayName("Test that compact wrappers use less estimated heap than the default wrapper")
+    @Test
+    void testCompactEstimatedSize() throws Exception {
+        Assertion assertion = createAssertion();
+        long size = new AssertionWrapper(assertion).getEstimatedSize();
+        long compactSize = new AssertionWrapper(assertion, true, false).getEstimatedSize();
+        long compressedSize = new AssertionWrapper(assertion, true, true).getEstimatedSize();
+
+        Assertions.assertTrue(compactSize < size, "Compact " + compactSize + " bytes, default " + size + " bytes");
+        Assertions.assertTrue(compressedSize < compactSize, "Compressed " + compressedSize + " bytes, compact " + compactSize + " bytes");
+    }
+
+    @DisplayName("Test that compact wrappers survive session passivation")
+    @Test
+    void testSerialization() throws Exception {
+        Assertion assertion = createAssertion();
+        AssertionWrapper wrapper = new AssertionWrapper(assertion);
+        AssertionWrapper compressed = new AssertionWrapper(assertion, true, true);
+
+        AssertionWrapper wrapperOutput = serialize(wrapper);
+        AssertionWrapper compressedOutput = serialize(compressed);
+
+        Assertions.assertFalse(wrapperOutput.isCompact());
+        Assertions.assertTrue(compressedOutput.isCompact());
+        Assertions.assertEquals(wrapper.getAssertionAsString(), wrapperOutput.getAssertionAsString());
+        Assertions.assertEquals(wrapper.getAssertionAsBase64(), compressedOutput.getAssertionAsBase64());
+        Assertions.assertEquals(wrapper.getAssertionAsString(), compressedOutput.getAssertionAsString());
+        Assertions.assertEquals(wrapper.getSubjectNameId(), compressedOutput.getSubjectNameId());
+        Assertions.assertEquals(wrapper.getAttributeValues(), compressedOutput.getAttributeValues());
+    }
+
+    private AssertionWrapper serialize(AssertionWrapper wrapper) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(wrapper);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+            return (AssertionWrapper) in.readObject();
+        }
+    }
+
+    private Assertion createAssertion() throws Exception {
+        AssertionService assertionService = new AssertionService();
+        return assertionService.getAssertion(IdpUtil.createResponse(false, true, true,  "NAMEID", TestConstants.SP_ENTITY_ID, TestConstants.SP_ASSERTION_CONSUMER_URL, UUID.randomUUID().toString()));
+    }
+}
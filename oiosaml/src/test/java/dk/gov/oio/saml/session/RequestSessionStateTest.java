@@ -0,0 +1,59 @@
+package dk.gov.oio.saml.session;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RequestSessionStateTest {
+
+    @AfterEach
+    void afterEach() {
+        RequestSessionState.end();
+    }
+
+    @DisplayName("Test that values are loaded once inside a request scope, including null values")
+    @Test
+    void testLoadedOnceInScope() {
+        AtomicInteger loads = new AtomicInteger();
+        long saved = RequestSessionState.getSavedRoundTripCount();
+
+        RequestSessionState.begin();
+        Assertions.assertNull(RequestSessionState.load("assertion:1", () -> { loads.incrementAndGet(); return null; }));
+        Assertions.assertNull(RequestSessionState.load("assertion:1", () -> { loads.incrementAndGet(); return null; }));
+
+        Assertions.assertEquals(1, loads.get());
+        Assertions.assertEquals(saved + 1, RequestSessionState.getSavedRoundTripCount());
+    }
+
+    @DisplayName("Test that values are loaded every time outside a request scope")
+    @Test
+    void testLoadedWithoutScope() {
+        AtomicInteger loads = new AtomicInteger();
+
+        RequestSessionState.load("assertion:1", loads::incrementAndGet);
+        RequestSessionState.load("assertion:1", loads::incrementAndGet);
+
+        Assertions.assertEquals(2, loads.get());
+    }
+
+    @DisplayName("Test that values are reloaded after invalidate and after the scope has ended")
+    @Test
+    void testInvalidateAndEnd() {
+        AtomicInteger loads = new AtomicInteger();
+
+        RequestSessionState.begin();
+        RequestSessionState.load("assertion:1", loads::incrementAndGet);
+        RequestSessionState.invalidate();
+        Assertions.assertEquals(2, (int) RequestSessionState.load("assertion:1", loads::incrementAndGet));
+
+        RequestSessionState.begin();
+        RequestSessionState.end();
+        Assertions.assertEquals(2, (int) RequestSessionState.load("assertion:1", loads::incrementAndGet), "Nested scope must not end outer scope");
+
+        RequestSessionState.end();
+        Assertions.assertEquals(3, (int) RequestSessionState.load("assertion:1", loads::incrementAndGet));
+    }
+}
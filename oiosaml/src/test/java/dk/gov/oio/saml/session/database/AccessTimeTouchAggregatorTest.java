@@ -0,0 +1,115 @@
+package dk.gov.oio.saml.session.database;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+class AccessTimeTouchAggregatorTest {
+    private static final String TABLE = "touch_tbl";
+
+    private JdbcConnectionPool pool;
+    private AccessTimeTouchAggregator aggregator;
+
+    @BeforeAll
+    static void beforeAll() throws ClassNotFoundException {
+        Class.forName("org.hsqldb.jdbc.JDBCDriver");
+    }
+
+    @BeforeEach
+    void beforeEach() throws SQLException {
+        pool = new JdbcConnectionPool(() -> DriverManager.getConnection("jdbc:hsqldb:mem:touch", "SA", ""),
+                0, 2, 1000, 60000, 1);
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS " + TABLE);
+            statement.execute("CREATE TABLE " + TABLE + " (session_id VARCHAR(255) PRIMARY KEY, access_time TIMESTAMP NOT NULL)");
+            statement.execute("INSERT INTO " + TABLE + " VALUES ('a', TIMESTAMP '2000-01-01 00:00:00')");
+            statement.execute("INSERT INTO " + TABLE + " VALUES ('b', TIMESTAMP '2000-01-01 00:00:00')");
+        }
+    }
+
+    @AfterEach
+    void afterEach() {
+        if (null != aggregator) {
+            aggregator.close();
+        }
+        pool.close();
+    }
+
+    @DisplayName("Test that pending touches are written as one statement per table")
+    @Test
+    void testBatchedFlush() throws SQLException {
+        aggregator = new AccessTimeTouchAggregator(pool, 0, 3600000);
+        Timestamp old = Timestamp.valueOf(LocalDateTime.of(2000, 1, 1, 0, 0));
+
+        try (Connection connection = pool.getConnection()) {
+            aggregator.touch(connection, TABLE, "a", old);
+            aggregator.touch(connection, TABLE, "a", old);
+            aggregator.touch(connection, TABLE, "b", old);
+        }
+        Assertions.assertEquals(2, aggregator.getPendingCount());
+        Assertions.assertEquals(1, aggregator.getCoalescedCount());
+        Assertions.assertEquals(old, getAccessTime("a"));
+
+        aggregator.flush();
+
+        Assertions.assertEquals(0, aggregator.getPendingCount());
+        Assertions.assertEquals(1, aggregator.getUpdateStatementCount());
+        Assertions.assertEquals(2, aggregator.getUpdatedRowCount());
+        Assertions.assertTrue(getAccessTime("a").after(old));
+        Assertions.assertTrue(getAccessTime("b").after(old));
+        Assertions.assertEquals(1.0 / 3, aggregator.getWriteAmplification(), 0.0001);
+    }
+
+    @DisplayName("Test that touches are skipped when the stored access time is fresher than the granularity")
+    @Test
+    void testGranularity() throws SQLException {
+        aggregator = new AccessTimeTouchAggregator(pool, 60000, 0);
+
+        try (Connection connection = pool.getConnection()) {
+            aggregator.touch(connection, TABLE, "a", Timestamp.valueOf(LocalDateTime.now()));
+            aggregator.touch(connection, TABLE, "b", Timestamp.valueOf(LocalDateTime.of(2000, 1, 1, 0, 0)));
+        }
+
+        Assertions.assertEquals(1, aggregator.getSkippedCount());
+        Assertions.assertEquals(1, aggregator.getUpdateStatementCount());
+        Assertions.assertEquals(Timestamp.valueOf(LocalDateTime.of(2000, 1, 1, 0, 0)), getAccessTime("a"));
+        Assertions.assertTrue(getAccessTime("b").after(Timestamp.valueOf(LocalDateTime.of(2000, 1, 1, 0, 0))));
+    }
+
+    @DisplayName("Test that discarded touches are not written")
+    @Test
+    void testDiscard() throws SQLException {
+        aggregator = new AccessTimeTouchAggregator(pool, 0, 3600000);
+
+        try (Connection connection = pool.getConnection()) {
+            aggregator.touch(connection, TABLE, "a", null);
+        }
+        aggregator.discard("a");
+        aggregator.flush();
+
+        Assertions.assertEquals(0, aggregator.getUpdateStatementCount());
+    }
+
+    private Timestamp getAccessTime(String sessionId) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement ps = connection.prepareStatement("SELECT access_time FROM " + TABLE + " WHERE session_id = ?")) {
+            ps.setString(1, sessionId);
+            try (ResultSet rs = ps.executeQuery()) {
+                Assertions.assertTrue(rs.next());
+                return rs.getTimestamp(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package dk.gov.oio.saml.session.database;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+class DatabaseDialectTest {
+
+    @DisplayName("Test that the dialect is detected from the database product name")
+    @Test
+    void testDetect() throws SQLException {
+        Assertions.assertEquals(DatabaseDialect.MERGE, detect("HSQL Database Engine"));
+        Assertions.assertEquals(DatabaseDialect.MERGE, detect("H2"));
+        Assertions.assertEquals(DatabaseDialect.MERGE, detect("DB2/LINUXX8664"));
+        Assertions.assertEquals(DatabaseDialect.SQL_SERVER, detect("Microsoft SQL Server"));
+        Assertions.assertEquals(DatabaseDialect.POSTGRESQL, detect("PostgreSQL"));
+        Assertions.assertEquals(DatabaseDialect.MYSQL, detect("MySQL"));
+        Assertions.assertEquals(DatabaseDialect.MYSQL, detect("MariaDB"));
+        Assertions.assertEquals(DatabaseDialect.GENERIC, detect("Oracle"));
+        Assertions.assertEquals(DatabaseDialect.GENERIC, detect(null));
+    }
+
+    @DisplayName("Test that the upsert statements bind every column once, with and without assertion state")
+    @Test
+    void testAssertionUpsert() {
+        for (DatabaseDialect dialect : new DatabaseDialect[] { DatabaseDialect.MERGE, DatabaseDialect.SQL_SERVER, DatabaseDialect.POSTGRESQL, DatabaseDialect.MYSQL }) {
+            String withState = dialect.getAssertionUpsert(true);
+            String withoutState = dialect.getAssertionUpsert(false);
+
+            Assertions.assertEquals(7, countParameters(withState), withState);
+            Assertions.assertEquals(6, countParameters(withoutState), withoutState);
+            Assertions.assertTrue(withState.contains("assertion_state"), withState);
+            Assertions.assertFalse(withoutState.contains("assertion_state"), withoutState);
+            Assertions.assertFalse(withState.contains("SET session_id"), withState);
+        }
+
+        Assertions.assertTrue(DatabaseDialect.MERGE.getAssertionUpsert(true).contains("CAST(? AS BLOB)"));
+        Assertions.assertTrue(DatabaseDialect.SQL_SERVER.getAssertionUpsert(true).endsWith(";"));
+        Assertions.assertTrue(DatabaseDialect.POSTGRESQL.getAssertionUpsert(true).contains("ON CONFLICT (session_id) DO UPDATE SET"));
+        Assertions.assertTrue(DatabaseDialect.MYSQL.getAssertionUpsert(true).contains("ON DUPLICATE KEY UPDATE"));
+        Assertions.assertNull(DatabaseDialect.GENERIC.getAssertionUpsert(true));
+    }
+
+    private static DatabaseDialect detect(String productName) throws SQLException {
+        DatabaseMetaData metaData = Mockito.mock(DatabaseMetaData.class);
+        Mockito.when(metaData.getDatabaseProductName()).thenReturn(productName);
+        Connection connection = Mockito.mock(Connection.class);
+        Mockito.when(connection.getMetaData()).thenReturn(metaData);
+        return DatabaseDialect.detect(connection);
+    }
+
+    private static int countParameters(String sql) {
+        return sql.length() - sql.replace("?", "").length();
+    }
+}
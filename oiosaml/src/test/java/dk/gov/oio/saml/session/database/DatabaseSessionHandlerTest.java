@@ -27,6 +27,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.*;
+import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.UUID;
 import java.util.stream.Stream;
@@ -207,6 +208,93 @@ class DatabaseSessionHandlerTest {
         Assertions.assertEquals(assertionWrapperInput.getAssertionAsBase64(), assertionWrapperOutput.getAssertionAsBase64());
     }
 
+    @DisplayName("Test that stored Assertion is restored from the extracted assertion state")
+    @Test
+    void testStoreAssertionState() throws Exception {
+        AssertionWrapper assertionWrapperInput = new AssertionWrapper(createAssertion());
+
+        sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+
+        AssertionWrapper assertionWrapperOutput = sessionHandler.getAssertion(session);
+        Assertions.assertEquals(assertionWrapperInput.getID(), assertionWrapperOutput.getID());
+        Assertions.assertEquals(assertionWrapperInput.getSessionIndex(), assertionWrapperOutput.getSessionIndex());
+        Assertions.assertEquals(assertionWrapperInput.getSubjectNameId(), assertionWrapperOutput.getSubjectNameId());
+        Assertions.assertEquals(assertionWrapperInput.getNsisLevel(), assertionWrapperOutput.getNsisLevel());
+        Assertions.assertEquals(assertionWrapperInput.getAttributeValues(), assertionWrapperOutput.getAttributeValues());
+        Assertions.assertEquals(assertionWrapperInput.getConditionTimeNotOnOrAfter(), assertionWrapperOutput.getConditionTimeNotOnOrAfter());
+        Assertions.assertEquals(assertionWrapperInput.isSessionExpired(), assertionWrapperOutput.isSessionExpired());
+        Assertions.assertEquals(assertionWrapperInput.getAssertionAsString(), assertionWrapperOutput.getAssertionAsString());
+
+        sessionHandler.logout(session, assertionWrapperInput);
+    }
+
+    @DisplayName("Test that Assertion stored without extracted state can be retrieved")
+    @Test
+    void testStoreAssertionWithoutState() throws Exception {
+        AssertionWrapper assertionWrapperInput = new AssertionWrapper(createAssertion());
+
+        sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement("UPDATE assertions_tbl SET assertion_state = NULL WHERE session_id = ?")) {
+            ps.setString(1, SESSION_ID);
+            ps.executeUpdate();
+        }
+
+        AssertionWrapper assertionWrapperOutput = sessionHandler.getAssertion(session);
+        Assertions.assertEquals(assertionWrapperInput.getAssertionAsBase64(), assertionWrapperOutput.getAssertionAsBase64());
+
+        AssertionWrapper assertionWrapperMigratedOutput = sessionHandler.getAssertion(session);
+        Assertions.assertEquals(assertionWrapperInput.getSubjectNameId(), assertionWrapperMigratedOutput.getSubjectNameId());
+
+        sessionHandler.logout(session, assertionWrapperInput);
+    }
+
+    @DisplayName("Test that a missing assertion state column is remembered until the next cleanup")
+    @Test
+    void testStoreAssertionStateAfterMigration() throws Exception {
+        executeUpdate("ALTER TABLE assertions_tbl DROP COLUMN assertion_state");
+        try {
+            AssertionWrapper assertionWrapperInput = new AssertionWrapper(createAssertion());
+            sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+            Assertions.assertEquals(assertionWrapperInput.getAssertionAsBase64(), sessionHandler.getAssertion(session).getAssertionAsBase64());
+            sessionHandler.logout(session, assertionWrapperInput);
+        }
+        finally {
+            executeUpdate("ALTER TABLE assertions_tbl ADD assertion_state BLOB");
+        }
+
+        // Not checked again on every request
+        AssertionWrapper assertionWrapperInput = new AssertionWrapper(createAssertion());
+        sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+        Assertions.assertFalse(hasAssertionState());
+        sessionHandler.logout(session, assertionWrapperInput);
+
+        // Checked again by the cleanup
+        sessionHandler.cleanup(3600);
+        assertionWrapperInput = new AssertionWrapper(createAssertion());
+        sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+        Assertions.assertTrue(hasAssertionState());
+        sessionHandler.logout(session, assertionWrapperInput);
+    }
+
+    private static boolean hasAssertionState() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement("SELECT assertion_state FROM assertions_tbl WHERE session_id = ?")) {
+            ps.setString(1, SESSION_ID);
+            try (ResultSet rs = ps.executeQuery()) {
+                Assertions.assertTrue(rs.next());
+                return null != rs.getBlob(1);
+            }
+        }
+    }
+
+    private static void executeUpdate(String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+
     @DisplayName("Test that stored Assertion can be retrieved using session index")
     @Test
     void testStoreAssertionGetSessionIndex() throws Exception {
@@ -238,6 +326,39 @@ class DatabaseSessionHandlerTest {
         Assertions.assertNull(assertionWrapperOutput);
     }
 
+    @DisplayName("Test that a session read within the timeout survives cleanup, although its stored access time lags")
+    @Test
+    void testCleanupAllowsAccessTimeLag() throws Exception {
+        DatabaseSessionHandler aggregatingSessionHandler = new DatabaseSessionHandler(dataSource, 60000, 10000);
+        try {
+            AssertionWrapper assertionWrapperInput = new AssertionWrapper(createAssertion());
+            aggregatingSessionHandler.storeAssertion(session, assertionWrapperInput, null);
+
+            // Last stored 100 seconds ago, a read 50 seconds ago was skipped within the granularity
+            setAssertionAccessTime(LocalDateTime.now().minusSeconds(100));
+            aggregatingSessionHandler.cleanup(90);
+            Assertions.assertNotNull(aggregatingSessionHandler.getAssertion(session));
+
+            // Inactive beyond the timeout plus the granularity and flush interval
+            aggregatingSessionHandler.getTouchAggregator().flush();
+            setAssertionAccessTime(LocalDateTime.now().minusSeconds(200));
+            aggregatingSessionHandler.cleanup(90);
+            Assertions.assertNull(aggregatingSessionHandler.getAssertion(session));
+        }
+        finally {
+            aggregatingSessionHandler.getTouchAggregator().close();
+        }
+    }
+
+    private static void setAssertionAccessTime(LocalDateTime accessTime) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement("UPDATE assertions_tbl SET access_time = ? WHERE session_id = ?")) {
+            ps.setTimestamp(1, Timestamp.valueOf(accessTime));
+            ps.setString(2, SESSION_ID);
+            ps.executeUpdate();
+        }
+    }
+
     @DisplayName("Test that stored Assertion is removed after timeout and can not be retrieved using session index")
     @Test
     void testStoreAssertionTimeoutSessionIndex() throws Exception {
@@ -264,6 +385,49 @@ class DatabaseSessionHandlerTest {
         Assertions.assertEquals(String.format("Assertion with id '%s' and session index '%s' is already registered",assertionWrapperInput.getID(), assertionWrapperInput.getSessionIndex()), exception.getMessage());
     }
 
+    @DisplayName("Test that Assertion can not be replayed after logout, and the replay does not change the stored session")
+    @Test
+    void testStoreAssertionReplayAfterLogout() throws Exception {
+        AssertionWrapper assertionWrapperInput = new AssertionWrapper(createAssertion());
+        AssertionWrapper assertionWrapperOtherInput = new AssertionWrapper(createAssertion());
+
+        sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+        sessionHandler.logout(session, assertionWrapperInput);
+        sessionHandler.storeAssertion(session, assertionWrapperOtherInput, null);
+
+        assertThrows(IllegalArgumentException.class, () -> {
+            sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+        });
+
+        AssertionWrapper assertionWrapperOutput = sessionHandler.getAssertion(session);
+        Assertions.assertEquals(assertionWrapperOtherInput.getID(), assertionWrapperOutput.getID());
+
+        sessionHandler.logout(session, assertionWrapperOtherInput);
+    }
+
+    @DisplayName("Test that storing an Assertion replaces the Assertion stored on the session")
+    @Test
+    void testStoreAssertionReplacesSession() throws Exception {
+        AssertionWrapper assertionWrapperInput = new AssertionWrapper(createAssertion());
+        AssertionWrapper assertionWrapperOtherInput = new AssertionWrapper(createAssertion());
+
+        sessionHandler.storeAssertion(session, assertionWrapperInput, null);
+        sessionHandler.storeAssertion(session, assertionWrapperOtherInput, null);
+
+        AssertionWrapper assertionWrapperOutput = sessionHandler.getAssertion(session);
+        Assertions.assertEquals(assertionWrapperOtherInput.getID(), assertionWrapperOutput.getID());
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement("SELECT COUNT(*) FROM assertions_tbl WHERE session_id = ?")) {
+            ps.setString(1, SESSION_ID);
+            try (ResultSet rs = ps.executeQuery()) {
+                Assertions.assertTrue(rs.next());
+                Assertions.assertEquals(1, rs.getInt(1));
+            }
+        }
+
+        sessionHandler.logout(session, assertionWrapperOtherInput);
+    }
+
     @DisplayName("Test stored missing LogoutRequest will exit")
     @Test
     void testStoreLogoutRequestMissingLogoutRequest() throws Exception {
@@ -0,0 +1,201 @@
+package dk.gov.oio.saml.session.database;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.TestConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+class JdbcConnectionPoolTest {
+    private JdbcConnectionPool pool;
+
+    @BeforeAll
+    static void beforeAll() throws ClassNotFoundException {
+        Class.forName("org.hsqldb.jdbc.JDBCDriver");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (null != pool) {
+            pool.close();
+        }
+    }
+
+    @DisplayName("Test that a returned connection is reused instead of opening a new one")
+    @Test
+    void testConnectionIsReused() throws SQLException {
+        pool = createPool(0, 2, 1000);
+
+        try (Connection connection = pool.getConnection()) {
+            Assertions.assertEquals(1, pool.getActiveCount());
+            Assertions.assertEquals(0, pool.getIdleCount());
+        }
+        Assertions.assertEquals(0, pool.getActiveCount());
+        Assertions.assertEquals(1, pool.getIdleCount());
+
+        try (Connection connection = pool.getConnection()) {
+            Assertions.assertFalse(connection.isClosed());
+        }
+        Assertions.assertEquals(1, pool.getCreatedCount());
+    }
+
+    @DisplayName("Test that the pool is filled to its minimum size")
+    @Test
+    void testMinimumSize() {
+        pool = createPool(2, 4, 1000);
+
+        Assertions.assertEquals(2, pool.getIdleCount());
+        Assertions.assertEquals(2, pool.getTotalCount());
+    }
+
+    @DisplayName("Test that borrowing from an exhausted pool times out")
+    @Test
+    void testMaxWaitTimeout() throws SQLException {
+        pool = createPool(0, 1, 50);
+
+        try (Connection connection = pool.getConnection()) {
+            SQLException exception = Assertions.assertThrows(SQLTransientConnectionException.class, () -> pool.getConnection());
+            Assertions.assertTrue(exception.getMessage().startsWith("Timed out after 50 ms"));
+        }
+        Assertions.assertEquals(1, pool.getTimeoutCount());
+        Assertions.assertEquals(0, pool.getWaitingCount());
+    }
+
+    @DisplayName("Test that a waiting thread gets the connection when it is returned")
+    @Test
+    void testWaitingThreadIsServed() throws Exception {
+        pool = createPool(0, 1, 5000);
+
+        Connection connection = pool.getConnection();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> waited = executor.submit(() -> {
+                try (Connection waitedConnection = pool.getConnection()) {
+                    return waitedConnection.isClosed();
+                }
+            });
+
+            while (pool.getWaitingCount() == 0 && !waited.isDone()) {
+                Thread.sleep(5);
+            }
+            connection.close();
+
+            Assertions.assertFalse(waited.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assertions.assertEquals(1, pool.getCreatedCount());
+        Assertions.assertEquals(0, pool.getActiveCount());
+    }
+
+    @DisplayName("Test that a closed physical connection is not reused")
+    @Test
+    void testClosedConnectionIsDiscarded() throws SQLException {
+        pool = createPool(0, 1, 1000);
+
+        try (Connection connection = pool.getConnection()) {
+            connection.unwrap(Connection.class).close();
+        }
+
+        try (Connection connection = pool.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("VALUES (1)");
+        }
+        Assertions.assertEquals(2, pool.getCreatedCount());
+    }
+
+    @DisplayName("Test that a returned connection can not be used")
+    @Test
+    void testReturnedConnectionIsClosed() throws SQLException {
+        pool = createPool(0, 1, 1000);
+
+        Connection connection = pool.getConnection();
+        connection.close();
+
+        Assertions.assertTrue(connection.isClosed());
+        Assertions.assertThrows(SQLException.class, connection::createStatement);
+    }
+
+    @DisplayName("Test that a connection closed concurrently is returned to the pool once")
+    @Test
+    void testConcurrentCloseReturnsOnce() throws Exception {
+        pool = createPool(0, 2, 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 50; i++) {
+                Connection connection = pool.getConnection();
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> closes = new ArrayList<>();
+                for (int j = 0; j < 4; j++) {
+                    closes.add(executor.submit(() -> {
+                        start.await();
+                        connection.close();
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> close : closes) {
+                    close.get(5, TimeUnit.SECONDS);
+                }
+
+                Assertions.assertEquals(0, pool.getActiveCount());
+                Assertions.assertEquals(1, pool.getIdleCount());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @DisplayName("Test that reconfiguring the session handler factory closes the previous connection pool")
+    @Test
+    void testReconfigureClosesPreviousPool() throws Exception {
+        Configuration configuration = new Configuration.Builder()
+                .setSpEntityID(TestConstants.SP_ENTITY_ID)
+                .setBaseUrl(TestConstants.SP_BASE_URL)
+                .setIdpEntityID(TestConstants.IDP_ENTITY_ID)
+                .setIdpMetadataUrl(TestConstants.IDP_METADATA_URL)
+                .setKeystoreLocation(TestConstants.SP_KEYSTORE_LOCATION)
+                .setKeystorePassword(TestConstants.SP_KEYSTORE_PASSWORD)
+                .setKeyAlias(TestConstants.SP_KEYSTORE_ALIAS)
+                .setSessionHandlerJdbcUrl("jdbc:hsqldb:mem:pool")
+                .setSessionHandlerJdbcUsername("SA")
+                .setSessionHandlerJdbcPassword("")
+                .setSessionHandlerJdbcDriverClassName("org.hsqldb.jdbc.JDBCDriver")
+                .build();
+
+        JdbcSessionHandlerFactory factory = new JdbcSessionHandlerFactory();
+        try {
+            factory.configure(configuration);
+            JdbcConnectionPool previous = factory.getConnectionPool();
+
+            factory.configure(configuration);
+            Assertions.assertNotSame(previous, factory.getConnectionPool());
+            Assertions.assertThrows(SQLException.class, previous::getConnection);
+            try (Connection connection = factory.getConnectionPool().getConnection()) {
+                Assertions.assertFalse(connection.isClosed());
+            }
+        } finally {
+            factory.close();
+        }
+    }
+
+    private JdbcConnectionPool createPool(int minSize, int maxSize, long maxWaitMillis) {
+        return new JdbcConnectionPool(() -> DriverManager.getConnection("jdbc:hsqldb:mem:pool", "SA", ""),
+                minSize, maxSize, maxWaitMillis, 60000, 1);
+    }
+}
@@ -285,6 +285,27 @@ class InMemorySessionHandlerTest {
         Assertions.assertNull(assertionWrapperLogoutOutputSession);
     }
 
+    @DisplayName("Test that the least recently used session is evicted when the maximum estimated bytes is exceeded")
+    @Test
+    void testEvictionOverMaxBytes() throws Exception {
+        AssertionWrapper assertionWrapperOldInput = new AssertionWrapper(createAssertion());
+        AssertionWrapper assertionWrapperNewInput = new AssertionWrapper(createAssertion());
+        sessionHandler = new InMemorySessionHandler(TRACKED_SESSION_IDS, 0, 60000, assertionWrapperOldInput.getEstimatedSize() + 1000);
+
+        HttpSession sessionUser = Mockito.mock(HttpSession.class);
+        Mockito.when(sessionUser.getId()).thenReturn("USER_SESSION_ID");
+
+        sessionHandler.storeAssertion(sessionUser, assertionWrapperOldInput, null);
+        sessionHandler.storeAssertion(session, assertionWrapperNewInput, null);
+
+        Assertions.assertNull(sessionHandler.getAssertion(sessionUser));
+        Assertions.assertNull(sessionHandler.getAssertion(assertionWrapperOldInput.getSessionIndex()));
+        Assertions.assertNotNull(sessionHandler.getAssertion(session));
+        Assertions.assertEquals(1, sessionHandler.getEvictionCount());
+        Assertions.assertEquals(1, sessionHandler.getEntryCounts().get("Assertions"));
+        Assertions.assertEquals(assertionWrapperNewInput.getEstimatedSize(), sessionHandler.getEstimatedBytes().get("Assertions"));
+    }
+
     @DisplayName("Test that assertion on one session is removed from another session after logout")
     @Test
     void testLogoutOtherSession() throws Exception {
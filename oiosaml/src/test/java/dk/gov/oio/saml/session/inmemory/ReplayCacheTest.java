@@ -0,0 +1,100 @@
+package dk.gov.oio.saml.session.inmemory;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import dk.gov.oio.saml.config.Configuration;
+import dk.gov.oio.saml.util.TestConstants;
+
+class ReplayCacheTest {
+
+    @DisplayName("Test that a registered ID is detected as replay")
+    @Test
+    void testReplay() {
+        ReplayCache cache = new ReplayCache(10, 0, 60000);
+
+        Assertions.assertTrue(cache.register("ID_1"));
+        Assertions.assertFalse(cache.register("ID_1"));
+        Assertions.assertEquals(1, cache.getHitCount());
+    }
+
+    @DisplayName("Test that the oldest ID is evicted when the maximum number of IDs is exceeded")
+    @Test
+    void testEvictOldestByCount() {
+        ReplayCache cache = new ReplayCache(2, 0, 60000);
+
+        cache.register("ID_C");
+        cache.register("ID_B");
+        cache.register("ID_A");
+
+        Assertions.assertFalse(cache.contains("ID_C"));
+        Assertions.assertTrue(cache.contains("ID_B"));
+        Assertions.assertTrue(cache.contains("ID_A"));
+        Assertions.assertEquals(1, cache.getEvictedCount());
+    }
+
+    @DisplayName("Test that IDs are evicted when the maximum estimated bytes is exceeded")
+    @Test
+    void testEvictByBytes() {
+        ReplayCache cache = new ReplayCache(10, 250, 60000);
+
+        cache.register("ID_1");
+        cache.register("ID_2");
+        cache.register("ID_3");
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertTrue(cache.getEstimatedBytes() <= 250);
+        Assertions.assertFalse(cache.contains("ID_1"));
+    }
+
+    @DisplayName("Test that IDs are removed after the retention window")
+    @Test
+    void testRemoveExpired() throws InterruptedException {
+        ReplayCache cache = new ReplayCache(10, 0, 20);
+
+        cache.register("ID_1");
+        Thread.sleep(50);
+        cache.register("ID_2");
+        cache.removeExpired();
+
+        Assertions.assertFalse(cache.contains("ID_1"));
+        Assertions.assertTrue(cache.contains("ID_2"));
+        Assertions.assertEquals(1, cache.getExpiredCount());
+    }
+
+    @DisplayName("Test that a replay is detected with the default configuration")
+    @Test
+    void testReplayWithDefaultConfiguration() throws Exception {
+        Configuration configuration = new Configuration.Builder()
+                .setSpEntityID(TestConstants.SP_ENTITY_ID)
+                .setBaseUrl(TestConstants.SP_BASE_URL)
+                .setIdpEntityID(TestConstants.IDP_ENTITY_ID)
+                .setIdpMetadataUrl(TestConstants.IDP_METADATA_URL)
+                .setKeystoreLocation(TestConstants.SP_KEYSTORE_LOCATION)
+                .setKeystorePassword(TestConstants.SP_KEYSTORE_PASSWORD)
+                .setKeyAlias(TestConstants.SP_KEYSTORE_ALIAS)
+                .build();
+
+        InMemorySessionHandlerFactory factory = new InMemorySessionHandlerFactory();
+        factory.configure(configuration);
+        ReplayCache cache = ((InMemorySessionHandler) factory.getHandler()).getReplayCache();
+
+        Assertions.assertTrue(cache.register("ID_1"));
+        Assertions.assertTrue(cache.contains("ID_1"));
+        Assertions.assertFalse(cache.register("ID_1"));
+    }
+
+    @DisplayName("Test that IDs are not evicted by count when the maximum number of IDs is zero")
+    @Test
+    void testNoCountLimit() {
+        ReplayCache cache = new ReplayCache(0, 0, 60000);
+
+        cache.register("ID_1");
+        cache.register("ID_2");
+
+        Assertions.assertTrue(cache.contains("ID_1"));
+        Assertions.assertFalse(cache.register("ID_2"));
+        Assertions.assertEquals(0, cache.getEvictedCount());
+    }
+}
@@ -0,0 +1,46 @@
+package dk.gov.oio.saml.session.inmemory;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class TimeOutMapTest {
+
+    @DisplayName("Test that only entries not accessed within the delay are expired")
+    @Test
+    void testExpireAccessed() throws InterruptedException {
+        TimeOutMap<String> map = new TimeOutMap<>();
+        map.put("KEY_1", "VALUE_1");
+        map.put("KEY_2", "VALUE_2");
+
+        Thread.sleep(1100);
+        map.get("KEY_2").setAccesstime();
+
+        Map<String, String> expired = new HashMap<>();
+        map.expire(500, (key, wrapper) -> expired.put(key, wrapper.getObject()));
+
+        Assertions.assertEquals("VALUE_1", expired.get("KEY_1"));
+        Assertions.assertEquals(1, expired.size());
+        Assertions.assertTrue(map.containsKey("KEY_2"));
+    }
+
+    @DisplayName("Test that replaced and removed entries are not expired")
+    @Test
+    void testReplacedAndRemoved() {
+        TimeOutMap<String> map = new TimeOutMap<>();
+        map.put("KEY_1", "VALUE_1");
+        map.put("KEY_1", "VALUE_2");
+        map.put("KEY_2", "VALUE_3");
+        map.remove("KEY_2");
+
+        Map<String, String> expired = new HashMap<>();
+        map.expire(-1000, (key, wrapper) -> expired.put(key, wrapper.getObject()));
+
+        Assertions.assertEquals(1, expired.size());
+        Assertions.assertEquals("VALUE_2", expired.get("KEY_1"));
+        Assertions.assertEquals(0, map.size());
+    }
+}
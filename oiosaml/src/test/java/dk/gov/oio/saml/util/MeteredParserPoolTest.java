@@ -0,0 +1,44 @@
+package dk.gov.oio.saml.util;
+
+import net.shibboleth.shared.xml.XMLParserException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+class MeteredParserPoolTest {
+
+    @DisplayName("Test that documents are parsed namespace aware and that parsing is measured")
+    @Test
+    void testParse() throws Exception {
+        MeteredParserPool parserPool = new MeteredParserPool(2);
+
+        for (int i = 0; i < 5; i++) {
+            Document document = parserPool.parse(new ByteArrayInputStream("<s:a xmlns:s=\"urn:s\"><s:b/></s:a>".getBytes(StandardCharsets.UTF_8)));
+            Assertions.assertEquals("urn:s", document.getDocumentElement().getNamespaceURI());
+        }
+        parserPool.parse(new StringReader("<a/>"));
+
+        Assertions.assertEquals(6, parserPool.getParseCount());
+        Assertions.assertEquals(6, parserPool.getBuilderCount());
+        Assertions.assertEquals(0, parserPool.getFailedParseCount());
+        Assertions.assertTrue(parserPool.getMaxParseNanos() >= parserPool.getAverageParseNanos());
+        Assertions.assertTrue(parserPool.getMaxWaitNanos() >= parserPool.getAverageWaitNanos());
+    }
+
+    @DisplayName("Test that invalid documents and document type declarations are rejected")
+    @Test
+    void testReject() throws Exception {
+        MeteredParserPool parserPool = new MeteredParserPool(2);
+
+        Assertions.assertThrows(XMLParserException.class, () -> parserPool.parse(new StringReader("<a>")));
+        Assertions.assertThrows(XMLParserException.class, () -> parserPool.parse(new StringReader("<!DOCTYPE a [<!ENTITY x \"x\">]><a>&x;</a>")));
+
+        Assertions.assertEquals(2, parserPool.getFailedParseCount());
+        Assertions.assertNotNull(parserPool.parse(new StringReader("<a/>")));
+    }
+}
@@ -0,0 +1,77 @@
+package dk.gov.oio.saml.util;
+
+import dk.gov.oio.saml.extensions.appswitch.AppSwitch;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitchBuilder;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitchMarshaller;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitchPlatform;
+import dk.gov.oio.saml.extensions.appswitch.AppSwitchUnmarshaller;
+import dk.gov.oio.saml.extensions.appswitch.Platform;
+import dk.gov.oio.saml.extensions.appswitch.PlatformBuilder;
+import dk.gov.oio.saml.extensions.appswitch.PlatformMarshaller;
+import dk.gov.oio.saml.extensions.appswitch.PlatformUnmarshaller;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURL;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURLBuilder;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURLMarshaller;
+import dk.gov.oio.saml.extensions.appswitch.ReturnURLUnmarshaller;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.config.InitializationService;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.w3c.dom.Element;
+
+class SamlHelperTest {
+
+    @BeforeAll
+    static void initialize() throws Exception {
+        InitializationService.initialize();
+        SamlHelper.registerObjectProvider(Platform.DEFAULT_ELEMENT_NAME, new PlatformBuilder(), new PlatformMarshaller(), new PlatformUnmarshaller());
+        SamlHelper.registerObjectProvider(ReturnURL.DEFAULT_ELEMENT_NAME, new ReturnURLBuilder(), new ReturnURLMarshaller(), new ReturnURLUnmarshaller());
+        SamlHelper.registerObjectProvider(AppSwitch.DEFAULT_ELEMENT_NAME, new AppSwitchBuilder(), new AppSwitchMarshaller(), new AppSwitchUnmarshaller());
+        SamlHelper.initializeProviderCache();
+    }
+
+    @DisplayName("Test that the AppSwitch extension is built, marshalled and unmarshalled through the provider cache")
+    @Test
+    void testAppSwitchRoundTrip() throws Exception {
+        AppSwitch appSwitch = SamlHelper.build(AppSwitch.class);
+        Platform platform = SamlHelper.build(Platform.class);
+        platform.setValue(AppSwitchPlatform.iOS);
+        appSwitch.setPlatform(platform);
+        ReturnURL returnURL = SamlHelper.build(ReturnURL.class);
+        returnURL.setValue("https://ios.return.url");
+        appSwitch.setReturnURL(returnURL);
+
+        Element element = SamlHelper.marshallObject(appSwitch);
+        XMLObject unmarshalled = SamlHelper.unmarshallObject(element);
+
+        Assertions.assertTrue(unmarshalled instanceof AppSwitch);
+        Assertions.assertEquals(AppSwitchPlatform.iOS, ((AppSwitch) unmarshalled).getPlatform().getValue());
+        Assertions.assertEquals("https://ios.return.url", ((AppSwitch) unmarshalled).getReturnURL().getValue());
+    }
+
+    @DisplayName("Test that objects are still built and marshalled after the provider cache is cleared")
+    @Test
+    void testClearProviderCache() throws Exception {
+        Issuer issuer = SamlHelper.build(Issuer.class);
+        issuer.setValue("https://sp.example.com");
+        Assertions.assertNotNull(SamlHelper.marshallObject(issuer));
+
+        SamlHelper.clearProviderCache();
+
+        Issuer other = SamlHelper.build(Issuer.class);
+        other.setValue("https://sp.example.com");
+        Element element = SamlHelper.marshallObject(other);
+        Assertions.assertEquals("https://sp.example.com", ((Issuer) SamlHelper.unmarshallObject(element)).getValue());
+
+        SamlHelper.initializeProviderCache();
+    }
+
+    @DisplayName("Test that types without a default element name are rejected")
+    @Test
+    void testBuildInvalidType() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SamlHelper.build(String.class));
+    }
+}
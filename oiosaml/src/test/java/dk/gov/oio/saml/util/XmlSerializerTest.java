@@ -0,0 +1,57 @@
+package dk.gov.oio.saml.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+class XmlSerializerTest {
+    private static final String XML = "<s:Assertion xmlns:s=\"urn:s\" ID=\"_1\">\n    <s:Issuer>IDP &amp; \u00e6\u00f8\u00e5</s:Issuer>\n</s:Assertion>";
+
+    @DisplayName("Test that the compact profile writes the document unchanged and that bytes and base64 contain the same XML")
+    @Test
+    void testCompact() throws Exception {
+        Document document = parse(XML);
+
+        byte[] bytes = XmlSerializer.toBytes(document.getDocumentElement(), XmlSerializer.Profile.COMPACT);
+        String xml = new String(bytes, StandardCharsets.UTF_8);
+
+        Assertions.assertEquals(XML, xml);
+        Assertions.assertEquals(Base64.getEncoder().encodeToString(bytes), XmlSerializer.toBase64(document.getDocumentElement(), XmlSerializer.Profile.COMPACT));
+    }
+
+    @DisplayName("Test that the pretty profiles indent, and only the metadata profile writes a declaration")
+    @Test
+    void testPretty() throws Exception {
+        Document document = parse(XML.replace("\n    ", ""));
+
+        String pretty = XmlSerializer.toString(document.getDocumentElement(), XmlSerializer.Profile.PRETTY);
+        String declaration = XmlSerializer.toString(document.getDocumentElement(), XmlSerializer.Profile.PRETTY_WITH_DECLARATION);
+
+        Assertions.assertTrue(pretty.startsWith("<s:Assertion"), pretty);
+        Assertions.assertTrue(pretty.contains("\n    <s:Issuer>"), pretty);
+        Assertions.assertTrue(declaration.startsWith("<?xml"), declaration);
+        Assertions.assertTrue(declaration.endsWith(pretty.substring(pretty.indexOf("<s:Assertion"))), declaration);
+    }
+
+    @DisplayName("Test that reused buffers do not leak content between documents")
+    @Test
+    void testReuse() throws Exception {
+        String first = XmlSerializer.toBase64(parse("<a><b>FIRST_DOCUMENT_WITH_LONGER_CONTENT</b></a>").getDocumentElement(), XmlSerializer.Profile.COMPACT);
+        String second = XmlSerializer.toBase64(parse("<a/>").getDocumentElement(), XmlSerializer.Profile.COMPACT);
+
+        Assertions.assertNotEquals(first, second);
+        Assertions.assertEquals("<a/>", new String(Base64.getDecoder().decode(second), StandardCharsets.UTF_8));
+    }
+
+    private Document parse(String xml) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}